@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.bench;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.fimalib.calc.cal.daycount.D30_360_ISDA;
+import org.fimalib.calc.cal.daycount.DaycountException;
+import org.fimalib.instrument.TermRate;
+import org.fimalib.instrument.curve.CubicSplinesInterpolator;
+import org.fimalib.instrument.curve.CurveInterpolationException;
+import org.fimalib.instrument.curve.LinearCurveInterpolatorExtrapolator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class benchmarks the cubic spline interpolation of a rate curve with
+ * quarterly pillars: setting up the splines (initialize) and interpolating a
+ * rate at dates spread over the curve (interpolate).
+ * 
+ * @author Peter Werno
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CurveBenchmark {
+    static final int NUM_DATES = 256;
+    
+    @Param({ "5", "20", "50" })
+    int pillarCount;
+    
+    Date tradeDate;
+    ArrayList<TermRate> pillars;
+    CubicSplinesInterpolator interpolator;
+    Date[] dates;
+    int next;
+    
+    @Setup
+    public void setUp() throws CurveInterpolationException, DaycountException {
+        Random random = new Random(42);
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2024, Calendar.JANUARY, 15);
+        this.tradeDate = calendar.getTime();
+        
+        this.pillars = new ArrayList<>();
+        for(int i=0; i<this.pillarCount; i++) {
+            calendar.add(Calendar.MONTH, 3);
+            this.pillars.add(new TermRate(0.02 + 0.01 * random.nextDouble(), this.tradeDate, calendar.getTime()));
+        }
+        
+        this.interpolator = this.initialize();
+        
+        // dates between the trade date and the last pillar
+        long start = this.tradeDate.getTime();
+        long end = calendar.getTimeInMillis();
+        this.dates = new Date[NUM_DATES];
+        for(int i=0; i<NUM_DATES; i++) {
+            this.dates[i] = new Date(start + (long)(random.nextDouble() * (end - start)));
+        }
+    }
+    
+    @Benchmark
+    public CubicSplinesInterpolator initialize() throws CurveInterpolationException, DaycountException {
+        CubicSplinesInterpolator retVal = new CubicSplinesInterpolator(new D30_360_ISDA(), LinearCurveInterpolatorExtrapolator.EXTRAPOLATE_CONSTANT);
+        retVal.initialize(this.tradeDate, this.pillars);
+        
+        return retVal;
+    }
+    
+    @Benchmark
+    public TermRate interpolate() throws CurveInterpolationException, DaycountException {
+        this.next = (this.next + 1) & (NUM_DATES - 1);
+        
+        return this.interpolator.interpolate(this.dates[this.next]);
+    }
+}
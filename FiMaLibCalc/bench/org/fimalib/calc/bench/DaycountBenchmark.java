@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.bench;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.fimalib.calc.cal.daycount.D30EP_360;
+import org.fimalib.calc.cal.daycount.D30E_360_ISMA;
+import org.fimalib.calc.cal.daycount.D30U_360_SIA;
+import org.fimalib.calc.cal.daycount.D30_360_ISDA;
+import org.fimalib.calc.cal.daycount.DaycountConvention;
+import org.fimalib.calc.cal.daycount.DaycountException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class benchmarks the year fractions of the daycount conventions for
+ * periods of up to the given number of years.
+ * 
+ * Each operation computes the fractions of the same fixed set of periods, the
+ * score is reported per period (see OperationsPerInvocation).
+ * 
+ * @author Peter Werno
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(3)
+@State(Scope.Thread)
+public class DaycountBenchmark {
+    static final int NUM_PERIODS = 1024;
+    
+    @Param({ "D30_360_ISDA", "D30E_360_ISMA", "D30U_360_SIA", "D30EP_360" })
+    String convention;
+    
+    @Param({ "1", "10", "30" })
+    int years;
+    
+    DaycountConvention daycountConvention;
+    Date[] startDates;
+    Date[] endDates;
+    
+    @Setup
+    public void setUp() {
+        switch (this.convention) {
+            case "D30_360_ISDA": this.daycountConvention = new D30_360_ISDA(); break;
+            case "D30E_360_ISMA": this.daycountConvention = new D30E_360_ISMA(); break;
+            case "D30U_360_SIA": this.daycountConvention = new D30U_360_SIA(); break;
+            case "D30EP_360": this.daycountConvention = new D30EP_360(); break;
+            default: throw new IllegalArgumentException("Unknown daycount convention " + this.convention);
+        }
+        
+        // periods starting in 2000-2019 with a length of up to the given number of years;
+        // start dates in December are left out, as the 30/360 conventions take a
+        // pathologically slow path for them (see D30_360_ISDA.getNumerator)
+        Random random = new Random(42);
+        Calendar calendar = Calendar.getInstance();
+        this.startDates = new Date[NUM_PERIODS];
+        this.endDates = new Date[NUM_PERIODS];
+        for(int i=0; i<NUM_PERIODS; i++) {
+            calendar.clear();
+            calendar.set(2000 + random.nextInt(20), random.nextInt(11), 1 + random.nextInt(28));
+            this.startDates[i] = calendar.getTime();
+            calendar.add(Calendar.DATE, 1 + random.nextInt(365 * this.years));
+            this.endDates[i] = calendar.getTime();
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(NUM_PERIODS)
+    public double getFraction() throws DaycountException {
+        double retVal = 0.0;
+        
+        for(int i=0; i<NUM_PERIODS; i++) {
+            retVal += this.daycountConvention.getFraction(this.startDates[i], this.endDates[i]);
+        }
+        
+        return retVal;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.bench;
+
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.nodes.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class benchmarks parsing formulas and calculating them, both with
+ * number objects (Node.calculate) and with primitive values (Node.evaluate).
+ * 
+ * The formulas consist of the given number of terms, each a typical
+ * expression of variables, constants and functions (see createFormula).
+ * 
+ * @author Peter Werno
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(3)
+@State(Scope.Thread)
+public class FormulaBenchmark {
+    static final String[] TERMS = {
+        "3.5*x^2",
+        "sin(y)/2",
+        "exp(neg(x)*0.1)",
+        "sqrt(x+y)",
+        "if(x>y,x,y)",
+        "ln(1+y^2)",
+        "cos(x*y)",
+        "abs(x-y)*0.25",
+    };
+    
+    @Param({ "4", "16", "64" })
+    int terms;
+    
+    NumberFormat format;
+    String formula;
+    Node node;
+    HashMap<String, Number> parameters;
+    Node bound;
+    EvaluationContext context;
+    
+    /**
+     * Creates a formula of the given number of terms
+     * 
+     * @param numTerms (int) the number of terms
+     * @return the formula (String)
+     */
+    static String createFormula(int numTerms) {
+        StringBuilder retVal = new StringBuilder();
+        
+        for(int i=0; i<numTerms; i++) {
+            if(i > 0) retVal.append((i % 3 == 0) ? "-" : "+");
+            retVal.append(TERMS[i % TERMS.length]);
+        }
+        
+        return retVal.toString();
+    }
+    
+    @Setup
+    public void setUp() throws FormulaException {
+        this.format = NumberFormat.getInstance(Locale.US);
+        this.formula = createFormula(this.terms);
+        this.node = Formula.parse(this.formula, this.format);
+        
+        this.parameters = new HashMap<>();
+        this.parameters.put("x", new Double(1.25));
+        this.parameters.put("y", new Double(0.75));
+        
+        this.bound = Formula.parse(this.formula, this.format);
+        SlotMap slots = new SlotMap("x", "y");
+        this.bound.bind(slots);
+        this.context = new EvaluationContext(new double[] { 1.25, 0.75 });
+    }
+    
+    @Benchmark
+    public Node parse() throws FormulaException {
+        return Formula.parse(this.formula, this.format);
+    }
+    
+    @Benchmark
+    public Number calculate() throws FiMaLibCalcException {
+        return this.node.calculate(this.parameters);
+    }
+    
+    @Benchmark
+    public double evaluate() throws FiMaLibCalcException {
+        return this.bound.evaluate(this.context);
+    }
+}
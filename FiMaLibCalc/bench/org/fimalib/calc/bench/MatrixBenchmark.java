@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.fimalib.calc.matrix.LESSolver2;
+import org.fimalib.calc.matrix.Matrix2;
+import org.fimalib.calc.matrix.MatrixException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class benchmarks the multiplication of matrices and the solution of
+ * linear equation systems.
+ * 
+ * LESSolver2 solves the system in place, so each solve works on a fresh copy
+ * of the equation system (the copy takes O(n^2) of the O(n^3) operations).
+ * 
+ * @author Peter Werno
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MatrixBenchmark {
+    @Param({ "8", "32", "128" })
+    int dimension;
+    
+    Matrix2 left;
+    Matrix2 right;
+    double[][] parameters;
+    double[] results;
+    
+    @Setup
+    public void setUp() throws MatrixException {
+        Random random = new Random(42);
+        
+        this.left = new Matrix2(random(random, this.dimension));
+        this.right = new Matrix2(random(random, this.dimension));
+        
+        // diagonally dominant, hence regular
+        this.parameters = random(random, this.dimension);
+        this.results = new double[this.dimension];
+        for(int i=0; i<this.dimension; i++) {
+            this.parameters[i][i] += this.dimension;
+            this.results[i] = random.nextDouble();
+        }
+    }
+    
+    /**
+     * Creates a square matrix of random values between -1 and 1
+     * 
+     * @param random (Random) the random number generator
+     * @param dimension (int) the number of rows and columns
+     * @return the values (double[][])
+     */
+    static double[][] random(Random random, int dimension) {
+        double[][] retVal = new double[dimension][dimension];
+        
+        for(int i=0; i<dimension; i++) {
+            for(int j=0; j<dimension; j++) {
+                retVal[i][j] = 2.0 * random.nextDouble() - 1.0;
+            }
+        }
+        
+        return retVal;
+    }
+    
+    @Benchmark
+    public Matrix2 mul() throws MatrixException {
+        return this.left.mul(this.right);
+    }
+    
+    @Benchmark
+    public Matrix2 solve() throws MatrixException {
+        double[][] copy = new double[this.dimension][];
+        for(int i=0; i<this.dimension; i++) {
+            copy[i] = this.parameters[i].clone();
+        }
+        
+        LESSolver2 solver = new LESSolver2(copy, this.results.clone());
+        solver.solve();
+        
+        return solver.getResults();
+    }
+}
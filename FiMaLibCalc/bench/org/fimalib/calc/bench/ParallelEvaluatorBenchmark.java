@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.bench;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.RandomStream;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.eval.ParallelEvaluator;
+import org.fimalib.calc.formula.nodes.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class benchmarks the parallel evaluation of a formula over a fixed set
+ * of scenarios with the given number of threads, with and without a seeded
+ * random stream (see ParallelEvaluator.setRandom), which evaluates the
+ * scenarios chunk by chunk.
+ * 
+ * The score is reported per scenario, so the speedup of n threads is the
+ * score of one thread divided by the score of n threads. The thread counts
+ * above the number of processors of the machine do not show any scaling.
+ * 
+ * @author Peter Werno
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(3)
+@State(Scope.Thread)
+public class ParallelEvaluatorBenchmark {
+    static final int NUM_SCENARIOS = 1 << 20;
+    static final String FORMULA = "3*x^2+exp(-x/2)*sin(y)-sum(i,1,4,i*x*y)+if(x>1,ln(x),2*x)";
+    
+    @Param({ "1", "2", "4", "8", "16", "32" })
+    int threads;
+    
+    @Param({ "false", "true" })
+    boolean seeded;
+    
+    ForkJoinPool pool;
+    ParallelEvaluator evaluator;
+    double[][] columns;
+    double[] out;
+    
+    @Setup
+    public void setUp() throws FormulaException {
+        Node node = Formula.parse(FORMULA, NumberFormat.getInstance(Locale.US));
+        
+        this.pool = new ForkJoinPool(this.threads);
+        this.evaluator = new ParallelEvaluator(node, new SlotMap("x", "y"), this.pool);
+        if(this.seeded) this.evaluator.setRandom(new RandomStream(42L));
+        
+        double[] x = new double[NUM_SCENARIOS];
+        double[] y = new double[NUM_SCENARIOS];
+        for(int i=0; i<NUM_SCENARIOS; i++) {
+            x[i] = 0.5 + 2.0 * i / NUM_SCENARIOS;
+            y[i] = 1.0 - 0.5 * i / NUM_SCENARIOS;
+        }
+        this.columns = new double[][] { x, y };
+        this.out = new double[NUM_SCENARIOS];
+    }
+    
+    @TearDown
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(NUM_SCENARIOS)
+    public double[] evaluate() throws FiMaLibCalcException {
+        this.evaluator.evaluate(this.columns, this.out);
+        
+        return this.out;
+    }
+}
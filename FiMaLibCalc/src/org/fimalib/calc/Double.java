@@ -610,12 +610,7 @@ public class Double extends Number {
      */
     @Override
     public Number cot(boolean returnNewNumber) {
-        double result;
-        double tan = Math.tan(this.value);
-        if(tan == 0.0)
-            result = java.lang.Double.POSITIVE_INFINITY;
-        else
-            result = 1.0/tan;
+        double result = cot(this.value);
         
         if(returnNewNumber)
             return new Double(result, this.format);
@@ -632,12 +627,7 @@ public class Double extends Number {
      */
     @Override
     public Number sec(boolean returnNewNumber) {
-        double result;
-        double cos = Math.cos(this.value);
-        if(cos == 0.0)
-            result = java.lang.Double.POSITIVE_INFINITY;
-        else
-            result = 1.0/cos;
+        double result = sec(this.value);
         
         if(returnNewNumber)
             return new Double(result, this.format);
@@ -654,12 +644,7 @@ public class Double extends Number {
      */
     @Override
     public Number csc(boolean returnNewNumber) {
-        double result;
-        double sin = Math.sin(this.value);
-        if(sin == 0.0)
-            result = java.lang.Double.POSITIVE_INFINITY;
-        else
-            result = 1.0/sin;
+        double result = csc(this.value);
         
         if(returnNewNumber)
             return new Double(result, this.format);
@@ -721,12 +706,7 @@ public class Double extends Number {
      */
     @Override
     public Number arccot(boolean returnNewNumber) {
-        double result = java.lang.Double.NaN;
-        
-        if(this.value > 0)
-            result = Math.atan(1.0/this.value);
-        else if(this.value < 0)
-            result = Math.atan(1.0/this.value) + Math.PI;
+        double result = arccot(this.value);
         
         if(returnNewNumber)
             return new Double(result, this.format);
@@ -743,10 +723,7 @@ public class Double extends Number {
      */
     @Override
     public Number arcsec(boolean returnNewNumber) {
-        double result = java.lang.Double.NaN;
-        
-        if(this.value != 0.0)
-            result = Math.acos(1.0 / this.value);
+        double result = arcsec(this.value);
         
         if(returnNewNumber)
             return new Double(result, this.format);
@@ -763,10 +740,7 @@ public class Double extends Number {
      */
     @Override
     public Number arccsc(boolean returnNewNumber) {
-        double result = java.lang.Double.NaN;
-        
-        if(this.value != 0.0)
-            result = Math.asin(1.0 / this.value);
+        double result = arccsc(this.value);
         
         if(returnNewNumber)
             return new Double(result, this.format);
@@ -828,12 +802,7 @@ public class Double extends Number {
      */
     @Override
     public Number coth(boolean returnNewNumber) {
-        double result = java.lang.Double.NaN;
-        double sinh = Math.sinh(this.value);
-        double cosh = Math.cosh(this.value);
-        
-        if(sinh != 0.0)
-            result = cosh / sinh;
+        double result = coth(this.value);
         
         if(returnNewNumber) 
             return new Double(result, this.format);
@@ -850,11 +819,7 @@ public class Double extends Number {
      */
     @Override
     public Number sech(boolean returnNewNumber) {
-        double result = java.lang.Double.NaN;
-        double cosh = Math.cosh(this.value);
-        
-        if(cosh != 0.0)
-            result = 1.0 / cosh;
+        double result = sech(this.value);
         
         if(returnNewNumber) 
             return new Double(result, this.format);
@@ -871,11 +836,7 @@ public class Double extends Number {
      */
     @Override
     public Number csch(boolean returnNewNumber) {
-        double result = java.lang.Double.NaN;
-        double sinh = Math.sinh(this.value);
-        
-        if(sinh != 0.0)
-            result = 1.0 / sinh;
+        double result = csch(this.value);
         
         if(returnNewNumber) 
             return new Double(result, this.format);
@@ -892,7 +853,8 @@ public class Double extends Number {
      */
     @Override
     public Number arcsinh(boolean returnNewNumber) {
-        double result = Math.log(this.value + (Math.sqrt(this.value * this.value + 1.0)));
+        double result = arcsinh(this.value);
+        
         if(returnNewNumber)
             return new Double(result, this.format);
         
@@ -908,10 +870,7 @@ public class Double extends Number {
      */
     @Override
     public Number arccosh(boolean returnNewNumber) {
-        double result = java.lang.Double.NaN;
-        
-        if(this.value >= 1.0)
-            result = Math.log(this.value + (Math.sqrt(this.value * this.value - 1.0)));
+        double result = arccosh(this.value);
         
         if(returnNewNumber)
             return new Double(result, this.format);
@@ -928,10 +887,7 @@ public class Double extends Number {
      */
     @Override
     public Number arctanh(boolean returnNewNumber) {
-        double result = java.lang.Double.NaN;
-        
-        if((this.value > -1.0) && (this.value < 1.0))
-            result = 0.5 * Math.log((1.0 + this.value) / (1.0 - this.value));
+        double result = arctanh(this.value);
         
         if(returnNewNumber)
             return new Double(result, this.format);
@@ -948,10 +904,7 @@ public class Double extends Number {
      */
     @Override
     public Number arccoth(boolean returnNewNumber) {
-        double result = java.lang.Double.NaN;
-        
-        if((this.value < -1.0) || (this.value > 1.0))
-            result = 0.5 * Math.log((this.value + 1.0) / (this.value - 1.0));
+        double result = arccoth(this.value);
         
         if(returnNewNumber)
             return new Double(result, this.format);
@@ -968,10 +921,7 @@ public class Double extends Number {
      */
     @Override
     public Number arcsech(boolean returnNewNumber) {
-        double result = java.lang.Double.NaN;
-
-        if((this.value > 0.0) && (this.value <= 1.0))
-            result = Math.log(((1.0 + Math.sqrt(1.0 - this.value*this.value)) / this.value));
+        double result = arcsech(this.value);
         
         if(returnNewNumber)
             return new Double(result, this.format);
@@ -988,12 +938,7 @@ public class Double extends Number {
      */
     @Override
     public Number arccsch(boolean returnNewNumber) {
-        double result = java.lang.Double.NaN;
-
-        if(this.value > 0.0)
-            result = Math.log(((1.0 + Math.sqrt(1.0 + this.value*this.value)) / this.value));
-        else if (this.value < 0.0)
-            result = Math.log(((1.0 - Math.sqrt(1.0 + this.value*this.value)) / this.value));
+        double result = arccsch(this.value);
         
         if(returnNewNumber)
             return new Double(result, this.format);
@@ -1002,4 +947,250 @@ public class Double extends Number {
         return this;
     }
 
+    /* -----------------------------------------------------------------------
+    * Primitive functions
+    * 
+    * This section provides the functions that are not directly available in
+    * java.lang.Math as static methods working on primitive double values.
+    * They are used by the instance methods above and by the primitive
+    * evaluation of formula trees.
+    * ------------------------------------------------------------------------
+    */
+    
+    /**
+     * Returns the cotangent of a value
+     * 
+     * @param value (double) the value
+     * @return the cotangent (double)
+     */
+    public static double cot(double value) {
+        double result;
+        double tan = Math.tan(value);
+        if(tan == 0.0)
+            result = java.lang.Double.POSITIVE_INFINITY;
+        else
+            result = 1.0/tan;
+        
+        return result;
+    }
+
+    /**
+     * Returns the secant of a value
+     * 
+     * @param value (double) the value
+     * @return the secant (double)
+     */
+    public static double sec(double value) {
+        double result;
+        double cos = Math.cos(value);
+        if(cos == 0.0)
+            result = java.lang.Double.POSITIVE_INFINITY;
+        else
+            result = 1.0/cos;
+        
+        return result;
+    }
+
+    /**
+     * Returns the cosecant of a value
+     * 
+     * @param value (double) the value
+     * @return the cosecant (double)
+     */
+    public static double csc(double value) {
+        double result;
+        double sin = Math.sin(value);
+        if(sin == 0.0)
+            result = java.lang.Double.POSITIVE_INFINITY;
+        else
+            result = 1.0/sin;
+        
+        return result;
+    }
+
+    /**
+     * Returns the arc cotangent of a value
+     * 
+     * @param value (double) the value
+     * @return the arc cotangent (double)
+     */
+    public static double arccot(double value) {
+        double result = java.lang.Double.NaN;
+        
+        if(value > 0)
+            result = Math.atan(1.0/value);
+        else if(value < 0)
+            result = Math.atan(1.0/value) + Math.PI;
+        
+        return result;
+    }
+
+    /**
+     * Returns the arc secant of a value
+     * 
+     * @param value (double) the value
+     * @return the arc secant (double)
+     */
+    public static double arcsec(double value) {
+        double result = java.lang.Double.NaN;
+        
+        if(value != 0.0)
+            result = Math.acos(1.0 / value);
+        
+        return result;
+    }
+
+    /**
+     * Returns the arc cosecant of a value
+     * 
+     * @param value (double) the value
+     * @return the arc cosecant (double)
+     */
+    public static double arccsc(double value) {
+        double result = java.lang.Double.NaN;
+        
+        if(value != 0.0)
+            result = Math.asin(1.0 / value);
+        
+        return result;
+    }
+
+    /**
+     * Returns the hyperbolic cotangent of a value
+     * 
+     * @param value (double) the value
+     * @return the hyperbolic cotangent (double)
+     */
+    public static double coth(double value) {
+        double result = java.lang.Double.NaN;
+        double sinh = Math.sinh(value);
+        double cosh = Math.cosh(value);
+        
+        if(sinh != 0.0)
+            result = cosh / sinh;
+        
+        return result;
+    }
+
+    /**
+     * Returns the hyperbolic secant of a value
+     * 
+     * @param value (double) the value
+     * @return the hyperbolic secant (double)
+     */
+    public static double sech(double value) {
+        double result = java.lang.Double.NaN;
+        double cosh = Math.cosh(value);
+        
+        if(cosh != 0.0)
+            result = 1.0 / cosh;
+        
+        return result;
+    }
+
+    /**
+     * Returns the hyperbolic cosecant of a value
+     * 
+     * @param value (double) the value
+     * @return the hyperbolic cosecant (double)
+     */
+    public static double csch(double value) {
+        double result = java.lang.Double.NaN;
+        double sinh = Math.sinh(value);
+        
+        if(sinh != 0.0)
+            result = 1.0 / sinh;
+        
+        return result;
+    }
+
+    /**
+     * Returns the inverse hyperbolic sine of a value
+     * 
+     * @param value (double) the value
+     * @return the inverse hyperbolic sine (double)
+     */
+    public static double arcsinh(double value) {
+        double result = Math.log(value + (Math.sqrt(value * value + 1.0)));
+        
+        return result;
+    }
+
+    /**
+     * Returns the inverse hyperbolic cosine of a value
+     * 
+     * @param value (double) the value
+     * @return the inverse hyperbolic cosine (double)
+     */
+    public static double arccosh(double value) {
+        double result = java.lang.Double.NaN;
+        
+        if(value >= 1.0)
+            result = Math.log(value + (Math.sqrt(value * value - 1.0)));
+        
+        return result;
+    }
+
+    /**
+     * Returns the inverse hyperbolic tangent of a value
+     * 
+     * @param value (double) the value
+     * @return the inverse hyperbolic tangent (double)
+     */
+    public static double arctanh(double value) {
+        double result = java.lang.Double.NaN;
+        
+        if((value > -1.0) && (value < 1.0))
+            result = 0.5 * Math.log((1.0 + value) / (1.0 - value));
+        
+        return result;
+    }
+
+    /**
+     * Returns the inverse hyperbolic cotangent of a value
+     * 
+     * @param value (double) the value
+     * @return the inverse hyperbolic cotangent (double)
+     */
+    public static double arccoth(double value) {
+        double result = java.lang.Double.NaN;
+        
+        if((value < -1.0) || (value > 1.0))
+            result = 0.5 * Math.log((value + 1.0) / (value - 1.0));
+        
+        return result;
+    }
+
+    /**
+     * Returns the inverse hyperbolic secant of a value
+     * 
+     * @param value (double) the value
+     * @return the inverse hyperbolic secant (double)
+     */
+    public static double arcsech(double value) {
+        double result = java.lang.Double.NaN;
+
+        if((value > 0.0) && (value <= 1.0))
+            result = Math.log(((1.0 + Math.sqrt(1.0 - value*value)) / value));
+        
+        return result;
+    }
+
+    /**
+     * Returns the inverse hyperbolic cosecant of a value
+     * 
+     * @param value (double) the value
+     * @return the inverse hyperbolic cosecant (double)
+     */
+    public static double arccsch(double value) {
+        double result = java.lang.Double.NaN;
+
+        if(value > 0.0)
+            result = Math.log(((1.0 + Math.sqrt(1.0 + value*value)) / value));
+        else if (value < 0.0)
+            result = Math.log(((1.0 - Math.sqrt(1.0 + value*value)) / value));
+        
+        return result;
+    }
+
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class estimates the cost of the evaluation of formula trees (in units
+ * of about one addition) and whether an evaluation may fail, so that the
+ * operands of short-circuit operators can be ordered cheapest first (see
+ * Simplifier).
+ * 
+ * The costs are rough estimates: arithmetic operations and comparisons cost
+ * 1, divisions 4, square roots 8, powers and transcendental functions 20 and
+ * nodes of unknown classes 50. The cost of a sum or product is the cost of
+ * its formula times the number of iterations (if the bounds are constant,
+ * otherwise LOOP_ITERATIONS), the cost of an if function the cost of its
+ * condition plus the more expensive part.
+ * 
+ * @author Peter Werno
+ */
+public class CostModel {
+    public static final double LOOP_ITERATIONS = 10.0;
+    public static final int MAXIMUM_DEPTH = 16;         // of nested user defined functions
+    
+    /**
+     * Returns the estimated cost of a formula tree
+     * 
+     * @param node (Node) the formula tree
+     * @return the cost (double)
+     * @throws FormulaException 
+     */
+    public static double cost(Node node) throws FormulaException {
+        return cost(node, 0);
+    }
+    
+    /**
+     * Returns the estimated cost of a formula tree
+     * 
+     * @param node (Node) the formula tree
+     * @param depth (int) the depth of nested user defined functions
+     * @return the cost (double)
+     * @throws FormulaException 
+     */
+    static double cost(Node node, int depth) throws FormulaException {
+        int type = NodeType.of(node);
+        
+        switch (type) {
+            case NodeType.CONSTANT:
+                return 0.0;
+                
+            case NodeType.VARIABLE:
+                return 1.0;
+                
+            case NodeType.IF:
+                double parts = cost(node.getNode(1), depth);
+                if(node.getNodeCount() > 2) parts = Math.max(parts, cost(node.getNode(2), depth));
+                return 1.0 + cost(node.getNode(0), depth) + parts;
+                
+            case NodeType.SUM:
+            case NodeType.PROD:
+                double iterations = LOOP_ITERATIONS;
+                if(node.getNode(0).isNumber() && node.getNode(1).isNumber()) {
+                    try {
+                        double start = node.getNode(0).calculate(null).getValue();
+                        double end = node.getNode(1).calculate(null).getValue();
+                        iterations = Math.max(Math.floor(end - start) + 1.0, 0.0);
+                    }
+                    catch (FiMaLibCalcException ex) {
+                        // keep the default
+                    }
+                }
+                return cost(node.getNode(0), depth) + cost(node.getNode(1), depth) + iterations * (1.0 + cost(node.getNode(2), depth));
+                
+            case NodeType.FUNCTION:
+                double retVal = 2.0;
+                retVal += (depth < MAXIMUM_DEPTH) ? cost(((UserDefinedFunction)node).getDefinition(), depth + 1) : 50.0;
+                return retVal + children(node, depth);
+                
+            case NodeType.UNKNOWN:
+                return 50.0 + children(node, depth);
+                
+            default:
+                return own(type) + children(node, depth);
+        }
+    }
+    
+    /**
+     * Returns the cost of a node without its sub nodes
+     * 
+     * @param type (int) the type of the node (see NodeType)
+     * @return the cost (double)
+     */
+    static double own(int type) {
+        switch (type) {
+            case NodeType.DIV:      return 4.0;
+            case NodeType.SQRT:     return 8.0;
+            case NodeType.POW:      return 20.0;
+                
+            case NodeType.ABS:
+            case NodeType.INT:
+            case NodeType.SGN:
+                return 1.0;
+                
+            default:
+                return NodeType.isUnaryFunction(type) ? 20.0 : 1.0;
+        }
+    }
+    
+    /**
+     * Returns the sum of the costs of the sub nodes of a node
+     * 
+     * @param node (Node) the node
+     * @param depth (int) the depth of nested user defined functions
+     * @return the cost (double)
+     * @throws FormulaException 
+     */
+    static double children(Node node, int depth) throws FormulaException {
+        double retVal = 0.0;
+        
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            retVal += cost(node.getNode(i), depth);
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Returns whether the evaluation of a formula tree may fail or return
+     * different values for the same variable values, i.e. whether it contains
+     * divisions, logarithms, square roots, random numbers, user defined 
+     * functions, nodes of unknown classes or logical operators applied to
+     * operands that are not logical (e.g. !x). Such a tree must not be moved in
+     * front of another operand of a short-circuit operator, as the other
+     * operand might guard it (e.g. x!=0&&1/x>2).
+     * 
+     * @param node (Node) the formula tree
+     * @return true if the evaluation may fail (boolean)
+     * @throws FormulaException 
+     */
+    public static boolean mayFail(Node node) throws FormulaException {
+        switch (NodeType.of(node)) {
+            case NodeType.DIV:
+            case NodeType.LN:
+            case NodeType.LOG:
+            case NodeType.SQRT:
+            case NodeType.RAND:
+            case NodeType.FUNCTION:
+            case NodeType.UNKNOWN:
+                return true;
+                
+            case NodeType.NOT:
+            case NodeType.AND:
+            case NodeType.OR:
+            case NodeType.XOR:
+                // calculate fails for operands that are not boolean values
+                for(int i=0; i<node.getNodeCount(); i++) {
+                    if(!Simplifier.isLogical(node.getNode(i))) return true;
+                }
+                break;
+                
+            default:
+                break;
+        }
+        
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            if(mayFail(node.getNode(i))) return true;
+        }
+        
+        return false;
+    }
+}
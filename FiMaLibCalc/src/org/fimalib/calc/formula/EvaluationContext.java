@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the state of the evaluation of a formula tree with
+ * primitive values (see Node.evaluate): the variable values of the formula
+ * and a stack of frames for the calls of user defined functions.
+ * 
+ * Each frame holds the slot-indexed local variables of a function call, i.e.
+ * the parameter values and the running variables of sums and products within
+ * the function definition. The frames are stored in a single array, so that
+ * function calls do not create any objects.
+ * 
+ * All state of an evaluation is kept in the context, the formula tree itself
+ * is not changed. Hence, a bound formula tree can be evaluated by any number
+ * of threads at the same time, as long as each thread uses an evaluation
+ * context of its own. An evaluation context must not be shared by threads.
+ * 
+ * Example:
+ * 
+ *  Node node = Formula.parse("3*x^2+y");
+ *  SlotMap slots = new SlotMap("x", "y");
+ *  node.bind(slots);
+ *  EvaluationContext context = new EvaluationContext(slots);
+ *  context.set(0, 2.0);
+ *  context.set(1, 1.0);
+ *  double result = node.evaluate(context);
+ * 
+ * @author Peter Werno
+ */
+public class EvaluationContext {
+    public static final int INITIAL_STACK_SIZE = 64;
+    
+    double[] slots;     // the variable values of the formula
+    double[] stack;     // the frames of the function calls
+    int top;            // first unused position of the stack
+    double[] frame;     // the current frame (either slots or stack)
+    int base;           // the start of the current frame within the array
+    MemoTable memo;     // the results of memoized function calls (or null)
+    RandomStream random;    // the random numbers of the evaluation (or null)
+    
+    /**
+     * Creates a new instance of EvaluationContext with the given variable
+     * values. The array is used directly (i.e. not copied).
+     * 
+     * @param slots (double[]) the variable values, one per slot
+     */
+    public EvaluationContext(double[] slots) {
+        this.setSlots(slots);
+    }
+    
+    /**
+     * Creates a new instance of EvaluationContext with all variables of the
+     * slot map being zero
+     * 
+     * @param slots (SlotMap) the slot map
+     */
+    public EvaluationContext(SlotMap slots) {
+        this(slots.createSlots());
+    }
+    
+    /**
+     * Sets new variable values and resets the stack of frames, so that the
+     * context can be reused for another evaluation (e.g. even after an
+     * evaluation has been aborted by an exception).
+     * 
+     * @param slots (double[]) the variable values, one per slot
+     */
+    public final void setSlots(double[] slots) {
+        this.slots = slots;
+        this.frame = slots;
+        this.base = 0;
+        this.top = 0;
+    }
+    
+    /**
+     * Returns the variable values of the formula
+     * 
+     * @return the variable values (double[])
+     */
+    public double[] getSlots() {
+        return this.slots;
+    }
+    
+    /**
+     * Returns the memo table for the results of memoized function calls
+     * 
+     * @return the memo table (MemoTable), null if calls are not memoized
+     */
+    public MemoTable getMemoTable() {
+        return this.memo;
+    }
+    
+    /**
+     * Sets the memo table for the results of memoized function calls (see
+     * org.fimalib.calc.formula.eval.Memoized). The memo table is kept when
+     * new variable values are set, so that it can be used for several
+     * evaluations.
+     * 
+     * @param memo (MemoTable) the memo table, null to disable memoization
+     */
+    public void setMemoTable(MemoTable memo) {
+        this.memo = memo;
+    }
+    
+    /**
+     * Returns the random stream of the evaluation, i.e. the stream set with
+     * setRandom or, if none has been set, the stream of the current thread
+     * (see RandomStream.current)
+     * 
+     * @return the random stream (RandomStream)
+     */
+    public RandomStream getRandom() {
+        RandomStream retVal = this.random;
+        
+        return (retVal == null) ? RandomStream.current() : retVal;
+    }
+    
+    /**
+     * Sets the random stream of the evaluation (e.g. a seeded stream, so
+     * that evaluations with random numbers can be reproduced). Like the memo
+     * table, the stream is kept when new variable values are set.
+     * 
+     * @param random (RandomStream) the random stream, null to use the stream
+     * of the current thread
+     */
+    public void setRandom(RandomStream random) {
+        this.random = random;
+    }
+    
+    /**
+     * Returns the value of a slot of the current frame
+     * 
+     * @param slot (int) the slot
+     * @return the value (double)
+     */
+    public double get(int slot) {
+        return this.frame[this.base + slot];
+    }
+    
+    /**
+     * Sets the value of a slot of the current frame
+     * 
+     * @param slot (int) the slot
+     * @param value (double) the value
+     */
+    public void set(int slot, double value) {
+        this.frame[this.base + slot] = value;
+    }
+    
+    /**
+     * Returns the number of frames currently on the stack (i.e. the depth of
+     * nested function calls)
+     * 
+     * @return the stack depth in values (int)
+     */
+    public int getStackSize() {
+        return this.top;
+    }
+    
+    /**
+     * Reserves a new frame (with all slots being zero) on top of the stack.
+     * The frame does not become the current frame before enter is called, so
+     * that the values of the new frame can be calculated in the current frame.
+     * 
+     * @param size (int) the number of slots of the frame
+     * @return the start of the new frame (int)
+     */
+    public int allocate(int size) {
+        int start = this.top;
+        int newTop = start + size;
+        
+        // the stack is created with the first function call
+        if(this.stack == null) {
+            this.stack = new double[Math.max(newTop, INITIAL_STACK_SIZE)];
+        }
+        else if(newTop > this.stack.length) {
+            double[] newStack = Arrays.copyOf(this.stack, Math.max(newTop, 2 * this.stack.length));
+            if(this.frame == this.stack) this.frame = newStack;
+            this.stack = newStack;
+        }
+        Arrays.fill(this.stack, start, newTop, 0.0);
+        this.top = newTop;
+        
+        return start;
+    }
+    
+    /**
+     * Sets the value of a slot of a reserved frame
+     * 
+     * @param start (int) the start of the frame
+     * @param slot (int) the slot
+     * @param value (double) the value
+     */
+    public void setLocal(int start, int slot, double value) {
+        this.stack[start + slot] = value;
+    }
+    
+    /**
+     * Removes a reserved frame that has not been entered (e.g. because the
+     * result of the function call is already known) from the stack
+     * 
+     * @param start (int) the start of the frame to remove
+     */
+    public void release(int start) {
+        this.top = start;
+    }
+    
+    /**
+     * Makes a reserved frame the current frame
+     * 
+     * @param start (int) the start of the frame
+     * @return the previous frame (int), to be passed to leave
+     */
+    public int enter(int start) {
+        int previous = (this.frame == this.slots) ? -1 : this.base;
+        
+        this.frame = this.stack;
+        this.base = start;
+        
+        return previous;
+    }
+    
+    /**
+     * Removes the frame from the stack and makes the previous frame the
+     * current frame again
+     * 
+     * @param previous (int) the previous frame as returned by enter
+     * @param start (int) the start of the frame to remove
+     */
+    public void leave(int previous, int start) {
+        this.top = start;
+        
+        if(previous < 0) {
+            this.frame = this.slots;
+            this.base = 0;
+        }
+        else {
+            this.frame = this.stack;
+            this.base = previous;
+        }
+    }
+}
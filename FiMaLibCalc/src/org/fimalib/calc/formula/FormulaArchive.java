@@ -0,0 +1,521 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.fimalib.calc.Boolean;
+import org.fimalib.calc.Complex;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.formula.functions.Function;
+import org.fimalib.calc.formula.functions.FunctionRegistry;
+import org.fimalib.calc.formula.functions.If;
+import org.fimalib.calc.formula.functions.Prod;
+import org.fimalib.calc.formula.functions.Sum;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.*;
+
+/**
+ * This class reads formula trees and user defined functions from the binary
+ * format written by FormulaArchiveWriter, so that an application does not
+ * have to parse its formulas again on every start.
+ * 
+ * The archive consists of
+ *  - a header (magic number and version),
+ *  - the string pool (formula keys, function and variable names),
+ *  - the constant pool (numbers as 8 byte values),
+ *  - the index of the functions and formulas (string index and code offset),
+ *  - the code: for each formula or function the variable names (free
+ *    variables resp. parameters first, in slot order) and the formula tree in
+ *    prefix order, one opcode (see NodeType) per node, followed by the indices
+ *    of the constant, the variable or the function name and the sub nodes.
+ * 
+ * Only the header, the strings and the index are read when the archive is
+ * opened. Each formula is decoded when it is requested, directly from the
+ * (e.g. memory mapped) buffer, and every call returns a new formula tree that
+ * can be changed or bound by the caller. Functions that are not defined in the
+ * archive are looked up in the function registry.
+ * 
+ * An archive can be read by several threads at the same time. The file must
+ * not be changed while it is open.
+ * 
+ * Example:
+ * 
+ *  FormulaArchive archive = FormulaArchive.open(Paths.get("formulas.bin"));
+ *  Node node = archive.get("price");
+ *  SlotMap slots = new SlotMap(archive.getVariables("price"));
+ * 
+ * @author Peter Werno
+ */
+public class FormulaArchive {
+    public static final int MAGIC = 0x464D4C41;    // "FMLA"
+    public static final int VERSION = 1;
+    
+    // opcodes besides the node types
+    static final int OP_NULL = NodeType.UNKNOWN;
+    static final int OP_CALL = NodeType.FUNCTION;
+    static final int OP_BOOLEAN = 64;
+    static final int OP_COMPLEX = 65;
+    
+    ByteBuffer buffer;
+    FunctionRegistry registry;
+    String[] strings;
+    int constants;          // the offset of the constant pool
+    int code;               // the offset of the code
+    HashMap<String, Integer> formulas = new HashMap<>();
+    HashMap<String, Integer> functionOffsets = new HashMap<>();
+    ConcurrentHashMap<String, UserDefinedFunction> functions = new ConcurrentHashMap<>();
+    
+    /**
+     * Creates a new instance of FormulaArchive reading from a buffer. Functions
+     * not defined in the archive are looked up in the default function
+     * registry.
+     * 
+     * @param buffer (ByteBuffer) the buffer, from its position to its limit
+     * @throws FormulaException if the buffer does not contain an archive
+     */
+    public FormulaArchive(ByteBuffer buffer) throws FormulaException {
+        this(buffer, FunctionRegistry.getDefault());
+    }
+    
+    /**
+     * Creates a new instance of FormulaArchive reading from a buffer
+     * 
+     * @param buffer (ByteBuffer) the buffer, from its position to its limit
+     * @param registry (FunctionRegistry) the registry of the functions not defined in the archive
+     * @throws FormulaException if the buffer does not contain an archive
+     */
+    public FormulaArchive(ByteBuffer buffer, FunctionRegistry registry) throws FormulaException {
+        this.buffer = buffer.slice();
+        this.registry = registry;
+        
+        ByteBuffer in = this.buffer.duplicate();
+        try {
+            if(in.getInt() != MAGIC)
+                throw new FormulaException("Not a formula archive");
+            int version = in.getShort();
+            if(version != VERSION)
+                throw new FormulaException("Unsupported version " + version + " of formula archive");
+            in.getShort();
+            
+            this.strings = new String[in.getInt()];
+            for(int i=0; i<this.strings.length; i++) {
+                byte[] bytes = new byte[readVarint(in)];
+                in.get(bytes);
+                this.strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            
+            int numConstants = in.getInt();
+            this.constants = in.position();
+            in.position(this.constants + 8 * numConstants);
+            
+            this.readIndex(in, this.functionOffsets);
+            this.readIndex(in, this.formulas);
+            
+            int size = in.getInt();
+            this.code = in.position();
+            if(this.code + size > in.limit())
+                throw new FormulaException("Formula archive is truncated");
+        }
+        catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+            throw new FormulaException("Formula archive is corrupt", ex);
+        }
+    }
+    
+    /**
+     * Opens an archive file. The file is memory mapped, so that only the parts
+     * needed are read from the disk.
+     * 
+     * @param file (Path) the file
+     * @return the archive (FormulaArchive)
+     * @throws IOException
+     * @throws FormulaException if the file does not contain an archive
+     */
+    public static FormulaArchive open(Path file) throws IOException, FormulaException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel has been closed
+            return new FormulaArchive(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+    
+    /**
+     * Returns the number of formulas in the archive
+     * 
+     * @return the number of formulas (int)
+     */
+    public int size() {
+        return this.formulas.size();
+    }
+    
+    /**
+     * Returns the keys of the formulas in the archive
+     * 
+     * @return the keys (Set)
+     */
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(this.formulas.keySet());
+    }
+    
+    /**
+     * Returns whether the archive contains a formula
+     * 
+     * @param key (String) the key of the formula
+     * @return true if the archive contains the formula (boolean)
+     */
+    public boolean contains(String key) {
+        return this.formulas.containsKey(key);
+    }
+    
+    /**
+     * Reads a formula from the archive
+     * 
+     * @param key (String) the key of the formula
+     * @return the formula tree (Node), null if the archive does not contain the formula
+     * @throws FormulaException if the formula cannot be read
+     */
+    public Node get(String key) throws FormulaException {
+        Integer offset = this.formulas.get(key);
+        if(offset == null) return null;
+        
+        return this.readUnit(offset, null);
+    }
+    
+    /**
+     * Returns the free variables of a formula in the order of their first
+     * occurrence, e.g. to create the slot map of the formula
+     * 
+     * @param key (String) the key of the formula
+     * @return the variable names (String[]), null if the archive does not contain the formula
+     * @throws FormulaException if the formula cannot be read
+     */
+    public String[] getVariables(String key) throws FormulaException {
+        Integer offset = this.formulas.get(key);
+        if(offset == null) return null;
+        
+        try {
+            ByteBuffer in = this.code(offset);
+            readVarint(in);
+            String[] retVal = new String[readVarint(in)];
+            for(int i=0; i<retVal.length; i++) {
+                retVal[i] = this.strings[readVarint(in)];
+            }
+            
+            return retVal;
+        }
+        catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+            throw new FormulaException("Formula " + key + " in archive is corrupt", ex);
+        }
+    }
+    
+    /**
+     * Returns the names of the user defined functions defined in the archive
+     * 
+     * @return the function names (Set)
+     */
+    public Set<String> getFunctionNames() {
+        return Collections.unmodifiableSet(this.functionOffsets.keySet());
+    }
+    
+    /**
+     * Returns a user defined function defined in the archive
+     * 
+     * @param name (String) the function name
+     * @return the function (UserDefinedFunction), null if the archive does not define the function
+     * @throws FormulaException if the function cannot be read
+     */
+    public UserDefinedFunction getFunction(String name) throws FormulaException {
+        UserDefinedFunction retVal = this.functions.get(name);
+        if(retVal != null) return retVal;
+        
+        Integer offset = this.functionOffsets.get(name);
+        if(offset == null) return null;
+        
+        String[][] parameters = new String[1][];
+        Node definition = this.readUnit(offset, parameters);
+        retVal = new UserDefinedFunction(name, parameters[0], definition);
+        
+        UserDefinedFunction previous = this.functions.putIfAbsent(name, retVal);
+        
+        return (previous == null) ? retVal : previous;
+    }
+    
+    /**
+     * Registers all user defined functions of the archive in a function
+     * registry
+     * 
+     * @param registry (FunctionRegistry) the function registry
+     * @throws FormulaException 
+     */
+    public void registerFunctions(FunctionRegistry registry) throws FormulaException {
+        for(String name : this.functionOffsets.keySet()) {
+            registry.register(this.getFunction(name));
+        }
+    }
+    
+    /**
+     * Reads the index of the functions or formulas
+     * 
+     * @param in (ByteBuffer) the buffer
+     * @param index (HashMap) the offsets of the code by name
+     */
+    void readIndex(ByteBuffer in, HashMap<String, Integer> index) {
+        int size = in.getInt();
+        for(int i=0; i<size; i++) {
+            String name = this.strings[in.getInt()];
+            index.put(name, in.getInt());
+        }
+    }
+    
+    /**
+     * Returns a buffer positioned at the code of a formula or function
+     * 
+     * @param offset (int) the offset of the code
+     * @return the buffer (ByteBuffer)
+     */
+    ByteBuffer code(int offset) {
+        ByteBuffer retVal = this.buffer.duplicate();
+        retVal.position(this.code + offset);
+        
+        return retVal;
+    }
+    
+    /**
+     * Reads a formula or function definition
+     * 
+     * @param offset (int) the offset of the code
+     * @param parameters (String[][]) receives the parameter names of a function, null for a formula
+     * @return the formula tree (Node)
+     * @throws FormulaException 
+     */
+    Node readUnit(int offset, String[][] parameters) throws FormulaException {
+        try {
+            ByteBuffer in = this.code(offset);
+            String[] names = new String[readVarint(in)];
+            int numFree = readVarint(in);
+            for(int i=0; i<names.length; i++) {
+                names[i] = this.strings[readVarint(in)];
+            }
+            if(parameters != null) parameters[0] = Arrays.copyOf(names, numFree);
+            
+            return this.readNode(in, names);
+        }
+        catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+            throw new FormulaException("Formula archive is corrupt", ex);
+        }
+    }
+    
+    /**
+     * Reads a node and its sub nodes
+     * 
+     * @param in (ByteBuffer) the buffer positioned at the opcode of the node
+     * @param names (String[]) the variable names of the formula
+     * @return the node (Node), null for unused function parameters
+     * @throws FormulaException 
+     */
+    Node readNode(ByteBuffer in, String[] names) throws FormulaException {
+        int opcode = in.get();
+        Node retVal;
+        
+        switch (opcode) {
+            case OP_NULL:
+                return null;
+                
+            case NodeType.CONSTANT:
+                return new Constant(new Double(this.constant(readVarint(in))));
+                
+            case OP_BOOLEAN:
+                return new Constant(new Boolean(in.get() != 0));
+                
+            case OP_COMPLEX:
+                double real = this.constant(readVarint(in));
+                return new Constant(new Complex(real, this.constant(readVarint(in))));
+                
+            case NodeType.VARIABLE:
+                return new Variable(names[readVarint(in)]);
+                
+            case NodeType.SUM:
+            case NodeType.PROD:
+                String parameter = names[readVarint(in)];
+                Node start = this.readNode(in, names);
+                Node end = this.readNode(in, names);
+                Node formula = this.readNode(in, names);
+                
+                return (opcode == NodeType.SUM) ? new Sum(parameter, start, end, formula) : new Prod(parameter, start, end, formula);
+                
+            case NodeType.IF:
+                retVal = new If();
+                return this.readParameters(in, names, (Function)retVal, readVarint(in));
+                
+            case OP_CALL:
+                String name = this.strings[readVarint(in)];
+                return this.readParameters(in, names, this.createFunction(name), readVarint(in));
+                
+            default:
+                retVal = createNode(opcode);
+                for(int i=0; i<retVal.getNodeCount(); i++) {
+                    retVal.setNode(i, this.readNode(in, names));
+                }
+                
+                return retVal;
+        }
+    }
+    
+    /**
+     * Reads the parameters of a function call
+     * 
+     * @param in (ByteBuffer) the buffer positioned at the first parameter
+     * @param names (String[]) the variable names of the formula
+     * @param function (Function) the function
+     * @param numParameters (int) the number of parameters
+     * @return the function (Node)
+     * @throws FormulaException 
+     */
+    Node readParameters(ByteBuffer in, String[] names, Function function, int numParameters) throws FormulaException {
+        if(numParameters > function.getMaximumParameters())
+            throw new FormulaException("Function " + function.getName() + " takes at most " + function.getMaximumParameters() + " parameters");
+        
+        for(int i=0; i<numParameters; i++) {
+            Node parameter = this.readNode(in, names);
+            if(parameter != null) function.setParameterNode(i, parameter);
+        }
+        
+        return function;
+    }
+    
+    /**
+     * Creates a new (empty) instance of a function, either defined in the
+     * archive or in the function registry
+     * 
+     * @param name (String) the function name
+     * @return the function (Function)
+     * @throws FormulaException if the function is unknown
+     */
+    Function createFunction(String name) throws FormulaException {
+        UserDefinedFunction definition = this.getFunction(name);
+        if(definition != null) return definition.copy();
+        
+        Function retVal = this.registry.create(name);
+        if(retVal != null) return retVal;
+        
+        for(UserDefinedFunction function : Formula.userDefinedFunctions) {
+            if(function.getName().equals(name)) return function.copy();
+        }
+        
+        throw new FormulaException("Unknown function " + name + " in formula archive");
+    }
+    
+    /**
+     * Returns a number of the constant pool
+     * 
+     * @param index (int) the index of the number
+     * @return the number (double)
+     */
+    double constant(int index) {
+        return this.buffer.getDouble(this.constants + 8 * index);
+    }
+    
+    /**
+     * Creates a new (empty) node of a type with a fixed number of sub nodes
+     * 
+     * @param type (int) the type (see NodeType)
+     * @return the node (Node)
+     * @throws FormulaException if the type is unknown
+     */
+    static Node createNode(int type) throws FormulaException {
+        switch (type) {
+            case NodeType.ADD: return new Add();
+            case NodeType.SUB: return new Sub();
+            case NodeType.MUL: return new Mul();
+            case NodeType.DIV: return new Div();
+            case NodeType.POW: return new Pow();
+            case NodeType.NEG: return new Neg();
+            case NodeType.NOT: return new Not();
+            case NodeType.AND: return new And();
+            case NodeType.OR: return new Or();
+            case NodeType.XOR: return new Xor();
+            case NodeType.EQUALS: return new Equals();
+            case NodeType.NOT_EQUALS: return new NotEquals();
+            case NodeType.LESS_THAN: return new LessThan();
+            case NodeType.LESS_EQUALS: return new LessEquals();
+            case NodeType.GREATER_THAN: return new GreaterThan();
+            case NodeType.GREATER_EQUALS: return new GreaterEquals();
+            case NodeType.ABS: return new Abs();
+            case NodeType.ARCCOS: return new Arccos();
+            case NodeType.ARCCOSH: return new Arccosh();
+            case NodeType.ARCCOT: return new Arccot();
+            case NodeType.ARCCOTH: return new Arccoth();
+            case NodeType.ARCCSC: return new Arccsc();
+            case NodeType.ARCCSCH: return new Arccsch();
+            case NodeType.ARCSEC: return new Arcsec();
+            case NodeType.ARCSECH: return new Arcsech();
+            case NodeType.ARCSIN: return new Arcsin();
+            case NodeType.ARCSINH: return new Arcsinh();
+            case NodeType.ARCTAN: return new Arctan();
+            case NodeType.ARCTANH: return new Arctanh();
+            case NodeType.COS: return new Cos();
+            case NodeType.COSH: return new Cosh();
+            case NodeType.COT: return new Cot();
+            case NodeType.COTH: return new Coth();
+            case NodeType.CSC: return new Csc();
+            case NodeType.CSCH: return new Csch();
+            case NodeType.EXP: return new Exp();
+            case NodeType.INT: return new Int();
+            case NodeType.LN: return new Ln();
+            case NodeType.LOG: return new Log();
+            case NodeType.RAND: return new Rand();
+            case NodeType.SEC: return new Sec();
+            case NodeType.SECH: return new Sech();
+            case NodeType.SGN: return new Sgn();
+            case NodeType.SIN: return new Sin();
+            case NodeType.SINH: return new Sinh();
+            case NodeType.SQRT: return new Sqrt();
+            case NodeType.TAN: return new Tan();
+            case NodeType.TANH: return new Tanh();
+                
+            default:
+                throw new FormulaException("Unknown opcode " + type + " in formula archive");
+        }
+    }
+    
+    /**
+     * Reads a number written by FormulaArchiveWriter.writeVarint
+     * 
+     * @param in (ByteBuffer) the buffer
+     * @return the number (int)
+     */
+    static int readVarint(ByteBuffer in) {
+        int retVal = 0;
+        
+        for(int shift=0; ; shift+=7) {
+            int b = in.get();
+            retVal |= (b & 0x7F) << shift;
+            if(b >= 0) return retVal;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import org.fimalib.calc.Boolean;
+import org.fimalib.calc.Complex;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.functions.Function;
+import org.fimalib.calc.formula.functions.Prod;
+import org.fimalib.calc.formula.functions.Sum;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+import org.fimalib.calc.formula.nodes.Variable;
+
+/**
+ * This class writes formula trees and user defined functions into the binary
+ * format read by FormulaArchive, so that they do not have to be parsed again
+ * when an application is restarted.
+ * 
+ * The definitions of the user defined functions called by a formula are added
+ * to the archive automatically (unless a function of the same name has been
+ * added before), so that the formulas can be read without registering the
+ * functions first. Other functions (e.g. min or max) are stored by name and
+ * looked up in the function registry when the formula is read.
+ * 
+ * Example:
+ * 
+ *  FormulaArchiveWriter writer = new FormulaArchiveWriter();
+ *  writer.add("price", Formula.parse("n*exp(neg(r)*t)"));
+ *  writer.write(Paths.get("formulas.bin"));
+ * 
+ * @author Peter Werno
+ */
+public class FormulaArchiveWriter {
+    ArrayList<String> strings = new ArrayList<>();
+    HashMap<String, Integer> stringIndex = new HashMap<>();
+    double[] doubles = new double[64];
+    int numDoubles;
+    HashMap<Long, Integer> doubleIndex = new HashMap<>();
+    LinkedHashMap<String, Integer> formulas = new LinkedHashMap<>();
+    LinkedHashMap<String, Integer> functions = new LinkedHashMap<>();
+    ByteArrayOutputStream code = new ByteArrayOutputStream();
+    ArrayList<UserDefinedFunction> called = new ArrayList<>();
+    
+    /**
+     * Creates a new instance of FormulaArchiveWriter
+     */
+    public FormulaArchiveWriter() {
+    }
+    
+    /**
+     * Adds a formula to the archive
+     * 
+     * @param key (String) the key of the formula (e.g. the formula string)
+     * @param formula (Node) the formula tree
+     * @throws FormulaException if the key is already used or the formula contains nodes that cannot be stored
+     */
+    public void add(String key, Node formula) throws FormulaException {
+        if(this.formulas.containsKey(key))
+            throw new FormulaException("Formula " + key + " has already been added");
+        
+        this.string(key);
+        this.formulas.put(key, this.writeUnit(formula, null));
+        this.addCalledFunctions();
+    }
+    
+    /**
+     * Adds the definition of a user defined function to the archive
+     * 
+     * @param function (UserDefinedFunction) the function
+     * @throws FormulaException if a function of the same name has already been added
+     */
+    public void addFunction(UserDefinedFunction function) throws FormulaException {
+        if(this.functions.containsKey(function.getName()))
+            throw new FormulaException("Function " + function.getName() + " has already been added");
+        
+        this.string(function.getName());
+        this.functions.put(function.getName(), this.writeUnit(function.getDefinition(), function.getParameterNames()));
+        this.addCalledFunctions();
+    }
+    
+    /**
+     * Returns the number of formulas added
+     * 
+     * @return the number of formulas (int)
+     */
+    public int size() {
+        return this.formulas.size();
+    }
+    
+    /**
+     * Returns the archive as byte array
+     * 
+     * @return the archive (byte[])
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream retVal = new ByteArrayOutputStream(this.code.size() + 16 * this.strings.size() + 8 * this.numDoubles + 64);
+        
+        try {
+            this.write(retVal);
+        }
+        catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        
+        return retVal.toByteArray();
+    }
+    
+    /**
+     * Writes the archive to a file
+     * 
+     * @param file (Path) the file
+     * @throws IOException 
+     */
+    public void write(Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            this.write(out);
+        }
+    }
+    
+    /**
+     * Writes the archive to an output stream
+     * 
+     * @param stream (OutputStream) the output stream
+     * @throws IOException 
+     */
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        
+        out.writeInt(FormulaArchive.MAGIC);
+        out.writeShort(FormulaArchive.VERSION);
+        out.writeShort(0);
+        
+        out.writeInt(this.strings.size());
+        for(String string : this.strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes);
+        }
+        
+        out.writeInt(this.numDoubles);
+        for(int i=0; i<this.numDoubles; i++) {
+            out.writeDouble(this.doubles[i]);
+        }
+        
+        writeIndex(out, this.functions);
+        writeIndex(out, this.formulas);
+        
+        out.writeInt(this.code.size());
+        this.code.writeTo(out);
+        out.flush();
+    }
+    
+    /**
+     * Writes the index of the functions or formulas, i.e. the names and the
+     * offsets of the code
+     * 
+     * @param out (DataOutputStream) the output stream
+     * @param index (Map) the offsets by name
+     * @throws IOException 
+     */
+    void writeIndex(DataOutputStream out, Map<String, Integer> index) throws IOException {
+        out.writeInt(index.size());
+        for(Map.Entry<String, Integer> entry : index.entrySet()) {
+            out.writeInt(this.stringIndex.get(entry.getKey()));
+            out.writeInt(entry.getValue());
+        }
+    }
+    
+    /**
+     * Adds the definitions of the user defined functions called by the last
+     * formula or function that are not in the archive yet
+     * 
+     * @throws FormulaException 
+     */
+    void addCalledFunctions() throws FormulaException {
+        while(!this.called.isEmpty()) {
+            UserDefinedFunction function = this.called.remove(this.called.size() - 1);
+            if(!this.functions.containsKey(function.getName())) this.addFunction(function);
+        }
+    }
+    
+    /**
+     * Writes a formula or a function definition to the code: the number of
+     * variable names, the number of free variables (or parameters), the
+     * variable names and the formula tree in prefix order.
+     * 
+     * @param formula (Node) the formula tree
+     * @param parameters (String[]) the parameter names of a function, null for a formula
+     * @return the offset of the code (int)
+     * @throws FormulaException 
+     */
+    int writeUnit(Node formula, String[] parameters) throws FormulaException {
+        LinkedHashSet<String> free = new LinkedHashSet<>();
+        LinkedHashSet<String> running = new LinkedHashSet<>();
+        if(parameters != null) free.addAll(Arrays.asList(parameters));
+        this.collectVariables(formula, new ArrayList<>(), free, running);
+        
+        HashMap<String, Integer> names = new HashMap<>();
+        for(String name : free) names.put(name, names.size());
+        for(String name : running) names.putIfAbsent(name, names.size());
+        
+        ByteArrayOutputStream unit = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(unit);
+        
+        try {
+            writeVarint(out, names.size());
+            writeVarint(out, free.size());
+            for(String name : free) writeVarint(out, this.string(name));
+            for(String name : running) {
+                if(!free.contains(name)) writeVarint(out, this.string(name));
+            }
+            this.writeNode(out, formula, names);
+        }
+        catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        
+        int retVal = this.code.size();
+        this.code.write(unit.toByteArray(), 0, unit.size());
+        
+        return retVal;
+    }
+    
+    /**
+     * Collects the free variables and the running variables of a formula tree
+     * 
+     * @param node (Node) the formula tree
+     * @param scope (ArrayList) the running variables of the enclosing sums and products
+     * @param free (LinkedHashSet) the free variables found so far
+     * @param running (LinkedHashSet) the running variables found so far
+     * @throws FormulaException 
+     */
+    void collectVariables(Node node, ArrayList<String> scope, LinkedHashSet<String> free, LinkedHashSet<String> running) throws FormulaException {
+        if(node == null) return;
+        
+        int type = NodeType.of(node);
+        if(type == NodeType.VARIABLE) {
+            if(!scope.contains(node.getName())) free.add(node.getName());
+            return;
+        }
+        if(type == NodeType.FUNCTION) {
+            // the definition has variables of its own
+            for(int i=0; i<node.getNodeCount(); i++) {
+                this.collectVariables(node.getNode(i), scope, free, running);
+            }
+            return;
+        }
+        if((type == NodeType.SUM) || (type == NodeType.PROD)) {
+            String parameter = (type == NodeType.SUM) ? ((Sum)node).getParameter() : ((Prod)node).getParameter();
+            running.add(parameter);
+            this.collectVariables(node.getNode(0), scope, free, running);
+            this.collectVariables(node.getNode(1), scope, free, running);
+            scope.add(parameter);
+            this.collectVariables(node.getNode(2), scope, free, running);
+            scope.remove(scope.size() - 1);
+            return;
+        }
+        
+        for(int i=0; i<node.getNodeCount(); i++) {
+            this.collectVariables(node.getNode(i), scope, free, running);
+        }
+    }
+    
+    /**
+     * Writes a node and its sub nodes in prefix order
+     * 
+     * @param out (DataOutputStream) the output stream
+     * @param node (Node) the node (may be null for unused function parameters)
+     * @param names (HashMap) the indices of the variable names
+     * @throws IOException
+     * @throws FormulaException if the node cannot be stored
+     */
+    void writeNode(DataOutputStream out, Node node, HashMap<String, Integer> names) throws IOException, FormulaException {
+        if(node == null) {
+            out.write(FormulaArchive.OP_NULL);
+            return;
+        }
+        
+        int type = NodeType.of(node);
+        int numNodes = node.getNodeCount();
+        
+        switch (type) {
+            case NodeType.CONSTANT:
+                Number number;
+                try {
+                    number = node.calculate(null);
+                }
+                catch (FiMaLibCalcException ex) {
+                    throw new FormulaException("Constant " + node + " cannot be stored", ex);
+                }
+                
+                if(number instanceof Complex) {
+                    out.write(FormulaArchive.OP_COMPLEX);
+                    writeVarint(out, this.constant(number.getValue()));
+                    writeVarint(out, this.constant(((Complex)number).getImg()));
+                }
+                else if(number instanceof Boolean) {
+                    out.write(FormulaArchive.OP_BOOLEAN);
+                    out.write(number.getValue() != 0.0 ? 1 : 0);
+                }
+                else {
+                    out.write(type);
+                    writeVarint(out, this.constant(number.getValue()));
+                }
+                return;
+                
+            case NodeType.VARIABLE:
+                out.write(type);
+                writeVarint(out, names.get(node.getName()));
+                return;
+                
+            case NodeType.SUM:
+            case NodeType.PROD:
+                out.write(type);
+                writeVarint(out, names.get((type == NodeType.SUM) ? ((Sum)node).getParameter() : ((Prod)node).getParameter()));
+                break;
+                
+            case NodeType.IF:
+                out.write(type);
+                writeVarint(out, numNodes);
+                break;
+                
+            case NodeType.FUNCTION:
+            case NodeType.CND:
+            case NodeType.MAX:
+            case NodeType.MIN:
+            case NodeType.UNKNOWN:
+                // functions of the registry are stored by name
+                if(!(node instanceof Function))
+                    throw new FormulaException("Node " + node.getName() + " cannot be stored");
+                
+                if(node instanceof UserDefinedFunction) this.called.add((UserDefinedFunction)node);
+                
+                out.write(FormulaArchive.OP_CALL);
+                writeVarint(out, this.string(node.getName()));
+                writeVarint(out, numNodes);
+                break;
+                
+            default:
+                out.write(type);
+                break;
+        }
+        
+        for(int i=0; i<numNodes; i++) {
+            this.writeNode(out, node.getNode(i), names);
+        }
+    }
+    
+    /**
+     * Returns the index of a string within the string pool, adding the string
+     * if necessary
+     * 
+     * @param string (String) the string
+     * @return the index (int)
+     */
+    int string(String string) {
+        Integer retVal = this.stringIndex.get(string);
+        
+        if(retVal == null) {
+            retVal = this.strings.size();
+            this.strings.add(string);
+            this.stringIndex.put(string, retVal);
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Returns the index of a number within the constant pool, adding the
+     * number if necessary
+     * 
+     * @param value (double) the number
+     * @return the index (int)
+     */
+    int constant(double value) {
+        Long bits = java.lang.Double.doubleToRawLongBits(value);
+        Integer retVal = this.doubleIndex.get(bits);
+        
+        if(retVal == null) {
+            if(this.numDoubles == this.doubles.length) this.doubles = Arrays.copyOf(this.doubles, 2 * this.numDoubles);
+            retVal = this.numDoubles;
+            this.doubles[this.numDoubles++] = value;
+            this.doubleIndex.put(bits, retVal);
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Writes a non-negative number with 7 bits per byte, the highest bit
+     * marking that further bytes follow
+     * 
+     * @param out (DataOutputStream) the output stream
+     * @param value (int) the number
+     * @throws IOException 
+     */
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.fimalib.calc.formula.compiler.CompiledFormula;
+import org.fimalib.calc.formula.compiler.FormulaCompiler;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class is a size-bounded cache of parsed (and compiled) formulas.
+ * 
+ * The formulas are cached by their text (with all whitespace runs reduced to
+ * a single blank) and the number format used for parsing. If the cache is
+ * full, the least recently used formula is evicted.
+ * 
+ * Cached formulas carry the generation of the function namespace they have
+ * been parsed with (see Formula.getGeneration). Once a user defined function
+ * is added, all cached formulas of an older generation are parsed again on
+ * their next use.
+ * 
+ * The cached formula trees are never handed out: each call of parse returns a
+ * copy (see Node.copy), which the caller may change (e.g. by Node.optimize or
+ * Node.bind) without affecting the cache or other callers. Compiled formulas
+ * are bound to formula trees of their own and are shared.
+ * 
+ * The cache can be used by several threads at the same time.
+ * 
+ * Example:
+ * 
+ *  FormulaCache cache = new FormulaCache(10000);
+ *  Node node = cache.parse("3*x^2+y", NumberFormat.getInstance(Locale.US));
+ * 
+ * @author Peter Werno
+ */
+public class FormulaCache {
+    public static final int DEFAULT_MAXIMUM_SIZE = 4096;
+    
+    int maximumSize;
+    LinkedHashMap<Key, Entry> entries;
+    long hits;
+    long misses;
+    long evictions;
+    
+    /**
+     * The key of a cached formula: the normalized formula text, the number
+     * format and (for compiled formulas) the variables
+     */
+    static final class Key {
+        final String formula;
+        final NumberFormat format;
+        final String[] variables;
+        final int hash;
+        
+        Key(String formula, NumberFormat format, String[] variables) {
+            this.formula = formula;
+            this.format = format;
+            this.variables = variables;
+            this.hash = 31 * (31 * formula.hashCode() + format.hashCode()) + Arrays.hashCode(variables);
+        }
+        
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) return false;
+            
+            Key other = (Key)obj;
+            return (this.hash == other.hash) && this.formula.equals(other.formula) 
+                    && this.format.equals(other.format) && Arrays.equals(this.variables, other.variables);
+        }
+    }
+    
+    /**
+     * A cached formula: either a parsed formula tree or a compiled formula
+     */
+    static final class Entry {
+        final Object value;
+        final int generation;
+        
+        Entry(Object value, int generation) {
+            this.value = value;
+            this.generation = generation;
+        }
+    }
+    
+    /**
+     * Creates a new instance of FormulaCache with the default maximum size
+     */
+    public FormulaCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+    
+    /**
+     * Creates a new instance of FormulaCache with a given maximum size
+     * 
+     * @param maximumSize (int) the maximum number of cached formulas
+     */
+    public FormulaCache(int maximumSize) {
+        if(maximumSize < 1)
+            throw new IllegalArgumentException("Maximum size of formula cache must be positive");
+        
+        this.maximumSize = maximumSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);    // access order for LRU eviction
+    }
+    
+    /**
+     * Returns the parsed formula tree of a formula, parsing it if it is not
+     * cached yet. The formula tree is a copy of the cached one, i.e. it
+     * belongs to the caller.
+     * 
+     * @param formula (String) the formula
+     * @param format (NumberFormat) the number format
+     * @return the formula tree (Node)
+     * @throws FormulaException 
+     */
+    public Node parse(String formula, NumberFormat format) throws FormulaException {
+        Key key = new Key(normalize(formula), format, null);
+        Object value = this.lookup(key);
+        if(value != null) return ((Node)value).copy();
+        
+        int generation = Formula.getGeneration();
+        Node node = Formula.parse(key.formula, format);
+        this.store(key, node, generation);
+        
+        return node.copy();
+    }
+    
+    /**
+     * Returns the compiled formula of a formula with the given variables (see
+     * FormulaCompiler), parsing and compiling it if it is not cached yet.
+     * 
+     * @param formula (String) the formula
+     * @param format (NumberFormat) the number format
+     * @param variables (String...) the variable names
+     * @return the compiled formula (CompiledFormula)
+     * @throws FormulaException 
+     */
+    public CompiledFormula compile(String formula, NumberFormat format, String... variables) throws FormulaException {
+        Key key = new Key(normalize(formula), format, variables.clone());
+        Object value = this.lookup(key);
+        if(value != null) return (CompiledFormula)value;
+        
+        // the compiled formula is bound to a formula tree of its own
+        int generation = Formula.getGeneration();
+        CompiledFormula compiled = FormulaCompiler.compile(Formula.parse(key.formula, format), variables);
+        this.store(key, compiled, generation);
+        
+        return compiled;
+    }
+    
+    /**
+     * Returns the cached value for a key (or null if the key is not cached or
+     * the cached value is outdated)
+     * 
+     * @param key (Key) the key
+     * @return the cached value (Object)
+     */
+    synchronized Object lookup(Key key) {
+        Entry entry = this.entries.get(key);
+        
+        if((entry != null) && (entry.generation == Formula.getGeneration())) {
+            this.hits++;
+            return entry.value;
+        }
+        
+        this.misses++;
+        return null;
+    }
+    
+    /**
+     * Stores a value in the cache and evicts the least recently used values
+     * if the cache is full. The number format of the key is cloned, so that
+     * later changes to the caller's format do not affect the cache.
+     * 
+     * @param key (Key) the key
+     * @param value (Object) the value
+     * @param generation (int) the generation of the function namespace
+     */
+    synchronized void store(Key key, Object value, int generation) {
+        Key storedKey = new Key(key.formula, (NumberFormat)key.format.clone(), key.variables);
+        this.entries.put(storedKey, new Entry(value, generation));
+        
+        Iterator<Map.Entry<Key, Entry>> iterator = this.entries.entrySet().iterator();
+        while(this.entries.size() > this.maximumSize) {
+            iterator.next();
+            iterator.remove();
+            this.evictions++;
+        }
+    }
+    
+    /**
+     * Removes all formulas from the cache (the counters are not reset)
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+    
+    /**
+     * Returns the number of cached formulas
+     * 
+     * @return the number of cached formulas (int)
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+    
+    /**
+     * Returns the maximum number of cached formulas
+     * 
+     * @return the maximum size (int)
+     */
+    public int getMaximumSize() {
+        return this.maximumSize;
+    }
+    
+    /**
+     * Returns the number of requests that have been answered from the cache
+     * 
+     * @return the number of hits (long)
+     */
+    public synchronized long getHitCount() {
+        return this.hits;
+    }
+    
+    /**
+     * Returns the number of requests that required parsing (including
+     * formulas that have been parsed again because the function namespace
+     * has changed)
+     * 
+     * @return the number of misses (long)
+     */
+    public synchronized long getMissCount() {
+        return this.misses;
+    }
+    
+    /**
+     * Returns the number of formulas that have been evicted because the
+     * cache was full
+     * 
+     * @return the number of evictions (long)
+     */
+    public synchronized long getEvictionCount() {
+        return this.evictions;
+    }
+    
+    /**
+     * Returns the cache statistics encoded as a string
+     * 
+     * @return the statistics (String)
+     */
+    @Override
+    public synchronized String toString() {
+        return "FormulaCache[size=" + this.entries.size() + "/" + this.maximumSize + ", hits=" + this.hits 
+                + ", misses=" + this.misses + ", evictions=" + this.evictions + "]";
+    }
+    
+    /**
+     * Normalizes a formula text by removing leading and trailing whitespace
+     * and reducing all other whitespace runs to a single blank (which does not
+     * change the meaning of the formula)
+     * 
+     * @param formula (String) the formula
+     * @return the normalized formula (String)
+     */
+    static String normalize(String formula) {
+        int len = formula.length();
+        StringBuilder retVal = null;
+        boolean whitespace = false;
+        
+        for(int i=0; i<len; i++) {
+            char c = formula.charAt(i);
+            boolean isWhitespace = Character.isWhitespace(c);
+            
+            if(isWhitespace && (retVal == null)) {
+                // first whitespace found, copy everything before it
+                retVal = new StringBuilder(len);
+                retVal.append(formula, 0, i);
+            }
+            
+            if(retVal != null) {
+                if(isWhitespace) {
+                    whitespace = true;
+                }
+                else {
+                    if(whitespace && (retVal.length() > 0)) retVal.append(' ');
+                    whitespace = false;
+                    retVal.append(c);
+                }
+            }
+        }
+        
+        return (retVal == null) ? formula : retVal.toString();
+    }
+}
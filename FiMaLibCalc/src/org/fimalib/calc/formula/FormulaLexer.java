@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.fimalib.calc.formula.functions.FunctionRegistry;
+
+/**
+ * This class splits a formula string into a list of tokens.
+ * 
+ * The formula string is scanned exactly once, from left to right. Whitespace
+ * is skipped, numbers, identifiers and operators are turned into tokens which
+ * are then processed by the formula parser.
+ * 
+ * Numbers are scanned using the decimal separator of the number format. If
+ * the decimal separator is a comma, a comma between two digits is treated as
+ * part of the number, unless it appears directly within the brackets of a
+ * function taking a list of parameters (e.g. "if", "sum" or user defined
+ * functions), in which case it separates the parameters.
+ * 
+ * @author Peter Werno
+ */
+public class FormulaLexer {
+    String formula;
+    char decimalSeparator;
+    
+    /**
+     * Creates a new instance of FormulaLexer
+     * 
+     * @param formula (String) the formula string
+     * @param format (NumberFormat) the number format
+     */
+    public FormulaLexer(String formula, NumberFormat format) {
+        this.formula = formula;
+        this.decimalSeparator = '.';
+        
+        if(format instanceof DecimalFormat) {
+            DecimalFormat decimalFormat = (DecimalFormat)format;
+            
+            this.decimalSeparator = decimalFormat.getDecimalFormatSymbols().getDecimalSeparator();
+        }
+    }
+    
+    /**
+     * Scans the formula and returns the list of tokens. The last token of the
+     * list is always of type END.
+     * 
+     * @return the tokens (ArrayList)
+     * @throws FormulaException 
+     */
+    public ArrayList<FormulaToken> tokenize() throws FormulaException {
+        int len = this.formula.length();
+        ArrayList<FormulaToken> tokens = new ArrayList<>(len / 2 + 1);
+        
+        // For each open bracket: does it enclose a list of parameters?
+        boolean[] listBrackets = new boolean[16];
+        int depth = 0;
+        
+        int i = 0;
+        while(i < len) {
+            char c = this.formula.charAt(i);
+            
+            if(Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            
+            int start = i;
+            
+            if(isDigit(c) || ((c == '.') && (i+1 < len) && isDigit(this.formula.charAt(i+1)))) {
+                boolean commaIsSeparator = (depth > 0) && listBrackets[depth-1];
+                
+                while(i < len) {
+                    char n = this.formula.charAt(i);
+                    
+                    if(isDigit(n) || (n == '.'))
+                        i++;
+                    else if((n == this.decimalSeparator) && !((n == ',') && commaIsSeparator) &&
+                            (i+1 < len) && isDigit(this.formula.charAt(i+1)))
+                        i++;
+                    else
+                        break;
+                }
+                
+                if((i < len) && (this.formula.charAt(i) == 'i') && 
+                   ((i+1 >= len) || !isIdentifierPart(this.formula.charAt(i+1)))) {
+                    i++;
+                    tokens.add(new FormulaToken(FormulaToken.IMAGINARY, start, this.formula.substring(start, i)));
+                }
+                else
+                    tokens.add(new FormulaToken(FormulaToken.NUMBER, start, this.formula.substring(start, i)));
+                
+                continue;
+            }
+            
+            if(isIdentifierStart(c)) {
+                while((i < len) && isIdentifierPart(this.formula.charAt(i))) i++;
+                
+                // qualified names, e.g. "fin.annuity" (see FunctionRegistry)
+                while((i+1 < len) && (this.formula.charAt(i) == FunctionRegistry.NAMESPACE_SEPARATOR) && isIdentifierStart(this.formula.charAt(i+1))) {
+                    i++;
+                    while((i < len) && isIdentifierPart(this.formula.charAt(i))) i++;
+                }
+                
+                String name = this.formula.substring(start, i);
+                
+                // Function call? Then the name is directly followed by '('
+                int next = i;
+                while((next < len) && Character.isWhitespace(this.formula.charAt(next))) next++;
+                
+                if((next < len) && (this.formula.charAt(next) == '(')) {
+                    i = next + 1;
+                    if(depth == listBrackets.length) listBrackets = Arrays.copyOf(listBrackets, depth * 2);
+                    listBrackets[depth++] = !FormulaParser.isUnaryFunction(name);
+                    tokens.add(new FormulaToken(FormulaToken.CALL, start, name));
+                }
+                else
+                    tokens.add(new FormulaToken(FormulaToken.IDENTIFIER, start, name));
+                
+                continue;
+            }
+            
+            char next = (i+1 < len) ? this.formula.charAt(i+1) : '\0';
+            i++;
+            
+            switch (c) {
+                case '(':
+                case '[':
+                case '{':
+                    if(depth == listBrackets.length) listBrackets = Arrays.copyOf(listBrackets, depth * 2);
+                    listBrackets[depth++] = false;
+                    tokens.add(new FormulaToken(FormulaToken.OPEN, start, "" + c));
+                    break;
+                    
+                case ')':
+                case ']':
+                case '}':
+                    if(depth > 0) depth--;
+                    tokens.add(new FormulaToken(FormulaToken.CLOSE, start, "" + c));
+                    break;
+                    
+                case ',':
+                    tokens.add(new FormulaToken(FormulaToken.COMMA, start, ","));
+                    break;
+                    
+                case '+':
+                    tokens.add(new FormulaToken(FormulaToken.PLUS, start, "+"));
+                    break;
+                    
+                case '-':
+                    tokens.add(new FormulaToken(FormulaToken.MINUS, start, "-"));
+                    break;
+                    
+                case '*':
+                    tokens.add(new FormulaToken(FormulaToken.MUL, start, "*"));
+                    break;
+                    
+                case '/':
+                    tokens.add(new FormulaToken(FormulaToken.DIV, start, "/"));
+                    break;
+                    
+                case '^':
+                    tokens.add(new FormulaToken(FormulaToken.POW, start, "^"));
+                    break;
+                    
+                case '=':   // Equals is '=='
+                    if(next != '=')
+                        throw new FormulaException("Syntax error, '=' at position " + start + " must be written as '=='");
+                    i++;
+                    tokens.add(new FormulaToken(FormulaToken.EQUALS, start, "=="));
+                    break;
+                    
+                case '!':   // Not is '!', Not equals is '!='
+                    if(next == '=') {
+                        i++;
+                        tokens.add(new FormulaToken(FormulaToken.NOT_EQUALS, start, "!="));
+                    }
+                    else
+                        tokens.add(new FormulaToken(FormulaToken.NOT, start, "!"));
+                    break;
+                    
+                case '<':   // Less than is '<', less or equal is '<='
+                    if(next == '=') {
+                        i++;
+                        tokens.add(new FormulaToken(FormulaToken.LESS_EQUALS, start, "<="));
+                    }
+                    else
+                        tokens.add(new FormulaToken(FormulaToken.LESS_THAN, start, "<"));
+                    break;
+                    
+                case '>':   // Greater than is '>', greater or equal is '>='
+                    if(next == '=') {
+                        i++;
+                        tokens.add(new FormulaToken(FormulaToken.GREATER_EQUALS, start, ">="));
+                    }
+                    else
+                        tokens.add(new FormulaToken(FormulaToken.GREATER_THAN, start, ">"));
+                    break;
+                    
+                case '&':   // And is '&&'
+                    if(next != '&')
+                        throw new FormulaException("Syntax error, '&' at position " + start + " must be written as '&&'");
+                    i++;
+                    tokens.add(new FormulaToken(FormulaToken.AND, start, "&&"));
+                    break;
+                    
+                case '|':   // Or is '||'
+                    if(next != '|')
+                        throw new FormulaException("Syntax error, '|' at position " + start + " must be written as '||'");
+                    i++;
+                    tokens.add(new FormulaToken(FormulaToken.OR, start, "||"));
+                    break;
+                    
+                case '#':   // Xor is '##'
+                    if(next != '#')
+                        throw new FormulaException("Syntax error, '#' at position " + start + " must be written as '##'");
+                    i++;
+                    tokens.add(new FormulaToken(FormulaToken.XOR, start, "##"));
+                    break;
+                    
+                default:
+                    throw new FormulaException("Syntax error, unexpected character '" + c + "' at position " + start);
+            }
+        }
+        
+        tokens.add(new FormulaToken(FormulaToken.END, len, ""));
+        
+        return tokens;
+    }
+    
+    /**
+     * Tests if the character is a (decimal) digit
+     * 
+     * @param c (char) the character
+     * @return whether or not it is a digit (boolean)
+     */
+    static boolean isDigit(char c) {
+        return (c >= '0') && (c <= '9');
+    }
+    
+    /**
+     * Tests if the character may start an identifier (variable or function name)
+     * 
+     * @param c (char) the character
+     * @return whether or not it may start an identifier (boolean)
+     */
+    static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || (c == '_');
+    }
+    
+    /**
+     * Tests if the character may be part of an identifier
+     * 
+     * @param c (char) the character
+     * @return whether or not it may be part of an identifier (boolean)
+     */
+    static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || (c == '_');
+    }
+}
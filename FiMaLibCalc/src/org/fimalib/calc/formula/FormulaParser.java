@@ -0,0 +1,638 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.fimalib.calc.Boolean;
+import org.fimalib.calc.Complex;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.formula.functions.*;
+import org.fimalib.calc.formula.nodes.*;
+
+/**
+ * This class parses a formula into a formula tree.
+ * 
+ * The formula string is first split into tokens by the formula lexer (in a
+ * single pass), then the tokens are processed from left to right using
+ * operator precedence ("precedence climbing"). Instead of calling itself
+ * recursively for each bracket or function call, the parser keeps explicit
+ * stacks for the operands, the operators and the open brackets. Parsing time
+ * therefore grows linearly with the length of the formula and deeply nested
+ * formulas cannot cause a stack overflow.
+ * 
+ * The operators are processed with the following precedence (lowest first),
+ * all binary operators are left-associative:
+ * 
+ *  1.  ==, !=, <, >, <=, >=, &&, ||, ##
+ *  2.  +, -
+ *  3.  *, /
+ *  4.  ^
+ * 
+ * A leading minus (e.g. "-x*y") negates the following product, which
+ * results in the same formula tree as generated by previous versions of the
+ * parser ("neg(x*y)"). After an operator with higher precedence (e.g. "2^-x")
+ * it only negates the following operand.
+ * 
+ * @author Peter Werno
+ */
+public class FormulaParser {
+    // The names of all built-in functions taking exactly one parameter
+    static final HashSet<String> UNARY_FUNCTIONS = new HashSet<>(Arrays.asList(
+        "arcsinh", "arccosh", "arctanh", "arccoth", "arcsech", "arccsch",
+        "arcsin", "arccos", "arctan", "arccot", "arcsec", "arccsc",
+        "sinh", "cosh", "tanh", "coth", "sech", "csch",
+        "sqrt", "rand",
+        "sin", "cos", "tan", "cot", "sec", "csc",
+        "abs", "sgn", "exp", "log", "neg", "int",
+        "ln"
+    ));
+    
+    // Operator code of the unary minus (the unary not uses FormulaToken.NOT)
+    static final int NEGATE = 0;
+    
+    NumberFormat format;
+    FunctionRegistry registry;
+    
+    // Decimal separator, if numbers can be converted without the number format
+    char decimalSeparator;
+    boolean plainDecimals;
+    
+    // Stack of operands (already parsed sub trees)
+    ArrayList<Node> operands;
+    
+    // Stack of pending operators and their precedence
+    int[] operators;
+    int[] precedences;
+    int operatorCount;
+    
+    // Stack of open brackets and function calls
+    ArrayList<Frame> frames;
+    
+    /**
+     * This class holds the parser state of an open bracket or function call
+     */
+    static class Frame {
+        FormulaToken token;             // the OPEN or CALL token, null for the whole formula
+        int operatorBase;               // the operator stack size when the bracket was opened
+        ArrayList<Node> arguments;      // the parameters parsed so far (function calls only)
+        
+        Frame(FormulaToken token, int operatorBase) {
+            this.token = token;
+            this.operatorBase = operatorBase;
+            
+            if((token != null) && (token.getType() == FormulaToken.CALL))
+                this.arguments = new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Creates a new instance of FormulaParser with the default number format
+     */
+    public FormulaParser() {
+        this(NumberFormat.getInstance());
+    }
+    
+    /**
+     * Creates a new instance of FormulaParser with a given number format
+     * 
+     * @param format (NumberFormat) the number format
+     */
+    public FormulaParser(NumberFormat format) {
+        this(format, FunctionRegistry.getDefault());
+    }
+    
+    /**
+     * Creates a new instance of FormulaParser with a given number format and
+     * the registry of the functions that can be called within the formulas
+     * 
+     * @param format (NumberFormat) the number format
+     * @param registry (FunctionRegistry) the function registry
+     */
+    public FormulaParser(NumberFormat format, FunctionRegistry registry) {
+        this.format = format;
+        this.registry = registry;
+        
+        if(format instanceof DecimalFormat) {
+            DecimalFormat decimalFormat = (DecimalFormat)format;
+            
+            this.decimalSeparator = decimalFormat.getDecimalFormatSymbols().getDecimalSeparator();
+            this.plainDecimals = (decimalFormat.getMultiplier() == 1) && !decimalFormat.isParseIntegerOnly();
+        }
+    }
+    
+    /**
+     * Returns whether or not the given name is a built-in function that takes
+     * exactly one parameter (e.g. "sin")
+     * 
+     * @param name (String) the function name
+     * @return true for built-in one-parameter functions (boolean)
+     */
+    public static boolean isUnaryFunction(String name) {
+        return UNARY_FUNCTIONS.contains(name);
+    }
+    
+    /**
+     * Parses a formula string into a formula tree
+     * 
+     * @param formula (String) the formula
+     * @return the formula tree (Node)
+     * @throws FormulaException 
+     */
+    public Node parse(String formula) throws FormulaException {
+        ArrayList<FormulaToken> tokens = new FormulaLexer(formula, this.format).tokenize();
+        
+        return parse(tokens, formula);
+    }
+    
+    /**
+     * Parses a list of tokens (as returned by the formula lexer) into a formula
+     * tree
+     * 
+     * @param tokens (ArrayList) the tokens
+     * @param formula (String) the formula string (for error messages)
+     * @return the formula tree (Node)
+     * @throws FormulaException 
+     */
+    public Node parse(ArrayList<FormulaToken> tokens, String formula) throws FormulaException {
+        this.operands = new ArrayList<>();
+        this.operators = new int[16];
+        this.precedences = new int[16];
+        this.operatorCount = 0;
+        this.frames = new ArrayList<>();
+        
+        Frame frame = new Frame(null, 0);
+        this.frames.add(frame);
+        boolean expectOperand = true;
+        
+        for(FormulaToken token : tokens) {
+            switch (token.getType()) {
+                case FormulaToken.NUMBER:
+                case FormulaToken.IMAGINARY:
+                case FormulaToken.IDENTIFIER:
+                    if(!expectOperand) throw unexpected(token);
+                    this.operands.add(createOperand(token));
+                    expectOperand = false;
+                    break;
+                    
+                case FormulaToken.CALL:
+                case FormulaToken.OPEN:
+                    if(!expectOperand) throw unexpected(token);
+                    frame = new Frame(token, this.operatorCount);
+                    this.frames.add(frame);
+                    break;
+                    
+                case FormulaToken.COMMA:
+                    if(expectOperand || (frame.arguments == null)) throw unexpected(token);
+                    reduceAll(frame);
+                    frame.arguments.add(popOperand());
+                    expectOperand = true;
+                    break;
+                    
+                case FormulaToken.CLOSE:
+                    if(frame.token == null)
+                        throw new FormulaException("Syntax error, bracket " + token.getText() + " at position " + token.getPosition() + " has not been opened");
+                    
+                    String open = (frame.arguments == null) ? frame.token.getText() : "(";
+                    char c = token.getText().charAt(0);
+                    if(!(open.equals("(") && (c == ')')) && !(open.equals("[") && (c == ']')) && !(open.equals("{") && (c == '}')))
+                        throw new FormulaException("Syntax error, bracket " + open + " cannot be closed with " + c);
+                    
+                    if(expectOperand) {
+                        // Only function calls without any parameters may be empty, e.g. "f()"
+                        if((frame.arguments == null) || !frame.arguments.isEmpty()) throw unexpected(token);
+                    }
+                    else {
+                        reduceAll(frame);
+                        if(frame.arguments != null) frame.arguments.add(popOperand());
+                    }
+                    
+                    this.frames.remove(this.frames.size() - 1);
+                    if(frame.arguments != null)
+                        this.operands.add(createFunction(frame.token, frame.arguments));
+                    
+                    frame = this.frames.get(this.frames.size() - 1);
+                    expectOperand = false;
+                    break;
+                    
+                case FormulaToken.END:
+                    if(this.operands.isEmpty())
+                        throw new FormulaException("Syntax error in Formula >" + formula + "<");
+                    if(expectOperand) throw unexpected(token);
+                    if(frame.token != null)
+                        throw new FormulaException("Error, bracket not closed: " + frame.token);
+                    
+                    reduceAll(frame);
+                    
+                    return popOperand();
+                    
+                default:
+                    if(expectOperand) {
+                        // prefix operators
+                        switch (token.getType()) {
+                            case FormulaToken.PLUS:
+                                break;
+                                
+                            case FormulaToken.MINUS:
+                                pushOperator(NEGATE, prefixPrecedence(frame));
+                                break;
+                                
+                            case FormulaToken.NOT:
+                                pushOperator(FormulaToken.NOT, prefixPrecedence(frame));
+                                break;
+                                
+                            default:
+                                throw unexpected(token);
+                        }
+                    }
+                    else {
+                        if(!token.isBinaryOperator()) throw unexpected(token);
+                        
+                        int precedence = token.getPrecedence();
+                        while((this.operatorCount > frame.operatorBase) && 
+                              (this.precedences[this.operatorCount-1] >= precedence)) {
+                            reduce();
+                        }
+                        
+                        pushOperator(token.getType(), precedence);
+                        expectOperand = true;
+                    }
+                    break;
+            }
+        }
+        
+        throw new FormulaException("Syntax error in Formula >" + formula + "<");
+    }
+    
+    /**
+     * Returns the precedence of a prefix operator (unary minus or not).
+     * At the beginning of an expression, the operator applies to the following
+     * product (e.g. "-x*y" = "-(x*y)"). After another operator, it binds at
+     * least as strong as this operator (e.g. "2^-x*y" = "(2^(-x))*y").
+     * 
+     * @param frame (Frame) the current bracket
+     * @return the precedence (int)
+     */
+    int prefixPrecedence(Frame frame) {
+        if(this.operatorCount > frame.operatorBase)
+            return Math.max(Node.LEVEL_ADDITION, this.precedences[this.operatorCount-1]);
+        
+        return Node.LEVEL_ADDITION;
+    }
+    
+    /**
+     * Pushes an operator onto the operator stack
+     * 
+     * @param operator (int) the operator code
+     * @param precedence (int) the operator's precedence
+     */
+    void pushOperator(int operator, int precedence) {
+        if(this.operatorCount == this.operators.length) {
+            this.operators = Arrays.copyOf(this.operators, this.operatorCount * 2);
+            this.precedences = Arrays.copyOf(this.precedences, this.operatorCount * 2);
+        }
+        
+        this.operators[this.operatorCount] = operator;
+        this.precedences[this.operatorCount] = precedence;
+        this.operatorCount++;
+    }
+    
+    /**
+     * Removes the top most operand from the operand stack
+     * 
+     * @return the operand (Node)
+     */
+    Node popOperand() {
+        return this.operands.remove(this.operands.size() - 1);
+    }
+    
+    /**
+     * Applies all pending operators of the current bracket
+     * 
+     * @param frame (Frame) the current bracket
+     * @throws FormulaException 
+     */
+    void reduceAll(Frame frame) throws FormulaException {
+        while(this.operatorCount > frame.operatorBase) {
+            reduce();
+        }
+    }
+    
+    /**
+     * Applies the top most operator to its operand(s) and replaces the
+     * operand(s) by the resulting node
+     * 
+     * @throws FormulaException 
+     */
+    void reduce() throws FormulaException {
+        int operator = this.operators[--this.operatorCount];
+        
+        if(operator == NEGATE) {
+            this.operands.add(new Neg(popOperand()));
+            return;
+        }
+        
+        if(operator == FormulaToken.NOT) {
+            this.operands.add(new Not(popOperand()));
+            return;
+        }
+        
+        Node right = popOperand();
+        Node left = popOperand();
+        
+        switch (operator) {
+            case FormulaToken.PLUS:
+                this.operands.add(new Add(left, right));
+                break;
+                
+            case FormulaToken.MINUS:
+                this.operands.add(new Sub(left, right));
+                break;
+                
+            case FormulaToken.MUL:
+                this.operands.add(new Mul(left, right));
+                break;
+                
+            case FormulaToken.DIV:
+                this.operands.add(new Div(left, right));
+                break;
+                
+            case FormulaToken.POW:
+                this.operands.add(new Pow(left, right));
+                break;
+                
+            case FormulaToken.EQUALS:
+                this.operands.add(new Equals(left, right));
+                break;
+                
+            case FormulaToken.NOT_EQUALS:
+                this.operands.add(new NotEquals(left, right));
+                break;
+                
+            case FormulaToken.LESS_THAN:
+                this.operands.add(new LessThan(left, right));
+                break;
+                
+            case FormulaToken.GREATER_THAN:
+                this.operands.add(new GreaterThan(left, right));
+                break;
+                
+            case FormulaToken.LESS_EQUALS:
+                this.operands.add(new LessEquals(left, right));
+                break;
+                
+            case FormulaToken.GREATER_EQUALS:
+                this.operands.add(new GreaterEquals(left, right));
+                break;
+                
+            case FormulaToken.AND:
+                this.operands.add(new And(left, right));
+                break;
+                
+            case FormulaToken.OR:
+                this.operands.add(new Or(left, right));
+                break;
+                
+            case FormulaToken.XOR:
+                this.operands.add(new Xor(left, right));
+                break;
+                
+            default:
+                throw new FormulaException("Unknown operator " + operator);
+        }
+    }
+    
+    /**
+     * Creates the formula node for a number, a constant or a variable
+     * 
+     * @param token (FormulaToken) the token
+     * @return the node (Node)
+     * @throws FormulaException 
+     */
+    Node createOperand(FormulaToken token) throws FormulaException {
+        String text = token.getText();
+        
+        if(token.getType() == FormulaToken.NUMBER) {
+            return new Constant(new Double(parseNumber(text), this.format));
+        }
+        
+        if(token.getType() == FormulaToken.IMAGINARY) {
+            try {
+                return new Constant(new Complex(text, this.format));
+            }
+            catch (ParseException ex) {
+                throw new FormulaException("Cannot parse number " + text, ex);
+            }
+        }
+        
+        // true or false?
+        if(text.equals("true") || text.equals("false"))
+            return new Constant(new Boolean(text, this.format));
+        
+        if(text.equals("e"))
+            return new Constant(new Double(Math.E, this.format));
+        
+        if(text.equals("pi"))
+            return new Constant(new Double(Math.PI, this.format));
+        
+        return new Variable(text);
+    }
+    
+    /**
+     * Converts the text of a number token into its value.
+     * 
+     * Plain numbers (digits with at most one decimal separator) are converted
+     * directly, which gives the same result as the number format but is a lot
+     * faster. Anything else is left to the number format.
+     * 
+     * @param text (String) the number
+     * @return the value (double)
+     * @throws FormulaException 
+     */
+    double parseNumber(String text) throws FormulaException {
+        if(this.plainDecimals) {
+            int len = text.length();
+            int separators = 0;
+            int separatorPos = -1;
+            
+            for(int i=0; i<len; i++) {
+                char c = text.charAt(i);
+                
+                if(c == this.decimalSeparator) {
+                    separators++;
+                    separatorPos = i;
+                }
+                else if(!FormulaLexer.isDigit(c)) {
+                    separators = 2;
+                    break;
+                }
+            }
+            
+            if(separators == 0)
+                return java.lang.Double.parseDouble(text);
+            
+            if((separators == 1) && (len > 1))
+                return java.lang.Double.parseDouble(text.substring(0, separatorPos) + "." + text.substring(separatorPos+1));
+        }
+        
+        ParsePosition position = new ParsePosition(0);
+        java.lang.Number value = this.format.parse(text, position);
+
+        if((value == null) || (position.getIndex() != text.length()))
+            throw new FormulaException("Cannot parse number " + text);
+        
+        return value.doubleValue();
+    }
+    
+    /**
+     * Creates the formula node for a function call
+     * 
+     * @param token (FormulaToken) the call token
+     * @param arguments (ArrayList) the parameters
+     * @return the node (Node)
+     * @throws FormulaException 
+     */
+    Node createFunction(FormulaToken token, ArrayList<Node> arguments) throws FormulaException {
+        String name = token.getText();
+        
+        if(isUnaryFunction(name)) {
+            if(arguments.size() != 1)
+                throw new FormulaException("Function " + name + " takes exactly one parameter");
+            
+            return createUnaryFunction(name, arguments.get(0));
+        }
+        
+        Function function = findFunction(name);
+        if(function == null)
+            throw new FormulaException("Unknown function " + name + " at position " + token.getPosition());
+        
+        if(arguments.size() < function.getMinimumParameters()) 
+            throw new FormulaException("Function " + function.getName() + " needs at least " + function.getMinimumParameters() + " parameters");
+        if(arguments.size() > function.getMaximumParameters()) 
+            throw new FormulaException("Function " + function.getName() + " takes at most " + function.getMaximumParameters() + " parameters");
+        
+        for(int i=0; i<arguments.size(); i++) {
+            function.setParameterNode(i, arguments.get(i));
+        }
+        
+        return function;
+    }
+    
+    /**
+     * Creates a new (empty) instance of a function taking a list of parameters.
+     * Besides if, sum and prod, the functions are looked up in the function
+     * registry and, if not found there, in the functions that have been added
+     * to Formula.userDefinedFunctions directly.
+     * 
+     * @param name (String) the (qualified) function name
+     * @return the function or null if no such function exists (Function)
+     * @throws FormulaException 
+     */
+    Function findFunction(String name) throws FormulaException {
+        switch (name) {
+            case "if":
+                return new If();
+                
+            case "sum":
+                return new Sum();
+                
+            case "prod":
+                return new Prod();
+        }
+        
+        Function retVal = this.registry.create(name);
+        if(retVal != null) return retVal;
+        
+        for(UserDefinedFunction func : Formula.userDefinedFunctions) {
+            if(func.getName().equals(name)) return func.copy();
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Creates the node of a built-in function taking one parameter
+     * 
+     * @param name (String) the function name
+     * @param argument (Node) the parameter
+     * @return the node (Node)
+     * @throws FormulaException 
+     */
+    static Node createUnaryFunction(String name, Node argument) throws FormulaException {
+        switch (name) {
+            case "arcsinh": return new Arcsinh(argument);
+            case "arccosh": return new Arccosh(argument);
+            case "arctanh": return new Arctanh(argument);
+            case "arccoth": return new Arccoth(argument);
+            case "arcsech": return new Arcsech(argument);
+            case "arccsch": return new Arccsch(argument);
+                
+            case "arcsin": return new Arcsin(argument);
+            case "arccos": return new Arccos(argument);
+            case "arctan": return new Arctan(argument);
+            case "arccot": return new Arccot(argument);
+            case "arcsec": return new Arcsec(argument);
+            case "arccsc": return new Arccsc(argument);
+                
+            case "sinh": return new Sinh(argument);
+            case "cosh": return new Cosh(argument);
+            case "tanh": return new Tanh(argument);
+            case "coth": return new Coth(argument);
+            case "sech": return new Sech(argument);
+            case "csch": return new Csch(argument);
+                
+            case "sqrt": return new Sqrt(argument);
+            case "rand": return new Rand(argument);
+                
+            case "sin": return new Sin(argument);
+            case "cos": return new Cos(argument);
+            case "tan": return new Tan(argument);
+            case "cot": return new Cot(argument);
+            case "sec": return new Sec(argument);
+            case "csc": return new Csc(argument);
+                
+            case "abs": return new Abs(argument);
+            case "sgn": return new Sgn(argument);
+            case "exp": return new Exp(argument);
+            case "log": return new Log(argument);
+            case "neg": return new Neg(argument);
+            case "int": return new Int(argument);
+                
+            case "ln": return new Ln(argument);
+                
+            default:
+                throw new FormulaException("Unknown function " + name);
+        }
+    }
+    
+    /**
+     * Creates the exception for an unexpected token
+     * 
+     * @param token (FormulaToken) the token
+     * @return the exception (FormulaException)
+     */
+    static FormulaException unexpected(FormulaToken token) {
+        return new FormulaException("Syntax error, unexpected " + token);
+    }
+}
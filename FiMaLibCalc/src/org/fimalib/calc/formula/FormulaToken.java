@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class represents a single token of a formula string as produced by the
+ * formula lexer.
+ * 
+ * Each token stores its type, the position of its first character within the
+ * formula string and - for numbers, identifiers and function calls - the
+ * text of the token.
+ * 
+ * @author Peter Werno
+ */
+public class FormulaToken {
+    /*
+    * Definitions of the token types.
+    */
+    public static final int NUMBER          = 1;    // e.g. 3.5
+    public static final int IMAGINARY       = 2;    // e.g. 3i
+    public static final int IDENTIFIER      = 3;    // e.g. x, pi, true
+    public static final int CALL            = 4;    // e.g. sin( (the name followed by an opening bracket)
+    public static final int OPEN            = 5;    // ( [ {
+    public static final int CLOSE           = 6;    // ) ] }
+    public static final int COMMA           = 7;    // ,
+    public static final int PLUS            = 8;    // +
+    public static final int MINUS           = 9;    // -
+    public static final int MUL             = 10;   // *
+    public static final int DIV             = 11;   // /
+    public static final int POW             = 12;   // ^
+    public static final int EQUALS          = 13;   // ==
+    public static final int NOT_EQUALS      = 14;   // !=
+    public static final int LESS_THAN       = 15;   // <
+    public static final int GREATER_THAN    = 16;   // >
+    public static final int LESS_EQUALS     = 17;   // <=
+    public static final int GREATER_EQUALS  = 18;   // >=
+    public static final int AND             = 19;   // &&
+    public static final int OR              = 20;   // ||
+    public static final int XOR             = 21;   // ##
+    public static final int NOT             = 22;   // !
+    public static final int END             = 23;   // end of the formula
+    
+    int type;
+    int position;
+    String text;
+    
+    /**
+     * Creates a new instance of FormulaToken
+     * 
+     * @param type (int) the token type
+     * @param position (int) the position within the formula string
+     * @param text (String) the token text
+     */
+    public FormulaToken(int type, int position, String text) {
+        this.type = type;
+        this.position = position;
+        this.text = text;
+    }
+    
+    /**
+     * Returns the token type
+     * 
+     * @return the type (int)
+     */
+    public int getType() {
+        return this.type;
+    }
+    
+    /**
+     * Returns the position of the token within the formula string
+     * 
+     * @return the position (int)
+     */
+    public int getPosition() {
+        return this.position;
+    }
+    
+    /**
+     * Returns the text of the token.
+     * For brackets, this is the bracket character, for calls this is the
+     * function name (without the bracket).
+     * 
+     * @return the text (String)
+     */
+    public String getText() {
+        return this.text;
+    }
+    
+    /**
+     * Returns if the token is a binary operator
+     * 
+     * @return whether or not this is a binary operator (boolean)
+     */
+    public boolean isBinaryOperator() {
+        return (this.type >= PLUS) && (this.type <= XOR);
+    }
+    
+    /**
+     * Returns the binding strength of a binary operator token.
+     * The values are the same as the node levels, which ensures that the
+     * parsed tree can be converted back to a string without any extra brackets.
+     * 
+     * @return the precedence (int)
+     */
+    public int getPrecedence() {
+        switch (this.type) {
+            case PLUS:
+            case MINUS:
+                return Node.LEVEL_ADDITION;
+                
+            case MUL:
+            case DIV:
+                return Node.LEVEL_MULTIPLICATION;
+                
+            case POW:
+                return Node.LEVEL_EXPONENTIAL;
+                
+            default:
+                return Node.LEVEL_LOGIC;
+        }
+    }
+    
+    /**
+     * Returns the token as a string (for error messages)
+     * 
+     * @return the token (String)
+     */
+    @Override
+    public String toString() {
+        if(this.type == END) return "end of formula";
+        
+        return "'" + this.text + "' at position " + this.position;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.fimalib.calc.formula.functions.Prod;
+import org.fimalib.calc.formula.functions.Sum;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+import org.fimalib.calc.formula.nodes.Variable;
+
+/**
+ * This class replaces the calls of user defined functions within a formula
+ * tree by their definitions (inlining), with the parameters of the function
+ * being replaced by the argument sub trees of the call.
+ * 
+ * Inlined formulas do not need a frame per function call any more, and
+ * further optimizations work across the former function boundaries, e.g.
+ * the Simplifier folds constant arguments into the definition and the
+ * FormulaDag shares common subexpressions of several calls.
+ * 
+ * A call is inlined, if
+ * 
+ *  - the inlined sub tree has at most threshold nodes (an argument that is 
+ *    used several times within the definition is copied several times),
+ *  - the definition only uses its parameters (and running variables of sums
+ *    and products), as other variables would refer to variables of the
+ *    calling formula after inlining,
+ *  - no argument uses rand (which would be calculated once per use instead
+ *    of once per call),
+ *  - the function is not called recursively and the calls are nested at
+ *    most MAXIMUM_DEPTH levels deep.
+ * 
+ * Running variables of sums and products within the definition are renamed
+ * if an argument uses a variable with the same name. Arguments are only
+ * calculated where the definition uses them, so an argument that is not 
+ * used (e.g. within an if branch that is not taken) cannot throw exceptions 
+ * any more.
+ * 
+ * Like the Simplifier, the inliner does not change the given formula tree
+ * but returns an inlined copy.
+ * 
+ * Example:
+ * 
+ *  Formula.addUserDefinedFunction(new UserDefinedFunction("df(r,t)=exp(neg(r)*t)", format));
+ *  Node node = new Inliner().inline(Formula.parse("100*df(r,1)+100*df(r,2)", format));
+ * 
+ * @author Peter Werno
+ */
+public class Inliner {
+    public static final int DEFAULT_THRESHOLD = 64;
+    public static final int MAXIMUM_DEPTH = 16;
+    
+    int threshold;
+    int calls;                                  // the number of inlined calls
+    IdentityHashMap<Node, Boolean> active;      // the definitions being inlined (to detect recursion)
+    HashSet<String> names;                      // the variable names in use
+    
+    /**
+     * Creates a new instance of Inliner with the default threshold
+     */
+    public Inliner() {
+        this(DEFAULT_THRESHOLD);
+    }
+    
+    /**
+     * Creates a new instance of Inliner
+     * 
+     * @param threshold (int) the maximum number of nodes of an inlined call
+     */
+    public Inliner(int threshold) {
+        this.threshold = threshold;
+    }
+    
+    /**
+     * Returns the maximum number of nodes of an inlined call
+     * 
+     * @return the threshold (int)
+     */
+    public int getThreshold() {
+        return this.threshold;
+    }
+    
+    /**
+     * Returns the number of calls inlined by the last inlining
+     * 
+     * @return the number of inlined calls (int)
+     */
+    public int getInlineCount() {
+        return this.calls;
+    }
+    
+    /**
+     * Inlines the calls of user defined functions within a formula tree
+     * 
+     * @param formula (Node) the formula tree, which is not changed
+     * @return the inlined formula tree (Node)
+     * @throws FormulaException 
+     */
+    public Node inline(Node formula) throws FormulaException {
+        this.calls = 0;
+        this.active = new IdentityHashMap<>();
+        this.names = new HashSet<>();
+        collectNames(formula, this.names);
+        
+        return this.inline(formula.copy(), 0);
+    }
+    
+    /**
+     * Inlines the calls within the sub nodes of a node and then the node
+     * itself
+     * 
+     * @param node (Node) the node, which may be changed
+     * @param depth (int) the number of enclosing inlined calls
+     * @return the inlined node (Node)
+     * @throws FormulaException 
+     */
+    Node inline(Node node, int depth) throws FormulaException {
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            Node subNode = node.getNode(i);
+            Node newNode = this.inline(subNode, depth);
+            if(newNode != subNode) node.setNode(i, newNode);
+        }
+        
+        if(NodeType.of(node) != NodeType.FUNCTION) return node;
+        
+        UserDefinedFunction function = (UserDefinedFunction)node;
+        Node definition = function.getDefinition();
+        if((depth >= MAXIMUM_DEPTH) || this.active.containsKey(definition)) return node;
+        
+        // the parameters of the function, mapped to the arguments of the call
+        String[] parameters = function.getParameterNames();
+        HashMap<String, Node> arguments = new HashMap<>();
+        for(int i=0; i<numNodes; i++) {
+            Node argument = function.getNode(i);
+            if(isVolatile(argument)) return node;
+            arguments.put(parameters[i], argument);
+        }
+        
+        if(!isClosed(definition, new HashSet<>(arguments.keySet()))) return node;
+        
+        Node retVal = this.substitute(definition.copy(), arguments);
+        if(size(retVal) > this.threshold) return node;
+        
+        // calls within the definition
+        this.active.put(definition, Boolean.TRUE);
+        retVal = this.inline(retVal, depth + 1);
+        this.active.remove(definition);
+        this.calls++;
+        
+        return retVal;
+    }
+    
+    /**
+     * Replaces the parameters within (a copy of) the definition by the
+     * arguments
+     * 
+     * @param node (Node) the node, which may be changed
+     * @param arguments (HashMap) the arguments by parameter name
+     * @return the node with the arguments (Node)
+     * @throws FormulaException 
+     */
+    Node substitute(Node node, Map<String, Node> arguments) throws FormulaException {
+        int type = NodeType.of(node);
+        
+        if(type == NodeType.VARIABLE) {
+            Node argument = arguments.get(((Variable)node).getName());
+            return (argument == null) ? node : argument.copy();
+        }
+        
+        if((type == NodeType.SUM) || (type == NodeType.PROD)) {
+            String parameter = (type == NodeType.SUM) ? ((Sum)node).getParameter() : ((Prod)node).getParameter();
+            Node startValue = this.substitute(node.getNode(0), arguments);
+            Node endValue = this.substitute(node.getNode(1), arguments);
+            
+            // the running variable hides a parameter of the same name ...
+            HashMap<String, Node> inner = new HashMap<>(arguments);
+            inner.remove(parameter);
+            
+            // ... and must not hide variables of the arguments
+            HashSet<String> used = new HashSet<>();
+            for(Node argument : inner.values()) {
+                collectNames(argument, used);
+            }
+            if(used.contains(parameter)) {
+                String name = this.rename(parameter);
+                inner.put(parameter, new Variable(name));
+                parameter = name;
+            }
+            
+            Node formula = this.substitute(node.getNode(2), inner);
+            if(type == NodeType.SUM) return new Sum(parameter, startValue, endValue, formula);
+            return new Prod(parameter, startValue, endValue, formula);
+        }
+        
+        // the arguments of calls within the definition (but not their definitions)
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            Node subNode = node.getNode(i);
+            Node newNode = this.substitute(subNode, arguments);
+            if(newNode != subNode) node.setNode(i, newNode);
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Returns a new variable name for a running variable
+     * 
+     * @param parameter (String) the name of the running variable
+     * @return the new name (String)
+     */
+    String rename(String parameter) {
+        int num = 1;
+        while(this.names.contains(parameter + "_" + num)) num++;
+        
+        String retVal = parameter + "_" + num;
+        this.names.add(retVal);
+        
+        return retVal;
+    }
+    
+    /**
+     * Returns whether a definition only uses the given variables (and the
+     * running variables of its sums and products)
+     * 
+     * @param node (Node) the definition
+     * @param variables (HashSet) the known variables
+     * @return true if all variables are known (boolean)
+     * @throws FormulaException 
+     */
+    static boolean isClosed(Node node, HashSet<String> variables) throws FormulaException {
+        int type = NodeType.of(node);
+        
+        if(type == NodeType.VARIABLE) return variables.contains(((Variable)node).getName());
+        
+        if((type == NodeType.SUM) || (type == NodeType.PROD)) {
+            if(!isClosed(node.getNode(0), variables) || !isClosed(node.getNode(1), variables)) return false;
+            
+            HashSet<String> inner = new HashSet<>(variables);
+            inner.add((type == NodeType.SUM) ? ((Sum)node).getParameter() : ((Prod)node).getParameter());
+            return isClosed(node.getNode(2), inner);
+        }
+        
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            if(!isClosed(node.getNode(i), variables)) return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns whether a formula uses rand (directly or within a user defined
+     * function)
+     * 
+     * @param node (Node) the formula
+     * @return true if the formula uses rand (boolean)
+     * @throws FormulaException 
+     */
+    static boolean isVolatile(Node node) throws FormulaException {
+        int type = NodeType.of(node);
+        if(type == NodeType.RAND) return true;
+        if((type == NodeType.FUNCTION) && isVolatile(((UserDefinedFunction)node).getDefinition())) return true;
+        
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            if(isVolatile(node.getNode(i))) return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Adds the names of all variables (and running variables) of a formula
+     * to a set
+     * 
+     * @param node (Node) the formula
+     * @param names (HashSet) the set of names
+     * @throws FormulaException 
+     */
+    static void collectNames(Node node, HashSet<String> names) throws FormulaException {
+        int type = NodeType.of(node);
+        
+        if(type == NodeType.VARIABLE) names.add(((Variable)node).getName());
+        if(type == NodeType.SUM) names.add(((Sum)node).getParameter());
+        if(type == NodeType.PROD) names.add(((Prod)node).getParameter());
+        
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            collectNames(node.getNode(i), names);
+        }
+    }
+    
+    /**
+     * Returns the number of nodes of a formula tree (not including the
+     * definitions of called functions)
+     * 
+     * @param node (Node) the formula tree
+     * @return the number of nodes (int)
+     * @throws FormulaException 
+     */
+    static int size(Node node) throws FormulaException {
+        int retVal = 1;
+        
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            retVal += size(node.getNode(i));
+        }
+        
+        return retVal;
+    }
+}
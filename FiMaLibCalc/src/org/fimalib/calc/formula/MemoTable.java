@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+/**
+ * This class holds the results of function calls for given (primitive)
+ * argument values, so that pure functions called repeatedly with the same
+ * arguments are only calculated once (memoization, see
+ * org.fimalib.calc.formula.eval.Memoized).
+ * 
+ * A memo table is used by setting it on an evaluation context. Its scope is
+ * up to the caller: a new table per evaluation, or one table for all
+ * evaluations with the same market data (which is cleared when the market
+ * data changes).
+ * 
+ * The table has a fixed capacity. Each call is stored at a position given by
+ * the hash of the function and the arguments, replacing the entry stored
+ * there before (direct mapping), so lookups and stores do not create any
+ * objects. Arguments are compared bitwise, i.e. 0 and -0 are different
+ * arguments. The numbers of hits, misses and evictions (entries replaced by
+ * other calls) are counted to monitor the efficiency of the table.
+ * 
+ * Like an evaluation context, a memo table must not be used by several
+ * threads at the same time.
+ * 
+ * Example:
+ * 
+ *  MemoTable memo = new MemoTable(4096);
+ *  context.setMemoTable(memo);
+ *  double result = node.evaluate(context);
+ *  System.out.println(memo.getHitRate());
+ * 
+ * @author Peter Werno
+ */
+public class MemoTable {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int MAXIMUM_ARGUMENTS = 8;
+    
+    int mask;
+    Object[] functions;     // the function of each entry (null if empty)
+    int[] counts;           // the number of arguments
+    double[] arguments;     // the arguments (MAXIMUM_ARGUMENTS per entry)
+    double[] values;        // the results
+    int size;
+    
+    long hits;
+    long misses;
+    long evictions;
+    
+    /**
+     * Creates a new instance of MemoTable with the default capacity
+     */
+    public MemoTable() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Creates a new instance of MemoTable
+     * 
+     * @param capacity (int) the maximum number of entries (rounded up to a power of two)
+     */
+    public MemoTable(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        
+        this.mask = size - 1;
+        this.functions = new Object[size];
+        this.counts = new int[size];
+        this.arguments = new double[size * MAXIMUM_ARGUMENTS];
+        this.values = new double[size];
+    }
+    
+    /**
+     * Returns the maximum number of entries
+     * 
+     * @return the capacity (int)
+     */
+    public int getCapacity() {
+        return this.functions.length;
+    }
+    
+    /**
+     * Returns the number of entries
+     * 
+     * @return the size (int)
+     */
+    public int getSize() {
+        return this.size;
+    }
+    
+    /**
+     * Returns the number of lookups that found a stored result
+     * 
+     * @return the number of hits (long)
+     */
+    public long getHits() {
+        return this.hits;
+    }
+    
+    /**
+     * Returns the number of lookups that did not find a stored result
+     * 
+     * @return the number of misses (long)
+     */
+    public long getMisses() {
+        return this.misses;
+    }
+    
+    /**
+     * Returns the number of entries replaced by the results of other calls
+     * 
+     * @return the number of evictions (long)
+     */
+    public long getEvictions() {
+        return this.evictions;
+    }
+    
+    /**
+     * Returns the share of lookups that found a stored result
+     * 
+     * @return the hit rate between 0 and 1 (double), 0 if there were no lookups
+     */
+    public double getHitRate() {
+        long lookups = this.hits + this.misses;
+        
+        return (lookups == 0L) ? 0.0 : (double)this.hits / lookups;
+    }
+    
+    /**
+     * Removes all entries (e.g. when the market data changes), the
+     * statistics are kept
+     */
+    public void clear() {
+        java.util.Arrays.fill(this.functions, null);
+        this.size = 0;
+    }
+    
+    /**
+     * Resets the numbers of hits, misses and evictions
+     */
+    public void resetStatistics() {
+        this.hits = 0L;
+        this.misses = 0L;
+        this.evictions = 0L;
+    }
+    
+    /**
+     * Looks up the result of a function with one argument
+     * 
+     * @param function (Object) the function (compared by identity)
+     * @param argument (double) the argument
+     * @return the entry (int), -1 if no result is stored
+     */
+    public int find(Object function, double argument) {
+        int entry = this.index(function, mix(0, argument));
+        
+        if((this.functions[entry] == function) && (this.counts[entry] == 1) && same(this.arguments[entry * MAXIMUM_ARGUMENTS], argument)) {
+            this.hits++;
+            return entry;
+        }
+        
+        this.misses++;
+        return -1;
+    }
+    
+    /**
+     * Looks up the result of a function call whose arguments are stored in a
+     * frame of the evaluation context (see EvaluationContext.allocate)
+     * 
+     * @param function (Object) the function (compared by identity)
+     * @param context (EvaluationContext) the evaluation context
+     * @param start (int) the start of the frame
+     * @param count (int) the number of arguments (at most MAXIMUM_ARGUMENTS)
+     * @return the entry (int), -1 if no result is stored
+     */
+    public int find(Object function, EvaluationContext context, int start, int count) {
+        double[] stack = context.stack;
+        int entry = this.index(function, hash(stack, start, count));
+        
+        if((this.functions[entry] == function) && (this.counts[entry] == count)) {
+            int offset = entry * MAXIMUM_ARGUMENTS;
+            boolean found = true;
+            for(int i=0; found && (i<count); i++) {
+                found = same(this.arguments[offset + i], stack[start + i]);
+            }
+            
+            if(found) {
+                this.hits++;
+                return entry;
+            }
+        }
+        
+        this.misses++;
+        return -1;
+    }
+    
+    /**
+     * Returns the result stored in an entry
+     * 
+     * @param entry (int) the entry as returned by find
+     * @return the result (double)
+     */
+    public double getValue(int entry) {
+        return this.values[entry];
+    }
+    
+    /**
+     * Stores the result of a function with one argument
+     * 
+     * @param function (Object) the function
+     * @param argument (double) the argument
+     * @param value (double) the result
+     */
+    public void store(Object function, double argument, double value) {
+        int entry = this.claim(function, mix(0, argument), 1, value);
+        this.arguments[entry * MAXIMUM_ARGUMENTS] = argument;
+    }
+    
+    /**
+     * Stores the result of a function call whose arguments are stored in a
+     * frame of the evaluation context
+     * 
+     * @param function (Object) the function
+     * @param context (EvaluationContext) the evaluation context
+     * @param start (int) the start of the frame
+     * @param count (int) the number of arguments (at most MAXIMUM_ARGUMENTS)
+     * @param value (double) the result
+     */
+    public void store(Object function, EvaluationContext context, int start, int count, double value) {
+        int entry = this.claim(function, hash(context.stack, start, count), count, value);
+        System.arraycopy(context.stack, start, this.arguments, entry * MAXIMUM_ARGUMENTS, count);
+    }
+    
+    /**
+     * Returns a summary of the table and its statistics
+     * 
+     * @return the summary (String)
+     */
+    @Override
+    public String toString() {
+        return "MemoTable[capacity=" + this.getCapacity() + ", size=" + this.size + ", hits=" + this.hits + 
+                ", misses=" + this.misses + ", evictions=" + this.evictions + ", hit rate=" + this.getHitRate() + "]";
+    }
+    
+    /**
+     * Sets the function, argument count and result of the entry for a hash
+     * 
+     * @param function (Object) the function
+     * @param hash (int) the hash of the arguments
+     * @param count (int) the number of arguments
+     * @param value (double) the result
+     * @return the entry (int)
+     */
+    int claim(Object function, int hash, int count, double value) {
+        int entry = this.index(function, hash);
+        
+        if(this.functions[entry] == null) 
+            this.size++;
+        else
+            this.evictions++;
+        
+        this.functions[entry] = function;
+        this.counts[entry] = count;
+        this.values[entry] = value;
+        
+        return entry;
+    }
+    
+    /**
+     * Returns the entry for a function and the hash of its arguments
+     * 
+     * @param function (Object) the function
+     * @param hash (int) the hash of the arguments
+     * @return the entry (int)
+     */
+    int index(Object function, int hash) {
+        int h = (System.identityHashCode(function) * 31 + hash) * 0x9E3779B9;
+        
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+    
+    /**
+     * Returns the hash of the arguments within an array
+     * 
+     * @param values (double[]) the array
+     * @param start (int) the first argument
+     * @param count (int) the number of arguments
+     * @return the hash (int)
+     */
+    static int hash(double[] values, int start, int count) {
+        int retVal = 0;
+        for(int i=0; i<count; i++) {
+            retVal = mix(retVal, values[start + i]);
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Adds an argument to a hash
+     * 
+     * @param hash (int) the hash
+     * @param value (double) the argument
+     * @return the new hash (int)
+     */
+    static int mix(int hash, double value) {
+        long bits = java.lang.Double.doubleToLongBits(value);
+        
+        return hash * 31 + (int)(bits ^ (bits >>> 32));
+    }
+    
+    /**
+     * Returns whether two arguments are bitwise the same
+     * 
+     * @param a (double) the first argument
+     * @param b (double) the second argument
+     * @return true if the arguments are the same (boolean)
+     */
+    static boolean same(double a, double b) {
+        return java.lang.Double.doubleToLongBits(a) == java.lang.Double.doubleToLongBits(b);
+    }
+}
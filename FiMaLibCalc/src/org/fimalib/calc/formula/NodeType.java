@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.util.HashMap;
+import org.fimalib.calc.formula.functions.Cnd;
+import org.fimalib.calc.formula.functions.If;
+import org.fimalib.calc.formula.functions.Max;
+import org.fimalib.calc.formula.functions.Min;
+import org.fimalib.calc.formula.functions.Prod;
+import org.fimalib.calc.formula.functions.Sum;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.*;
+
+/**
+ * This class assigns a type number to each class of formula nodes, so that
+ * formula trees can be processed with a switch statement instead of a chain
+ * of instanceof checks (e.g. by the batch evaluator).
+ * 
+ * Only the node classes of FiMaLib itself have a type; nodes of any other
+ * class (e.g. subclasses) are of type UNKNOWN.
+ * 
+ * @author Peter Werno
+ */
+public class NodeType {
+    public static final int UNKNOWN        = 0;
+    public static final int CONSTANT       = 1;
+    public static final int VARIABLE       = 2;
+    public static final int ADD            = 3;
+    public static final int SUB            = 4;
+    public static final int MUL            = 5;
+    public static final int DIV            = 6;
+    public static final int POW            = 7;
+    public static final int NEG            = 8;
+    public static final int NOT            = 9;
+    public static final int AND            = 10;
+    public static final int OR             = 11;
+    public static final int XOR            = 12;
+    public static final int EQUALS         = 13;
+    public static final int NOT_EQUALS     = 14;
+    public static final int LESS_THAN      = 15;
+    public static final int LESS_EQUALS    = 16;
+    public static final int GREATER_THAN   = 17;
+    public static final int GREATER_EQUALS = 18;
+    public static final int ABS            = 19;
+    public static final int ARCCOS         = 20;
+    public static final int ARCCOSH        = 21;
+    public static final int ARCCOT         = 22;
+    public static final int ARCCOTH        = 23;
+    public static final int ARCCSC         = 24;
+    public static final int ARCCSCH        = 25;
+    public static final int ARCSEC         = 26;
+    public static final int ARCSECH        = 27;
+    public static final int ARCSIN         = 28;
+    public static final int ARCSINH        = 29;
+    public static final int ARCTAN         = 30;
+    public static final int ARCTANH        = 31;
+    public static final int COS            = 32;
+    public static final int COSH           = 33;
+    public static final int COT            = 34;
+    public static final int COTH           = 35;
+    public static final int CSC            = 36;
+    public static final int CSCH           = 37;
+    public static final int EXP            = 38;
+    public static final int INT            = 39;
+    public static final int LN             = 40;
+    public static final int LOG            = 41;
+    public static final int RAND           = 42;
+    public static final int SEC            = 43;
+    public static final int SECH           = 44;
+    public static final int SGN            = 45;
+    public static final int SIN            = 46;
+    public static final int SINH           = 47;
+    public static final int SQRT           = 48;
+    public static final int TAN            = 49;
+    public static final int TANH           = 50;
+    public static final int IF             = 51;
+    public static final int SUM            = 52;
+    public static final int PROD           = 53;
+    public static final int FUNCTION       = 54;
+    public static final int CND            = 55;
+    public static final int MAX            = 56;
+    public static final int MIN            = 57;
+    
+    static final HashMap<Class<? extends Node>, Integer> TYPES = new HashMap<>();
+    
+    static {
+        TYPES.put(Constant.class, CONSTANT);
+        TYPES.put(Variable.class, VARIABLE);
+        TYPES.put(Add.class, ADD);
+        TYPES.put(Sub.class, SUB);
+        TYPES.put(Mul.class, MUL);
+        TYPES.put(Div.class, DIV);
+        TYPES.put(Pow.class, POW);
+        TYPES.put(Neg.class, NEG);
+        TYPES.put(Not.class, NOT);
+        TYPES.put(And.class, AND);
+        TYPES.put(Or.class, OR);
+        TYPES.put(Xor.class, XOR);
+        TYPES.put(Equals.class, EQUALS);
+        TYPES.put(NotEquals.class, NOT_EQUALS);
+        TYPES.put(LessThan.class, LESS_THAN);
+        TYPES.put(LessEquals.class, LESS_EQUALS);
+        TYPES.put(GreaterThan.class, GREATER_THAN);
+        TYPES.put(GreaterEquals.class, GREATER_EQUALS);
+        TYPES.put(Abs.class, ABS);
+        TYPES.put(Arccos.class, ARCCOS);
+        TYPES.put(Arccosh.class, ARCCOSH);
+        TYPES.put(Arccot.class, ARCCOT);
+        TYPES.put(Arccoth.class, ARCCOTH);
+        TYPES.put(Arccsc.class, ARCCSC);
+        TYPES.put(Arccsch.class, ARCCSCH);
+        TYPES.put(Arcsec.class, ARCSEC);
+        TYPES.put(Arcsech.class, ARCSECH);
+        TYPES.put(Arcsin.class, ARCSIN);
+        TYPES.put(Arcsinh.class, ARCSINH);
+        TYPES.put(Arctan.class, ARCTAN);
+        TYPES.put(Arctanh.class, ARCTANH);
+        TYPES.put(Cos.class, COS);
+        TYPES.put(Cosh.class, COSH);
+        TYPES.put(Cot.class, COT);
+        TYPES.put(Coth.class, COTH);
+        TYPES.put(Csc.class, CSC);
+        TYPES.put(Csch.class, CSCH);
+        TYPES.put(Exp.class, EXP);
+        TYPES.put(Int.class, INT);
+        TYPES.put(Ln.class, LN);
+        TYPES.put(Log.class, LOG);
+        TYPES.put(Rand.class, RAND);
+        TYPES.put(Sec.class, SEC);
+        TYPES.put(Sech.class, SECH);
+        TYPES.put(Sgn.class, SGN);
+        TYPES.put(Sin.class, SIN);
+        TYPES.put(Sinh.class, SINH);
+        TYPES.put(Sqrt.class, SQRT);
+        TYPES.put(Tan.class, TAN);
+        TYPES.put(Tanh.class, TANH);
+        TYPES.put(If.class, IF);
+        TYPES.put(Sum.class, SUM);
+        TYPES.put(Prod.class, PROD);
+        TYPES.put(UserDefinedFunction.class, FUNCTION);
+        TYPES.put(Cnd.class, CND);
+        TYPES.put(Max.class, MAX);
+        TYPES.put(Min.class, MIN);
+    }
+    
+    /**
+     * Returns the type of a formula node
+     * 
+     * @param node (Node) the formula node
+     * @return the type (int), UNKNOWN if the node class has no type
+     */
+    public static int of(Node node) {
+        Integer type = TYPES.get(node.getClass());
+        
+        return (type == null) ? UNKNOWN : type;
+    }
+    
+    /**
+     * Returns whether the type is a function with a single parameter
+     * (ABS ... TANH and CND)
+     * 
+     * @param type (int) the type
+     * @return true if the type is a function with a single parameter (boolean)
+     */
+    public static boolean isUnaryFunction(int type) {
+        return ((type >= ABS) && (type <= TANH)) || (type == CND);
+    }
+    
+    /**
+     * Returns whether the type is max or min, which select one of their
+     * parameters
+     * 
+     * @param type (int) the type
+     * @return true if the type is max or min (boolean)
+     */
+    public static boolean isExtremum(int type) {
+        return (type == MAX) || (type == MIN);
+    }
+    
+    /**
+     * Returns whether the type is a comparison (EQUALS ... GREATER_EQUALS)
+     * 
+     * @param type (int) the type
+     * @return true if the type is a comparison (boolean)
+     */
+    public static boolean isComparison(int type) {
+        return (type >= EQUALS) && (type <= GREATER_EQUALS);
+    }
+}
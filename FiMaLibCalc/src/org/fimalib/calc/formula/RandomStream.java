@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.util.SplittableRandom;
+
+/**
+ * This class generates the random numbers of formulas (see the rand
+ * function).
+ * 
+ * A random stream is a sequence of pseudo random numbers determined by its
+ * seed, so that evaluations drawing from a seeded stream can be reproduced.
+ * The streams are based on java.util.SplittableRandom: split creates a new
+ * stream that is statistically independent of the original one (and of all
+ * other streams split off it). To evaluate in parallel, split one stream per
+ * worker (or per task) from a seeded root stream, always in the same order;
+ * the results then do not depend on the number of threads or on the order
+ * in which the tasks are executed.
+ * 
+ * A random stream must not be used by several threads at the same time. The
+ * evaluation context holds the stream of an evaluation (see
+ * EvaluationContext.setRandom); evaluations without a stream of their own use
+ * the stream of the current thread (see current), which is seeded randomly.
+ * Unlike Math.random, this does not make the threads wait for each other.
+ * 
+ * Example:
+ * 
+ *  RandomStream root = new RandomStream(42L);
+ *  EvaluationContext context = new EvaluationContext(slots);
+ *  context.setRandom(root.split());
+ *  double result = Formula.parse("rand(1)").evaluate(context);
+ * 
+ * @author Peter Werno
+ */
+public class RandomStream {
+    static final ThreadLocal<RandomStream> CURRENT = new ThreadLocal<RandomStream>() {
+        @Override
+        protected RandomStream initialValue() {
+            return new RandomStream();
+        }
+    };
+    
+    SplittableRandom random;
+    double spare;               // the second normal of the last pair
+    boolean hasSpare;
+    
+    /**
+     * Creates a new instance of RandomStream with a random seed
+     */
+    public RandomStream() {
+        this.random = new SplittableRandom();
+    }
+    
+    /**
+     * Creates a new instance of RandomStream with the given seed. Streams with
+     * the same seed return the same numbers.
+     * 
+     * @param seed (long) the seed
+     */
+    public RandomStream(long seed) {
+        this.random = new SplittableRandom(seed);
+    }
+    
+    /**
+     * Creates a new instance of RandomStream with the given generator
+     * 
+     * @param random (SplittableRandom) the generator
+     */
+    RandomStream(SplittableRandom random) {
+        this.random = random;
+    }
+    
+    /**
+     * Returns the random stream of the current thread, which is used by all
+     * evaluations without a stream of their own
+     * 
+     * @return the random stream (RandomStream)
+     */
+    public static RandomStream current() {
+        return CURRENT.get();
+    }
+    
+    /**
+     * Sets the random stream of the current thread (e.g. a stream split off a
+     * seeded stream, to reproduce the evaluations of a worker thread)
+     * 
+     * @param stream (RandomStream) the random stream, null for a new stream
+     * with a random seed
+     */
+    public static void setCurrent(RandomStream stream) {
+        CURRENT.set((stream == null) ? new RandomStream() : stream);
+    }
+    
+    /**
+     * Returns a new random stream, which is independent of this stream. This
+     * stream is advanced, i.e. splitting again returns a different stream.
+     * 
+     * @return the new random stream (RandomStream)
+     */
+    public RandomStream split() {
+        return new RandomStream(this.random.split());
+    }
+    
+    /**
+     * Returns the given number of new random streams (see split), e.g. one per
+     * worker thread
+     * 
+     * @param count (int) the number of streams
+     * @return the new random streams (RandomStream[])
+     */
+    public RandomStream[] split(int count) {
+        RandomStream[] retVal = new RandomStream[count];
+        
+        for(int i=0; i<count; i++) {
+            retVal[i] = this.split();
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Returns a random number which is uniformly distributed between 0
+     * (including) and 1 (excluding)
+     * 
+     * @return the random number (double)
+     */
+    public double nextDouble() {
+        return this.random.nextDouble();
+    }
+    
+    /**
+     * Returns a random long value
+     * 
+     * @return the random number (long)
+     */
+    public long nextLong() {
+        return this.random.nextLong();
+    }
+    
+    /**
+     * Returns a random number which is standard normally distributed. The
+     * numbers are generated in pairs with the polar method of Marsaglia.
+     * 
+     * @return the random number (double)
+     */
+    public double nextGaussian() {
+        if(this.hasSpare) {
+            this.hasSpare = false;
+            return this.spare;
+        }
+        
+        double u, v, s;
+        do {
+            u = 2.0 * this.random.nextDouble() - 1.0;
+            v = 2.0 * this.random.nextDouble() - 1.0;
+            s = u * u + v * v;
+        } while((s >= 1.0) || (s == 0.0));
+        
+        double factor = Math.sqrt(-2.0 * Math.log(s) / s);
+        this.spare = v * factor;
+        this.hasSpare = true;
+        
+        return u * factor;
+    }
+    
+    /**
+     * Fills an array with random numbers which are uniformly distributed
+     * between 0 (including) and 1 (excluding)
+     * 
+     * @param values (double[]) the array
+     * @param from (int) the first position
+     * @param to (int) the position after the last one
+     */
+    public void nextDoubles(double[] values, int from, int to) {
+        SplittableRandom generator = this.random;
+        
+        for(int i=from; i<to; i++) {
+            values[i] = generator.nextDouble();
+        }
+    }
+    
+    /**
+     * Fills an array with random numbers which are standard normally
+     * distributed. The numbers are the same as those of calling nextGaussian
+     * for each position.
+     * 
+     * @param values (double[]) the array
+     * @param from (int) the first position
+     * @param to (int) the position after the last one
+     */
+    public void nextGaussians(double[] values, int from, int to) {
+        SplittableRandom generator = this.random;
+        int i = from;
+        
+        if((i < to) && this.hasSpare) {
+            this.hasSpare = false;
+            values[i++] = this.spare;
+        }
+        
+        while(i < to) {
+            double u, v, s;
+            do {
+                u = 2.0 * generator.nextDouble() - 1.0;
+                v = 2.0 * generator.nextDouble() - 1.0;
+                s = u * u + v * v;
+            } while((s >= 1.0) || (s == 0.0));
+            
+            double factor = Math.sqrt(-2.0 * Math.log(s) / s);
+            values[i++] = u * factor;
+            if(i < to) {
+                values[i++] = v * factor;
+            }
+            else {
+                this.spare = v * factor;
+                this.hasSpare = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,567 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import org.fimalib.calc.Boolean;
+import org.fimalib.calc.Complex;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.nodes.*;
+
+/**
+ * This class simplifies formula trees with algebraic rewrite rules, e.g. the
+ * results of Node.derive, which are full of multiplications with one, 
+ * additions of zero and chains of constant factors.
+ * 
+ * The rules are applied bottom-up until no rule applies any more (fixed
+ * point) or the budget of rewrites is used up. The rules are:
+ * 
+ *  - constant folding: operations and functions of constants (except rand
+ *    and user defined functions) are replaced by their result
+ *  - identities: x+0, x-0, x*1, x/1, x^1 are replaced by x, 0-x by -x, x*0,
+ *    0/x by 0, x^0 and 1^x by 1, -(-x) by x, x+(-y) by x-y, x-(-y) by x+y
+ *  - constant reassociation: constant factors are moved to the front and
+ *    multiplied (2*(3*x) by 6*x, (2*x)*y by 2*(x*y), -(2*x) by -2*x), and
+ *    constant summands are moved to the back and added ((x+2)-3 by x-1)
+ *  - strength reduction: x^2 by x*x (for variables), x/c by (1/c)*x (if c is
+ *    a power of two, so the result does not change), exp(a)*exp(b) by
+ *    exp(a+b) and exp(a)/exp(b) by exp(a-b)
+ *  - dead branch removal: if functions with a constant condition are replaced
+ *    by the selected part, false&&x by false and true||x by true
+ *  - operand ordering: the operands of && and || are swapped if the right
+ *    operand is cheaper (see CostModel) and neither operand can fail, so
+ *    that the short-circuit evaluation skips the expensive operand
+ * 
+ * The rules assume finite values: x*0 is replaced by 0 even though x might
+ * be infinite, and subtrees that are removed are not evaluated any more (so
+ * the exceptions they might throw are gone as well). Reassociation and
+ * exp(a)*exp(b) may change the results in the last digits.
+ * 
+ * Unlike Node.optimize, the simplifier does not change the given formula
+ * tree but returns a simplified copy.
+ * 
+ * Example:
+ * 
+ *  Node derivative = new Simplifier().simplify(Formula.parse("3*x^2").derive("x"));
+ * 
+ * @author Peter Werno
+ */
+public class Simplifier {
+    public static final int DEFAULT_BUDGET = 10000;
+    
+    int budget;
+    int rewrites;
+    
+    /**
+     * Creates a new instance of Simplifier with the default budget of
+     * rewrites
+     */
+    public Simplifier() {
+        this(DEFAULT_BUDGET);
+    }
+    
+    /**
+     * Creates a new instance of Simplifier
+     * 
+     * @param budget (int) the maximum number of rewrites per formula
+     */
+    public Simplifier(int budget) {
+        this.budget = budget;
+    }
+    
+    /**
+     * Returns the maximum number of rewrites per formula
+     * 
+     * @return the budget (int)
+     */
+    public int getBudget() {
+        return this.budget;
+    }
+    
+    /**
+     * Returns the number of rewrites of the last simplification
+     * 
+     * @return the number of rewrites (int)
+     */
+    public int getRewriteCount() {
+        return this.rewrites;
+    }
+    
+    /**
+     * Returns whether the last simplification has been stopped because the
+     * budget was used up (so the result might not be fully simplified)
+     * 
+     * @return true if the budget was used up (boolean)
+     */
+    public boolean isExhausted() {
+        return this.rewrites >= this.budget;
+    }
+    
+    /**
+     * Simplifies a formula tree
+     * 
+     * @param formula (Node) the formula tree, which is not changed
+     * @return the simplified formula tree (Node)
+     * @throws FormulaException 
+     */
+    public Node simplify(Node formula) throws FormulaException {
+        Node retVal = formula.copy();
+        this.rewrites = 0;
+        
+        int before;
+        do {
+            before = this.rewrites;
+            retVal = this.rewrite(retVal);
+        } while((this.rewrites > before) && (this.rewrites < this.budget));
+        
+        return retVal;
+    }
+    
+    /**
+     * Simplifies the sub nodes of a node and then the node itself
+     * 
+     * @param node (Node) the node, which may be changed
+     * @return the simplified node (Node)
+     * @throws FormulaException 
+     */
+    Node rewrite(Node node) throws FormulaException {
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            Node subNode = node.getNode(i);
+            Node newNode = this.rewrite(subNode);
+            if(newNode != subNode) node.setNode(i, newNode);
+        }
+        
+        while(this.rewrites < this.budget) {
+            Node newNode = this.apply(node);
+            if(newNode == null) break;
+            
+            this.rewrites++;
+            node = newNode;
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Applies the first matching rule to a node (whose sub nodes have been
+     * simplified already)
+     * 
+     * @param node (Node) the node
+     * @return the replacement (Node), null if no rule applies
+     * @throws FormulaException 
+     */
+    Node apply(Node node) throws FormulaException {
+        int type = NodeType.of(node);
+        
+        switch (type) {
+            case NodeType.CONSTANT:
+            case NodeType.VARIABLE:
+            case NodeType.RAND:
+            case NodeType.SUM:
+            case NodeType.PROD:
+            case NodeType.FUNCTION:
+            case NodeType.UNKNOWN:
+                return null;
+                
+            default:
+                break;
+        }
+        
+        Node retVal = fold(node);
+        if(retVal != null) return retVal;
+        
+        switch (type) {
+            case NodeType.ADD:  return add(node.getNode(0), node.getNode(1));
+            case NodeType.SUB:  return sub(node.getNode(0), node.getNode(1));
+            case NodeType.MUL:  return mul(node.getNode(0), node.getNode(1));
+            case NodeType.DIV:  return div(node.getNode(0), node.getNode(1));
+            case NodeType.POW:  return pow(node.getNode(0), node.getNode(1));
+            case NodeType.NEG:  return neg(node.getNode(0));
+            case NodeType.IF:   return branch(node);
+                
+            case NodeType.AND:
+            case NodeType.OR:
+                for(int i=0; i<2; i++) {
+                    Number value = booleanValue(node.getNode(i));
+                    if((value != null) && (((Boolean)value).getBooleanValue() == (type == NodeType.OR)))
+                        return node.getNode(i);
+                }
+                return order(node, type);
+                
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Swaps the operands of a short-circuit operator (&& or ||) if the right
+     * operand is cheaper (see CostModel), so that the expensive operand is
+     * skipped more often. Only logical operands (comparisons and logical
+     * operations) that cannot fail are swapped, as the left operand might be
+     * a guard of the right one.
+     * 
+     * @param node (Node) the operator
+     * @param type (int) the type of the operator (AND or OR)
+     * @return the operator with swapped operands (Node), null if the order is kept
+     * @throws FormulaException 
+     */
+    static Node order(Node node, int type) throws FormulaException {
+        Node left = node.getNode(0);
+        Node right = node.getNode(1);
+        
+        if(!isLogical(left) || !isLogical(right)) return null;
+        if(CostModel.mayFail(left) || CostModel.mayFail(right)) return null;
+        if(CostModel.cost(right) >= CostModel.cost(left)) return null;
+        
+        return (type == NodeType.AND) ? new And(right, left) : new Or(right, left);
+    }
+    
+    /**
+     * Returns whether a node is a comparison or a logical operation (i.e.
+     * returns a boolean value)
+     * 
+     * @param node (Node) the node
+     * @return true if the node is logical (boolean)
+     */
+    static boolean isLogical(Node node) {
+        int type = NodeType.of(node);
+        
+        return NodeType.isComparison(type) || (type == NodeType.AND) || (type == NodeType.OR) || 
+                (type == NodeType.XOR) || (type == NodeType.NOT);
+    }
+    
+    /**
+     * Replaces an operation or function with constant sub nodes by its
+     * result
+     * 
+     * @param node (Node) the node
+     * @return the constant (Node), null if the node cannot be folded
+     * @throws FormulaException 
+     */
+    static Node fold(Node node) throws FormulaException {
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            if(NodeType.of(node.getNode(i)) != NodeType.CONSTANT) return null;
+        }
+        
+        try {
+            return new Constant(node.calculate(null));
+        }
+        catch (FiMaLibCalcException ex) {
+            // e.g. division by zero, leave it to the evaluation
+            return null;
+        }
+    }
+    
+    /**
+     * Simplifies an addition left+right
+     * 
+     * @param left (Node) the left summand
+     * @param right (Node) the right summand
+     * @return the replacement (Node), null if no rule applies
+     * @throws FormulaException 
+     */
+    static Node add(Node left, Node right) throws FormulaException {
+        if(isValue(left, 0.0)) return right;
+        if(isValue(right, 0.0)) return left;
+        if(isConstant(left) && !isConstant(right)) return new Add(right, left);
+        if(NodeType.of(right) == NodeType.NEG) return new Sub(left, right.getNode(0));
+        if(NodeType.of(left) == NodeType.NEG) return new Sub(right, left.getNode(0));
+        if(isConstant(right)) return offset(left, right, true);
+        
+        return null;
+    }
+    
+    /**
+     * Simplifies a subtraction left-right
+     * 
+     * @param left (Node) the minuend
+     * @param right (Node) the subtrahend
+     * @return the replacement (Node), null if no rule applies
+     * @throws FormulaException 
+     */
+    static Node sub(Node left, Node right) throws FormulaException {
+        if(isValue(right, 0.0)) return left;
+        if(isValue(left, 0.0)) return new Neg(right);
+        if(NodeType.of(right) == NodeType.NEG) return new Add(left, right.getNode(0));
+        if(isConstant(right)) return offset(left, right, false);
+        
+        return null;
+    }
+    
+    /**
+     * Adds (subtracts) a constant to (from) a node of the form x+c or x-c,
+     * e.g. (x+2)-3 is replaced by x-1
+     * 
+     * @param node (Node) the node
+     * @param constant (Node) the constant
+     * @param add (boolean) true to add, false to subtract the constant
+     * @return the replacement (Node), null if the node is not of the form x+c or x-c
+     * @throws FormulaException 
+     */
+    static Node offset(Node node, Node constant, boolean add) throws FormulaException {
+        int type = NodeType.of(node);
+        if(((type != NodeType.ADD) && (type != NodeType.SUB)) || !isConstant(node.getNode(1))) return null;
+        
+        Node value = (type == NodeType.ADD) ? node.getNode(1) : new Neg(node.getNode(1));
+        value = add ? new Add(value, constant) : new Sub(value, constant);
+        
+        Number offset = calculate(value);
+        if(offset == null) return null;
+        
+        Node x = node.getNode(0);
+        if(isValue(offset, 0.0)) return x;
+        if((offset instanceof Double) && (offset.getValue() < 0.0)) {
+            Number negated = calculate(new Neg(new Constant(offset)));
+            if(negated != null) return new Sub(x, new Constant(negated));
+        }
+        
+        return new Add(x, new Constant(offset));
+    }
+    
+    /**
+     * Simplifies a multiplication left*right
+     * 
+     * @param left (Node) the left factor
+     * @param right (Node) the right factor
+     * @return the replacement (Node), null if no rule applies
+     * @throws FormulaException 
+     */
+    static Node mul(Node left, Node right) throws FormulaException {
+        if(isValue(left, 1.0)) return right;
+        if(isValue(right, 1.0)) return left;
+        if(isValue(left, 0.0)) return left;
+        if(isValue(right, 0.0)) return right;
+        if(isValue(left, -1.0)) return new Neg(right);
+        if(isValue(right, -1.0)) return new Neg(left);
+        if(isConstant(right) && !isConstant(left)) return new Mul(right, left);
+        
+        int lType = NodeType.of(left);
+        int rType = NodeType.of(right);
+        
+        if(isConstant(left)) {
+            // c1*(c2*x) = (c1*c2)*x, c*(-x) = (-c)*x
+            if((rType == NodeType.MUL) && isConstant(right.getNode(0))) {
+                Number factor = calculate(new Mul(left, right.getNode(0)));
+                if(factor != null) return new Mul(new Constant(factor), right.getNode(1));
+            }
+            if(rType == NodeType.NEG) {
+                Number factor = calculate(new Neg(left));
+                if(factor != null) return new Mul(new Constant(factor), right.getNode(0));
+            }
+            return null;
+        }
+        
+        if(lType == NodeType.NEG) return new Neg(new Mul(left.getNode(0), right));
+        if(rType == NodeType.NEG) return new Neg(new Mul(left, right.getNode(0)));
+        
+        // (c*x)*y = c*(x*y), x*(c*y) = c*(x*y)
+        if((lType == NodeType.MUL) && isConstant(left.getNode(0)))
+            return new Mul(left.getNode(0), new Mul(left.getNode(1), right));
+        if((rType == NodeType.MUL) && isConstant(right.getNode(0)))
+            return new Mul(right.getNode(0), new Mul(left, right.getNode(1)));
+        
+        // exp(a)*exp(b) = exp(a+b), (x*exp(a))*exp(b) = x*exp(a+b)
+        if(rType == NodeType.EXP) {
+            if(lType == NodeType.EXP)
+                return new Exp(new Add(left.getNode(0), right.getNode(0)));
+            if((lType == NodeType.MUL) && (NodeType.of(left.getNode(1)) == NodeType.EXP))
+                return new Mul(left.getNode(0), new Exp(new Add(left.getNode(1).getNode(0), right.getNode(0))));
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Simplifies a division left/right
+     * 
+     * @param left (Node) the dividend
+     * @param right (Node) the divisor
+     * @return the replacement (Node), null if no rule applies
+     * @throws FormulaException 
+     */
+    static Node div(Node left, Node right) throws FormulaException {
+        if(isValue(right, 1.0)) return left;
+        if(isValue(left, 0.0)) return left;
+        
+        int lType = NodeType.of(left);
+        int rType = NodeType.of(right);
+        
+        if(isConstant(right) && !isValue(right, 0.0)) {
+            // (c1*x)/c2 = (c1/c2)*x
+            if((lType == NodeType.MUL) && isConstant(left.getNode(0))) {
+                Number factor = calculate(new Div(left.getNode(0), right));
+                if(factor != null) return new Mul(new Constant(factor), left.getNode(1));
+            }
+            
+            // division by a power of two is the same as multiplication by its reciprocal
+            Number divisor = calculate(right);
+            if((divisor instanceof Double) && isPowerOfTwo(divisor.getValue())) {
+                Number factor = calculate(new Div(new Constant(new Double(1.0, divisor.getNumberFormat())), right));
+                if(factor != null) return new Mul(new Constant(factor), left);
+            }
+        }
+        
+        if((lType == NodeType.NEG) && (rType == NodeType.NEG))
+            return new Div(left.getNode(0), right.getNode(0));
+        if((lType == NodeType.EXP) && (rType == NodeType.EXP))
+            return new Exp(new Sub(left.getNode(0), right.getNode(0)));
+        
+        return null;
+    }
+    
+    /**
+     * Simplifies a power left^right
+     * 
+     * @param left (Node) the base
+     * @param right (Node) the exponent
+     * @return the replacement (Node), null if no rule applies
+     * @throws FormulaException 
+     */
+    static Node pow(Node left, Node right) throws FormulaException {
+        if(isValue(right, 1.0)) return left;
+        if(isValue(right, 0.0) || isValue(left, 1.0)) {
+            Number value = calculate(isConstant(right) ? right : left);
+            return new Constant(new Double(1.0, value.getNumberFormat()));
+        }
+        
+        // x^2 = x*x, but only for variables, as the base is calculated twice
+        if(isValue(right, 2.0) && (NodeType.of(left) == NodeType.VARIABLE))
+            return new Mul(left, left.copy());
+        
+        return null;
+    }
+    
+    /**
+     * Simplifies a negation -node
+     * 
+     * @param node (Node) the negated node
+     * @return the replacement (Node), null if no rule applies
+     * @throws FormulaException 
+     */
+    static Node neg(Node node) throws FormulaException {
+        int type = NodeType.of(node);
+        
+        if(type == NodeType.NEG) return node.getNode(0);
+        if((type == NodeType.MUL) && isConstant(node.getNode(0))) {
+            Number factor = calculate(new Neg(node.getNode(0)));
+            if(factor != null) return new Mul(new Constant(factor), node.getNode(1));
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Removes the part of an if function that is never calculated because of
+     * a constant condition
+     * 
+     * @param node (Node) the if function
+     * @return the replacement (Node), null if the condition is not constant
+     * @throws FormulaException 
+     */
+    static Node branch(Node node) throws FormulaException {
+        Number condition = booleanValue(node.getNode(0));
+        if(condition == null) return null;
+        
+        if(((Boolean)condition).getBooleanValue()) return node.getNode(1);
+        if(node.getNodeCount() > 2) return node.getNode(2);
+        
+        return new Constant(new Double(0.0, condition.getNumberFormat()));
+    }
+    
+    /**
+     * Returns whether a node is a constant
+     * 
+     * @param node (Node) the node
+     * @return true if the node is a constant (boolean)
+     */
+    static boolean isConstant(Node node) {
+        return NodeType.of(node) == NodeType.CONSTANT;
+    }
+    
+    /**
+     * Returns whether a node is a constant with the given real value
+     * 
+     * @param node (Node) the node
+     * @param value (double) the value
+     * @return true if the node is the constant value (boolean)
+     */
+    static boolean isValue(Node node, double value) {
+        return isConstant(node) && isValue(calculate(node), value);
+    }
+    
+    /**
+     * Returns whether a number is the given real value (booleans are never)
+     * 
+     * @param number (Number) the number
+     * @param value (double) the value
+     * @return true if the number is the value (boolean)
+     */
+    static boolean isValue(Number number, double value) {
+        if((number == null) || (number instanceof Boolean)) return false;
+        if((number instanceof Complex) && (((Complex)number).getImg() != 0.0)) return false;
+        
+        return number.getValue() == value;
+    }
+    
+    /**
+     * Returns the value of a boolean constant
+     * 
+     * @param node (Node) the node
+     * @return the value (Number), null if the node is no boolean constant
+     */
+    static Number booleanValue(Node node) {
+        if(!isConstant(node)) return null;
+        
+        Number value = calculate(node);
+        return (value instanceof Boolean) ? value : null;
+    }
+    
+    /**
+     * Calculates a node without variables
+     * 
+     * @param node (Node) the node
+     * @return the value (Number), null if the node cannot be calculated
+     */
+    static Number calculate(Node node) {
+        try {
+            return node.calculate(null);
+        }
+        catch (FiMaLibCalcException ex) {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns whether a value is a (positive or negative) power of two, so
+     * that its reciprocal is exact
+     * 
+     * @param value (double) the value
+     * @return true if the value is a power of two (boolean)
+     */
+    static boolean isPowerOfTwo(double value) {
+        if((value == 0.0) || java.lang.Double.isNaN(value) || java.lang.Double.isInfinite(value)) return false;
+        
+        long bits = java.lang.Double.doubleToRawLongBits(value);
+        int exponent = Math.getExponent(value);
+        return ((bits & 0x000fffffffffffffL) == 0L) && (exponent > java.lang.Double.MIN_EXPONENT) && (exponent < java.lang.Double.MAX_EXPONENT);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.fimalib.calc.Number;
+
+/**
+ * This class assigns each variable of a formula tree to a slot, i.e. to a
+ * fixed position within an array of primitive values.
+ * 
+ * After a formula tree has been bound to a slot map (see Node.bind), it can be
+ * evaluated with the variable values passed as double array (see
+ * Node.evaluate), which avoids looking up the variables by name and creating
+ * a number object for every intermediate result.
+ * 
+ * Example:
+ * 
+ *  Node node = Formula.parse("3*x^2+y");
+ *  SlotMap slots = new SlotMap("x", "y");
+ *  node.bind(slots);
+ *  double result = node.evaluate(new double[] { 2.0, 1.0 });
+ * 
+ * @author Peter Werno
+ */
+public class SlotMap {
+    HashMap<String, Integer> slots;
+    ArrayList<String> names;
+    
+    /**
+     * Creates a new instance of SlotMap with the given variable names being
+     * assigned to the slots 0, 1, 2, ...
+     * 
+     * @param names (String...) the variable names
+     */
+    public SlotMap(String... names) {
+        this.slots = new HashMap<>();
+        this.names = new ArrayList<>();
+        
+        for(String name : names) {
+            this.getSlot(name);
+        }
+    }
+    
+    /**
+     * Returns the slot of a variable. If the variable does not have a slot
+     * yet, the next free slot will be assigned.
+     * 
+     * @param name (String) the variable name
+     * @return the slot (int)
+     */
+    public int getSlot(String name) {
+        Integer slot = this.slots.get(name);
+        
+        if(slot == null) {
+            slot = this.names.size();
+            this.slots.put(name, slot);
+            this.names.add(name);
+        }
+        
+        return slot;
+    }
+    
+    /**
+     * Returns the slot of a variable or -1 if the variable has not been
+     * assigned to a slot.
+     * 
+     * @param name (String) the variable name
+     * @return the slot (int)
+     */
+    public int indexOf(String name) {
+        Integer slot = this.slots.get(name);
+        
+        return (slot == null) ? -1 : slot;
+    }
+    
+    /**
+     * Returns the name of the variable assigned to a slot
+     * 
+     * @param slot (int) the slot
+     * @return the variable name (String)
+     */
+    public String getName(int slot) {
+        return this.names.get(slot);
+    }
+    
+    /**
+     * Returns the number of slots
+     * 
+     * @return the number of slots (int)
+     */
+    public int size() {
+        return this.names.size();
+    }
+    
+    /**
+     * Creates a new array of slot values (all values zero)
+     * 
+     * @return the slot values (double[])
+     */
+    public double[] createSlots() {
+        return new double[this.names.size()];
+    }
+    
+    /**
+     * Creates a new array of slot values filled with the parameters given by
+     * name. Slots of variables without parameter remain zero.
+     * 
+     * @param parameters (HashMap) the parameter(s)
+     * @return the slot values (double[])
+     */
+    public double[] createSlots(HashMap<String, Number> parameters) {
+        double[] values = new double[this.names.size()];
+        
+        for(int i=0; i<values.length; i++) {
+            Number value = parameters.get(this.names.get(i));
+            
+            if(value != null) values[i] = value.getValue();
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Returns the slot map as a string, e.g. "{x=0, y=1}"
+     * 
+     * @return the slot map (String)
+     */
+    @Override
+    public String toString() {
+        StringBuilder retVal = new StringBuilder("{");
+        for(int i=0; i<this.names.size(); i++) {
+            if(i>0) retVal.append(", ");
+            retVal.append(this.names.get(i)).append("=").append(i);
+        }
+        retVal.append("}");
+        
+        return retVal.toString();
+    }
+}
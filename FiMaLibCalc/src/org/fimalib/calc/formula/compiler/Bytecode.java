@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This class collects the instructions of a single method.
+ * 
+ * Besides the instructions, it keeps track of the operand stack depth and the
+ * local variables in use, so that the maximum values can be written to the
+ * class file. Forward and backward jumps are written via labels.
+ * 
+ * @author Peter Werno
+ */
+public class Bytecode {
+    public static final int MAX_CODE_LENGTH = 32767;  // keeps all jump offsets within 16 bits
+    
+    ClassFile classFile;
+    byte[] code;
+    int length;
+    int stack;
+    int maxStack;
+    int maxLocals;
+    
+    /**
+     * This class represents a position within the code, which may be defined
+     * after it has been used as a jump target.
+     */
+    public static class Label {
+        int position = -1;
+        int stack = -1;
+        ArrayList<int[]> jumps = new ArrayList<>();
+    }
+    
+    /**
+     * Creates a new instance of Bytecode
+     * 
+     * @param classFile (ClassFile) the class file (for constant pool entries)
+     * @param parameterWords (int) the number of local variable words taken up
+     * by "this" and the method parameters
+     */
+    public Bytecode(ClassFile classFile, int parameterWords) {
+        this.classFile = classFile;
+        this.code = new byte[256];
+        this.length = 0;
+        this.stack = 0;
+        this.maxStack = 0;
+        this.maxLocals = parameterWords;
+    }
+    
+    /**
+     * Returns the length of the code written so far
+     * 
+     * @return the length in bytes (int)
+     */
+    public int getLength() {
+        return this.length;
+    }
+    
+    /**
+     * Returns the maximum operand stack depth
+     * 
+     * @return the maximum stack depth in words (int)
+     */
+    public int getMaxStack() {
+        return this.maxStack;
+    }
+    
+    /**
+     * Returns the number of local variable words used
+     * 
+     * @return the number of local variable words (int)
+     */
+    public int getMaxLocals() {
+        return this.maxLocals;
+    }
+    
+    /**
+     * Reserves new local variable words, e.g. 2 for a double value
+     * 
+     * @param words (int) the number of words
+     * @return the index of the first word (int)
+     */
+    public int newLocal(int words) {
+        int index = this.maxLocals;
+        this.maxLocals += words;
+        
+        return index;
+    }
+    
+    /**
+     * Writes an instruction without operands
+     * 
+     * @param opcode (int) the instruction
+     * @param stackChange (int) the change of the operand stack depth in words
+     */
+    public void op(int opcode, int stackChange) {
+        this.writeByte(opcode);
+        this.adjustStack(stackChange);
+    }
+    
+    /**
+     * Writes an instruction that loads or stores a local variable
+     * 
+     * @param opcode (int) the instruction (e.g. DLOAD, ASTORE)
+     * @param index (int) the index of the local variable
+     * @param stackChange (int) the change of the operand stack depth in words
+     */
+    public void local(int opcode, int index, int stackChange) {
+        if(index > 0xff) {
+            this.writeByte(0xc4);   // wide
+            this.writeByte(opcode);
+            this.writeShort(index);
+        }
+        else {
+            this.writeByte(opcode);
+            this.writeByte(index);
+        }
+        this.adjustStack(stackChange);
+    }
+    
+    /**
+     * Pushes an integer constant
+     * 
+     * @param value (int) the constant
+     */
+    public void pushInt(int value) {
+        if((value >= -1) && (value <= 5)) {
+            this.writeByte(Opcodes.ICONST_0 + value);
+        }
+        else if((value >= Byte.MIN_VALUE) && (value <= Byte.MAX_VALUE)) {
+            this.writeByte(Opcodes.BIPUSH);
+            this.writeByte(value);
+        }
+        else if((value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE)) {
+            this.writeByte(Opcodes.SIPUSH);
+            this.writeShort(value);
+        }
+        else {
+            this.writeByte(Opcodes.LDC_W);
+            this.writeShort(this.classFile.intConstant(value));
+        }
+        this.adjustStack(1);
+    }
+    
+    /**
+     * Pushes a double constant
+     * 
+     * @param value (double) the constant
+     */
+    public void pushDouble(double value) {
+        long bits = java.lang.Double.doubleToRawLongBits(value);
+        
+        if(bits == java.lang.Double.doubleToRawLongBits(0.0)) {
+            this.writeByte(Opcodes.DCONST_0);
+        }
+        else if(bits == java.lang.Double.doubleToRawLongBits(1.0)) {
+            this.writeByte(Opcodes.DCONST_1);
+        }
+        else {
+            this.writeByte(Opcodes.LDC2_W);
+            this.writeShort(this.classFile.doubleConstant(value));
+        }
+        this.adjustStack(2);
+    }
+    
+    /**
+     * Writes a field access
+     * 
+     * @param opcode (int) the instruction (e.g. GETFIELD)
+     * @param owner (String) the internal name of the class declaring the field
+     * @param name (String) the field name
+     * @param descriptor (String) the field descriptor
+     * @param stackChange (int) the change of the operand stack depth in words
+     */
+    public void field(int opcode, String owner, String name, String descriptor, int stackChange) {
+        this.writeByte(opcode);
+        this.writeShort(this.classFile.fieldRef(owner, name, descriptor));
+        this.adjustStack(stackChange);
+    }
+    
+    /**
+     * Writes a method invocation
+     * 
+     * @param opcode (int) the instruction (e.g. INVOKESTATIC)
+     * @param owner (String) the internal name of the class declaring the method
+     * @param name (String) the method name
+     * @param descriptor (String) the method descriptor
+     * @param stackChange (int) the change of the operand stack depth in words
+     */
+    public void invoke(int opcode, String owner, String name, String descriptor, int stackChange) {
+        this.writeByte(opcode);
+        this.writeShort(this.classFile.methodRef(owner, name, descriptor));
+        this.adjustStack(stackChange);
+    }
+    
+    /**
+     * Writes an instruction with a single byte operand (e.g. NEWARRAY)
+     * 
+     * @param opcode (int) the instruction
+     * @param operand (int) the operand
+     * @param stackChange (int) the change of the operand stack depth in words
+     */
+    public void opByte(int opcode, int operand, int stackChange) {
+        this.writeByte(opcode);
+        this.writeByte(operand);
+        this.adjustStack(stackChange);
+    }
+    
+    /**
+     * Writes a (conditional) jump to a label
+     * 
+     * @param opcode (int) the jump instruction (e.g. IFEQ, GOTO)
+     * @param label (Label) the jump target
+     * @param stackChange (int) the change of the operand stack depth in words
+     */
+    public void jump(int opcode, Label label, int stackChange) {
+        int position = this.length;
+        this.writeByte(opcode);
+        this.adjustStack(stackChange);
+        
+        if(label.position >= 0) {
+            this.writeShort(label.position - position);
+        }
+        else {
+            label.jumps.add(new int[] { position, this.length });
+            this.writeShort(0);
+        }
+        
+        if(label.stack < 0) label.stack = this.stack;
+    }
+    
+    /**
+     * Defines the position of a label at the current position of the code.
+     * If the code before the label ends with an unconditional jump, the stack
+     * depth is taken from the jumps to the label.
+     * 
+     * @param label (Label) the label
+     */
+    public void mark(Label label) {
+        label.position = this.length;
+        
+        for(int[] jump : label.jumps) {
+            int offset = label.position - jump[0];
+            this.code[jump[1]] = (byte)(offset >> 8);
+            this.code[jump[1]+1] = (byte)offset;
+        }
+        label.jumps.clear();
+        
+        if(label.stack >= 0) this.stack = label.stack;
+        else label.stack = this.stack;
+    }
+    
+    /**
+     * Returns the code as byte array
+     * 
+     * @return the code (byte[])
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.code, this.length);
+    }
+    
+    /**
+     * Changes the operand stack depth and records its maximum
+     * 
+     * @param change (int) the change in words
+     */
+    void adjustStack(int change) {
+        this.stack += change;
+        if(this.stack > this.maxStack) this.maxStack = this.stack;
+    }
+    
+    /**
+     * Appends a single byte to the code
+     * 
+     * @param value (int) the byte
+     */
+    void writeByte(int value) {
+        if(this.length == this.code.length) {
+            this.code = Arrays.copyOf(this.code, this.code.length * 2);
+        }
+        this.code[this.length++] = (byte)value;
+    }
+    
+    /**
+     * Appends two bytes (big endian) to the code
+     * 
+     * @param value (int) the value
+     */
+    void writeShort(int value) {
+        this.writeByte(value >> 8);
+        this.writeByte(value);
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * This class is a minimal writer for JVM class files as needed by the formula
+ * compiler: a constant pool (UTF8 strings, classes, field and method
+ * references, integer and double constants), fields and methods with code.
+ * 
+ * The class files are written in version 49 (Java 5), so that no stack map
+ * frames are required and the code can be verified by type inference.
+ * 
+ * @author Peter Werno
+ */
+public class ClassFile {
+    public static final int VERSION = 49;
+    
+    static final int CONSTANT_UTF8          = 1;
+    static final int CONSTANT_INTEGER       = 3;
+    static final int CONSTANT_DOUBLE        = 6;
+    static final int CONSTANT_CLASS         = 7;
+    static final int CONSTANT_FIELDREF      = 9;
+    static final int CONSTANT_METHODREF     = 10;
+    static final int CONSTANT_NAMEANDTYPE   = 12;
+    
+    String className;
+    String superName;
+    
+    ByteArrayOutputStream pool;
+    DataOutputStream poolOut;
+    HashMap<String, Integer> poolEntries;
+    int poolCount;
+    
+    ArrayList<byte[]> fields;
+    ArrayList<byte[]> methods;
+    
+    /**
+     * Creates a new instance of ClassFile for a public final class
+     * 
+     * @param className (String) the internal name of the class, e.g. "a/b/C"
+     * @param superName (String) the internal name of the super class
+     */
+    public ClassFile(String className, String superName) {
+        this.className = className;
+        this.superName = superName;
+        
+        this.pool = new ByteArrayOutputStream();
+        this.poolOut = new DataOutputStream(this.pool);
+        this.poolEntries = new HashMap<>();
+        this.poolCount = 1;
+        
+        this.fields = new ArrayList<>();
+        this.methods = new ArrayList<>();
+    }
+    
+    /**
+     * Returns the internal name of the class
+     * 
+     * @return the class name (String)
+     */
+    public String getClassName() {
+        return this.className;
+    }
+    
+    /**
+     * Returns the index of a UTF8 entry in the constant pool (which is added
+     * if it does not exist yet)
+     * 
+     * @param value (String) the string
+     * @return the constant pool index (int)
+     */
+    public int utf8(String value) {
+        String key = "U" + value;
+        Integer index = this.poolEntries.get(key);
+        if(index != null) return index;
+        
+        try {
+            this.poolOut.writeByte(CONSTANT_UTF8);
+            this.poolOut.writeUTF(value);
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        
+        return this.addEntry(key, 1);
+    }
+    
+    /**
+     * Returns the index of a class entry in the constant pool
+     * 
+     * @param name (String) the internal class name
+     * @return the constant pool index (int)
+     */
+    public int classRef(String name) {
+        String key = "C" + name;
+        Integer index = this.poolEntries.get(key);
+        if(index != null) return index;
+        
+        int nameIndex = this.utf8(name);
+        this.writeEntry(CONSTANT_CLASS, nameIndex);
+        
+        return this.addEntry(key, 1);
+    }
+    
+    /**
+     * Returns the index of a field reference in the constant pool
+     * 
+     * @param owner (String) the internal name of the class declaring the field
+     * @param name (String) the field name
+     * @param descriptor (String) the field descriptor
+     * @return the constant pool index (int)
+     */
+    public int fieldRef(String owner, String name, String descriptor) {
+        return this.memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+    
+    /**
+     * Returns the index of a method reference in the constant pool
+     * 
+     * @param owner (String) the internal name of the class declaring the method
+     * @param name (String) the method name
+     * @param descriptor (String) the method descriptor
+     * @return the constant pool index (int)
+     */
+    public int methodRef(String owner, String name, String descriptor) {
+        return this.memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+    
+    /**
+     * Returns the index of an integer constant in the constant pool
+     * 
+     * @param value (int) the constant
+     * @return the constant pool index (int)
+     */
+    public int intConstant(int value) {
+        String key = "I" + value;
+        Integer index = this.poolEntries.get(key);
+        if(index != null) return index;
+        
+        try {
+            this.poolOut.writeByte(CONSTANT_INTEGER);
+            this.poolOut.writeInt(value);
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        
+        return this.addEntry(key, 1);
+    }
+    
+    /**
+     * Returns the index of a double constant in the constant pool
+     * 
+     * @param value (double) the constant
+     * @return the constant pool index (int)
+     */
+    public int doubleConstant(double value) {
+        long bits = java.lang.Double.doubleToRawLongBits(value);
+        String key = "D" + bits;
+        Integer index = this.poolEntries.get(key);
+        if(index != null) return index;
+        
+        try {
+            this.poolOut.writeByte(CONSTANT_DOUBLE);
+            this.poolOut.writeLong(bits);
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        
+        // double constants take up two entries of the constant pool
+        return this.addEntry(key, 2);
+    }
+    
+    /**
+     * Adds a field to the class
+     * 
+     * @param access (int) the access flags
+     * @param name (String) the field name
+     * @param descriptor (String) the field descriptor
+     */
+    public void addField(int access, String name, String descriptor) {
+        ByteArrayOutputStream field = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(field);
+        
+        try {
+            out.writeShort(access);
+            out.writeShort(this.utf8(name));
+            out.writeShort(this.utf8(descriptor));
+            out.writeShort(0);      // no attributes
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        
+        this.fields.add(field.toByteArray());
+    }
+    
+    /**
+     * Adds a method with its code to the class
+     * 
+     * @param access (int) the access flags
+     * @param name (String) the method name
+     * @param descriptor (String) the method descriptor
+     * @param code (Bytecode) the code of the method
+     * @throws CompilerException 
+     */
+    public void addMethod(int access, String name, String descriptor, Bytecode code) throws CompilerException {
+        byte[] instructions = code.toByteArray();
+        if(instructions.length > Bytecode.MAX_CODE_LENGTH)
+            throw new CompilerException("Method " + name + " exceeds the maximum code length");
+        
+        ByteArrayOutputStream method = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(method);
+        
+        try {
+            out.writeShort(access);
+            out.writeShort(this.utf8(name));
+            out.writeShort(this.utf8(descriptor));
+            out.writeShort(1);      // one attribute: the code
+            out.writeShort(this.utf8("Code"));
+            out.writeInt(12 + instructions.length);
+            out.writeShort(code.getMaxStack());
+            out.writeShort(code.getMaxLocals());
+            out.writeInt(instructions.length);
+            out.write(instructions);
+            out.writeShort(0);      // no exception table
+            out.writeShort(0);      // no attributes
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        
+        this.methods.add(method.toByteArray());
+    }
+    
+    /**
+     * Returns the class file as byte array
+     * 
+     * @return the class file (byte[])
+     * @throws CompilerException 
+     */
+    public byte[] toByteArray() throws CompilerException {
+        // all indices have to be resolved before the pool is written
+        int thisIndex = this.classRef(this.className);
+        int superIndex = this.classRef(this.superName);
+        
+        if(this.poolCount > 0xffff)
+            throw new CompilerException("Constant pool of class " + this.className + " is too large");
+        
+        ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(classFile);
+        
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(this.poolCount);
+            this.poolOut.flush();
+            this.pool.writeTo(out);
+            out.writeShort(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0);      // no interfaces
+            out.writeShort(this.fields.size());
+            for(byte[] field : this.fields) out.write(field);
+            out.writeShort(this.methods.size());
+            for(byte[] method : this.methods) out.write(method);
+            out.writeShort(0);      // no attributes
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        
+        return classFile.toByteArray();
+    }
+    
+    /**
+     * Adds a field or method reference to the constant pool
+     * 
+     * @param tag (int) the entry type
+     * @param owner (String) the internal name of the owning class
+     * @param name (String) the name of the member
+     * @param descriptor (String) the descriptor of the member
+     * @return the constant pool index (int)
+     */
+    int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = "M" + tag + owner + "." + name + descriptor;
+        Integer index = this.poolEntries.get(key);
+        if(index != null) return index;
+        
+        int classIndex = this.classRef(owner);
+        
+        String ntKey = "N" + name + descriptor;
+        Integer ntIndex = this.poolEntries.get(ntKey);
+        if(ntIndex == null) {
+            int nameIndex = this.utf8(name);
+            int descIndex = this.utf8(descriptor);
+            try {
+                this.poolOut.writeByte(CONSTANT_NAMEANDTYPE);
+                this.poolOut.writeShort(nameIndex);
+                this.poolOut.writeShort(descIndex);
+            }
+            catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            ntIndex = this.addEntry(ntKey, 1);
+        }
+        
+        try {
+            this.poolOut.writeByte(tag);
+            this.poolOut.writeShort(classIndex);
+            this.poolOut.writeShort(ntIndex);
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        
+        return this.addEntry(key, 1);
+    }
+    
+    /**
+     * Writes a constant pool entry with a single index
+     * 
+     * @param tag (int) the entry type
+     * @param index (int) the index
+     */
+    void writeEntry(int tag, int index) {
+        try {
+            this.poolOut.writeByte(tag);
+            this.poolOut.writeShort(index);
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Registers a new constant pool entry
+     * 
+     * @param key (String) the key of the entry
+     * @param size (int) the number of pool indices taken by the entry
+     * @return the index of the entry (int)
+     */
+    int addEntry(String key, int size) {
+        int index = this.poolCount;
+        this.poolCount += size;
+        this.poolEntries.put(key, index);
+        
+        return index;
+    }
+}
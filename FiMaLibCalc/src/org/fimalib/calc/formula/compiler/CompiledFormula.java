@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.compiler;
+
+import java.util.HashMap;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class is the base class of all formulas compiled by the formula
+ * compiler (see FormulaCompiler).
+ * 
+ * A compiled formula calculates the value of the formula tree with the
+ * variable values given as primitive array, where each variable's value is
+ * stored at the position of its slot (see SlotMap).
+ * 
+ * @author Peter Werno
+ */
+public abstract class CompiledFormula {
+    protected final Node[] nodes;     // sub trees that are evaluated by the interpreter
+    final Node formula;
+    final SlotMap slots;
+    
+    /**
+     * Creates a new instance of CompiledFormula
+     * 
+     * @param formula (Node) the formula tree
+     * @param slots (SlotMap) the slots of the variables
+     * @param nodes (Node[]) the sub trees that are evaluated by the interpreter
+     */
+    protected CompiledFormula(Node formula, SlotMap slots, Node[] nodes) {
+        this.formula = formula;
+        this.slots = slots;
+        this.nodes = nodes;
+    }
+    
+    /**
+     * Calculates the value of the formula with the given variable values
+     * 
+     * @param vars (double[]) the variable values (one per slot)
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    public abstract double apply(double[] vars) throws FiMaLibCalcException;
+    
+    /**
+     * Calculates the value of the formula with a given parameter set
+     * 
+     * @param parameters (HashMap) the parameter(s)
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    public double apply(HashMap<String, Number> parameters) throws FiMaLibCalcException {
+        return this.apply(this.slots.createSlots(parameters));
+    }
+    
+    /**
+     * Returns the formula tree
+     * 
+     * @return the formula tree (Node)
+     */
+    public Node getFormula() {
+        return this.formula;
+    }
+    
+    /**
+     * Returns the slots of the variables
+     * 
+     * @return the slot map (SlotMap)
+     */
+    public SlotMap getSlots() {
+        return this.slots;
+    }
+    
+    /**
+     * Returns whether the formula has been compiled to bytecode or is
+     * evaluated by the interpreter
+     * 
+     * @return true if the formula has been compiled (boolean)
+     */
+    public boolean isCompiled() {
+        return true;
+    }
+    
+    /**
+     * Returns the number of sub trees that are evaluated by the interpreter
+     * 
+     * @return the number of interpreted sub trees (int)
+     */
+    public int getInterpretedNodeCount() {
+        return this.nodes.length;
+    }
+    
+    /**
+     * Returns the formula encoded as string
+     * 
+     * @return the formula (String)
+     */
+    @Override
+    public String toString() {
+        return this.formula.toString();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.compiler;
+
+import org.fimalib.calc.formula.FormulaException;
+
+/**
+ * This exception is thrown if a formula tree cannot be compiled.
+ * 
+ * @author Peter Werno
+ */
+public class CompilerException extends FormulaException {
+
+    /**
+     * Creates a new instance of <code>CompilerException</code> without detail
+     * message.
+     */
+    public CompilerException() {
+    }
+
+    /**
+     * Constructs an instance of <code>CompilerException</code> with the
+     * specified detail message.
+     *
+     * @param msg the detail message.
+     */
+    public CompilerException(String msg) {
+        super(msg);
+    }
+    
+    /**
+     * Constructs an instance of <code>CompilerException</code> with the
+     * specified detail message and root cause exception
+     * 
+     * @param msg (String) the detail message
+     * @param ex (Exception) the root cause exception
+     */
+    public CompilerException(String msg, Exception ex) {
+        super(msg, ex);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.compiler;
+
+/**
+ * This class loader defines the classes generated by the formula compiler.
+ * 
+ * Each compiled formula gets a class loader of its own, so that the generated
+ * class can be unloaded as soon as the formula is no longer used.
+ * 
+ * @author Peter Werno
+ */
+public class FormulaClassLoader extends ClassLoader {
+    
+    /**
+     * Creates a new instance of FormulaClassLoader
+     * 
+     * @param parent (ClassLoader) the parent class loader (which has to know
+     * the FiMaLib classes)
+     */
+    public FormulaClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+    
+    /**
+     * Defines a generated class
+     * 
+     * @param name (String) the binary name of the class
+     * @param classFile (byte[]) the class file
+     * @return the class (Class)
+     */
+    public Class<?> define(String name, byte[] classFile) {
+        return this.defineClass(name, classFile, 0, classFile.length);
+    }
+}
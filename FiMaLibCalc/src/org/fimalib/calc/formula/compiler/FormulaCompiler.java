@@ -0,0 +1,719 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.compiler;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.fimalib.calc.Complex;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.functions.Cnd;
+import org.fimalib.calc.formula.functions.If;
+import org.fimalib.calc.formula.functions.Max;
+import org.fimalib.calc.formula.functions.Min;
+import org.fimalib.calc.formula.functions.Prod;
+import org.fimalib.calc.formula.functions.Sum;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.*;
+
+/**
+ * This class compiles formula trees into JVM bytecode.
+ * 
+ * The formula tree is translated into a class with a straight-line method
+ * "double apply(double[] vars)" (see CompiledFormula), which can be inlined
+ * completely by the JIT compiler. Compared to the evaluation of the formula
+ * tree (see Node.evaluate), there are no virtual calls per node.
+ * 
+ * All nodes of the package org.fimalib.calc.formula.nodes as well as the
+ * functions if, sum, prod, max, min, cnd and user defined functions are
+ * compiled. Sub trees
+ * that cannot be compiled (e.g. nodes of other classes or complex constants)
+ * are evaluated by the interpreter from within the compiled code. If the
+ * formula cannot be compiled at all, an InterpretedFormula is returned.
+ * 
+ * Large formulas are split into several methods, so that no method exceeds the
+ * size up to which the JIT compiler compiles methods.
+ * 
+ * Example:
+ * 
+ *  Node node = Formula.parse("3*x^2+y");
+ *  CompiledFormula formula = FormulaCompiler.compile(node, "x", "y");
+ *  double result = formula.apply(new double[] { 2.0, 1.0 });
+ * 
+ * @author Peter Werno
+ */
+public class FormulaCompiler {
+    public static final int METHOD_SIZE = 2000;    // size from which on sub trees are moved to methods of their own
+    
+    static final String COMPILED_FORMULA    = "org/fimalib/calc/formula/compiler/CompiledFormula";
+    static final String FORMULA_RUNTIME     = "org/fimalib/calc/formula/compiler/FormulaRuntime";
+    static final String NODE                = "org/fimalib/calc/formula/nodes/Node";
+    static final String SLOT_MAP            = "org/fimalib/calc/formula/SlotMap";
+    static final String DOUBLE              = "org/fimalib/calc/Double";
+    static final String MATH                = "java/lang/Math";
+    static final String CND                 = "org/fimalib/calc/formula/functions/Cnd";
+    static final String CLASS_PREFIX        = "org/fimalib/calc/formula/compiler/GeneratedFormula";
+    static final String APPLY               = "([D)D";
+    
+    static final AtomicInteger classCounter = new AtomicInteger();
+    
+    // functions with one parameter: node class -> { owner, method name }
+    static final HashMap<Class<? extends Node>, String[]> FUNCTIONS = new HashMap<>();
+    // arithmetic operators: node class -> instruction
+    static final HashMap<Class<? extends Node>, Integer> OPERATORS = new HashMap<>();
+    // comparisons: node class -> { compare instruction, jump instruction if false }
+    static final HashMap<Class<? extends Node>, int[]> COMPARISONS = new HashMap<>();
+    // non short-circuit logical operators: node class -> instruction on the truth values
+    static final HashMap<Class<? extends Node>, Integer> LOGICAL = new HashMap<>();
+    
+    static {
+        FUNCTIONS.put(Abs.class, new String[] { MATH, "abs" });
+        FUNCTIONS.put(Arccos.class, new String[] { MATH, "acos" });
+        FUNCTIONS.put(Arcsin.class, new String[] { MATH, "asin" });
+        FUNCTIONS.put(Arctan.class, new String[] { MATH, "atan" });
+        FUNCTIONS.put(Cos.class, new String[] { MATH, "cos" });
+        FUNCTIONS.put(Cosh.class, new String[] { MATH, "cosh" });
+        FUNCTIONS.put(Exp.class, new String[] { MATH, "exp" });
+        FUNCTIONS.put(Sin.class, new String[] { MATH, "sin" });
+        FUNCTIONS.put(Sinh.class, new String[] { MATH, "sinh" });
+        FUNCTIONS.put(Tan.class, new String[] { MATH, "tan" });
+        FUNCTIONS.put(Tanh.class, new String[] { MATH, "tanh" });
+        FUNCTIONS.put(Arccosh.class, new String[] { DOUBLE, "arccosh" });
+        FUNCTIONS.put(Arccot.class, new String[] { DOUBLE, "arccot" });
+        FUNCTIONS.put(Arccoth.class, new String[] { DOUBLE, "arccoth" });
+        FUNCTIONS.put(Arccsc.class, new String[] { DOUBLE, "arccsc" });
+        FUNCTIONS.put(Arccsch.class, new String[] { DOUBLE, "arccsch" });
+        FUNCTIONS.put(Arcsec.class, new String[] { DOUBLE, "arcsec" });
+        FUNCTIONS.put(Arcsech.class, new String[] { DOUBLE, "arcsech" });
+        FUNCTIONS.put(Arcsinh.class, new String[] { DOUBLE, "arcsinh" });
+        FUNCTIONS.put(Arctanh.class, new String[] { DOUBLE, "arctanh" });
+        FUNCTIONS.put(Cot.class, new String[] { DOUBLE, "cot" });
+        FUNCTIONS.put(Coth.class, new String[] { DOUBLE, "coth" });
+        FUNCTIONS.put(Csc.class, new String[] { DOUBLE, "csc" });
+        FUNCTIONS.put(Csch.class, new String[] { DOUBLE, "csch" });
+        FUNCTIONS.put(Sec.class, new String[] { DOUBLE, "sec" });
+        FUNCTIONS.put(Sech.class, new String[] { DOUBLE, "sech" });
+        FUNCTIONS.put(Ln.class, new String[] { FORMULA_RUNTIME, "ln" });
+        FUNCTIONS.put(Log.class, new String[] { FORMULA_RUNTIME, "log" });
+        FUNCTIONS.put(Sgn.class, new String[] { FORMULA_RUNTIME, "sgn" });
+        FUNCTIONS.put(Sqrt.class, new String[] { FORMULA_RUNTIME, "sqrt" });
+        FUNCTIONS.put(Cnd.class, new String[] { CND, "cnd" });
+        
+        OPERATORS.put(Add.class, Opcodes.DADD);
+        OPERATORS.put(Sub.class, Opcodes.DSUB);
+        OPERATORS.put(Mul.class, Opcodes.DMUL);
+        
+        // NaN has to result in "false" for all comparisons except "!="
+        COMPARISONS.put(Equals.class, new int[] { Opcodes.DCMPL, Opcodes.IFNE });
+        COMPARISONS.put(NotEquals.class, new int[] { Opcodes.DCMPL, Opcodes.IFEQ });
+        COMPARISONS.put(LessThan.class, new int[] { Opcodes.DCMPG, Opcodes.IFGE });
+        COMPARISONS.put(LessEquals.class, new int[] { Opcodes.DCMPG, Opcodes.IFGT });
+        COMPARISONS.put(GreaterThan.class, new int[] { Opcodes.DCMPL, Opcodes.IFLE });
+        COMPARISONS.put(GreaterEquals.class, new int[] { Opcodes.DCMPL, Opcodes.IFLT });
+        
+        LOGICAL.put(Xor.class, Opcodes.IXOR);
+    }
+    
+    Node formula;
+    SlotMap slots;
+    ClassFile classFile;
+    ArrayList<Node> interpreted;
+    Set<Node> outlined;
+    IdentityHashMap<Node, String> methodNames;
+    ArrayList<Node> pendingMethods;
+    
+    /**
+     * Creates a new instance of FormulaCompiler
+     * 
+     * @param formula (Node) the (bound) formula tree
+     * @param slots (SlotMap) the slots of the variables
+     */
+    FormulaCompiler(Node formula, SlotMap slots) {
+        this.formula = formula;
+        this.slots = slots;
+        this.classFile = new ClassFile(CLASS_PREFIX + classCounter.incrementAndGet(), COMPILED_FORMULA);
+        this.interpreted = new ArrayList<>();
+        this.outlined = Collections.newSetFromMap(new IdentityHashMap<Node, java.lang.Boolean>());
+        this.methodNames = new IdentityHashMap<>();
+        this.pendingMethods = new ArrayList<>();
+    }
+    
+    /**
+     * Compiles a formula tree with the given variables. The variables are
+     * assigned to the slots in the given order, further variables of the
+     * formula (if any) get the following slots.
+     * 
+     * @param formula (Node) the formula tree
+     * @param variables (String...) the variable names
+     * @return the compiled formula (CompiledFormula)
+     * @throws FormulaException 
+     */
+    public static CompiledFormula compile(Node formula, String... variables) throws FormulaException {
+        return compile(formula, new SlotMap(variables));
+    }
+    
+    /**
+     * Compiles a formula tree. The formula tree is bound to the given slot map
+     * first (see Node.bind).
+     * 
+     * @param formula (Node) the formula tree
+     * @param slots (SlotMap) the slot map
+     * @return the compiled formula (CompiledFormula)
+     * @throws FormulaException 
+     */
+    public static CompiledFormula compile(Node formula, SlotMap slots) throws FormulaException {
+        formula.bind(slots);
+        
+        try {
+            return new FormulaCompiler(formula, slots).generate();
+        }
+        catch (CompilerException | StackOverflowError | LinkageError ex) {
+            // formula is too large or too deep to be compiled
+            return new InterpretedFormula(formula, slots);
+        }
+    }
+    
+    /**
+     * Generates and loads the class of the compiled formula
+     * 
+     * @return the compiled formula (CompiledFormula)
+     * @throws CompilerException 
+     */
+    CompiledFormula generate() throws CompilerException {
+        this.plan(this.formula);
+        this.outlined.remove(this.formula);
+        
+        // constructor
+        String constructor = "(L" + NODE + ";L" + SLOT_MAP + ";[L" + NODE + ";)V";
+        Bytecode code = new Bytecode(this.classFile, 4);
+        code.local(Opcodes.ALOAD, 0, 1);
+        code.local(Opcodes.ALOAD, 1, 1);
+        code.local(Opcodes.ALOAD, 2, 1);
+        code.local(Opcodes.ALOAD, 3, 1);
+        code.invoke(Opcodes.INVOKESPECIAL, COMPILED_FORMULA, "<init>", constructor, -4);
+        code.op(Opcodes.RETURN, 0);
+        this.classFile.addMethod(Opcodes.ACC_PUBLIC, "<init>", constructor, code);
+        
+        // the apply method and the methods of large sub trees
+        this.generateMethod("apply", this.formula);
+        for(int i=0; i<this.pendingMethods.size(); i++) {
+            Node node = this.pendingMethods.get(i);
+            this.generateMethod(this.methodNames.get(node), node);
+        }
+        
+        byte[] bytes = this.classFile.toByteArray();
+        String className = this.classFile.getClassName().replace('/', '.');
+        FormulaClassLoader loader = new FormulaClassLoader(FormulaCompiler.class.getClassLoader());
+        Node[] nodes = this.interpreted.toArray(new Node[this.interpreted.size()]);
+        
+        try {
+            Class<?> formulaClass = loader.define(className, bytes);
+            
+            return (CompiledFormula)formulaClass
+                    .getConstructor(Node.class, SlotMap.class, Node[].class)
+                    .newInstance(this.formula, this.slots, nodes);
+        }
+        catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException ex) {
+            throw new CompilerException("Compiled formula cannot be instantiated", ex);
+        }
+    }
+    
+    /**
+     * Generates a method that calculates the value of a (sub) tree
+     * 
+     * @param name (String) the method name
+     * @param node (Node) the (sub) tree
+     * @throws CompilerException 
+     */
+    void generateMethod(String name, Node node) throws CompilerException {
+        Bytecode code = new Bytecode(this.classFile, 2);
+        this.emit(node, code, new Scope(1), true);
+        code.op(Opcodes.DRETURN, -2);
+        
+        this.classFile.addMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, name, APPLY, code);
+    }
+    
+    /**
+     * Estimates the code size of a (sub) tree and marks all sub trees that
+     * are moved to methods of their own.
+     * 
+     * @param node (Node) the (sub) tree
+     * @return the estimated code size within the calling method (int)
+     * @throws CompilerException 
+     */
+    int plan(Node node) throws CompilerException {
+        int size;
+        
+        try {
+            if(node instanceof UserDefinedFunction) {
+                UserDefinedFunction udf = (UserDefinedFunction)node;
+                size = 10 + this.plan(udf.getDefinition());
+                for(int i=0; i<udf.getNodeCount(); i++) {
+                    size += 6 + this.plan(udf.getNode(i));
+                }
+            }
+            else {
+                size = 12;
+                int numNodes = node.getNodeCount();
+                for(int i=0; i<numNodes; i++) {
+                    size += this.plan(node.getNode(i));
+                }
+                if((node instanceof Sum) || (node instanceof Prod)) size += 40;
+            }
+        }
+        catch (FormulaException ex) {
+            throw new CompilerException("Formula tree cannot be compiled", ex);
+        }
+        
+        if(size > METHOD_SIZE) {
+            this.outlined.add(node);
+            size = 8;
+        }
+        
+        return size;
+    }
+    
+    /**
+     * Writes the instructions that calculate the value of a (sub) tree and
+     * push it onto the operand stack
+     * 
+     * @param node (Node) the (sub) tree
+     * @param code (Bytecode) the code
+     * @param scope (Scope) the variables in scope
+     * @param root (boolean) whether the node is the root of the method
+     * @throws CompilerException 
+     */
+    void emit(Node node, Bytecode code, Scope scope, boolean root) throws CompilerException {
+        if(!root && this.outlined.contains(node)) {
+            this.emitCall(node, code, scope);
+            return;
+        }
+        
+        try {
+            Class<? extends Node> nodeClass = node.getClass();
+            
+            if(nodeClass == Constant.class) {
+                Number value = node.calculate(null);
+                if((value instanceof Complex) && (((Complex)value).getImg() != 0.0))
+                    this.emitInterpreted(node, code, scope);
+                else
+                    code.pushDouble(value.getValue());
+            }
+            else if(nodeClass == Variable.class) {
+                int slot = ((Variable)node).getSlot();
+                int local = scope.getLocal(slot);
+                if(local >= 0) {
+                    code.local(Opcodes.DLOAD, local, 2);
+                }
+                else {
+                    code.local(Opcodes.ALOAD, scope.array, 1);
+                    code.pushInt(slot);
+                    code.op(Opcodes.DALOAD, 0);
+                }
+            }
+            else if(FUNCTIONS.containsKey(nodeClass)) {
+                String[] function = FUNCTIONS.get(nodeClass);
+                this.emit(node.getNode(0), code, scope, false);
+                code.invoke(Opcodes.INVOKESTATIC, function[0], function[1], "(D)D", 0);
+            }
+            else if(OPERATORS.containsKey(nodeClass)) {
+                this.emit(node.getNode(0), code, scope, false);
+                this.emit(node.getNode(1), code, scope, false);
+                code.op(OPERATORS.get(nodeClass), -2);
+            }
+            else if(nodeClass == Div.class) {
+                this.emit(node.getNode(0), code, scope, false);
+                this.emit(node.getNode(1), code, scope, false);
+                code.invoke(Opcodes.INVOKESTATIC, FORMULA_RUNTIME, "div", "(DD)D", -2);
+            }
+            else if(nodeClass == Pow.class) {
+                this.emit(node.getNode(0), code, scope, false);
+                this.emit(node.getNode(1), code, scope, false);
+                code.invoke(Opcodes.INVOKESTATIC, MATH, "pow", "(DD)D", -2);
+            }
+            else if(nodeClass == Neg.class) {
+                this.emit(node.getNode(0), code, scope, false);
+                code.op(Opcodes.DNEG, 0);
+            }
+            else if(nodeClass == Int.class) {
+                this.emit(node.getNode(0), code, scope, false);
+                code.pushDouble(0.5);
+                code.op(Opcodes.DSUB, -2);
+                code.invoke(Opcodes.INVOKESTATIC, MATH, "round", "(D)J", 0);
+                code.op(Opcodes.L2D, 0);
+            }
+            else if(nodeClass == Rand.class) {
+                this.emit(node.getNode(0), code, scope, false);
+                code.invoke(Opcodes.INVOKESTATIC, FORMULA_RUNTIME, "random", "()D", 2);
+                code.op(Opcodes.DMUL, -2);
+            }
+            else if(COMPARISONS.containsKey(nodeClass)) {
+                int[] comparison = COMPARISONS.get(nodeClass);
+                this.emit(node.getNode(0), code, scope, false);
+                this.emit(node.getNode(1), code, scope, false);
+                code.op(comparison[0], -3);
+                this.emitBoolean(comparison[1], code);
+            }
+            else if((nodeClass == And.class) || (nodeClass == Or.class)) {
+                this.emitShortCircuit(node, code, scope, nodeClass == And.class);
+            }
+            else if(LOGICAL.containsKey(nodeClass)) {
+                this.emitTruth(node.getNode(0), code, scope);
+                this.emitTruth(node.getNode(1), code, scope);
+                code.op(LOGICAL.get(nodeClass), -1);
+                code.op(Opcodes.I2D, 1);
+            }
+            else if(nodeClass == Not.class) {
+                this.emitTruth(node.getNode(0), code, scope);
+                code.op(Opcodes.ICONST_1, 1);
+                code.op(Opcodes.IXOR, -1);
+                code.op(Opcodes.I2D, 1);
+            }
+            else if((nodeClass == Max.class) || (nodeClass == Min.class)) {
+                String method = (nodeClass == Max.class) ? "max" : "min";
+                this.emit(node.getNode(0), code, scope, false);
+                for(int i=1; i<node.getNodeCount(); i++) {
+                    this.emit(node.getNode(i), code, scope, false);
+                    code.invoke(Opcodes.INVOKESTATIC, MATH, method, "(DD)D", -2);
+                }
+            }
+            else if(nodeClass == If.class) {
+                this.emitIf(node, code, scope);
+            }
+            else if((nodeClass == Sum.class) || (nodeClass == Prod.class)) {
+                this.emitLoop(node, code, scope);
+            }
+            else if((nodeClass == UserDefinedFunction.class) && (((UserDefinedFunction)node).getFrameSize() >= 0)) {
+                this.emitFunction((UserDefinedFunction)node, code, scope);
+            }
+            else {
+                this.emitInterpreted(node, code, scope);
+            }
+        }
+        catch (FiMaLibCalcException ex) {
+            throw new CompilerException("Node " + node.getName() + " cannot be compiled", ex);
+        }
+    }
+    
+    /**
+     * Writes the call of the method of a sub tree
+     * 
+     * @param node (Node) the sub tree
+     * @param code (Bytecode) the code
+     * @param scope (Scope) the variables in scope
+     */
+    void emitCall(Node node, Bytecode code, Scope scope) {
+        String name = this.methodNames.get(node);
+        if(name == null) {
+            name = "apply" + (this.methodNames.size() + 1);
+            this.methodNames.put(node, name);
+            this.pendingMethods.add(node);
+        }
+        
+        code.local(Opcodes.ALOAD, 0, 1);
+        this.emitArray(code, scope);
+        code.invoke(Opcodes.INVOKEVIRTUAL, this.classFile.getClassName(), name, APPLY, 0);
+    }
+    
+    /**
+     * Writes the evaluation of a sub tree by the interpreter, i.e. the call
+     * nodes[i].evaluate(vars), with the values of all variables in scope
+     * 
+     * @param node (Node) the sub tree
+     * @param code (Bytecode) the code
+     * @param scope (Scope) the variables in scope
+     */
+    void emitInterpreted(Node node, Bytecode code, Scope scope) {
+        int index = this.interpreted.size();
+        this.interpreted.add(node);
+        
+        code.local(Opcodes.ALOAD, 0, 1);
+        code.field(Opcodes.GETFIELD, COMPILED_FORMULA, "nodes", "[L" + NODE + ";", 0);
+        code.pushInt(index);
+        code.op(Opcodes.AALOAD, -1);
+        this.emitArray(code, scope);
+        code.invoke(Opcodes.INVOKEVIRTUAL, NODE, "evaluate", APPLY, 0);
+    }
+    
+    /**
+     * Pushes an array holding the values of all variables in scope, e.g. for
+     * the interpreter or the method of a sub tree. Variables held in local
+     * variables (see Scope) are copied into a new array, so the array is only
+     * allocated within sums, products and user defined functions.
+     * 
+     * @param code (Bytecode) the code
+     * @param scope (Scope) the variables in scope
+     */
+    void emitArray(Bytecode code, Scope scope) {
+        if((scope.locals.length == 0) && (scope.array >= 0)) {
+            code.local(Opcodes.ALOAD, scope.array, 1);
+            return;
+        }
+        
+        if(scope.array >= 0) {
+            code.local(Opcodes.ALOAD, scope.array, 1);
+            code.pushInt(scope.locals.length);
+            code.invoke(Opcodes.INVOKESTATIC, FORMULA_RUNTIME, "copy", "([DI)[D", -1);
+        }
+        else {
+            code.pushInt(scope.locals.length);
+            code.opByte(Opcodes.NEWARRAY, Opcodes.T_DOUBLE, 0);
+        }
+        
+        for(int slot=0; slot<scope.locals.length; slot++) {
+            if(scope.locals[slot] < 0) continue;
+            
+            code.op(Opcodes.DUP, 1);
+            code.pushInt(slot);
+            code.local(Opcodes.DLOAD, scope.locals[slot], 2);
+            code.op(Opcodes.DASTORE, -4);
+        }
+    }
+    
+    /**
+     * Writes the conversion of the int on top of the stack into a boolean
+     * value (BOOLEAN_TRUE or BOOLEAN_FALSE)
+     * 
+     * @param jumpIfFalse (int) the jump instruction to take if the result is false
+     * @param code (Bytecode) the code
+     */
+    void emitBoolean(int jumpIfFalse, Bytecode code) {
+        Bytecode.Label falseLabel = new Bytecode.Label();
+        Bytecode.Label end = new Bytecode.Label();
+        
+        code.jump(jumpIfFalse, falseLabel, -1);
+        code.pushDouble(org.fimalib.calc.Boolean.BOOLEAN_TRUE);
+        code.jump(Opcodes.GOTO, end, 0);
+        code.mark(falseLabel);
+        code.pushDouble(org.fimalib.calc.Boolean.BOOLEAN_FALSE);
+        code.mark(end);
+    }
+    
+    /**
+     * Writes the calculation of the truth value of a sub tree as int (1 if
+     * the value is not BOOLEAN_FALSE, 0 otherwise)
+     * 
+     * @param node (Node) the sub tree
+     * @param code (Bytecode) the code
+     * @param scope (Scope) the variables in scope
+     * @throws CompilerException 
+     */
+    void emitTruth(Node node, Bytecode code, Scope scope) throws CompilerException {
+        this.emit(node, code, scope, false);
+        code.pushDouble(org.fimalib.calc.Boolean.BOOLEAN_FALSE);
+        code.op(Opcodes.DCMPL, -3);
+        code.op(Opcodes.ICONST_1, 1);
+        code.op(Opcodes.IAND, -1);
+    }
+    
+    /**
+     * Writes a short-circuit operator (&& or ||): the right operand is only
+     * evaluated if the left operand does not decide the result
+     * 
+     * @param node (Node) the operator
+     * @param code (Bytecode) the code
+     * @param scope (Scope) the variables in scope
+     * @param and (boolean) true for &&, false for ||
+     * @throws CompilerException
+     * @throws FormulaException 
+     */
+    void emitShortCircuit(Node node, Bytecode code, Scope scope, boolean and) throws CompilerException, FormulaException {
+        Bytecode.Label decided = new Bytecode.Label();
+        Bytecode.Label end = new Bytecode.Label();
+        
+        this.emitTruth(node.getNode(0), code, scope);
+        code.jump(and ? Opcodes.IFEQ : Opcodes.IFNE, decided, -1);
+        this.emitTruth(node.getNode(1), code, scope);
+        code.op(Opcodes.I2D, 1);
+        code.jump(Opcodes.GOTO, end, 0);
+        code.mark(decided);
+        code.pushDouble(and ? org.fimalib.calc.Boolean.BOOLEAN_FALSE : org.fimalib.calc.Boolean.BOOLEAN_TRUE);
+        code.mark(end);
+    }
+    
+    /**
+     * Writes an if function
+     * 
+     * @param node (Node) the if function
+     * @param code (Bytecode) the code
+     * @param scope (Scope) the variables in scope
+     * @throws CompilerException
+     * @throws FormulaException 
+     */
+    void emitIf(Node node, Bytecode code, Scope scope) throws CompilerException, FormulaException {
+        Bytecode.Label falseLabel = new Bytecode.Label();
+        Bytecode.Label end = new Bytecode.Label();
+        
+        this.emit(node.getNode(0), code, scope, false);
+        code.pushDouble(org.fimalib.calc.Boolean.BOOLEAN_FALSE);
+        code.op(Opcodes.DCMPL, -3);
+        code.jump(Opcodes.IFEQ, falseLabel, -1);
+        this.emit(node.getNode(1), code, scope, false);
+        code.jump(Opcodes.GOTO, end, 0);
+        code.mark(falseLabel);
+        if(node.getNodeCount() > 2)
+            this.emit(node.getNode(2), code, scope, false);
+        else
+            code.pushDouble(0.0);
+        code.mark(end);
+    }
+    
+    /**
+     * Writes a sum or product function as loop over the running variable. The
+     * running variable is held in a local variable, which replaces the slot
+     * of the running variable within the formula, so the variable values are
+     * never changed.
+     * 
+     * @param node (Node) the sum or product function
+     * @param code (Bytecode) the code
+     * @param scope (Scope) the variables in scope
+     * @throws CompilerException
+     * @throws FormulaException 
+     */
+    void emitLoop(Node node, Bytecode code, Scope scope) throws CompilerException, FormulaException {
+        boolean sum = (node instanceof Sum);
+        int slot = sum ? ((Sum)node).getSlot() : ((Prod)node).getSlot();
+        int value = code.newLocal(2);
+        int endValue = code.newLocal(2);
+        int result = code.newLocal(2);
+        Bytecode.Label loop = new Bytecode.Label();
+        Bytecode.Label exit = new Bytecode.Label();
+        
+        this.emit(node.getNode(0), code, scope, false);
+        code.local(Opcodes.DSTORE, value, -2);
+        this.emit(node.getNode(1), code, scope, false);
+        code.local(Opcodes.DSTORE, endValue, -2);
+        code.pushDouble(sum ? 0.0 : 1.0);
+        code.local(Opcodes.DSTORE, result, -2);
+        
+        // while(value <= endValue)
+        code.mark(loop);
+        code.local(Opcodes.DLOAD, value, 2);
+        code.local(Opcodes.DLOAD, endValue, 2);
+        code.op(Opcodes.DCMPG, -3);
+        code.jump(Opcodes.IFGT, exit, -1);
+        
+        code.local(Opcodes.DLOAD, result, 2);
+        this.emit(node.getNode(2), code, scope.with(slot, value), false);
+        code.op(sum ? Opcodes.DADD : Opcodes.DMUL, -2);
+        code.local(Opcodes.DSTORE, result, -2);
+        
+        code.local(Opcodes.DLOAD, value, 2);
+        code.pushDouble(1.0);
+        code.op(Opcodes.DADD, -2);
+        code.local(Opcodes.DSTORE, value, -2);
+        code.jump(Opcodes.GOTO, loop, 0);
+        
+        code.mark(exit);
+        code.local(Opcodes.DLOAD, result, 2);
+    }
+    
+    /**
+     * Writes a user defined function. The slots of the frame of the function
+     * (its parameters and the running variables of its sums and products) are
+     * held in local variables, with which the definition is calculated inline.
+     * 
+     * @param function (UserDefinedFunction) the function
+     * @param code (Bytecode) the code
+     * @param scope (Scope) the variables in scope
+     * @throws CompilerException
+     * @throws FormulaException 
+     */
+    void emitFunction(UserDefinedFunction function, Bytecode code, Scope scope) throws CompilerException, FormulaException {
+        int frameSize = function.getFrameSize();
+        int[] locals = new int[frameSize];
+        
+        // the parameters are calculated in the caller's scope
+        for(int i=0; i<frameSize; i++) {
+            locals[i] = code.newLocal(2);
+            if(i < function.getNodeCount())
+                this.emit(function.getNode(i), code, scope, false);
+            else
+                code.pushDouble(0.0);
+            code.local(Opcodes.DSTORE, locals[i], -2);
+        }
+        
+        this.emit(function.getDefinition(), code, new Scope(-1, locals), false);
+    }
+    
+    /**
+     * This class describes where the values of the variables in scope are held
+     * by the generated code: either in a local variable of their own (the
+     * running variables of sums and products and the frames of user defined
+     * functions) or in the array of variable values.
+     */
+    static class Scope {
+        final int array;      // the local variable holding the array of variable values (or -1)
+        final int[] locals;   // slot -> local variable holding its value (or -1)
+        
+        /**
+         * Creates a new scope of the given array of variable values
+         * 
+         * @param array (int) the local variable holding the array
+         */
+        Scope(int array) {
+            this(array, new int[0]);
+        }
+        
+        /**
+         * Creates a new scope
+         * 
+         * @param array (int) the local variable holding the array of variable values, or -1
+         * @param locals (int[]) the local variable of each slot (or -1)
+         */
+        Scope(int array, int[] locals) {
+            this.array = array;
+            this.locals = locals;
+        }
+        
+        /**
+         * Returns the local variable holding the value of a slot
+         * 
+         * @param slot (int) the slot
+         * @return the local variable (int), or -1 if the value is held in the array
+         */
+        int getLocal(int slot) {
+            return (slot < this.locals.length) ? this.locals[slot] : -1;
+        }
+        
+        /**
+         * Returns a new scope in which the given slot is held in a local
+         * variable
+         * 
+         * @param slot (int) the slot
+         * @param local (int) the local variable
+         * @return the new scope (Scope)
+         */
+        Scope with(int slot, int local) {
+            int[] newLocals = Arrays.copyOf(this.locals, Math.max(this.locals.length, slot + 1));
+            for(int i=this.locals.length; i<newLocals.length; i++) newLocals[i] = -1;
+            newLocals[slot] = local;
+            
+            return new Scope(this.array, newLocals);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.compiler;
+
+import java.util.Arrays;
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.FiMaLibUndefinedException;
+import org.fimalib.calc.formula.RandomStream;
+
+/**
+ * This class contains the functions called by compiled formulas that are not
+ * simple enough to be written as bytecode instructions, mostly because they
+ * throw exceptions. The functions behave exactly like the evaluate methods of
+ * the corresponding formula nodes.
+ * 
+ * @author Peter Werno
+ */
+public class FormulaRuntime {
+    
+    /**
+     * Divides two values
+     * 
+     * @param lVal (double) the dividend
+     * @param rVal (double) the divisor
+     * @return the quotient (double)
+     * @throws FiMaLibDivisionByZeroException 
+     */
+    public static double div(double lVal, double rVal) throws FiMaLibDivisionByZeroException {
+        if(rVal == 0.0)
+            throw new FiMaLibDivisionByZeroException("Division by zero");
+        
+        return lVal / rVal;
+    }
+    
+    /**
+     * Calculates the square root of a value
+     * 
+     * @param value (double) the value
+     * @return the square root (double)
+     * @throws FiMaLibUndefinedException 
+     */
+    public static double sqrt(double value) throws FiMaLibUndefinedException {
+        if(value < 0.0)
+            throw new FiMaLibUndefinedException("Cannot calculate square root of negative value");
+        
+        return Math.sqrt(value);
+    }
+    
+    /**
+     * Calculates the natural logarithm of a value
+     * 
+     * @param value (double) the value
+     * @return the natural logarithm (double)
+     * @throws FiMaLibUndefinedException 
+     */
+    public static double ln(double value) throws FiMaLibUndefinedException {
+        if(value <= 0.0)
+            throw new FiMaLibUndefinedException("Cannot calc logarithm of negative value");
+        
+        return Math.log(value);
+    }
+    
+    /**
+     * Calculates the logarithm (base 10) of a value
+     * 
+     * @param value (double) the value
+     * @return the logarithm (double)
+     * @throws FiMaLibUndefinedException 
+     */
+    public static double log(double value) throws FiMaLibUndefinedException {
+        if(value <= 0.0)
+            throw new FiMaLibUndefinedException("Cannot calc logarithm of negative value");
+        
+        return Math.log10(value);
+    }
+    
+    /**
+     * Returns the sign of a value (-1, 0 or 1)
+     * 
+     * @param value (double) the value
+     * @return the sign (double)
+     */
+    public static double sgn(double value) {
+        if(value < 0.0) return -1.0;
+        if(value > 0.0) return 1.0;
+        return 0.0;
+    }
+    
+    /**
+     * Returns a random number which is uniformly distributed between 0
+     * (including) and 1 (excluding), drawn from the random stream of the
+     * current thread (see RandomStream.current)
+     * 
+     * @return the random number (double)
+     */
+    public static double random() {
+        return RandomStream.current().nextDouble();
+    }
+    
+    /**
+     * Copies the variable values into a new array of at least the given size
+     * (see FormulaCompiler.emitArray)
+     * 
+     * @param vars (double[]) the variable values
+     * @param size (int) the minimum size
+     * @return the copy (double[])
+     */
+    public static double[] copy(double[] vars, int size) {
+        return Arrays.copyOf(vars, Math.max(vars.length, size));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.compiler;
+
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class is used if a formula cannot be compiled at all. The formula
+ * tree is simply evaluated by the interpreter (see Node.evaluate).
+ * 
+ * @author Peter Werno
+ */
+public class InterpretedFormula extends CompiledFormula {
+    
+    /**
+     * Creates a new instance of InterpretedFormula
+     * 
+     * @param formula (Node) the (bound) formula tree
+     * @param slots (SlotMap) the slots of the variables
+     */
+    public InterpretedFormula(Node formula, SlotMap slots) {
+        super(formula, slots, new Node[] { formula });
+    }
+
+    /**
+     * Calculates the value of the formula with the given variable values
+     * 
+     * @param vars (double[]) the variable values (one per slot)
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double apply(double[] vars) throws FiMaLibCalcException {
+        return this.formula.evaluate(vars);
+    }
+
+    /**
+     * Returns that the formula is evaluated by the interpreter
+     * 
+     * @return false (boolean)
+     */
+    @Override
+    public boolean isCompiled() {
+        return false;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.compiler;
+
+/**
+ * This class contains the JVM instructions and access flags that are used by
+ * the formula compiler (see the Java Virtual Machine Specification, chapter 6).
+ * 
+ * @author Peter Werno
+ */
+public class Opcodes {
+    /*
+    * Access flags
+    */
+    public static final int ACC_PUBLIC          = 0x0001;
+    public static final int ACC_PRIVATE         = 0x0002;
+    public static final int ACC_STATIC          = 0x0008;
+    public static final int ACC_FINAL           = 0x0010;
+    public static final int ACC_SUPER           = 0x0020;
+    
+    /*
+    * Constants and local variables
+    */
+    public static final int ACONST_NULL         = 0x01;
+    public static final int ICONST_M1           = 0x02;
+    public static final int ICONST_0            = 0x03;
+    public static final int ICONST_1            = 0x04;
+    public static final int DCONST_0            = 0x0e;
+    public static final int DCONST_1            = 0x0f;
+    public static final int BIPUSH              = 0x10;
+    public static final int SIPUSH              = 0x11;
+    public static final int LDC                 = 0x12;
+    public static final int LDC_W               = 0x13;
+    public static final int LDC2_W              = 0x14;
+    public static final int DLOAD               = 0x18;
+    public static final int ALOAD               = 0x19;
+    public static final int DALOAD              = 0x31;
+    public static final int AALOAD              = 0x32;
+    public static final int DSTORE              = 0x39;
+    public static final int ASTORE              = 0x3a;
+    public static final int DASTORE             = 0x52;
+    public static final int POP                 = 0x57;
+    public static final int POP2                = 0x58;
+    public static final int DUP                 = 0x59;
+    public static final int DUP2                = 0x5c;
+    
+    /*
+    * Arithmetics and conversions
+    */
+    public static final int DADD                = 0x63;
+    public static final int DSUB                = 0x67;
+    public static final int DMUL                = 0x6b;
+    public static final int DDIV                = 0x6f;
+    public static final int DNEG                = 0x77;
+    public static final int IAND                = 0x7e;
+    public static final int IOR                 = 0x80;
+    public static final int IXOR                = 0x82;
+    public static final int I2D                 = 0x87;
+    public static final int L2D                 = 0x8a;
+    public static final int DCMPL               = 0x97;
+    public static final int DCMPG               = 0x98;
+    
+    /*
+    * Control flow
+    */
+    public static final int IFEQ                = 0x99;
+    public static final int IFNE                = 0x9a;
+    public static final int IFLT                = 0x9b;
+    public static final int IFGE                = 0x9c;
+    public static final int IFGT                = 0x9d;
+    public static final int IFLE                = 0x9e;
+    public static final int GOTO                = 0xa7;
+    public static final int DRETURN             = 0xaf;
+    public static final int ARETURN             = 0xb0;
+    public static final int RETURN              = 0xb1;
+    
+    /*
+    * Fields, methods and objects
+    */
+    public static final int GETFIELD            = 0xb4;
+    public static final int INVOKEVIRTUAL       = 0xb6;
+    public static final int INVOKESPECIAL       = 0xb7;
+    public static final int INVOKESTATIC        = 0xb8;
+    public static final int NEWARRAY            = 0xbc;
+    public static final int ATHROW              = 0xbf;
+    
+    public static final int T_DOUBLE            = 7;    // array type for newarray
+}
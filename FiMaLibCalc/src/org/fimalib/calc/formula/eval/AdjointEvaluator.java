@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import org.fimalib.calc.Boolean;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.NodeType;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class evaluates a formula together with its gradient, i.e. the
+ * derivatives by all variables, using reverse-mode automatic differentiation
+ * (adjoint algorithmic differentiation).
+ * 
+ * The evaluation of the formula DAG (see FormulaDag) records each calculated
+ * value on a tape, together with the positions of the values it has been
+ * calculated from and the partial derivatives by them. A single backward
+ * sweep over the tape then accumulates the derivatives of the result by each
+ * value (the adjoints), and the adjoints of the variables are the gradient.
+ * Hence, the gradient costs a small multiple of one evaluation, no matter
+ * how many variables the formula has (unlike Node.derive or the
+ * ForwardEvaluator, which cost one evaluation per variable).
+ * 
+ * The tape consists of primitive arrays, which are reused by all evaluations.
+ * Values that do not depend on any variable (constants, running variables of
+ * sums and products, comparisons, ...) are not recorded. The derivatives of
+ * if, max and min are those of the selected part, the derivatives of int,
+ * sgn, comparisons and logical operators are zero, as they are piecewise
+ * constant.
+ * 
+ * An adjoint evaluator must not be used by several threads at the same time.
+ * 
+ * Example:
+ * 
+ *  AdjointEvaluator evaluator = new AdjointEvaluator(Formula.parse(curveFormula), pillars);
+ *  double[] gradient = new double[pillars.length];
+ *  double value = evaluator.evaluate(rates, gradient);
+ * 
+ * @author Peter Werno
+ */
+public class AdjointEvaluator {
+    public static final int INITIAL_TAPE_SIZE = 256;
+    
+    FormulaDag dag;
+    Tape tape;
+    int[] inputs;           // the tape positions of the variables (-1 if the variable does not depend on any input)
+    double[] values;
+    int[] positions;        // the tape positions of the nodes (-1 if the node does not depend on any input)
+    long[] stamps;          // see DagEvaluator
+    long[] scopeStamps;
+    long stamp;
+    EvaluationContext context;
+    double[] buffer;        // the values of all slots, if the caller only gives those of the variables
+    IdentityHashMap<Node, AdjointEvaluator> functions;      // the evaluators of user defined functions
+    
+    /**
+     * This class holds the tape of an evaluation. Each entry is a value
+     * calculated from (up to) two other entries, with the partial derivatives
+     * by them. The first entries are the variables of the formula.
+     */
+    static class Tape {
+        int size;
+        int numInputs;
+        int[] args1;
+        int[] args2;
+        double[] partials1;
+        double[] partials2;
+        double[] adjoints;
+        
+        Tape(int numInputs) {
+            int capacity = Math.max(INITIAL_TAPE_SIZE, 2 * numInputs);
+            this.numInputs = numInputs;
+            this.args1 = new int[capacity];
+            this.args2 = new int[capacity];
+            this.partials1 = new double[capacity];
+            this.partials2 = new double[capacity];
+            this.adjoints = new double[capacity];
+        }
+        
+        /**
+         * Removes all entries except the variables
+         */
+        void reset() {
+            this.size = this.numInputs;
+        }
+        
+        /**
+         * Records a value calculated from one or two other values
+         * 
+         * @param arg1 (int) the position of the first value (-1 if it does not depend on any input)
+         * @param partial1 (double) the partial derivative by the first value
+         * @param arg2 (int) the position of the second value (-1 if it does not depend on any input)
+         * @param partial2 (double) the partial derivative by the second value
+         * @return the position of the value (int), -1 if it does not depend on any input
+         */
+        int record(int arg1, double partial1, int arg2, double partial2) {
+            if(arg1 < 0) {
+                if(arg2 < 0) return -1;
+                arg1 = arg2;
+                partial1 = partial2;
+                arg2 = -1;
+            }
+            
+            int retVal = this.size++;
+            if(retVal == this.args1.length) {
+                int capacity = 2 * retVal;
+                this.args1 = Arrays.copyOf(this.args1, capacity);
+                this.args2 = Arrays.copyOf(this.args2, capacity);
+                this.partials1 = Arrays.copyOf(this.partials1, capacity);
+                this.partials2 = Arrays.copyOf(this.partials2, capacity);
+                this.adjoints = new double[capacity];
+            }
+            
+            this.args1[retVal] = arg1;
+            this.partials1[retVal] = partial1;
+            this.args2[retVal] = arg2;
+            this.partials2[retVal] = partial2;
+            
+            return retVal;
+        }
+        
+        /**
+         * Calculates the adjoints of all entries, i.e. the derivatives of the
+         * result by the values of the entries, in a backward sweep
+         * 
+         * @param result (int) the position of the result
+         */
+        void backward(int result) {
+            double[] adj = this.adjoints;
+            Arrays.fill(adj, 0, this.size, 0.0);
+            if(result < 0) return;
+            adj[result] = 1.0;
+            
+            for(int k=result; k>=this.numInputs; k--) {
+                double adjoint = adj[k];
+                if(adjoint == 0.0) continue;
+                
+                adj[this.args1[k]] += adjoint * this.partials1[k];
+                int arg2 = this.args2[k];
+                if(arg2 >= 0) adj[arg2] += adjoint * this.partials2[k];
+            }
+        }
+    }
+    
+    /**
+     * Creates a new instance of AdjointEvaluator recording to the given tape
+     * 
+     * @param dag (FormulaDag) the formula DAG
+     * @param tape (Tape) the tape
+     * @param numSlots (int) the number of slots
+     */
+    AdjointEvaluator(FormulaDag dag, Tape tape, int numSlots) {
+        this.dag = dag;
+        this.tape = tape;
+        this.inputs = new int[numSlots];
+        this.values = new double[dag.size];
+        this.positions = new int[dag.size];
+        this.stamps = new long[dag.size];
+        this.scopeStamps = new long[dag.numScopes];
+        this.context = new EvaluationContext(new double[0]);
+        this.functions = new IdentityHashMap<>();
+        
+        Arrays.fill(this.stamps, -1L);
+        Arrays.fill(this.positions, -1);
+        for(int id=0; id<dag.size; id++) {
+            if(dag.types[id] == NodeType.CONSTANT) this.values[id] = dag.constants[id];
+        }
+    }
+    
+    /**
+     * Creates a new instance of AdjointEvaluator
+     * 
+     * @param dag (FormulaDag) the formula DAG
+     */
+    public AdjointEvaluator(FormulaDag dag) {
+        this(dag, new Tape(dag.getSlots().size()), dag.getSlots().size());
+        
+        for(int slot=0; slot<this.inputs.length; slot++) {
+            this.inputs[slot] = slot;
+        }
+    }
+    
+    /**
+     * Creates a new instance of AdjointEvaluator. The formula tree is bound to
+     * the given slot map (see Node.bind).
+     * 
+     * @param formula (Node) the formula tree
+     * @param slots (SlotMap) the slot map
+     * @throws FiMaLibCalcException 
+     */
+    public AdjointEvaluator(Node formula, SlotMap slots) throws FiMaLibCalcException {
+        this(new FormulaDag(formula, slots));
+    }
+    
+    /**
+     * Creates a new instance of AdjointEvaluator with the variables being
+     * assigned to the slots in the given order
+     * 
+     * @param formula (Node) the formula tree
+     * @param variables (String...) the variable names
+     * @throws FiMaLibCalcException 
+     */
+    public AdjointEvaluator(Node formula, String... variables) throws FiMaLibCalcException {
+        this(new FormulaDag(formula, variables));
+    }
+    
+    /**
+     * Returns the formula DAG
+     * 
+     * @return the formula DAG (FormulaDag)
+     */
+    public FormulaDag getDag() {
+        return this.dag;
+    }
+    
+    /**
+     * Returns the number of entries recorded on the tape by the last
+     * evaluation (including the variables)
+     * 
+     * @return the number of entries (int)
+     */
+    public int getTapeSize() {
+        return this.tape.size;
+    }
+    
+    /**
+     * Evaluates the formula and its gradient with the variable values given
+     * as primitive array (see Node.evaluate). The array needs to hold the
+     * values of the variables only (see FormulaDag.getVariableCount), the
+     * slots of the running variables of sums and products are kept
+     * internally.
+     * 
+     * @param slots (double[]) the variable values
+     * @param gradient (double[]) the derivatives by the variables, one per
+     * variable
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    public double evaluate(double[] slots, double[] gradient) throws FiMaLibCalcException {
+        int numSlots = this.inputs.length;
+        double[] values = slots;
+        
+        if(slots.length < numSlots) {
+            if(slots.length < this.dag.getVariableCount())
+                throw new FormulaException("The variable values need " + this.dag.getVariableCount() + " elements");
+            if(this.buffer == null) this.buffer = new double[numSlots];
+            System.arraycopy(slots, 0, this.buffer, 0, slots.length);
+            values = this.buffer;
+        }
+        this.context.setSlots(values);
+        
+        return this.evaluate(this.context, gradient);
+    }
+    
+    /**
+     * Evaluates the formula and its gradient within an evaluation context
+     * (see Node.evaluate)
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @param gradient (double[]) the derivatives by the variables, one per
+     * variable (see FormulaDag.getVariableCount)
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    public double evaluate(EvaluationContext context, double[] gradient) throws FiMaLibCalcException {
+        Tape t = this.tape;
+        int numVariables = this.dag.getVariableCount();
+        if(gradient.length < numVariables)
+            throw new FormulaException("The gradient needs " + numVariables + " elements");
+        
+        t.reset();
+        double retVal = this.record(context);
+        t.backward(this.positions[this.dag.root]);
+        System.arraycopy(t.adjoints, 0, gradient, 0, numVariables);
+        
+        return retVal;
+    }
+    
+    /**
+     * Evaluates the formula, recording the calculations on the tape
+     * (forward sweep)
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    double record(EvaluationContext context) throws FiMaLibCalcException {
+        FormulaDag d = this.dag;
+        int[] eager = d.eager;
+        long current = ++this.stamp;
+        this.scopeStamps[0] = current;
+        
+        // see DagEvaluator.evaluate
+        for(int k=0; k<eager.length; k++) {
+            int id = eager[k];
+            this.values[id] = this.calculate(id, context);
+            this.stamps[id] = current;
+        }
+        
+        return this.values[d.root];
+    }
+    
+    /**
+     * Returns the value of a DAG node, calculating (and recording) it if it
+     * has not been calculated within the current scope yet
+     * 
+     * @param id (int) the DAG node
+     * @param context (EvaluationContext) the evaluation context
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    double value(int id, EvaluationContext context) throws FiMaLibCalcException {
+        long current = this.scopeStamps[this.dag.scopes[id]];
+        if(this.stamps[id] == current) return this.values[id];
+        
+        double retVal = this.calculate(id, context);
+        this.values[id] = retVal;
+        this.stamps[id] = current;
+        
+        return retVal;
+    }
+    
+    /**
+     * Calculates a DAG node and records it on the tape (setting its position)
+     * 
+     * @param id (int) the DAG node
+     * @param context (EvaluationContext) the evaluation context
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    double calculate(int id, EvaluationContext context) throws FiMaLibCalcException {
+        FormulaDag d = this.dag;
+        int type = d.types[id];
+        int first = d.first[id];
+        int[] pos = this.positions;
+        double a;
+        double b;
+        double retVal;
+        
+        switch (type) {
+            case NodeType.CONSTANT:
+                pos[id] = -1;
+                return d.constants[id];
+                
+            case NodeType.VARIABLE:
+                // running variables of sums and products do not depend on any input
+                pos[id] = (d.scopes[id] == 0) ? this.inputs[d.refs[id]] : -1;
+                return context.get(d.refs[id]);
+                
+            case NodeType.UNKNOWN:
+                throw new FormulaException("Node " + d.nodes[id].getName() + " does not support automatic differentiation");
+                
+            case NodeType.IF:
+                int part;
+                if(this.value(d.children[first], context) != Boolean.BOOLEAN_FALSE)
+                    part = d.children[first + 1];
+                else if(d.counts[id] > 2)
+                    part = d.children[first + 2];
+                else {
+                    pos[id] = -1;
+                    return 0.0;
+                }
+                retVal = this.value(part, context);
+                pos[id] = pos[part];
+                return retVal;
+                
+            case NodeType.SUM:
+            case NodeType.PROD:
+                return this.loop(id, type == NodeType.SUM, context);
+                
+            case NodeType.FUNCTION:
+                return this.function(id, context);
+                
+            case NodeType.NEG:
+                a = this.value(d.children[first], context);
+                pos[id] = this.tape.record(pos[d.children[first]], -1.0, -1, 0.0);
+                return -a;
+                
+            case NodeType.NOT:
+                a = this.value(d.children[first], context);
+                pos[id] = -1;
+                return (a == Boolean.BOOLEAN_FALSE) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+                
+            case NodeType.AND:
+            case NodeType.OR:
+                // see DagEvaluator.calculate
+                pos[id] = -1;
+                if((this.value(d.children[first], context) != Boolean.BOOLEAN_FALSE) == (type == NodeType.OR))
+                    return (type == NodeType.OR) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+                return (this.value(d.children[first + 1], context) != Boolean.BOOLEAN_FALSE) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+                
+            case NodeType.RAND:
+                a = this.value(d.children[first], context);
+                double random = context.getRandom().nextDouble();
+                pos[id] = this.tape.record(pos[d.children[first]], random, -1, 0.0);
+                return random * a;
+                
+            case NodeType.MAX:
+            case NodeType.MIN:
+                // see ForwardEvaluator.calculate
+                part = d.children[first];
+                retVal = this.value(part, context);
+                for(int i=1; i<d.counts[id]; i++) {
+                    int child = d.children[first + i];
+                    double next = DagEvaluator.extremum(type, retVal, this.value(child, context));
+                    if(next != retVal) part = child;
+                    retVal = next;
+                }
+                pos[id] = pos[part];
+                return retVal;
+                
+            default:
+                if(NodeType.isUnaryFunction(type)) {
+                    a = this.value(d.children[first], context);
+                    retVal = DagEvaluator.function(type, a);
+                    int arg = pos[d.children[first]];
+                    pos[id] = (arg < 0) ? -1 : this.tape.record(arg, ForwardEvaluator.derivative(type, a, retVal), -1, 0.0);
+                    return retVal;
+                }
+                
+                a = this.value(d.children[first], context);
+                b = this.value(d.children[first + 1], context);
+                return this.operation(id, type, a, pos[d.children[first]], b, pos[d.children[first + 1]]);
+        }
+    }
+    
+    /**
+     * Calculates an operation with two operands and records it on the tape
+     * 
+     * @param id (int) the DAG node
+     * @param type (int) the type of the operation (see NodeType)
+     * @param a (double) the left operand
+     * @param pa (int) the tape position of the left operand
+     * @param b (double) the right operand
+     * @param pb (int) the tape position of the right operand
+     * @return the result (double)
+     * @throws FiMaLibCalcException 
+     */
+    double operation(int id, int type, double a, int pa, double b, int pb) throws FiMaLibCalcException {
+        Tape t = this.tape;
+        
+        switch (type) {
+            case NodeType.ADD:
+                this.positions[id] = t.record(pa, 1.0, pb, 1.0);
+                return a + b;
+                
+            case NodeType.SUB:
+                this.positions[id] = t.record(pa, 1.0, pb, -1.0);
+                return a - b;
+                
+            case NodeType.MUL:
+                this.positions[id] = t.record(pa, b, pb, a);
+                return a * b;
+                
+            case NodeType.DIV:
+                if(b == 0.0)
+                    throw new FiMaLibDivisionByZeroException("Division by zero");
+                double quotient = a / b;
+                this.positions[id] = t.record(pa, 1.0 / b, pb, -quotient / b);
+                return quotient;
+                
+            case NodeType.POW:
+                // the partial derivatives are only calculated if needed, as they
+                // might not be defined (e.g. ln of a negative base)
+                double power = Math.pow(a, b);
+                double dBase = (pa < 0) ? 0.0 : b * Math.pow(a, b - 1.0);
+                double dExponent = ((pb < 0) || (power == 0.0)) ? 0.0 : power * Math.log(a);
+                this.positions[id] = t.record(pa, dBase, pb, dExponent);
+                return power;
+                
+            default:
+                // logical operators and comparisons are piecewise constant
+                this.positions[id] = -1;
+                return DagEvaluator.operation(type, a, b);
+        }
+    }
+    
+    /**
+     * Calculates a sum or product and records each step on the tape
+     * (see DagEvaluator.loop)
+     * 
+     * @param id (int) the DAG node
+     * @param sum (boolean) true for a sum, false for a product
+     * @param context (EvaluationContext) the evaluation context
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    double loop(int id, boolean sum, EvaluationContext context) throws FiMaLibCalcException {
+        FormulaDag d = this.dag;
+        Tape t = this.tape;
+        int first = d.first[id];
+        int slot = d.refs[id];
+        int loop = d.loops[id];
+        int formula = d.children[first + 2];
+        
+        double startVal = this.value(d.children[first], context);
+        double endVal = this.value(d.children[first + 1], context);
+        double oldParameter = context.get(slot);
+        double retVal = sum ? 0.0 : 1.0;
+        int position = -1;
+        
+        for(double value = startVal; value <= endVal; value += 1.0) {
+            context.set(slot, value);
+            this.scopeStamps[loop] = ++this.stamp;
+            double term = this.value(formula, context);
+            int termPosition = this.positions[formula];
+            
+            if(sum) {
+                position = (position < 0) ? termPosition : t.record(position, 1.0, termPosition, 1.0);
+                retVal += term;
+            }
+            else {
+                position = t.record(position, term, termPosition, retVal);
+                retVal *= term;
+            }
+        }
+        
+        // restore old parameter
+        context.set(slot, oldParameter);
+        
+        this.positions[id] = position;
+        return retVal;
+    }
+    
+    /**
+     * Calculates a user defined function. The definition is evaluated by an
+     * adjoint evaluator of its own, which records to the same tape, with the
+     * tape positions of the parameters as positions of its variables.
+     * 
+     * @param id (int) the DAG node
+     * @param context (EvaluationContext) the evaluation context
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    double function(int id, EvaluationContext context) throws FiMaLibCalcException {
+        FormulaDag d = this.dag;
+        UserDefinedFunction function = (UserDefinedFunction)d.nodes[id];
+        int first = d.first[id];
+        int count = d.counts[id];
+        
+        AdjointEvaluator evaluator = this.functions.get(function.getDefinition());
+        if(evaluator == null) {
+            evaluator = new AdjointEvaluator(new FormulaDag(function), this.tape, function.getFrameSize());
+            evaluator.context.setSlots(new double[function.getFrameSize()]);
+            this.functions.put(function.getDefinition(), evaluator);
+        }
+        
+        // the parameters are calculated first, as they might call the same function
+        for(int i=0; i<count; i++) {
+            this.value(d.children[first + i], context);
+        }
+        
+        // the frame (all slots being zero) is the variable array of the evaluator
+        double[] frame = evaluator.context.getSlots();
+        Arrays.fill(frame, 0.0);
+        Arrays.fill(evaluator.inputs, -1);
+        for(int i=0; i<count; i++) {
+            int param = d.children[first + i];
+            frame[i] = this.values[param];
+            evaluator.inputs[i] = this.positions[param];
+        }
+        
+        double retVal = evaluator.record(evaluator.context);
+        this.positions[id] = evaluator.positions[evaluator.dag.root];
+        
+        return retVal;
+    }
+}
@@ -0,0 +1,790 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.fimalib.calc.Boolean;
+import org.fimalib.calc.Complex;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.FiMaLibUndefinedException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.NodeType;
+import org.fimalib.calc.formula.RandomStream;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.functions.Cnd;
+import org.fimalib.calc.formula.functions.Prod;
+import org.fimalib.calc.formula.functions.Sum;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+import org.fimalib.calc.formula.nodes.Variable;
+
+/**
+ * This class evaluates a formula for many scenarios at once.
+ * 
+ * The variable values are given column-wise, i.e. one array per variable
+ * slot holding the values of all scenarios. The scenarios are processed in
+ * chunks of CHUNK_SIZE: for each chunk, the formula tree is walked once and
+ * each node is calculated for the whole chunk in a tight loop, which the JIT
+ * compiler can unroll and vectorize.
+ * 
+ * The if function only evaluates its true (false) part for the scenarios
+ * whose condition is true (false), and sum and prod only evaluate their
+ * formula for the scenarios whose running variable has not yet reached the
+ * end value, so that the results (and exceptions) are the same as with
+ * Node.evaluate.
+ * 
+ * The random numbers of the rand function are drawn chunk-wise from the
+ * random stream of the evaluator (see setRandom).
+ * 
+ * The temporary buffers are reused across chunks and batches. Hence, a batch
+ * evaluator must not be used by several threads at the same time.
+ * 
+ * Example:
+ * 
+ *  BatchEvaluator evaluator = new BatchEvaluator(Formula.parse("3*x^2+y"), "x", "y");
+ *  double[] out = new double[x.length];
+ *  evaluator.evaluate(new double[][] { x, y }, out);
+ * 
+ * @author Peter Werno
+ */
+public class BatchEvaluator {
+    public static final int CHUNK_SIZE = 1024;
+    
+    static final int SET = 0;       // modes of storing the results of selected scenarios
+    static final int ADD = 1;
+    static final int MULTIPLY = 2;
+    
+    Node formula;
+    SlotMap slots;
+    ArrayList<double[]> buffers;
+    ArrayList<int[]> selections;
+    RandomStream random;
+    
+    /**
+     * This class holds the variable values of a chunk of scenarios. The
+     * values of the i-th scenario of the slot s are stored in
+     * columns[s][offsets[s]+i].
+     */
+    static class Frame {
+        double[][] columns;
+        int[] offsets;
+        int size;
+        
+        Frame(int slots, int size) {
+            this.columns = new double[slots][];
+            this.offsets = new int[slots];
+            this.size = size;
+        }
+    }
+    
+    /**
+     * Creates a new instance of BatchEvaluator. The formula tree is bound to
+     * the given slot map (see Node.bind).
+     * 
+     * @param formula (Node) the formula tree
+     * @param slots (SlotMap) the slot map
+     * @throws FormulaException 
+     */
+    public BatchEvaluator(Node formula, SlotMap slots) throws FormulaException {
+        this.formula = formula;
+        this.slots = slots;
+        this.buffers = new ArrayList<>();
+        this.selections = new ArrayList<>();
+        
+        formula.bind(slots);
+    }
+    
+    /**
+     * Creates a new instance of BatchEvaluator for the same (already bound)
+     * formula tree as another batch evaluator, but with buffers of its own.
+     * This way, a formula can be evaluated by several threads at the same
+     * time, each with a batch evaluator of its own.
+     * 
+     * The random stream (see setRandom) is not copied, as a stream must not
+     * be used by several threads: the new evaluator uses the stream of the
+     * current thread until a stream is set.
+     * 
+     * @param evaluator (BatchEvaluator) the other batch evaluator
+     */
+    public BatchEvaluator(BatchEvaluator evaluator) {
+        this.formula = evaluator.formula;
+        this.slots = evaluator.slots;
+        this.buffers = new ArrayList<>();
+        this.selections = new ArrayList<>();
+    }
+    
+    /**
+     * Creates a new instance of BatchEvaluator with the variables being
+     * assigned to the slots in the given order
+     * 
+     * @param formula (Node) the formula tree
+     * @param variables (String...) the variable names
+     * @throws FormulaException 
+     */
+    public BatchEvaluator(Node formula, String... variables) throws FormulaException {
+        this(formula, new SlotMap(variables));
+    }
+    
+    /**
+     * Returns the formula tree
+     * 
+     * @return the formula tree (Node)
+     */
+    public Node getFormula() {
+        return this.formula;
+    }
+    
+    /**
+     * Returns the slots of the variables
+     * 
+     * @return the slot map (SlotMap)
+     */
+    public SlotMap getSlots() {
+        return this.slots;
+    }
+    
+    /**
+     * Returns the random stream of the evaluator, i.e. the stream set with
+     * setRandom or, if none has been set, the stream of the current thread
+     * (see RandomStream.current)
+     * 
+     * @return the random stream (RandomStream)
+     */
+    public RandomStream getRandom() {
+        RandomStream retVal = this.random;
+        
+        return (retVal == null) ? RandomStream.current() : retVal;
+    }
+    
+    /**
+     * Sets the random stream of the evaluator. To evaluate a formula with
+     * random numbers by several threads reproducibly, give each batch
+     * evaluator a stream split off the same seeded stream (see
+     * RandomStream.split).
+     * 
+     * @param random (RandomStream) the random stream, null to use the stream
+     * of the current thread
+     */
+    public void setRandom(RandomStream random) {
+        this.random = random;
+    }
+    
+    /**
+     * Evaluates the formula for all scenarios
+     * 
+     * @param columns (double[][]) the variable values, one column per slot
+     * @param out (double[]) the results, one per scenario
+     * @throws FiMaLibCalcException 
+     */
+    public void evaluate(double[][] columns, double[] out) throws FiMaLibCalcException {
+        this.evaluate(columns, out, 0, out.length);
+    }
+    
+    /**
+     * Evaluates the formula for the scenarios from (including) to (excluding)
+     * 
+     * @param columns (double[][]) the variable values, one column per slot
+     * @param out (double[]) the results, one per scenario
+     * @param from (int) the first scenario
+     * @param to (int) the scenario after the last one
+     * @throws FiMaLibCalcException 
+     */
+    public void evaluate(double[][] columns, double[] out, int from, int to) throws FiMaLibCalcException {
+        int numSlots = this.slots.size();
+        if(columns.length > numSlots)
+            throw new FormulaException("There are more columns than variables");
+        
+        for(int s=0; s<columns.length; s++) {
+            if((columns[s] != null) && (columns[s].length < to))
+                throw new FormulaException("Column of variable " + this.slots.getName(s) + " is too short");
+        }
+        
+        Frame frame = new Frame(numSlots, 0);
+        System.arraycopy(columns, 0, frame.columns, 0, columns.length);
+        
+        for(int start=from; start<to; start+=CHUNK_SIZE) {
+            frame.size = Math.min(CHUNK_SIZE, to - start);
+            for(int s=0; s<columns.length; s++) {
+                frame.offsets[s] = start;
+            }
+            
+            double[] result = this.eval(this.formula, frame);
+            System.arraycopy(result, 0, out, start, frame.size);
+            this.release(result);
+        }
+    }
+    
+    /**
+     * Evaluates a (sub) tree for a chunk of scenarios
+     * 
+     * @param node (Node) the (sub) tree
+     * @param frame (Frame) the variable values
+     * @return the results (double[]), a buffer that has to be released by the caller
+     * @throws FiMaLibCalcException 
+     */
+    double[] eval(Node node, Frame frame) throws FiMaLibCalcException {
+        int type = NodeType.of(node);
+        int n = frame.size;
+        double[] a;
+        double[] b;
+        
+        switch (type) {
+            case NodeType.CONSTANT:
+                Number constant = node.calculate(null);
+                if((constant instanceof Complex) && (((Complex)constant).getImg() != 0.0))
+                    return this.interpret(node, frame);
+                a = this.acquire();
+                Arrays.fill(a, 0, n, constant.getValue());
+                return a;
+                
+            case NodeType.VARIABLE:
+                Variable variable = (Variable)node;
+                int slot = variable.getSlot();
+                if((slot < 0) || (frame.columns[slot] == null))
+                    throw new FormulaException("No values given for variable " + variable.getName());
+                a = this.acquire();
+                System.arraycopy(frame.columns[slot], frame.offsets[slot], a, 0, n);
+                return a;
+                
+            case NodeType.ADD:
+                a = this.eval(node.getNode(0), frame);
+                b = this.eval(node.getNode(1), frame);
+                for(int i=0; i<n; i++) a[i] += b[i];
+                this.release(b);
+                return a;
+                
+            case NodeType.SUB:
+                a = this.eval(node.getNode(0), frame);
+                b = this.eval(node.getNode(1), frame);
+                for(int i=0; i<n; i++) a[i] -= b[i];
+                this.release(b);
+                return a;
+                
+            case NodeType.MUL:
+                a = this.eval(node.getNode(0), frame);
+                b = this.eval(node.getNode(1), frame);
+                for(int i=0; i<n; i++) a[i] *= b[i];
+                this.release(b);
+                return a;
+                
+            case NodeType.DIV:
+                a = this.eval(node.getNode(0), frame);
+                b = this.eval(node.getNode(1), frame);
+                for(int i=0; i<n; i++) {
+                    if(b[i] == 0.0)
+                        throw new FiMaLibDivisionByZeroException("Division by zero");
+                }
+                for(int i=0; i<n; i++) a[i] /= b[i];
+                this.release(b);
+                return a;
+                
+            case NodeType.POW:
+                a = this.eval(node.getNode(0), frame);
+                b = this.eval(node.getNode(1), frame);
+                for(int i=0; i<n; i++) a[i] = Math.pow(a[i], b[i]);
+                this.release(b);
+                return a;
+                
+            case NodeType.NEG:
+                a = this.eval(node.getNode(0), frame);
+                for(int i=0; i<n; i++) a[i] = -a[i];
+                return a;
+                
+            case NodeType.NOT:
+                a = this.eval(node.getNode(0), frame);
+                for(int i=0; i<n; i++) a[i] = (a[i] == Boolean.BOOLEAN_FALSE) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+                return a;
+                
+            case NodeType.AND:
+            case NodeType.OR:
+                return this.evalShortCircuit(node, frame, type == NodeType.AND);
+                
+            case NodeType.XOR:
+                a = this.eval(node.getNode(0), frame);
+                b = this.eval(node.getNode(1), frame);
+                this.logical(type, a, b, n);
+                this.release(b);
+                return a;
+                
+            case NodeType.EQUALS:
+            case NodeType.NOT_EQUALS:
+            case NodeType.LESS_THAN:
+            case NodeType.LESS_EQUALS:
+            case NodeType.GREATER_THAN:
+            case NodeType.GREATER_EQUALS:
+                a = this.eval(node.getNode(0), frame);
+                b = this.eval(node.getNode(1), frame);
+                this.compare(type, a, b, n);
+                this.release(b);
+                return a;
+                
+            case NodeType.IF:
+                return this.evalIf(node, frame);
+                
+            case NodeType.SUM:
+            case NodeType.PROD:
+                return this.evalLoop(node, frame, type == NodeType.SUM);
+                
+            case NodeType.FUNCTION:
+                if(((UserDefinedFunction)node).getFrameSize() < 0)
+                    return this.interpret(node, frame);
+                return this.evalFunction((UserDefinedFunction)node, frame);
+                
+            case NodeType.MAX:
+                a = this.eval(node.getNode(0), frame);
+                for(int k=1; k<node.getNodeCount(); k++) {
+                    b = this.eval(node.getNode(k), frame);
+                    for(int i=0; i<n; i++) a[i] = Math.max(a[i], b[i]);
+                    this.release(b);
+                }
+                return a;
+                
+            case NodeType.MIN:
+                a = this.eval(node.getNode(0), frame);
+                for(int k=1; k<node.getNodeCount(); k++) {
+                    b = this.eval(node.getNode(k), frame);
+                    for(int i=0; i<n; i++) a[i] = Math.min(a[i], b[i]);
+                    this.release(b);
+                }
+                return a;
+                
+            default:
+                if(NodeType.isUnaryFunction(type)) {
+                    a = this.eval(node.getNode(0), frame);
+                    this.function(type, a, n);
+                    return a;
+                }
+                return this.interpret(node, frame);
+        }
+    }
+    
+    /**
+     * Calculates a function with one parameter for a chunk of scenarios
+     * 
+     * @param type (int) the type of the function (see NodeType)
+     * @param a (double[]) the parameter values, replaced by the results
+     * @param n (int) the number of scenarios
+     * @throws FiMaLibCalcException 
+     */
+    void function(int type, double[] a, int n) throws FiMaLibCalcException {
+        switch (type) {
+            case NodeType.ABS:      for(int i=0; i<n; i++) a[i] = Math.abs(a[i]); break;
+            case NodeType.ARCCOS:   for(int i=0; i<n; i++) a[i] = Math.acos(a[i]); break;
+            case NodeType.ARCCOSH:  for(int i=0; i<n; i++) a[i] = Double.arccosh(a[i]); break;
+            case NodeType.ARCCOT:   for(int i=0; i<n; i++) a[i] = Double.arccot(a[i]); break;
+            case NodeType.ARCCOTH:  for(int i=0; i<n; i++) a[i] = Double.arccoth(a[i]); break;
+            case NodeType.ARCCSC:   for(int i=0; i<n; i++) a[i] = Double.arccsc(a[i]); break;
+            case NodeType.ARCCSCH:  for(int i=0; i<n; i++) a[i] = Double.arccsch(a[i]); break;
+            case NodeType.ARCSEC:   for(int i=0; i<n; i++) a[i] = Double.arcsec(a[i]); break;
+            case NodeType.ARCSECH:  for(int i=0; i<n; i++) a[i] = Double.arcsech(a[i]); break;
+            case NodeType.ARCSIN:   for(int i=0; i<n; i++) a[i] = Math.asin(a[i]); break;
+            case NodeType.ARCSINH:  for(int i=0; i<n; i++) a[i] = Double.arcsinh(a[i]); break;
+            case NodeType.ARCTAN:   for(int i=0; i<n; i++) a[i] = Math.atan(a[i]); break;
+            case NodeType.ARCTANH:  for(int i=0; i<n; i++) a[i] = Double.arctanh(a[i]); break;
+            case NodeType.COS:      for(int i=0; i<n; i++) a[i] = Math.cos(a[i]); break;
+            case NodeType.COSH:     for(int i=0; i<n; i++) a[i] = Math.cosh(a[i]); break;
+            case NodeType.COT:      for(int i=0; i<n; i++) a[i] = Double.cot(a[i]); break;
+            case NodeType.COTH:     for(int i=0; i<n; i++) a[i] = Double.coth(a[i]); break;
+            case NodeType.CSC:      for(int i=0; i<n; i++) a[i] = Double.csc(a[i]); break;
+            case NodeType.CSCH:     for(int i=0; i<n; i++) a[i] = Double.csch(a[i]); break;
+            case NodeType.EXP:      for(int i=0; i<n; i++) a[i] = Math.exp(a[i]); break;
+            case NodeType.INT:      for(int i=0; i<n; i++) a[i] = (double)Math.round(a[i] - 0.5); break;
+            case NodeType.RAND:     this.random(a, n); break;
+            case NodeType.SEC:      for(int i=0; i<n; i++) a[i] = Double.sec(a[i]); break;
+            case NodeType.SECH:     for(int i=0; i<n; i++) a[i] = Double.sech(a[i]); break;
+            case NodeType.SIN:      for(int i=0; i<n; i++) a[i] = Math.sin(a[i]); break;
+            case NodeType.SINH:     for(int i=0; i<n; i++) a[i] = Math.sinh(a[i]); break;
+            case NodeType.TAN:      for(int i=0; i<n; i++) a[i] = Math.tan(a[i]); break;
+            case NodeType.TANH:     for(int i=0; i<n; i++) a[i] = Math.tanh(a[i]); break;
+            case NodeType.CND:      for(int i=0; i<n; i++) a[i] = Cnd.cnd(a[i]); break;
+            
+            case NodeType.SGN:
+                for(int i=0; i<n; i++) a[i] = (a[i] < 0.0) ? -1.0 : ((a[i] > 0.0) ? 1.0 : 0.0);
+                break;
+                
+            case NodeType.LN:
+            case NodeType.LOG:
+                for(int i=0; i<n; i++) {
+                    if(a[i] <= 0.0)
+                        throw new FiMaLibUndefinedException("Cannot calc logarithm of negative value");
+                }
+                if(type == NodeType.LN)
+                    for(int i=0; i<n; i++) a[i] = Math.log(a[i]);
+                else
+                    for(int i=0; i<n; i++) a[i] = Math.log10(a[i]);
+                break;
+                
+            case NodeType.SQRT:
+                for(int i=0; i<n; i++) {
+                    if(a[i] < 0.0)
+                        throw new FiMaLibUndefinedException("Cannot calculate square root of negative value");
+                }
+                for(int i=0; i<n; i++) a[i] = Math.sqrt(a[i]);
+                break;
+                
+            default:
+                throw new FormulaException("Unknown function type " + type);
+        }
+    }
+    
+    /**
+     * Compares two chunks of values
+     * 
+     * @param type (int) the type of the comparison (see NodeType)
+     * @param a (double[]) the left values, replaced by the results
+     * @param b (double[]) the right values
+     * @param n (int) the number of scenarios
+     */
+    void compare(int type, double[] a, double[] b, int n) {
+        final double t = Boolean.BOOLEAN_TRUE;
+        final double f = Boolean.BOOLEAN_FALSE;
+        
+        switch (type) {
+            case NodeType.EQUALS:           for(int i=0; i<n; i++) a[i] = (a[i] == b[i]) ? t : f; break;
+            case NodeType.NOT_EQUALS:       for(int i=0; i<n; i++) a[i] = (a[i] != b[i]) ? t : f; break;
+            case NodeType.LESS_THAN:        for(int i=0; i<n; i++) a[i] = (a[i] < b[i]) ? t : f; break;
+            case NodeType.LESS_EQUALS:      for(int i=0; i<n; i++) a[i] = (a[i] <= b[i]) ? t : f; break;
+            case NodeType.GREATER_THAN:     for(int i=0; i<n; i++) a[i] = (a[i] > b[i]) ? t : f; break;
+            default:                        for(int i=0; i<n; i++) a[i] = (a[i] >= b[i]) ? t : f; break;
+        }
+    }
+    
+    /**
+     * Combines two chunks of boolean values
+     * 
+     * @param type (int) the type of the logical operator (see NodeType)
+     * @param a (double[]) the left values, replaced by the results
+     * @param b (double[]) the right values
+     * @param n (int) the number of scenarios
+     */
+    void logical(int type, double[] a, double[] b, int n) {
+        final double t = Boolean.BOOLEAN_TRUE;
+        final double f = Boolean.BOOLEAN_FALSE;
+        
+        switch (type) {
+            case NodeType.AND:  for(int i=0; i<n; i++) a[i] = ((a[i] != f) && (b[i] != f)) ? t : f; break;
+            case NodeType.OR:   for(int i=0; i<n; i++) a[i] = ((a[i] != f) || (b[i] != f)) ? t : f; break;
+            default:            for(int i=0; i<n; i++) a[i] = ((a[i] != f) != (b[i] != f)) ? t : f; break;
+        }
+    }
+    
+    /**
+     * Evaluates an if function. The true and false parts are only evaluated
+     * for the scenarios that need them.
+     * 
+     * @param node (Node) the if function
+     * @param frame (Frame) the variable values
+     * @return the results (double[])
+     * @throws FiMaLibCalcException 
+     */
+    double[] evalIf(Node node, Frame frame) throws FiMaLibCalcException {
+        int n = frame.size;
+        double[] condition = this.eval(node.getNode(0), frame);
+        int[] trueRows = this.acquireSelection();
+        int[] falseRows = this.acquireSelection();
+        int numTrue = 0;
+        int numFalse = 0;
+        
+        for(int i=0; i<n; i++) {
+            if(condition[i] != Boolean.BOOLEAN_FALSE)
+                trueRows[numTrue++] = i;
+            else
+                falseRows[numFalse++] = i;
+        }
+        
+        Node falsePart = (node.getNodeCount() > 2) ? node.getNode(2) : null;
+        double[] result;
+        
+        if(numFalse == 0) {
+            result = this.eval(node.getNode(1), frame);
+            this.release(condition);
+        }
+        else if((numTrue == 0) && (falsePart != null)) {
+            result = this.eval(falsePart, frame);
+            this.release(condition);
+        }
+        else {
+            result = condition;
+            this.evalSelection(node.getNode(1), frame, trueRows, numTrue, result, SET);
+            if(falsePart != null)
+                this.evalSelection(falsePart, frame, falseRows, numFalse, result, SET);
+            else
+                for(int j=0; j<numFalse; j++) result[falseRows[j]] = 0.0;
+        }
+        
+        this.releaseSelection(trueRows);
+        this.releaseSelection(falseRows);
+        
+        return result;
+    }
+    
+    /**
+     * Evaluates a short-circuit operator (&& or ||). The right operand is only
+     * evaluated for the scenarios whose result is not decided by the left
+     * operand, so that the left operand can guard the right one (like the
+     * condition of an if function).
+     * 
+     * @param node (Node) the operator
+     * @param frame (Frame) the variable values
+     * @param and (boolean) true for &&, false for ||
+     * @return the results (double[])
+     * @throws FiMaLibCalcException 
+     */
+    double[] evalShortCircuit(Node node, Frame frame, boolean and) throws FiMaLibCalcException {
+        int n = frame.size;
+        double f = Boolean.BOOLEAN_FALSE;
+        double[] result = this.eval(node.getNode(0), frame);
+        int[] rows = this.acquireSelection();
+        int count = 0;
+        
+        // the scenarios whose result depends on the right operand
+        for(int i=0; i<n; i++) {
+            if((result[i] != f) == and) rows[count++] = i;
+        }
+        
+        if(count == n) {
+            this.release(result);
+            result = this.eval(node.getNode(1), frame);
+        }
+        else {
+            this.evalSelection(node.getNode(1), frame, rows, count, result, SET);
+        }
+        this.releaseSelection(rows);
+        
+        for(int i=0; i<n; i++) result[i] = (result[i] != f) ? Boolean.BOOLEAN_TRUE : f;
+        
+        return result;
+    }
+    
+    /**
+     * Evaluates a sum or product function. In each iteration, the formula is
+     * only evaluated for the scenarios whose running variable has not yet
+     * reached the end value.
+     * 
+     * @param node (Node) the sum or product function
+     * @param frame (Frame) the variable values
+     * @param sum (boolean) true for sum, false for product
+     * @return the results (double[])
+     * @throws FiMaLibCalcException 
+     */
+    double[] evalLoop(Node node, Frame frame, boolean sum) throws FiMaLibCalcException {
+        int n = frame.size;
+        int slot = sum ? ((Sum)node).getSlot() : ((Prod)node).getSlot();
+        if(slot < 0)
+            throw new FormulaException("Function " + node.getName() + " is not bound to slots");
+        
+        double[] value = this.eval(node.getNode(0), frame);
+        double[] endValue = this.eval(node.getNode(1), frame);
+        double[] result = this.acquire();
+        Arrays.fill(result, 0, n, sum ? 0.0 : 1.0);
+        int[] rows = this.acquireSelection();
+        
+        double[] oldColumn = frame.columns[slot];
+        int oldOffset = frame.offsets[slot];
+        frame.columns[slot] = value;
+        frame.offsets[slot] = 0;
+        
+        while(true) {
+            int count = 0;
+            for(int i=0; i<n; i++) {
+                if(value[i] <= endValue[i]) rows[count++] = i;
+            }
+            if(count == 0) break;
+            
+            if(count == n) {
+                double[] values = this.eval(node.getNode(2), frame);
+                if(sum)
+                    for(int i=0; i<n; i++) result[i] += values[i];
+                else
+                    for(int i=0; i<n; i++) result[i] *= values[i];
+                this.release(values);
+            }
+            else {
+                this.evalSelection(node.getNode(2), frame, rows, count, result, sum ? ADD : MULTIPLY);
+            }
+            
+            for(int i=0; i<n; i++) value[i] += 1.0;
+        }
+        
+        // restore old values of the running variable
+        frame.columns[slot] = oldColumn;
+        frame.offsets[slot] = oldOffset;
+        
+        this.release(value);
+        this.release(endValue);
+        this.releaseSelection(rows);
+        
+        return result;
+    }
+    
+    /**
+     * Evaluates a user defined function. The parameter values are calculated
+     * column-wise and form the frame in which the definition is evaluated.
+     * 
+     * @param function (UserDefinedFunction) the function
+     * @param frame (Frame) the variable values
+     * @return the results (double[])
+     * @throws FiMaLibCalcException 
+     */
+    double[] evalFunction(UserDefinedFunction function, Frame frame) throws FiMaLibCalcException {
+        int numParameters = function.getNodeCount();
+        Frame newFrame = new Frame(function.getFrameSize(), frame.size);
+        
+        for(int i=0; i<numParameters; i++) {
+            newFrame.columns[i] = this.eval(function.getNode(i), frame);
+        }
+        
+        double[] result = this.eval(function.getDefinition(), newFrame);
+        
+        for(int i=0; i<numParameters; i++) {
+            this.release(newFrame.columns[i]);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Evaluates a sub tree for some of the scenarios of a chunk only and
+     * stores the results at the given positions of the result buffer.
+     * 
+     * @param node (Node) the sub tree
+     * @param frame (Frame) the variable values
+     * @param rows (int[]) the positions of the scenarios within the chunk
+     * @param count (int) the number of scenarios
+     * @param result (double[]) the result buffer
+     * @param mode (int) whether to set the results (SET), to add them (ADD)
+     * or to multiply them (MULTIPLY)
+     * @throws FiMaLibCalcException 
+     */
+    void evalSelection(Node node, Frame frame, int[] rows, int count, double[] result, int mode) throws FiMaLibCalcException {
+        if(count == 0) return;
+        
+        // gather the variable values of the selected scenarios
+        int numSlots = frame.columns.length;
+        Frame subFrame = new Frame(numSlots, count);
+        for(int s=0; s<numSlots; s++) {
+            double[] column = frame.columns[s];
+            if(column == null) continue;
+            
+            double[] subColumn = this.acquire();
+            int offset = frame.offsets[s];
+            for(int j=0; j<count; j++) subColumn[j] = column[offset + rows[j]];
+            subFrame.columns[s] = subColumn;
+        }
+        
+        double[] values = this.eval(node, subFrame);
+        switch (mode) {
+            case ADD:       for(int j=0; j<count; j++) result[rows[j]] += values[j]; break;
+            case MULTIPLY:  for(int j=0; j<count; j++) result[rows[j]] *= values[j]; break;
+            default:        for(int j=0; j<count; j++) result[rows[j]] = values[j]; break;
+        }
+        this.release(values);
+        
+        for(int s=0; s<numSlots; s++) {
+            if(subFrame.columns[s] != null) this.release(subFrame.columns[s]);
+        }
+    }
+    
+    /**
+     * Evaluates a node that is not supported by the batch evaluator with the
+     * interpreter, scenario by scenario
+     * 
+     * @param node (Node) the node
+     * @param frame (Frame) the variable values
+     * @return the results (double[])
+     * @throws FiMaLibCalcException 
+     */
+    double[] interpret(Node node, Frame frame) throws FiMaLibCalcException {
+        int numSlots = frame.columns.length;
+        double[] values = new double[numSlots];
+        double[] result = this.acquire();
+        
+        for(int i=0; i<frame.size; i++) {
+            for(int s=0; s<numSlots; s++) {
+                if(frame.columns[s] != null) values[s] = frame.columns[s][frame.offsets[s] + i];
+            }
+            result[i] = node.evaluate(values);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Multiplies the parameter values with uniformly distributed random
+     * numbers, which are drawn from the random stream in one go
+     * 
+     * @param a (double[]) the parameter values, replaced by the results
+     * @param n (int) the number of scenarios
+     */
+    void random(double[] a, int n) {
+        double[] uniforms = this.acquire();
+        this.getRandom().nextDoubles(uniforms, 0, n);
+        
+        for(int i=0; i<n; i++) {
+            a[i] = uniforms[i] * a[i];
+        }
+        this.release(uniforms);
+    }
+    
+    /**
+     * Returns a free buffer
+     * 
+     * @return the buffer (double[])
+     */
+    double[] acquire() {
+        int size = this.buffers.size();
+        if(size == 0) return new double[CHUNK_SIZE];
+        
+        return this.buffers.remove(size - 1);
+    }
+    
+    /**
+     * Returns a buffer to the list of free buffers
+     * 
+     * @param buffer (double[]) the buffer
+     */
+    void release(double[] buffer) {
+        this.buffers.add(buffer);
+    }
+    
+    /**
+     * Returns a free selection buffer
+     * 
+     * @return the selection buffer (int[])
+     */
+    int[] acquireSelection() {
+        int size = this.selections.size();
+        if(size == 0) return new int[CHUNK_SIZE];
+        
+        return this.selections.remove(size - 1);
+    }
+    
+    /**
+     * Returns a selection buffer to the list of free selection buffers
+     * 
+     * @param selection (int[]) the selection buffer
+     */
+    void releaseSelection(int[] selection) {
+        this.selections.add(selection);
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.util.Arrays;
+import org.fimalib.calc.Boolean;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.FiMaLibUndefinedException;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.NodeType;
+import org.fimalib.calc.formula.RandomStream;
+import org.fimalib.calc.formula.functions.Cnd;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class evaluates a formula DAG (see FormulaDag) with primitive values,
+ * calculating each node of the DAG at most once per evaluation (or once per
+ * iteration of a sum or product, if the node depends on its running
+ * variable). Hence, the time of an evaluation is proportional to the number
+ * of distinct subexpressions of the formula rather than to the size of the
+ * formula tree.
+ * 
+ * The nodes that are needed by every evaluation are calculated in a single
+ * pass over an array, all other nodes on demand. Hence, the if function only
+ * calculates the part that is selected by the condition, and the results (and
+ * exceptions) are the same as with Node.evaluate.
+ * 
+ * The calculated values are kept in buffers of the evaluator. Hence, a DAG
+ * evaluator must not be used by several threads at the same time; create one
+ * evaluator per thread for the same formula DAG instead.
+ * 
+ * Example:
+ * 
+ *  Node gradient = Formula.parse(cashflows).derive("r");
+ *  DagEvaluator evaluator = new DagEvaluator(new FormulaDag(gradient, "r"));
+ *  double result = evaluator.evaluate(new double[] { 0.05 });
+ * 
+ * @author Peter Werno
+ */
+public class DagEvaluator {
+    FormulaDag dag;
+    double[] values;
+    long[] stamps;          // the scope stamp at the time the value has been calculated
+    long[] scopeStamps;     // the current stamp of each scope, changed with every evaluation (iteration)
+    long stamp;
+    EvaluationContext context;  // the context reused by evaluate(double[])
+    
+    /**
+     * Creates a new instance of DagEvaluator
+     * 
+     * @param dag (FormulaDag) the formula DAG
+     */
+    public DagEvaluator(FormulaDag dag) {
+        this.dag = dag;
+        this.values = new double[dag.size];
+        this.stamps = new long[dag.size];
+        this.scopeStamps = new long[dag.numScopes];
+        
+        Arrays.fill(this.stamps, -1L);
+        for(int id=0; id<dag.size; id++) {
+            if(dag.types[id] == NodeType.CONSTANT) this.values[id] = dag.constants[id];
+        }
+    }
+    
+    /**
+     * Creates a new instance of DagEvaluator for a formula tree, with the
+     * variables being assigned to the slots in the given order
+     * 
+     * @param formula (Node) the formula tree
+     * @param variables (String...) the variable names
+     * @throws FiMaLibCalcException 
+     */
+    public DagEvaluator(Node formula, String... variables) throws FiMaLibCalcException {
+        this(new FormulaDag(formula, variables));
+    }
+    
+    /**
+     * Returns the formula DAG
+     * 
+     * @return the formula DAG (FormulaDag)
+     */
+    public FormulaDag getDag() {
+        return this.dag;
+    }
+    
+    /**
+     * Evaluates the formula with the variable values given as primitive array
+     * (see Node.evaluate), using an evaluation context that is reused by all
+     * calls of the evaluator (a nested call gets a new context)
+     * 
+     * @param slots (double[]) the variable values
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    public double evaluate(double[] slots) throws FiMaLibCalcException {
+        if(this.context == null) this.context = new EvaluationContext((double[])null);
+        
+        // the context is in use by an outer call
+        if(this.context.getSlots() != null) return this.evaluate(new EvaluationContext(slots));
+        
+        this.context.setSlots(slots);
+        try {
+            return this.evaluate(this.context);
+        }
+        finally {
+            this.context.setSlots(null);
+        }
+    }
+    
+    /**
+     * Evaluates the formula within an evaluation context
+     * (see Node.evaluate)
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        FormulaDag d = this.dag;
+        int[] eager = d.eager;
+        int[] children = d.children;
+        double[] vals = this.values;
+        long current = ++this.stamp;
+        this.scopeStamps[0] = current;
+        
+        // the nodes needed by every evaluation are calculated in a single pass,
+        // all others (e.g. the parts of if functions) on demand
+        for(int k=0; k<eager.length; k++) {
+            int id = eager[k];
+            int first = d.first[id];
+            double value;
+            
+            switch (d.types[id]) {
+                case NodeType.VARIABLE: value = context.get(d.refs[id]); break;
+                case NodeType.ADD:      value = vals[children[first]] + vals[children[first + 1]]; break;
+                case NodeType.SUB:      value = vals[children[first]] - vals[children[first + 1]]; break;
+                case NodeType.MUL:      value = vals[children[first]] * vals[children[first + 1]]; break;
+                case NodeType.NEG:      value = -vals[children[first]]; break;
+                case NodeType.EXP:      value = Math.exp(vals[children[first]]); break;
+                default:                value = this.calculate(id, context); break;
+            }
+            
+            vals[id] = value;
+            this.stamps[id] = current;
+        }
+        
+        return vals[d.root];
+    }
+    
+    /**
+     * Returns the value of a DAG node, calculating it if it has not been
+     * calculated within the current scope yet
+     * 
+     * @param id (int) the DAG node
+     * @param context (EvaluationContext) the evaluation context
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    double value(int id, EvaluationContext context) throws FiMaLibCalcException {
+        long current = this.scopeStamps[this.dag.scopes[id]];
+        if(this.stamps[id] == current) return this.values[id];
+        
+        double retVal = this.calculate(id, context);
+        this.values[id] = retVal;
+        this.stamps[id] = current;
+        
+        return retVal;
+    }
+    
+    /**
+     * Calculates a DAG node
+     * 
+     * @param id (int) the DAG node
+     * @param context (EvaluationContext) the evaluation context
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    double calculate(int id, EvaluationContext context) throws FiMaLibCalcException {
+        FormulaDag d = this.dag;
+        int type = d.types[id];
+        int first = d.first[id];
+        double a;
+        double b;
+        
+        switch (type) {
+            case NodeType.CONSTANT:
+                return d.constants[id];
+                
+            case NodeType.VARIABLE:
+                return context.get(d.refs[id]);
+                
+            case NodeType.UNKNOWN:
+                return d.nodes[id].evaluate(context);
+                
+            case NodeType.IF:
+                if(this.value(d.children[first], context) != Boolean.BOOLEAN_FALSE)
+                    return this.value(d.children[first + 1], context);
+                if(d.counts[id] > 2)
+                    return this.value(d.children[first + 2], context);
+                return 0.0;
+                
+            case NodeType.AND:
+            case NodeType.OR:
+                // short-circuit: the right operand is only calculated if it decides the result
+                if((this.value(d.children[first], context) != Boolean.BOOLEAN_FALSE) == (type == NodeType.OR))
+                    return (type == NodeType.OR) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+                return (this.value(d.children[first + 1], context) != Boolean.BOOLEAN_FALSE) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+                
+            case NodeType.SUM:
+            case NodeType.PROD:
+                return this.loop(id, type == NodeType.SUM, context);
+                
+            case NodeType.FUNCTION:
+                return this.function(id, context);
+                
+            case NodeType.NEG:
+                return -this.value(d.children[first], context);
+                
+            case NodeType.NOT:
+                return (this.value(d.children[first], context) == Boolean.BOOLEAN_FALSE) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+                
+            case NodeType.RAND:
+                return context.getRandom().nextDouble() * this.value(d.children[first], context);
+                
+            case NodeType.MAX:
+            case NodeType.MIN:
+                a = this.value(d.children[first], context);
+                for(int i=1; i<d.counts[id]; i++) {
+                    a = extremum(type, a, this.value(d.children[first + i], context));
+                }
+                return a;
+                
+            default:
+                if(NodeType.isUnaryFunction(type))
+                    return function(type, this.value(d.children[first], context));
+                
+                a = this.value(d.children[first], context);
+                b = this.value(d.children[first + 1], context);
+                return operation(type, a, b);
+        }
+    }
+    
+    /**
+     * Calculates a sum or product. The stamp of the scope of the running
+     * variable is changed with every iteration, so that the nodes depending on
+     * the running variable are calculated again.
+     * 
+     * @param id (int) the DAG node
+     * @param sum (boolean) true for a sum, false for a product
+     * @param context (EvaluationContext) the evaluation context
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    double loop(int id, boolean sum, EvaluationContext context) throws FiMaLibCalcException {
+        FormulaDag d = this.dag;
+        int first = d.first[id];
+        int slot = d.refs[id];
+        int loop = d.loops[id];
+        int formula = d.children[first + 2];
+        
+        double startVal = this.value(d.children[first], context);
+        double endVal = this.value(d.children[first + 1], context);
+        double oldParameter = context.get(slot);
+        double retVal = sum ? 0.0 : 1.0;
+        
+        for(double value = startVal; value <= endVal; value += 1.0) {
+            context.set(slot, value);
+            this.scopeStamps[loop] = ++this.stamp;
+            if(sum)
+                retVal += this.value(formula, context);
+            else
+                retVal *= this.value(formula, context);
+        }
+        
+        // restore old parameter
+        context.set(slot, oldParameter);
+        
+        return retVal;
+    }
+    
+    /**
+     * Calculates a user defined function. The parameters are taken from the
+     * DAG, the definition is evaluated by its formula tree.
+     * 
+     * @param id (int) the DAG node
+     * @param context (EvaluationContext) the evaluation context
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    double function(int id, EvaluationContext context) throws FiMaLibCalcException {
+        FormulaDag d = this.dag;
+        UserDefinedFunction function = (UserDefinedFunction)d.nodes[id];
+        int first = d.first[id];
+        int count = d.counts[id];
+        
+        // the parameters are calculated in the caller's frame
+        int frame = context.allocate(function.getFrameSize());
+        try {
+            for(int i=0; i<count; i++) {
+                context.setLocal(frame, i, this.value(d.children[first + i], context));
+            }
+        }
+        catch (FiMaLibCalcException | RuntimeException ex) {
+            context.release(frame);
+            throw ex;
+        }
+        
+        int caller = context.enter(frame);
+        try {
+            return function.getDefinition().evaluate(context);
+        }
+        finally {
+            context.leave(caller, frame);
+        }
+    }
+    
+    /**
+     * Calculates an operation with two operands (arithmetic, logical or
+     * comparison) like the corresponding formula node
+     * 
+     * @param type (int) the type of the operation (see NodeType)
+     * @param a (double) the left operand
+     * @param b (double) the right operand
+     * @return the result (double)
+     * @throws FiMaLibCalcException 
+     */
+    static double operation(int type, double a, double b) throws FiMaLibCalcException {
+        final double t = Boolean.BOOLEAN_TRUE;
+        final double f = Boolean.BOOLEAN_FALSE;
+        
+        switch (type) {
+            case NodeType.ADD:              return a + b;
+            case NodeType.SUB:              return a - b;
+            case NodeType.MUL:              return a * b;
+            case NodeType.POW:              return Math.pow(a, b);
+            case NodeType.AND:              return ((a != f) && (b != f)) ? t : f;
+            case NodeType.OR:               return ((a != f) || (b != f)) ? t : f;
+            case NodeType.XOR:              return ((a != f) != (b != f)) ? t : f;
+            case NodeType.EQUALS:           return (a == b) ? t : f;
+            case NodeType.NOT_EQUALS:       return (a != b) ? t : f;
+            case NodeType.LESS_THAN:        return (a < b) ? t : f;
+            case NodeType.LESS_EQUALS:      return (a <= b) ? t : f;
+            case NodeType.GREATER_THAN:     return (a > b) ? t : f;
+            case NodeType.GREATER_EQUALS:   return (a >= b) ? t : f;
+                
+            case NodeType.DIV:
+                if(b == 0.0)
+                    throw new FiMaLibDivisionByZeroException("Division by zero");
+                return a / b;
+                
+            default:
+                throw new FormulaException("Unknown operation type " + type);
+        }
+    }
+    
+    /**
+     * Calculates a function with one parameter like the corresponding formula
+     * node
+     * 
+     * @param type (int) the type of the function (see NodeType)
+     * @param a (double) the parameter value
+     * @return the result (double)
+     * @throws FiMaLibCalcException 
+     */
+    static double function(int type, double a) throws FiMaLibCalcException {
+        switch (type) {
+            case NodeType.ABS:      return Math.abs(a);
+            case NodeType.ARCCOS:   return Math.acos(a);
+            case NodeType.ARCCOSH:  return Double.arccosh(a);
+            case NodeType.ARCCOT:   return Double.arccot(a);
+            case NodeType.ARCCOTH:  return Double.arccoth(a);
+            case NodeType.ARCCSC:   return Double.arccsc(a);
+            case NodeType.ARCCSCH:  return Double.arccsch(a);
+            case NodeType.ARCSEC:   return Double.arcsec(a);
+            case NodeType.ARCSECH:  return Double.arcsech(a);
+            case NodeType.ARCSIN:   return Math.asin(a);
+            case NodeType.ARCSINH:  return Double.arcsinh(a);
+            case NodeType.ARCTAN:   return Math.atan(a);
+            case NodeType.ARCTANH:  return Double.arctanh(a);
+            case NodeType.COS:      return Math.cos(a);
+            case NodeType.COSH:     return Math.cosh(a);
+            case NodeType.COT:      return Double.cot(a);
+            case NodeType.COTH:     return Double.coth(a);
+            case NodeType.CSC:      return Double.csc(a);
+            case NodeType.CSCH:     return Double.csch(a);
+            case NodeType.EXP:      return Math.exp(a);
+            case NodeType.INT:      return (double)Math.round(a - 0.5);
+            case NodeType.RAND:     return RandomStream.current().nextDouble() * a;
+            case NodeType.SEC:      return Double.sec(a);
+            case NodeType.SECH:     return Double.sech(a);
+            case NodeType.SGN:      return (a < 0.0) ? -1.0 : ((a > 0.0) ? 1.0 : 0.0);
+            case NodeType.SIN:      return Math.sin(a);
+            case NodeType.SINH:     return Math.sinh(a);
+            case NodeType.TAN:      return Math.tan(a);
+            case NodeType.TANH:     return Math.tanh(a);
+            case NodeType.CND:      return Cnd.cnd(a);
+                
+            case NodeType.LN:
+                if(a <= 0.0)
+                    throw new FiMaLibUndefinedException("Cannot calc logarithm of negative value");
+                return Math.log(a);
+                
+            case NodeType.LOG:
+                if(a <= 0.0)
+                    throw new FiMaLibUndefinedException("Cannot calc logarithm of negative value");
+                return Math.log10(a);
+                
+            case NodeType.SQRT:
+                if(a < 0.0)
+                    throw new FiMaLibUndefinedException("Cannot calculate square root of negative value");
+                return Math.sqrt(a);
+                
+            default:
+                throw new FormulaException("Unknown function type " + type);
+        }
+    }
+    
+    /**
+     * Returns the larger (max) or smaller (min) of two values like the
+     * corresponding formula node
+     * 
+     * @param type (int) the type of the function (MAX or MIN)
+     * @param a (double) the first value
+     * @param b (double) the second value
+     * @return the result (double)
+     */
+    static double extremum(int type, double a, double b) {
+        return (type == NodeType.MAX) ? Math.max(a, b) : Math.min(a, b);
+    }
+}
@@ -0,0 +1,649 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import org.fimalib.calc.Complex;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.NodeType;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.functions.Prod;
+import org.fimalib.calc.formula.functions.Sum;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+import org.fimalib.calc.formula.nodes.Variable;
+
+/**
+ * This class turns a formula tree into a directed acyclic graph (DAG), in
+ * which structurally equal subtrees are represented by one shared node
+ * (hash-consing). Formula trees, especially the results of Node.derive,
+ * often contain the same subtree many times (e.g. the discount factor
+ * exp(-r*t) in every term of a cash flow sum and its derivative). With the
+ * DAG, a DagEvaluator calculates each distinct subexpression only once per
+ * evaluation.
+ * 
+ * The nodes of the DAG are numbered such that the children of a node always
+ * have lower numbers than the node itself. The nodes of the formulas of sums
+ * and products belong to the scope of the running variable if they depend on
+ * it (and are calculated once per iteration), otherwise to the enclosing
+ * scope (and are calculated only once for all iterations).
+ * 
+ * The rand function (and user defined functions using it) and nodes of
+ * unknown classes are never shared. The definitions of user defined functions
+ * are not included in the DAG (only their parameters are), but have DAGs of
+ * their own.
+ * 
+ * A formula DAG is not changed after its construction and can be used by
+ * several evaluators (and threads) at the same time.
+ * 
+ * Example:
+ * 
+ *  FormulaDag dag = new FormulaDag(Formula.parse("exp(-r*t)*c+exp(-r*t)*t"), "r", "t", "c");
+ *  double result = new DagEvaluator(dag).evaluate(new double[] { 0.05, 2.0, 100.0 });
+ * 
+ * @author Peter Werno
+ */
+public class FormulaDag {
+    static final int MAXIMUM_DEPTH = 62;        // maximum nesting of sums and products (bits of a scope mask)
+    
+    Node formula;
+    SlotMap slots;
+    int numVariables;       // the slots of the variables, i.e. without the running variables of sums and products
+    int root;
+    int treeSize;
+    
+    // the nodes of the DAG
+    int size;
+    int[] types;            // the type of the node (see NodeType), UNKNOWN for nodes evaluated by the formula node itself
+    int[] first;            // position of the first child within children
+    int[] counts;           // number of children
+    int[] children;
+    int numChildren;
+    double[] constants;     // values of constants
+    int[] refs;             // slots of variables and running variables of sums and products
+    int[] loops;            // scopes of the running variables of sums and products
+    int[] scopes;           // the scope the node is calculated in
+    long[] masks;           // the depths of the scopes the node depends on (bit set)
+    Node[] nodes;           // the formula nodes represented by the DAG nodes
+    int[] eager;            // the nodes calculated with every evaluation (in order), except constants
+    
+    // the scopes, i.e. the formula (0) and the running variables of sums and products
+    int numScopes;
+    int[] scopeParents;
+    int[] scopeDepths;
+    int[] scopeSlots;
+    
+    HashMap<Key, Integer> index;
+    
+    /**
+     * The key of a DAG node for finding structurally equal nodes
+     */
+    static class Key {
+        int type;
+        int[] children;
+        long value;
+        Object ref;
+        
+        Key(int type, int[] children, long value, Object ref) {
+            this.type = type;
+            this.children = children;
+            this.value = value;
+            this.ref = ref;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key)) return false;
+            
+            Key key = (Key)obj;
+            return (this.type == key.type) && (this.value == key.value) && (this.ref == key.ref) 
+                    && Arrays.equals(this.children, key.children);
+        }
+        
+        @Override
+        public int hashCode() {
+            int hash = 31 * this.type + Long.hashCode(this.value);
+            hash = 31 * hash + Arrays.hashCode(this.children);
+            return 31 * hash + ((this.ref == null) ? 0 : System.identityHashCode(this.ref));
+        }
+    }
+    
+    /**
+     * Creates a new instance of FormulaDag. The formula tree is bound to the
+     * given slot map (see Node.bind).
+     * 
+     * @param formula (Node) the formula tree
+     * @param slots (SlotMap) the slot map
+     * @throws FiMaLibCalcException 
+     */
+    public FormulaDag(Node formula, SlotMap slots) throws FiMaLibCalcException {
+        this.formula = formula;
+        this.slots = slots;
+        this.numVariables = slots.size();
+        
+        formula.bind(slots);
+        this.build();
+    }
+    
+    /**
+     * Builds the DAG of the (bound) formula tree
+     * 
+     * @throws FiMaLibCalcException 
+     */
+    final void build() throws FiMaLibCalcException {
+        int capacity = 64;
+        this.types = new int[capacity];
+        this.first = new int[capacity];
+        this.counts = new int[capacity];
+        this.constants = new double[capacity];
+        this.refs = new int[capacity];
+        this.loops = new int[capacity];
+        this.scopes = new int[capacity];
+        this.masks = new long[capacity];
+        this.nodes = new Node[capacity];
+        this.children = new int[capacity];
+        this.scopeParents = new int[8];
+        this.scopeDepths = new int[8];
+        this.scopeSlots = new int[8];
+        this.numScopes = 1;
+        this.scopeParents[0] = -1;
+        this.scopeSlots[0] = -1;
+        this.index = new HashMap<>();
+        
+        this.root = this.intern(this.formula, 0);
+        this.eager = this.eager();
+        
+        // the index is only needed for the construction
+        this.index = null;
+    }
+    
+    /**
+     * Creates a new instance of FormulaDag for the definition of a (bound)
+     * user defined function. The variables of the definition are the slots of
+     * the function's frame, so the DAG has no slot map.
+     * 
+     * @param function (UserDefinedFunction) the user defined function
+     * @throws FiMaLibCalcException 
+     */
+    FormulaDag(UserDefinedFunction function) throws FiMaLibCalcException {
+        if(function.getFrameSize() < 0)
+            throw new FormulaException("Function " + function.getName() + " is not bound to slots");
+        
+        this.formula = function.getDefinition();
+        this.numVariables = function.getParameterNames().length;
+        this.build();
+    }
+    
+    /**
+     * Creates a new instance of FormulaDag with the variables being assigned
+     * to the slots in the given order
+     * 
+     * @param formula (Node) the formula tree
+     * @param variables (String...) the variable names
+     * @throws FiMaLibCalcException 
+     */
+    public FormulaDag(Node formula, String... variables) throws FiMaLibCalcException {
+        this(formula, new SlotMap(variables));
+    }
+    
+    /**
+     * Returns the formula tree
+     * 
+     * @return the formula tree (Node)
+     */
+    public Node getFormula() {
+        return this.formula;
+    }
+    
+    /**
+     * Returns the slots of the variables
+     * 
+     * @return the slot map (SlotMap)
+     */
+    public SlotMap getSlots() {
+        return this.slots;
+    }
+    
+    /**
+     * Returns the number of variables, i.e. of the slots given before the
+     * formula has been bound (the running variables of sums and products
+     * get further slots)
+     * 
+     * @return the number of variables (int)
+     */
+    public int getVariableCount() {
+        return this.numVariables;
+    }
+    
+    /**
+     * Returns the number of distinct nodes of the DAG
+     * 
+     * @return the number of nodes (int)
+     */
+    public int getSize() {
+        return this.size;
+    }
+    
+    /**
+     * Returns the number of nodes of the formula tree, i.e. the number of
+     * nodes an evaluation of the tree calculates (without repetitions of sums
+     * and products)
+     * 
+     * @return the number of nodes (int)
+     */
+    public int getTreeSize() {
+        return this.treeSize;
+    }
+    
+    /**
+     * Adds the DAG node for a (sub) tree, or finds the equal DAG node that
+     * has been added before
+     * 
+     * @param node (Node) the (sub) tree
+     * @param scope (int) the scope of the (sub) tree
+     * @return the DAG node (int)
+     * @throws FiMaLibCalcException 
+     */
+    int intern(Node node, int scope) throws FiMaLibCalcException {
+        int type = NodeType.of(node);
+        this.treeSize++;
+        
+        switch (type) {
+            case NodeType.CONSTANT:
+                Number constant = node.calculate(null);
+                if((constant instanceof Complex) && (((Complex)constant).getImg() != 0.0))
+                    return this.opaque(node, scope);
+                double value = constant.getValue();
+                int id = this.find(new Key(type, null, java.lang.Double.doubleToLongBits(value), null), node, type, null, 0L, 0);
+                this.constants[id] = value;
+                return id;
+                
+            case NodeType.VARIABLE:
+                return this.internVariable((Variable)node, scope);
+                
+            case NodeType.SUM:
+            case NodeType.PROD:
+                return this.internLoop(node, type, scope);
+                
+            case NodeType.FUNCTION:
+                UserDefinedFunction function = (UserDefinedFunction)node;
+                if(function.getFrameSize() < 0)
+                    return this.opaque(node, scope);
+                if(isVolatile(function.getDefinition()))
+                    return this.internVolatile(node, type, scope);
+                return this.internOperation(node, type, function.getDefinition(), scope);
+                
+            case NodeType.RAND:
+                return this.internVolatile(node, type, scope);
+                
+            case NodeType.UNKNOWN:
+                return this.opaque(node, scope);
+                
+            default:
+                return this.internOperation(node, type, null, scope);
+        }
+    }
+    
+    /**
+     * Adds the DAG node for a variable. A variable that is the running
+     * variable of an enclosing sum or product belongs to its scope.
+     * 
+     * @param variable (Variable) the variable
+     * @param scope (int) the current scope
+     * @return the DAG node (int)
+     * @throws FormulaException 
+     */
+    int internVariable(Variable variable, int scope) throws FormulaException {
+        int slot = variable.getSlot();
+        if(slot < 0)
+            throw new FormulaException("Variable " + variable.getName() + " is not bound to a slot");
+        
+        int owner = scope;
+        while((owner > 0) && (this.scopeSlots[owner] != slot)) {
+            owner = this.scopeParents[owner];
+        }
+        long mask = (owner == 0) ? 0L : (1L << this.scopeDepths[owner]);
+        
+        int id = this.find(new Key(NodeType.VARIABLE, new int[] { owner }, slot, null), variable, NodeType.VARIABLE, null, mask, scope);
+        this.refs[id] = slot;
+        return id;
+    }
+    
+    /**
+     * Adds the DAG node for an operation or function (including if and user
+     * defined functions)
+     * 
+     * @param node (Node) the operation
+     * @param type (int) the type of the operation
+     * @param ref (Object) the definition of a user defined function (or null)
+     * @param scope (int) the current scope
+     * @return the DAG node (int)
+     * @throws FiMaLibCalcException 
+     */
+    int internOperation(Node node, int type, Object ref, int scope) throws FiMaLibCalcException {
+        int count = node.getNodeCount();
+        int[] args = new int[count];
+        long mask = 0L;
+        
+        for(int i=0; i<count; i++) {
+            args[i] = this.intern(node.getNode(i), scope);
+            mask |= this.masks[args[i]];
+        }
+        
+        // a+b equals b+a (also for floating point numbers)
+        int[] key = args;
+        if(((type == NodeType.ADD) || (type == NodeType.MUL)) && (args[0] > args[1])) {
+            key = new int[] { args[1], args[0] };
+        }
+        
+        return this.find(new Key(type, key, 0L, ref), node, type, args, mask, scope);
+    }
+    
+    /**
+     * Adds the DAG node for a sum or product. The formula is added within the
+     * scope of the running variable.
+     * 
+     * @param node (Node) the sum or product
+     * @param type (int) the type (SUM or PROD)
+     * @param scope (int) the current scope
+     * @return the DAG node (int)
+     * @throws FiMaLibCalcException 
+     */
+    int internLoop(Node node, int type, int scope) throws FiMaLibCalcException {
+        int depth = this.scopeDepths[scope] + 1;
+        if(depth > MAXIMUM_DEPTH)
+            return this.opaque(node, scope);
+        
+        int slot = (type == NodeType.SUM) ? ((Sum)node).getSlot() : ((Prod)node).getSlot();
+        if(slot < 0)
+            throw new FormulaException("Function " + node.getName() + " is not bound to slots");
+        
+        int loop = this.scope(scope, slot, depth);
+        int[] args = new int[3];
+        args[0] = this.intern(node.getNode(0), scope);
+        args[1] = this.intern(node.getNode(1), scope);
+        args[2] = this.intern(node.getNode(2), loop);
+        long mask = this.masks[args[0]] | this.masks[args[1]] | (this.masks[args[2]] & ~(1L << depth));
+        
+        int id = this.find(new Key(type, args, slot, null), node, type, args, mask, scope);
+        this.refs[id] = slot;
+        this.loops[id] = loop;
+        return id;
+    }
+    
+    /**
+     * Adds the DAG node for a function that may return different values for
+     * the same parameters (rand or a user defined function using rand). The
+     * node is not shared with any other node and calculated once within the
+     * current scope.
+     * 
+     * @param node (Node) the function
+     * @param type (int) the type of the function
+     * @param scope (int) the current scope
+     * @return the DAG node (int)
+     * @throws FiMaLibCalcException 
+     */
+    int internVolatile(Node node, int type, int scope) throws FiMaLibCalcException {
+        int count = node.getNodeCount();
+        int[] args = new int[count];
+        
+        for(int i=0; i<count; i++) {
+            args[i] = this.intern(node.getNode(i), scope);
+        }
+        
+        return this.add(node, type, args, this.chain(scope), scope);
+    }
+    
+    /**
+     * Adds a DAG node that is not shared with any other node and calculated
+     * by the formula node itself, once within the current scope
+     * 
+     * @param node (Node) the formula node
+     * @param scope (int) the current scope
+     * @return the DAG node (int)
+     */
+    int opaque(Node node, int scope) {
+        return this.add(node, NodeType.UNKNOWN, null, this.chain(scope), scope);
+    }
+    
+    /**
+     * Returns the depths of a scope and all its parent scopes (bit set)
+     * 
+     * @param scope (int) the scope
+     * @return the depths (long)
+     */
+    long chain(int scope) {
+        long retVal = 0L;
+        for(int s=scope; s>0; s=this.scopeParents[s]) {
+            retVal |= 1L << this.scopeDepths[s];
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Returns the DAG node with the given key, or adds a new DAG node if there
+     * is no such node yet
+     * 
+     * @param key (Key) the key
+     * @param node (Node) the formula node
+     * @param type (int) the type of the node
+     * @param args (int[]) the children (or null)
+     * @param mask (long) the depths of the scopes the node depends on
+     * @param scope (int) the current scope
+     * @return the DAG node (int)
+     */
+    int find(Key key, Node node, int type, int[] args, long mask, int scope) {
+        Integer id = this.index.get(key);
+        if(id != null) return id;
+        
+        int retVal = this.add(node, type, args, mask, scope);
+        this.index.put(key, retVal);
+        return retVal;
+    }
+    
+    /**
+     * Adds a new DAG node. The node is calculated within the innermost scope
+     * it depends on.
+     * 
+     * @param node (Node) the formula node
+     * @param type (int) the type of the node
+     * @param args (int[]) the children (or null)
+     * @param mask (long) the depths of the scopes the node depends on
+     * @param scope (int) the current scope
+     * @return the DAG node (int)
+     */
+    int add(Node node, int type, int[] args, long mask, int scope) {
+        int id = this.size++;
+        if(id == this.types.length) {
+            int capacity = 2 * id;
+            this.types = Arrays.copyOf(this.types, capacity);
+            this.first = Arrays.copyOf(this.first, capacity);
+            this.counts = Arrays.copyOf(this.counts, capacity);
+            this.constants = Arrays.copyOf(this.constants, capacity);
+            this.refs = Arrays.copyOf(this.refs, capacity);
+            this.loops = Arrays.copyOf(this.loops, capacity);
+            this.scopes = Arrays.copyOf(this.scopes, capacity);
+            this.masks = Arrays.copyOf(this.masks, capacity);
+            this.nodes = Arrays.copyOf(this.nodes, capacity);
+        }
+        
+        int count = (args == null) ? 0 : args.length;
+        if(this.numChildren + count > this.children.length) {
+            this.children = Arrays.copyOf(this.children, Math.max(this.numChildren + count, 2 * this.children.length));
+        }
+        if(count > 0) System.arraycopy(args, 0, this.children, this.numChildren, count);
+        
+        int depth = (mask == 0L) ? 0 : 63 - Long.numberOfLeadingZeros(mask);
+        int owner = scope;
+        while(this.scopeDepths[owner] > depth) {
+            owner = this.scopeParents[owner];
+        }
+        
+        this.types[id] = type;
+        this.first[id] = this.numChildren;
+        this.counts[id] = count;
+        this.masks[id] = mask;
+        this.scopes[id] = owner;
+        this.nodes[id] = node;
+        this.numChildren += count;
+        
+        return id;
+    }
+    
+    /**
+     * Returns the scope of a running variable within a parent scope. Sums and
+     * products with the same running variable share the scope, as they
+     * cannot be calculated at the same time.
+     * 
+     * @param parent (int) the parent scope
+     * @param slot (int) the slot of the running variable
+     * @param depth (int) the depth of the new scope
+     * @return the scope (int)
+     */
+    int scope(int parent, int slot, int depth) {
+        for(int s=1; s<this.numScopes; s++) {
+            if((this.scopeParents[s] == parent) && (this.scopeSlots[s] == slot))
+                return s;
+        }
+        
+        int retVal = this.numScopes++;
+        if(retVal == this.scopeParents.length) {
+            this.scopeParents = Arrays.copyOf(this.scopeParents, 2 * retVal);
+            this.scopeDepths = Arrays.copyOf(this.scopeDepths, 2 * retVal);
+            this.scopeSlots = Arrays.copyOf(this.scopeSlots, 2 * retVal);
+        }
+        this.scopeParents[retVal] = parent;
+        this.scopeDepths[retVal] = depth;
+        this.scopeSlots[retVal] = slot;
+        
+        return retVal;
+    }
+    
+    /**
+     * Returns the nodes that are calculated with every evaluation, i.e. the
+     * nodes that are neither part of the true or false part of an if function,
+     * nor the right operand of a short-circuit operator (&& or ||), nor of the
+     * formula of a sum or product (unless they are also used elsewhere).
+     * 
+     * As the children of a node have lower numbers than the node itself,
+     * these nodes can be calculated in a single pass in order of their
+     * numbers.
+     * 
+     * @return the nodes (int[]), without constants
+     */
+    int[] eager() {
+        boolean[] marked = new boolean[this.size];
+        int count = 0;
+        marked[this.root] = true;
+        
+        for(int id=this.size-1; id>=0; id--) {
+            if(!marked[id]) continue;
+            
+            int type = this.types[id];
+            int numEager;
+            switch (type) {
+                case NodeType.IF:
+                case NodeType.AND:
+                case NodeType.OR:       numEager = 1; break;
+                case NodeType.SUM:
+                case NodeType.PROD:     numEager = 2; break;
+                default:                numEager = this.counts[id]; break;
+            }
+            for(int i=0; i<numEager; i++) {
+                marked[this.children[this.first[id] + i]] = true;
+            }
+            if(type != NodeType.CONSTANT) count++;
+        }
+        
+        int[] retVal = new int[count];
+        count = 0;
+        for(int id=0; id<this.size; id++) {
+            if(marked[id] && (this.types[id] != NodeType.CONSTANT)) retVal[count++] = id;
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Returns whether a (sub) tree may return different values for the same
+     * variable values, i.e. contains the rand function or nodes of unknown
+     * classes
+     * 
+     * @param node (Node) the (sub) tree
+     * @return true if the tree is volatile (boolean)
+     * @throws FormulaException 
+     */
+    static boolean isVolatile(Node node) throws FormulaException {
+        int type = NodeType.of(node);
+        if((type == NodeType.RAND) || (type == NodeType.UNKNOWN)) return true;
+        if((type == NodeType.FUNCTION) && isVolatile(((UserDefinedFunction)node).getDefinition())) return true;
+        
+        int count = node.getNodeCount();
+        for(int i=0; i<count; i++) {
+            if(isVolatile(node.getNode(i))) return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Returns the DAG as a list of nodes, one per line
+     * 
+     * @return the DAG (String)
+     */
+    @Override
+    public String toString() {
+        StringBuilder retVal = new StringBuilder();
+        
+        for(int id=0; id<this.size; id++) {
+            retVal.append('#').append(id).append(" = ");
+            switch (this.types[id]) {
+                case NodeType.CONSTANT:
+                    retVal.append(this.constants[id]);
+                    break;
+                    
+                case NodeType.VARIABLE:
+                    retVal.append(this.nodes[id].getName());
+                    break;
+                    
+                case NodeType.UNKNOWN:
+                    retVal.append(this.nodes[id].toString());
+                    break;
+                    
+                default:
+                    retVal.append(this.nodes[id].getName()).append('(');
+                    for(int i=0; i<this.counts[id]; i++) {
+                        if(i > 0) retVal.append(", ");
+                        retVal.append('#').append(this.children[this.first[id] + i]);
+                    }
+                    retVal.append(')');
+                    break;
+            }
+            if(this.scopes[id] > 0) retVal.append(" [scope ").append(this.scopes[id]).append(']');
+            retVal.append('\n');
+        }
+        retVal.append("root: #").append(this.root);
+        
+        return retVal.toString();
+    }
+}
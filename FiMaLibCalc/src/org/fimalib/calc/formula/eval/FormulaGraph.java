@@ -0,0 +1,536 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.NodeType;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.functions.Prod;
+import org.fimalib.calc.formula.functions.Sum;
+import org.fimalib.calc.formula.nodes.Node;
+import org.fimalib.calc.formula.nodes.Variable;
+
+/**
+ * This class recalculates a set of named formulas that refer to each other's
+ * results and to input values, like the cells of a spreadsheet.
+ * 
+ * The variables of each formula are either the names of other formulas or
+ * inputs (all names that are not formulas). The formulas are ordered by their
+ * level: formulas that only use inputs have level 1, all other formulas have
+ * a level one above the highest level of the formulas they use. Circular
+ * references are not allowed.
+ * 
+ * When inputs are changed, recalculate only evaluates the formulas that
+ * depend on the changed inputs, level by level. If the result of a formula
+ * does not change, the formulas depending on it are not evaluated either.
+ * Hence, the time of a recalculation is proportional to the size of the
+ * change rather than to the number of formulas. Large levels are evaluated
+ * in parallel on a fork/join pool.
+ * 
+ * Each formula is bound to slots of its own (see Node.bind), into which the
+ * values it uses are copied before its evaluation. Errors of a formula (e.g.
+ * a division by zero) do not abort the recalculation: the result of the
+ * formula is NaN and the error is available with getError.
+ * 
+ * A formula graph must not be changed or recalculated by several threads at
+ * the same time.
+ * 
+ * Example:
+ * 
+ *  FormulaGraph graph = new FormulaGraph();
+ *  graph.setFormula("df", "exp(neg(r)*t)");
+ *  graph.setFormula("pv", "100*df");
+ *  graph.setInput("r", 0.05);
+ *  graph.setInput("t", 2.0);
+ *  graph.recalculate();
+ *  double pv = graph.getValue("pv");
+ * 
+ * @author Peter Werno
+ */
+public class FormulaGraph {
+    public static final int PARALLEL_THRESHOLD = 64;
+    
+    /**
+     * This class holds an input or a formula of the graph
+     */
+    static class Cell {
+        String name;
+        int id;
+        double value;
+        
+        // only for formulas (node is null for inputs)
+        Node node;
+        Cell[] arguments;       // the cells used by the formula, one per slot
+        double[] locals;
+        EvaluationContext context;
+        FiMaLibCalcException error;
+        int level;
+        
+        Cell[] dependents;      // the formulas using this cell
+        boolean queued;
+        boolean changed;
+        
+        Cell(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+        
+        /**
+         * Evaluates the formula of the cell
+         * 
+         * @return true if the value has changed (boolean)
+         */
+        boolean evaluate() {
+            for(int i=0; i<this.arguments.length; i++) {
+                this.locals[i] = this.arguments[i].value;
+            }
+            
+            double newValue;
+            try {
+                this.context.setSlots(this.locals);
+                newValue = this.node.evaluate(this.context);
+                this.error = null;
+            }
+            catch (FiMaLibCalcException ex) {
+                newValue = java.lang.Double.NaN;
+                this.error = ex;
+            }
+            
+            // results are compared bitwise, so that NaN results are not changes
+            boolean retVal = java.lang.Double.doubleToLongBits(newValue) != java.lang.Double.doubleToLongBits(this.value);
+            this.value = newValue;
+            
+            return retVal;
+        }
+    }
+    
+    /**
+     * This class evaluates a range of the cells of a level, splitting the
+     * range in halves as long as it is larger than the parallel threshold.
+     */
+    static class LevelTask extends RecursiveAction {
+        Cell[] cells;
+        int from;
+        int to;
+        
+        LevelTask(Cell[] cells, int from, int to) {
+            this.cells = cells;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if(this.to - this.from <= PARALLEL_THRESHOLD) {
+                for(int i=this.from; i<this.to; i++) {
+                    this.cells[i].changed = this.cells[i].evaluate();
+                }
+            }
+            else {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new LevelTask(this.cells, this.from, middle), new LevelTask(this.cells, middle, this.to));
+            }
+        }
+    }
+    
+    HashMap<String, Cell> cells = new HashMap<>();
+    ArrayList<Cell> list = new ArrayList<>();
+    ArrayList<Cell> changedInputs = new ArrayList<>();
+    ForkJoinPool pool;
+    
+    boolean structureChanged = false;
+    int levels;
+    Cell[][] buckets;           // the queued formulas per level
+    int[] bucketSizes;
+    
+    /**
+     * Creates a new instance of FormulaGraph that uses the common fork/join
+     * pool
+     */
+    public FormulaGraph() {
+        this(ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Creates a new instance of FormulaGraph that uses a given fork/join pool
+     * 
+     * @param pool (ForkJoinPool) the fork/join pool, null to evaluate all formulas in the calling thread
+     */
+    public FormulaGraph(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+    
+    /**
+     * Sets (or replaces) a formula given as string
+     * 
+     * @param name (String) the name of the formula
+     * @param formula (String) the formula
+     * @throws FormulaException 
+     */
+    public void setFormula(String name, String formula) throws FormulaException {
+        this.setFormula(name, Formula.parse(formula));
+    }
+    
+    /**
+     * Sets (or replaces) a formula. The formula tree is copied, so that the
+     * given tree is not changed. An input of the same name becomes a formula.
+     * 
+     * @param name (String) the name of the formula
+     * @param formula (Node) the formula tree
+     * @throws FormulaException 
+     */
+    public void setFormula(String name, Node formula) throws FormulaException {
+        LinkedHashSet<String> variables = new LinkedHashSet<>();
+        collectVariables(formula, new HashSet<>(), variables);
+        
+        Node node = formula.copy();
+        SlotMap slots = new SlotMap(variables.toArray(new String[variables.size()]));
+        node.bind(slots);
+        
+        Cell cell = this.getCell(name);
+        cell.node = node;
+        cell.arguments = new Cell[variables.size()];
+        int i = 0;
+        for(String variable : variables) {
+            cell.arguments[i++] = this.getCell(variable);
+        }
+        
+        // the slots also hold the running variables of sums and products
+        cell.locals = slots.createSlots();
+        cell.context = new EvaluationContext(cell.locals);
+        cell.value = java.lang.Double.NaN;
+        cell.error = null;
+        
+        this.structureChanged = true;
+    }
+    
+    /**
+     * Sets the value of an input. The formulas depending on the input are
+     * evaluated with the next recalculation.
+     * 
+     * @param name (String) the name of the input
+     * @param value (double) the value
+     * @throws FormulaException if the name is the name of a formula
+     */
+    public void setInput(String name, double value) throws FormulaException {
+        Cell cell = this.getCell(name);
+        if(cell.node != null)
+            throw new FormulaException(name + " is a formula, not an input");
+        
+        if(java.lang.Double.doubleToLongBits(cell.value) != java.lang.Double.doubleToLongBits(value)) {
+            cell.value = value;
+            if(!cell.changed) {
+                cell.changed = true;
+                this.changedInputs.add(cell);
+            }
+        }
+    }
+    
+    /**
+     * Returns the value of an input or the result of a formula (as of the last
+     * recalculation)
+     * 
+     * @param name (String) the name
+     * @return the value (double)
+     * @throws FormulaException if the name is unknown
+     */
+    public double getValue(String name) throws FormulaException {
+        return this.findCell(name).value;
+    }
+    
+    /**
+     * Returns the error of the last evaluation of a formula
+     * 
+     * @param name (String) the name of the formula
+     * @return the error (FiMaLibCalcException), null if the formula was evaluated successfully
+     * @throws FormulaException if the name is unknown
+     */
+    public FiMaLibCalcException getError(String name) throws FormulaException {
+        return this.findCell(name).error;
+    }
+    
+    /**
+     * Returns whether a name is the name of a formula
+     * 
+     * @param name (String) the name
+     * @return true if the name is a formula, false if it is an input or unknown (boolean)
+     */
+    public boolean isFormula(String name) {
+        Cell cell = this.cells.get(name);
+        
+        return (cell != null) && (cell.node != null);
+    }
+    
+    /**
+     * Returns the level of a formula (0 for inputs)
+     * 
+     * @param name (String) the name
+     * @return the level (int)
+     * @throws FormulaException if the name is unknown or the formulas contain circular references
+     */
+    public int getLevel(String name) throws FormulaException {
+        Cell cell = this.findCell(name);
+        if(this.structureChanged) this.order();
+        
+        return cell.level;
+    }
+    
+    /**
+     * Returns the number of formulas and inputs
+     * 
+     * @return the number of cells (int)
+     */
+    public int size() {
+        return this.list.size();
+    }
+    
+    /**
+     * Evaluates all formulas depending on the inputs changed since the last
+     * recalculation. After formulas have been set, all formulas are evaluated.
+     * 
+     * @return the number of evaluated formulas (int)
+     * @throws FormulaException if the formulas contain circular references
+     */
+    public int recalculate() throws FormulaException {
+        if(this.structureChanged) {
+            this.order();
+            
+            for(Cell cell : this.list) {
+                if(cell.node != null) this.enqueue(cell);
+            }
+        }
+        
+        for(Cell input : this.changedInputs) {
+            input.changed = false;
+            this.enqueueDependents(input);
+        }
+        this.changedInputs.clear();
+        
+        int retVal = 0;
+        for(int level=1; level<=this.levels; level++) {
+            int size = this.bucketSizes[level];
+            if(size == 0) continue;
+            
+            Cell[] bucket = this.buckets[level];
+            if((this.pool != null) && (size > PARALLEL_THRESHOLD)) {
+                this.pool.invoke(new LevelTask(bucket, 0, size));
+            }
+            else {
+                for(int i=0; i<size; i++) {
+                    bucket[i].changed = bucket[i].evaluate();
+                }
+            }
+            
+            // the dependents have higher levels, so they are queued in later buckets
+            for(int i=0; i<size; i++) {
+                Cell cell = bucket[i];
+                cell.queued = false;
+                if(cell.changed) {
+                    cell.changed = false;
+                    this.enqueueDependents(cell);
+                }
+                bucket[i] = null;
+            }
+            this.bucketSizes[level] = 0;
+            retVal += size;
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Queues the formulas using a cell for evaluation
+     * 
+     * @param cell (Cell) the cell
+     */
+    void enqueueDependents(Cell cell) {
+        for(Cell dependent : cell.dependents) {
+            if(!dependent.queued) this.enqueue(dependent);
+        }
+    }
+    
+    /**
+     * Queues a formula for evaluation in the bucket of its level
+     * 
+     * @param cell (Cell) the formula
+     */
+    void enqueue(Cell cell) {
+        int level = cell.level;
+        Cell[] bucket = this.buckets[level];
+        
+        if(this.bucketSizes[level] == bucket.length) {
+            bucket = Arrays.copyOf(bucket, Math.max(16, 2 * bucket.length));
+            this.buckets[level] = bucket;
+        }
+        bucket[this.bucketSizes[level]++] = cell;
+        cell.queued = true;
+    }
+    
+    /**
+     * Determines the dependents and the levels of all cells (topological
+     * order of the formulas)
+     * 
+     * @throws FormulaException if the formulas contain circular references
+     */
+    void order() throws FormulaException {
+        int size = this.list.size();
+        int[] dependentCounts = new int[size];
+        int[] pending = new int[size];      // the number of arguments not ordered yet
+        
+        for(Cell cell : this.list) {
+            if(cell.node == null) continue;
+            
+            for(Cell argument : cell.arguments) {
+                dependentCounts[argument.id]++;
+            }
+            pending[cell.id] = cell.arguments.length;
+        }
+        
+        for(Cell cell : this.list) {
+            cell.dependents = new Cell[dependentCounts[cell.id]];
+            cell.level = 0;
+        }
+        
+        Arrays.fill(dependentCounts, 0);
+        for(Cell cell : this.list) {
+            if(cell.node == null) continue;
+            
+            for(Cell argument : cell.arguments) {
+                argument.dependents[dependentCounts[argument.id]++] = cell;
+            }
+        }
+        
+        // Kahn's algorithm: a cell is ordered when all its arguments are ordered
+        Cell[] queue = new Cell[size];
+        int head = 0;
+        int tail = 0;
+        for(Cell cell : this.list) {
+            if(pending[cell.id] == 0) queue[tail++] = cell;
+        }
+        
+        int maxLevel = 0;
+        while(head < tail) {
+            Cell cell = queue[head++];
+            
+            for(Cell dependent : cell.dependents) {
+                dependent.level = Math.max(dependent.level, cell.level + 1);
+                maxLevel = Math.max(maxLevel, dependent.level);
+                if(--pending[dependent.id] == 0) queue[tail++] = dependent;
+            }
+        }
+        
+        if(tail < size) {
+            StringBuilder names = new StringBuilder();
+            for(Cell cell : this.list) {
+                if(pending[cell.id] > 0) {
+                    if(names.length() > 0) names.append(", ");
+                    names.append(cell.name);
+                }
+            }
+            throw new FormulaException("Circular reference between formulas " + names);
+        }
+        
+        this.levels = maxLevel;
+        this.buckets = new Cell[maxLevel + 1][0];
+        this.bucketSizes = new int[maxLevel + 1];
+        for(Cell cell : this.list) {
+            cell.queued = false;
+        }
+        this.structureChanged = false;
+    }
+    
+    /**
+     * Returns the cell of a name, which is created as an input if it does not
+     * exist yet
+     * 
+     * @param name (String) the name
+     * @return the cell (Cell)
+     */
+    Cell getCell(String name) {
+        Cell retVal = this.cells.get(name);
+        
+        if(retVal == null) {
+            retVal = new Cell(name, this.list.size());
+            this.cells.put(name, retVal);
+            this.list.add(retVal);
+            this.structureChanged = true;
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Returns the cell of a known name
+     * 
+     * @param name (String) the name
+     * @return the cell (Cell)
+     * @throws FormulaException if the name is unknown
+     */
+    Cell findCell(String name) throws FormulaException {
+        Cell retVal = this.cells.get(name);
+        if(retVal == null)
+            throw new FormulaException("Unknown formula or input " + name);
+        
+        return retVal;
+    }
+    
+    /**
+     * Adds the free variables of a formula (i.e. not the running variables of
+     * its sums and products) to a set
+     * 
+     * @param node (Node) the formula
+     * @param bound (HashSet) the running variables of the enclosing sums and products
+     * @param variables (LinkedHashSet) the free variables
+     * @throws FormulaException 
+     */
+    static void collectVariables(Node node, HashSet<String> bound, LinkedHashSet<String> variables) throws FormulaException {
+        int type = NodeType.of(node);
+        
+        if(type == NodeType.VARIABLE) {
+            String name = ((Variable)node).getName();
+            if(!bound.contains(name)) variables.add(name);
+            return;
+        }
+        
+        if((type == NodeType.SUM) || (type == NodeType.PROD)) {
+            collectVariables(node.getNode(0), bound, variables);
+            collectVariables(node.getNode(1), bound, variables);
+            
+            HashSet<String> inner = new HashSet<>(bound);
+            inner.add((type == NodeType.SUM) ? ((Sum)node).getParameter() : ((Prod)node).getParameter());
+            collectVariables(node.getNode(2), inner, variables);
+            return;
+        }
+        
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            collectVariables(node.getNode(i), bound, variables);
+        }
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import org.fimalib.calc.Boolean;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.NodeType;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.functions.Cnd;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class evaluates a formula together with its derivatives by a number of
+ * variables (or, more generally, its directional derivatives) in a single
+ * pass, using forward-mode automatic differentiation: each node of the
+ * formula DAG (see FormulaDag) carries its value and one tangent per
+ * direction, which are calculated from the values and tangents of its
+ * children with the rules of differentiation.
+ * 
+ * Unlike Node.derive, this works for all nodes (including if, sum, prod, int,
+ * powers with variable exponents and user defined functions) and does not
+ * create any formula trees. The derivatives of if, max and min are those of
+ * the selected part, the derivatives of int, sgn, comparisons and logical
+ * operators are zero, as they are piecewise constant.
+ * 
+ * The values and tangents are kept in buffers of the evaluator. Hence, a
+ * forward evaluator must not be used by several threads at the same time.
+ * 
+ * Example:
+ * 
+ *  ForwardEvaluator evaluator = new ForwardEvaluator(Formula.parse("x^y"), "x", "y");
+ *  double[] derivatives = new double[2];
+ *  double value = evaluator.evaluate(new double[] { 2.0, 3.0 }, derivatives);
+ *  // derivatives = { 12.0, 8*ln(2) }
+ * 
+ * @author Peter Werno
+ */
+public class ForwardEvaluator {
+    FormulaDag dag;
+    int directions;
+    double[] seeds;         // the tangents of the variables, one row of directions per slot
+    double[] values;
+    double[] tangents;      // the tangents of the nodes, one row of directions per node
+    long[] stamps;          // see DagEvaluator
+    long[] scopeStamps;
+    long stamp;
+    EvaluationContext context;
+    double[] derivatives;   // the derivatives of a user defined function
+    IdentityHashMap<Node, ForwardEvaluator> functions;      // the evaluators of user defined functions
+    
+    /**
+     * Creates a new instance of ForwardEvaluator for the given number of
+     * directions, with all tangents of the variables being zero
+     * 
+     * @param dag (FormulaDag) the formula DAG
+     * @param directions (int) the number of directions
+     * @param numSlots (int) the number of slots
+     */
+    ForwardEvaluator(FormulaDag dag, int directions, int numSlots) {
+        this.dag = dag;
+        this.directions = directions;
+        this.seeds = new double[numSlots * directions];
+        this.values = new double[dag.size];
+        this.tangents = new double[dag.size * directions];
+        this.stamps = new long[dag.size];
+        this.scopeStamps = new long[dag.numScopes];
+        this.context = new EvaluationContext(new double[0]);
+        this.derivatives = new double[directions];
+        this.functions = new IdentityHashMap<>();
+        
+        Arrays.fill(this.stamps, -1L);
+        for(int id=0; id<dag.size; id++) {
+            if(dag.types[id] == NodeType.CONSTANT) this.values[id] = dag.constants[id];
+        }
+    }
+    
+    /**
+     * Creates a new instance of ForwardEvaluator calculating the derivatives
+     * by the given variables
+     * 
+     * @param dag (FormulaDag) the formula DAG
+     * @param variables (String...) the variables to derive by
+     */
+    public ForwardEvaluator(FormulaDag dag, String... variables) {
+        this(dag, variables.length, dag.getSlots().size());
+        
+        SlotMap slots = dag.getSlots();
+        for(int i=0; i<variables.length; i++) {
+            int slot = slots.indexOf(variables[i]);
+            if(slot >= 0) this.seeds[slot * this.directions + i] = 1.0;
+        }
+    }
+    
+    /**
+     * Creates a new instance of ForwardEvaluator calculating the derivatives
+     * by the given variables. The formula tree is bound to the given slot map
+     * (see Node.bind).
+     * 
+     * @param formula (Node) the formula tree
+     * @param slots (SlotMap) the slot map
+     * @param variables (String...) the variables to derive by
+     * @throws FiMaLibCalcException 
+     */
+    public ForwardEvaluator(Node formula, SlotMap slots, String... variables) throws FiMaLibCalcException {
+        this(new FormulaDag(formula, slots), variables);
+    }
+    
+    /**
+     * Creates a new instance of ForwardEvaluator calculating the derivatives
+     * by all variables, which are assigned to the slots in the given order
+     * 
+     * @param formula (Node) the formula tree
+     * @param variables (String...) the variable names
+     * @throws FiMaLibCalcException 
+     */
+    public ForwardEvaluator(Node formula, String... variables) throws FiMaLibCalcException {
+        this(new FormulaDag(formula, variables), variables);
+    }
+    
+    /**
+     * Returns the formula DAG
+     * 
+     * @return the formula DAG (FormulaDag)
+     */
+    public FormulaDag getDag() {
+        return this.dag;
+    }
+    
+    /**
+     * Returns the number of directions, i.e. the number of derivatives
+     * calculated by each evaluation
+     * 
+     * @return the number of directions (int)
+     */
+    public int getDirections() {
+        return this.directions;
+    }
+    
+    /**
+     * Sets the tangents of a variable, i.e. the derivatives of the variable
+     * in each direction. By default, the tangent of the i-th variable to
+     * derive by is 1 in the i-th direction and 0 otherwise. Other tangents
+     * yield directional derivatives, e.g. the derivative for a parallel
+     * shift of several variables.
+     * 
+     * @param slot (int) the slot of the variable
+     * @param tangents (double...) the tangents, one per direction
+     * @throws FormulaException 
+     */
+    public void setSeed(int slot, double... tangents) throws FormulaException {
+        if(tangents.length != this.directions)
+            throw new FormulaException("There are " + this.directions + " directions, but " + tangents.length + " tangents");
+        
+        System.arraycopy(tangents, 0, this.seeds, slot * this.directions, this.directions);
+    }
+    
+    /**
+     * Evaluates the formula and its derivatives with the variable values
+     * given as primitive array (see Node.evaluate)
+     * 
+     * @param slots (double[]) the variable values
+     * @param derivatives (double[]) the derivatives, one per direction
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    public double evaluate(double[] slots, double[] derivatives) throws FiMaLibCalcException {
+        this.context.setSlots(slots);
+        
+        return this.evaluate(this.context, derivatives);
+    }
+    
+    /**
+     * Evaluates the formula and its derivatives within an evaluation context
+     * (see Node.evaluate)
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @param derivatives (double[]) the derivatives, one per direction
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    public double evaluate(EvaluationContext context, double[] derivatives) throws FiMaLibCalcException {
+        FormulaDag d = this.dag;
+        int[] eager = d.eager;
+        long current = ++this.stamp;
+        this.scopeStamps[0] = current;
+        
+        // see DagEvaluator.evaluate
+        for(int k=0; k<eager.length; k++) {
+            int id = eager[k];
+            this.values[id] = this.calculate(id, context);
+            this.stamps[id] = current;
+        }
+        
+        int root = d.root;
+        if(d.types[root] == NodeType.CONSTANT)
+            Arrays.fill(derivatives, 0, this.directions, 0.0);
+        else
+            System.arraycopy(this.tangents, root * this.directions, derivatives, 0, this.directions);
+        
+        return this.values[root];
+    }
+    
+    /**
+     * Returns the value of a DAG node, calculating it (and its tangents) if it
+     * has not been calculated within the current scope yet
+     * 
+     * @param id (int) the DAG node
+     * @param context (EvaluationContext) the evaluation context
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    double value(int id, EvaluationContext context) throws FiMaLibCalcException {
+        long current = this.scopeStamps[this.dag.scopes[id]];
+        if(this.stamps[id] == current) return this.values[id];
+        
+        double retVal = this.calculate(id, context);
+        this.values[id] = retVal;
+        this.stamps[id] = current;
+        
+        return retVal;
+    }
+    
+    /**
+     * Calculates the value and the tangents of a DAG node
+     * 
+     * @param id (int) the DAG node
+     * @param context (EvaluationContext) the evaluation context
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    double calculate(int id, EvaluationContext context) throws FiMaLibCalcException {
+        FormulaDag d = this.dag;
+        double[] t = this.tangents;
+        int n = this.directions;
+        int type = d.types[id];
+        int first = d.first[id];
+        int out = id * n;
+        double a;
+        double b;
+        double retVal;
+        
+        switch (type) {
+            case NodeType.CONSTANT:
+                Arrays.fill(t, out, out + n, 0.0);
+                return d.constants[id];
+                
+            case NodeType.VARIABLE:
+                // running variables of sums and products do not depend on any variable
+                if(d.scopes[id] == 0)
+                    System.arraycopy(this.seeds, d.refs[id] * n, t, out, n);
+                else
+                    Arrays.fill(t, out, out + n, 0.0);
+                return context.get(d.refs[id]);
+                
+            case NodeType.UNKNOWN:
+                throw new FormulaException("Node " + d.nodes[id].getName() + " does not support automatic differentiation");
+                
+            case NodeType.IF:
+                int part;
+                if(this.value(d.children[first], context) != Boolean.BOOLEAN_FALSE)
+                    part = d.children[first + 1];
+                else if(d.counts[id] > 2)
+                    part = d.children[first + 2];
+                else {
+                    Arrays.fill(t, out, out + n, 0.0);
+                    return 0.0;
+                }
+                retVal = this.value(part, context);
+                System.arraycopy(t, part * n, t, out, n);
+                return retVal;
+                
+            case NodeType.SUM:
+            case NodeType.PROD:
+                return this.loop(id, type == NodeType.SUM, context);
+                
+            case NodeType.FUNCTION:
+                return this.function(id, context);
+                
+            case NodeType.NEG:
+                a = this.value(d.children[first], context);
+                int ta = d.children[first] * n;
+                for(int i=0; i<n; i++) t[out + i] = -t[ta + i];
+                return -a;
+                
+            case NodeType.NOT:
+                a = this.value(d.children[first], context);
+                Arrays.fill(t, out, out + n, 0.0);
+                return (a == Boolean.BOOLEAN_FALSE) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+                
+            case NodeType.AND:
+            case NodeType.OR:
+                // see DagEvaluator.calculate
+                Arrays.fill(t, out, out + n, 0.0);
+                if((this.value(d.children[first], context) != Boolean.BOOLEAN_FALSE) == (type == NodeType.OR))
+                    return (type == NodeType.OR) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+                return (this.value(d.children[first + 1], context) != Boolean.BOOLEAN_FALSE) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+                
+            case NodeType.RAND:
+                a = this.value(d.children[first], context);
+                double random = context.getRandom().nextDouble();
+                this.scale(out, d.children[first] * n, random);
+                return random * a;
+                
+            case NodeType.MAX:
+            case NodeType.MIN:
+                // the derivative is the one of the selected parameter (the first on ties)
+                part = d.children[first];
+                retVal = this.value(part, context);
+                for(int i=1; i<d.counts[id]; i++) {
+                    int child = d.children[first + i];
+                    double next = DagEvaluator.extremum(type, retVal, this.value(child, context));
+                    if(next != retVal) part = child;
+                    retVal = next;
+                }
+                System.arraycopy(t, part * n, t, out, n);
+                return retVal;
+                
+            default:
+                if(NodeType.isUnaryFunction(type)) {
+                    a = this.value(d.children[first], context);
+                    retVal = DagEvaluator.function(type, a);
+                    this.scale(out, d.children[first] * n, derivative(type, a, retVal));
+                    return retVal;
+                }
+                
+                a = this.value(d.children[first], context);
+                b = this.value(d.children[first + 1], context);
+                return this.operation(type, out, a, d.children[first] * n, b, d.children[first + 1] * n);
+        }
+    }
+    
+    /**
+     * Calculates an operation with two operands and its tangents
+     * 
+     * @param type (int) the type of the operation (see NodeType)
+     * @param out (int) the position of the tangents of the result
+     * @param a (double) the left operand
+     * @param ta (int) the position of the tangents of the left operand
+     * @param b (double) the right operand
+     * @param tb (int) the position of the tangents of the right operand
+     * @return the result (double)
+     * @throws FiMaLibCalcException 
+     */
+    double operation(int type, int out, double a, int ta, double b, int tb) throws FiMaLibCalcException {
+        double[] t = this.tangents;
+        int n = this.directions;
+        
+        switch (type) {
+            case NodeType.ADD:
+                for(int i=0; i<n; i++) t[out + i] = t[ta + i] + t[tb + i];
+                return a + b;
+                
+            case NodeType.SUB:
+                for(int i=0; i<n; i++) t[out + i] = t[ta + i] - t[tb + i];
+                return a - b;
+                
+            case NodeType.MUL:
+                for(int i=0; i<n; i++) t[out + i] = t[ta + i] * b + a * t[tb + i];
+                return a * b;
+                
+            case NodeType.DIV:
+                if(b == 0.0)
+                    throw new FiMaLibDivisionByZeroException("Division by zero");
+                double quotient = a / b;
+                for(int i=0; i<n; i++) t[out + i] = (t[ta + i] - quotient * t[tb + i]) / b;
+                return quotient;
+                
+            case NodeType.POW:
+                double power = Math.pow(a, b);
+                double dBase = b * Math.pow(a, b - 1.0);
+                double dExponent = (power == 0.0) ? 0.0 : power * Math.log(a);
+                for(int i=0; i<n; i++) {
+                    // the partial derivatives are only used if needed, as they
+                    // might not be defined (e.g. ln of a negative base)
+                    double retVal = 0.0;
+                    if(t[ta + i] != 0.0) retVal += dBase * t[ta + i];
+                    if(t[tb + i] != 0.0) retVal += dExponent * t[tb + i];
+                    t[out + i] = retVal;
+                }
+                return power;
+                
+            default:
+                // logical operators and comparisons are piecewise constant
+                Arrays.fill(t, out, out + n, 0.0);
+                return DagEvaluator.operation(type, a, b);
+        }
+    }
+    
+    /**
+     * Calculates a sum or product and its tangents (see DagEvaluator.loop)
+     * 
+     * @param id (int) the DAG node
+     * @param sum (boolean) true for a sum, false for a product
+     * @param context (EvaluationContext) the evaluation context
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    double loop(int id, boolean sum, EvaluationContext context) throws FiMaLibCalcException {
+        FormulaDag d = this.dag;
+        double[] t = this.tangents;
+        int n = this.directions;
+        int out = id * n;
+        int first = d.first[id];
+        int slot = d.refs[id];
+        int loop = d.loops[id];
+        int formula = d.children[first + 2];
+        int tf = formula * n;
+        
+        double startVal = this.value(d.children[first], context);
+        double endVal = this.value(d.children[first + 1], context);
+        double oldParameter = context.get(slot);
+        double retVal = sum ? 0.0 : 1.0;
+        Arrays.fill(t, out, out + n, 0.0);
+        
+        for(double value = startVal; value <= endVal; value += 1.0) {
+            context.set(slot, value);
+            this.scopeStamps[loop] = ++this.stamp;
+            double term = this.value(formula, context);
+            
+            if(sum) {
+                for(int i=0; i<n; i++) t[out + i] += t[tf + i];
+                retVal += term;
+            }
+            else {
+                for(int i=0; i<n; i++) t[out + i] = t[out + i] * term + retVal * t[tf + i];
+                retVal *= term;
+            }
+        }
+        
+        // restore old parameter
+        context.set(slot, oldParameter);
+        
+        return retVal;
+    }
+    
+    /**
+     * Calculates a user defined function and its tangents. The definition is
+     * evaluated by a forward evaluator of its own, with the tangents of the
+     * parameters as tangents of its variables.
+     * 
+     * @param id (int) the DAG node
+     * @param context (EvaluationContext) the evaluation context
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    double function(int id, EvaluationContext context) throws FiMaLibCalcException {
+        FormulaDag d = this.dag;
+        UserDefinedFunction function = (UserDefinedFunction)d.nodes[id];
+        int n = this.directions;
+        int first = d.first[id];
+        int count = d.counts[id];
+        
+        ForwardEvaluator evaluator = this.functions.get(function.getDefinition());
+        if(evaluator == null) {
+            evaluator = new ForwardEvaluator(new FormulaDag(function), n, function.getFrameSize());
+            evaluator.context.setSlots(new double[function.getFrameSize()]);
+            this.functions.put(function.getDefinition(), evaluator);
+        }
+        
+        // the parameters are calculated first, as they might call the same function
+        for(int i=0; i<count; i++) {
+            this.value(d.children[first + i], context);
+        }
+        
+        // the frame (all slots being zero) is the variable array of the evaluator
+        double[] frame = evaluator.context.getSlots();
+        Arrays.fill(frame, 0.0);
+        Arrays.fill(evaluator.seeds, 0.0);
+        for(int i=0; i<count; i++) {
+            int param = d.children[first + i];
+            frame[i] = this.values[param];
+            System.arraycopy(this.tangents, param * n, evaluator.seeds, i * n, n);
+        }
+        
+        double[] derivatives = evaluator.derivatives;
+        double retVal = evaluator.evaluate(evaluator.context, derivatives);
+        System.arraycopy(derivatives, 0, this.tangents, id * n, n);
+        
+        return retVal;
+    }
+    
+    /**
+     * Sets the tangents of a node to the tangents of another node multiplied
+     * by a factor. Zero tangents remain zero (even if the factor is infinite).
+     * 
+     * @param out (int) the position of the tangents of the node
+     * @param in (int) the position of the tangents of the other node
+     * @param factor (double) the factor
+     */
+    void scale(int out, int in, double factor) {
+        double[] t = this.tangents;
+        for(int i=0; i<this.directions; i++) {
+            double tangent = t[in + i];
+            t[out + i] = (tangent == 0.0) ? 0.0 : tangent * factor;
+        }
+    }
+    
+    /**
+     * Returns the derivative of a function with one parameter
+     * 
+     * @param type (int) the type of the function (see NodeType)
+     * @param a (double) the parameter value
+     * @param value (double) the function value
+     * @return the derivative (double)
+     * @throws FormulaException 
+     */
+    static double derivative(int type, double a, double value) throws FormulaException {
+        switch (type) {
+            case NodeType.ABS:      return (a > 0.0) ? 1.0 : ((a < 0.0) ? -1.0 : 0.0);
+            case NodeType.ARCCOS:   return -1.0 / Math.sqrt(1.0 - a * a);
+            case NodeType.ARCCOSH:  return 1.0 / Math.sqrt(a * a - 1.0);
+            case NodeType.ARCCOT:   return -1.0 / (1.0 + a * a);
+            case NodeType.ARCCOTH:  return 1.0 / (1.0 - a * a);
+            case NodeType.ARCCSC:   return -1.0 / (Math.abs(a) * Math.sqrt(a * a - 1.0));
+            case NodeType.ARCCSCH:  return -1.0 / (Math.abs(a) * Math.sqrt(1.0 + a * a));
+            case NodeType.ARCSEC:   return 1.0 / (Math.abs(a) * Math.sqrt(a * a - 1.0));
+            case NodeType.ARCSECH:  return -1.0 / (a * Math.sqrt(1.0 - a * a));
+            case NodeType.ARCSIN:   return 1.0 / Math.sqrt(1.0 - a * a);
+            case NodeType.ARCSINH:  return 1.0 / Math.sqrt(a * a + 1.0);
+            case NodeType.ARCTAN:   return 1.0 / (1.0 + a * a);
+            case NodeType.ARCTANH:  return 1.0 / (1.0 - a * a);
+            case NodeType.COS:      return -Math.sin(a);
+            case NodeType.COSH:     return Math.sinh(a);
+            case NodeType.COT:      return -(1.0 + value * value);
+            case NodeType.COTH:     return 1.0 - value * value;
+            case NodeType.CSC:      return -value * Math.cos(a) / Math.sin(a);
+            case NodeType.CSCH:     return -value * Math.cosh(a) / Math.sinh(a);
+            case NodeType.EXP:      return value;
+            case NodeType.LN:       return 1.0 / a;
+            case NodeType.LOG:      return 1.0 / (a * Math.log(10.0));
+            case NodeType.SEC:      return value * Math.tan(a);
+            case NodeType.SECH:     return -value * Math.tanh(a);
+            case NodeType.SIN:      return Math.cos(a);
+            case NodeType.SINH:     return Math.cosh(a);
+            case NodeType.SQRT:     return 0.5 / value;
+            case NodeType.TAN:      return 1.0 + value * value;
+            case NodeType.TANH:     return 1.0 - value * value;
+            case NodeType.CND:      return Cnd.density(a);
+                
+            case NodeType.INT:
+            case NodeType.SGN:
+                // piecewise constant
+                return 0.0;
+                
+            default:
+                throw new FormulaException("Unknown function type " + type);
+        }
+    }
+}
@@ -0,0 +1,733 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.util.Arrays;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.FiMaLibUndefinedException;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.compiler.CompiledFormula;
+import org.fimalib.calc.formula.compiler.FormulaCompiler;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class integrates formulas numerically over one variable between two
+ * bounds (which may be infinite).
+ * 
+ * Two methods are available:
+ * 
+ *  - GAUSS_KRONROD (default): globally adaptive 7-point Gauss / 15-point
+ *    Kronrod quadrature, i.e. the interval with the largest error estimate
+ *    is halved until the total error is within the tolerance (like QAG of
+ *    QUADPACK). Best for smooth integrands and integrands with kinks or
+ *    jumps within the interval.
+ *  - TANH_SINH: double exponential quadrature, halving the step size until
+ *    two levels agree within the tolerance. Best for integrands with
+ *    singularities at the end points (e.g. 1/sqrt(x) from 0 to 1), as the
+ *    integrand is never evaluated at the end points themselves.
+ * 
+ * Infinite bounds are mapped to finite ones (x = a+t/(1-t), x = b-(1-t)/t or
+ * x = t/(1-t^2)). The formulas are compiled (see FormulaCompiler) unless the
+ * interpreter is requested. Several formulas can be integrated at once: they
+ * are evaluated at the same points, and the intervals are refined until all
+ * of them are within the tolerance.
+ * 
+ * The result of an integration is returned even if the tolerance has not
+ * been reached within the maximum number of evaluations (see isConverged and
+ * getErrorEstimate). An integrator must not be used by several threads at
+ * the same time.
+ * 
+ * Example:
+ * 
+ *  Integrator integrator = new Integrator(Formula.parse("exp(neg(x^2)/2)*y"), "x", "y");
+ *  double result = integrator.integrate(0.0, java.lang.Double.POSITIVE_INFINITY, 0.0, 2.0);
+ * 
+ * @author Peter Werno
+ */
+public class Integrator {
+    public static final int GAUSS_KRONROD = 0;
+    public static final int TANH_SINH = 1;
+    
+    public static final double DEFAULT_ABSOLUTE_TOLERANCE = 1E-12;
+    public static final double DEFAULT_RELATIVE_TOLERANCE = 1E-10;
+    public static final int DEFAULT_MAXIMUM_EVALUATIONS = 100000;
+    public static final int MAXIMUM_LEVEL = 12;             // of the tanh-sinh step size (h=2^-level)
+    
+    static final int FINITE = 0;            // mappings of the bounds
+    static final int UPPER_INFINITE = 1;
+    static final int LOWER_INFINITE = 2;
+    static final int BOTH_INFINITE = 3;
+    
+    static final double EPSILON = Math.ulp(1.0);
+    static final double MAXIMUM_T = 6.5;    // of tanh-sinh (beyond, the weights underflow)
+    
+    // abscissae and weights of the 15-point Kronrod rule (the odd abscissae
+    // and the center are those of the 7-point Gauss rule)
+    static final double[] XGK = {
+        0.991455371120812639206854697526329, 0.949107912342758524526189684047851,
+        0.864864423359769072789712788640926, 0.741531185599394439863864773280788,
+        0.586087235467691130294144845693013, 0.405845151377397166906606412076961,
+        0.207784955007898467600689403773245, 0.0
+    };
+    static final double[] WGK = {
+        0.022935322010529224963732008058970, 0.063092092629978553290700663189204,
+        0.104790010322250183839876322541518, 0.140653259715525918745189590510238,
+        0.169004726639267902826583426598550, 0.190350578064785409913256402421014,
+        0.204432940075298892414161999234649, 0.209482141084727828012999174891714
+    };
+    static final double[] WG = {
+        0.129484966168869693270611432679082, 0.279705391489276667901467771423780,
+        0.381830050505118944950369775488975, 0.417959183673469387755102040816327
+    };
+    
+    Node[] formulas;
+    CompiledFormula[] compiled;     // null if the formulas are interpreted
+    EvaluationContext context;
+    SlotMap slots;
+    int slot;
+    
+    int method = GAUSS_KRONROD;
+    double absoluteTolerance = DEFAULT_ABSOLUTE_TOLERANCE;
+    double relativeTolerance = DEFAULT_RELATIVE_TOLERANCE;
+    int maximumEvaluations = DEFAULT_MAXIMUM_EVALUATIONS;
+    
+    // the state of the current integration
+    double[] vars;
+    int mapping;
+    double offset;
+    double[] errors;
+    double[] center;        // buffers of the function values (one per formula and point)
+    double[] lefts;
+    double[] rights;
+    int evaluations;
+    boolean converged;
+    
+    /**
+     * Creates a new instance of Integrator for one (compiled) formula. The
+     * variable of integration gets the first slot, the parameters the
+     * following ones.
+     * 
+     * @param formula (Node) the formula tree
+     * @param variable (String) the variable of integration
+     * @param parameters (String...) the further variables of the formula
+     * @throws FormulaException 
+     */
+    public Integrator(Node formula, String variable, String... parameters) throws FormulaException {
+        this(new Node[] { formula }, slotMap(variable, parameters), variable, true);
+    }
+    
+    /**
+     * Creates a new instance of Integrator for several formulas that are
+     * integrated at once. The formula trees are bound to the given slot map
+     * (see Node.bind).
+     * 
+     * @param formulas (Node[]) the formula trees
+     * @param slots (SlotMap) the slot map
+     * @param variable (String) the variable of integration
+     * @param compile (boolean) true to compile the formulas, false to interpret them
+     * @throws FormulaException 
+     */
+    public Integrator(Node[] formulas, SlotMap slots, String variable, boolean compile) throws FormulaException {
+        this.formulas = formulas.clone();
+        this.slots = slots;
+        this.slot = slots.getSlot(variable);
+        
+        if(compile) {
+            this.compiled = new CompiledFormula[formulas.length];
+            for(int i=0; i<formulas.length; i++) {
+                this.compiled[i] = FormulaCompiler.compile(formulas[i], slots);
+            }
+        }
+        else {
+            for(Node formula : formulas) {
+                formula.bind(slots);
+            }
+        }
+    }
+    
+    /**
+     * Returns a slot map with the given variables
+     * 
+     * @param variable (String) the first variable
+     * @param parameters (String[]) the further variables
+     * @return the slot map (SlotMap)
+     */
+    static SlotMap slotMap(String variable, String[] parameters) {
+        String[] names = new String[parameters.length + 1];
+        names[0] = variable;
+        System.arraycopy(parameters, 0, names, 1, parameters.length);
+        
+        return new SlotMap(names);
+    }
+    
+    /**
+     * Returns the slots of the variables
+     * 
+     * @return the slot map (SlotMap)
+     */
+    public SlotMap getSlots() {
+        return this.slots;
+    }
+    
+    /**
+     * Returns the method of integration
+     * 
+     * @return the method (int), GAUSS_KRONROD or TANH_SINH
+     */
+    public int getMethod() {
+        return this.method;
+    }
+    
+    /**
+     * Sets the method of integration
+     * 
+     * @param method (int) GAUSS_KRONROD or TANH_SINH
+     */
+    public void setMethod(int method) {
+        if((method != GAUSS_KRONROD) && (method != TANH_SINH))
+            throw new IllegalArgumentException("Unknown method of integration " + method);
+        
+        this.method = method;
+    }
+    
+    /**
+     * Sets the tolerance: an integral is accurate enough if its error
+     * estimate is below the absolute tolerance or below the relative 
+     * tolerance times the absolute value of the integral
+     * 
+     * @param absoluteTolerance (double) the absolute tolerance
+     * @param relativeTolerance (double) the relative tolerance
+     */
+    public void setTolerance(double absoluteTolerance, double relativeTolerance) {
+        this.absoluteTolerance = absoluteTolerance;
+        this.relativeTolerance = relativeTolerance;
+    }
+    
+    /**
+     * Sets the maximum number of points at which the formulas are evaluated
+     * per integration
+     * 
+     * @param maximumEvaluations (int) the maximum number of evaluations
+     */
+    public void setMaximumEvaluations(int maximumEvaluations) {
+        this.maximumEvaluations = maximumEvaluations;
+    }
+    
+    /**
+     * Returns the number of points at which the formulas have been evaluated
+     * by the last integration
+     * 
+     * @return the number of evaluations (int)
+     */
+    public int getEvaluationCount() {
+        return this.evaluations;
+    }
+    
+    /**
+     * Returns whether the last integration has reached the tolerance for all
+     * formulas
+     * 
+     * @return true if the tolerance has been reached (boolean)
+     */
+    public boolean isConverged() {
+        return this.converged;
+    }
+    
+    /**
+     * Returns the error estimate of the (first) formula of the last
+     * integration
+     * 
+     * @return the error estimate (double)
+     */
+    public double getErrorEstimate() {
+        return this.errors[0];
+    }
+    
+    /**
+     * Returns the error estimates of all formulas of the last integration
+     * 
+     * @return the error estimates (double[])
+     */
+    public double[] getErrorEstimates() {
+        return this.errors.clone();
+    }
+    
+    /**
+     * Integrates the (first) formula with the parameters given in the order
+     * of their slots (the value of the variable of integration is ignored)
+     * 
+     * @param lower (double) the lower bound (may be negative infinity)
+     * @param upper (double) the upper bound (may be positive infinity)
+     * @param values (double...) the variable values, one per slot
+     * @return the integral (double)
+     * @throws FiMaLibCalcException 
+     */
+    public double integrate(double lower, double upper, double... values) throws FiMaLibCalcException {
+        return this.integrateAll(lower, upper, values)[0];
+    }
+    
+    /**
+     * Integrates all formulas at once
+     * 
+     * @param lower (double) the lower bound (may be negative infinity)
+     * @param upper (double) the upper bound (may be positive infinity)
+     * @param values (double...) the variable values, one per slot
+     * @return the integrals (double[]), one per formula
+     * @throws FiMaLibCalcException 
+     */
+    public double[] integrateAll(double lower, double upper, double... values) throws FiMaLibCalcException {
+        int m = this.formulas.length;
+        
+        this.vars = Arrays.copyOf(values, Math.max(values.length, this.slots.size()));
+        if(this.compiled == null) this.context = new EvaluationContext(this.vars);
+        this.errors = new double[m];
+        this.center = new double[m];
+        this.lefts = new double[7 * m];
+        this.rights = new double[7 * m];
+        this.evaluations = 0;
+        this.converged = true;
+        
+        if(java.lang.Double.isNaN(lower) || java.lang.Double.isNaN(upper))
+            throw new FormulaException("Bounds of integration must not be NaN");
+        if(lower == upper) return new double[m];
+        
+        double sign = 1.0;
+        if(lower > upper) {
+            double swap = lower;
+            lower = upper;
+            upper = swap;
+            sign = -1.0;
+        }
+        
+        // the integration runs over t, which is mapped to x
+        double ta = lower;
+        double tb = upper;
+        this.mapping = FINITE;
+        if(java.lang.Double.isInfinite(lower) && java.lang.Double.isInfinite(upper)) {
+            this.mapping = BOTH_INFINITE;
+            ta = -1.0;
+            tb = 1.0;
+        }
+        else if(java.lang.Double.isInfinite(upper)) {
+            this.mapping = UPPER_INFINITE;
+            this.offset = lower;
+            ta = 0.0;
+            tb = 1.0;
+        }
+        else if(java.lang.Double.isInfinite(lower)) {
+            this.mapping = LOWER_INFINITE;
+            this.offset = upper;
+            ta = 0.0;
+            tb = 1.0;
+        }
+        
+        double[] retVal = (this.method == TANH_SINH) ? this.tanhSinh(ta, tb) : this.gaussKronrod(ta, tb);
+        for(int i=0; i<m; i++) {
+            retVal[i] *= sign;
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Integrates with the globally adaptive Gauss-Kronrod rule
+     * 
+     * @param ta (double) the lower bound of t
+     * @param tb (double) the upper bound of t
+     * @return the integrals (double[])
+     * @throws FiMaLibCalcException 
+     */
+    double[] gaussKronrod(double ta, double tb) throws FiMaLibCalcException {
+        int m = this.formulas.length;
+        int capacity = 16;
+        double[] lows = new double[capacity];
+        double[] highs = new double[capacity];
+        double[] results = new double[capacity * m];
+        double[] errs = new double[capacity * m];
+        double[] priorities = new double[capacity];
+        int[] heap = new int[capacity];
+        int heapSize = 0;
+        int count = 1;
+        
+        lows[0] = ta;
+        highs[0] = tb;
+        this.kronrod(ta, tb, results, errs, 0);
+        
+        // the priority of an interval is its largest error relative to the tolerance
+        double[] scales = new double[m];
+        for(int i=0; i<m; i++) {
+            scales[i] = 1.0 / this.tolerance(results[i]);
+        }
+        priorities[0] = priority(errs, 0, m, scales);
+        heap[heapSize++] = 0;
+        
+        double[] total = Arrays.copyOf(results, m);
+        double[] totalError = Arrays.copyOf(errs, m);
+        
+        while(!this.isAccurate(total, totalError)) {
+            if((this.evaluations + 30 > this.maximumEvaluations) || (priorities[heap[0]] <= 0.0)) {
+                this.converged = false;
+                break;
+            }
+            
+            int k = heap[0];
+            heapSize = pop(heap, heapSize, priorities);
+            
+            double middle = 0.5 * (lows[k] + highs[k]);
+            if((middle <= lows[k]) || (middle >= highs[k])) {
+                // the interval cannot be split any further
+                priorities[k] = 0.0;
+                heapSize = push(heap, heapSize, priorities, k);
+                continue;
+            }
+            
+            if(count == capacity) {
+                capacity *= 2;
+                lows = Arrays.copyOf(lows, capacity);
+                highs = Arrays.copyOf(highs, capacity);
+                results = Arrays.copyOf(results, capacity * m);
+                errs = Arrays.copyOf(errs, capacity * m);
+                priorities = Arrays.copyOf(priorities, capacity);
+                heap = Arrays.copyOf(heap, capacity);
+            }
+            
+            int j = count++;
+            for(int i=0; i<m; i++) {
+                total[i] -= results[k * m + i];
+                totalError[i] -= errs[k * m + i];
+            }
+            
+            lows[j] = middle;
+            highs[j] = highs[k];
+            highs[k] = middle;
+            this.kronrod(lows[k], highs[k], results, errs, k * m);
+            this.kronrod(lows[j], highs[j], results, errs, j * m);
+            
+            for(int i=0; i<m; i++) {
+                total[i] += results[k * m + i] + results[j * m + i];
+                totalError[i] += errs[k * m + i] + errs[j * m + i];
+            }
+            
+            priorities[k] = priority(errs, k * m, m, scales);
+            priorities[j] = priority(errs, j * m, m, scales);
+            heapSize = push(heap, heapSize, priorities, k);
+            heapSize = push(heap, heapSize, priorities, j);
+        }
+        
+        // the totals are summed up again to remove the rounding errors of the updates
+        Arrays.fill(total, 0.0);
+        Arrays.fill(totalError, 0.0);
+        for(int k=0; k<count; k++) {
+            for(int i=0; i<m; i++) {
+                total[i] += results[k * m + i];
+                totalError[i] += errs[k * m + i];
+            }
+        }
+        System.arraycopy(totalError, 0, this.errors, 0, m);
+        
+        return total;
+    }
+    
+    /**
+     * Applies the 15-point Kronrod rule to an interval, estimating the error
+     * by the difference to the 7-point Gauss rule (as QUADPACK does)
+     * 
+     * @param a (double) the lower bound of t
+     * @param b (double) the upper bound of t
+     * @param results (double[]) the results, one per formula starting at the position
+     * @param errs (double[]) the error estimates, one per formula starting at the position
+     * @param position (int) the position of the interval within the results
+     * @throws FiMaLibCalcException 
+     */
+    void kronrod(double a, double b, double[] results, double[] errs, int position) throws FiMaLibCalcException {
+        int m = this.formulas.length;
+        double center = 0.5 * (a + b);
+        double half = 0.5 * (b - a);
+        double[] fc = this.center;
+        double[] f1 = this.lefts;
+        double[] f2 = this.rights;
+        
+        this.value(center, fc, 0);
+        for(int j=0; j<7; j++) {
+            double dx = half * XGK[j];
+            this.value(center - dx, f1, j * m);
+            this.value(center + dx, f2, j * m);
+        }
+        
+        for(int i=0; i<m; i++) {
+            double resK = WGK[7] * fc[i];
+            double resG = WG[3] * fc[i];
+            double resAbs = Math.abs(resK);
+            for(int j=0; j<7; j++) {
+                double sum = f1[j * m + i] + f2[j * m + i];
+                resK += WGK[j] * sum;
+                resAbs += WGK[j] * (Math.abs(f1[j * m + i]) + Math.abs(f2[j * m + i]));
+                if((j & 1) == 1) resG += WG[j / 2] * sum;
+            }
+            
+            double mean = 0.5 * resK;
+            double resAsc = WGK[7] * Math.abs(fc[i] - mean);
+            for(int j=0; j<7; j++) {
+                resAsc += WGK[j] * (Math.abs(f1[j * m + i] - mean) + Math.abs(f2[j * m + i] - mean));
+            }
+            
+            double error = Math.abs((resK - resG) * half);
+            resAbs *= half;
+            resAsc *= half;
+            if((resAsc != 0.0) && (error != 0.0))
+                error = resAsc * Math.min(1.0, Math.pow(200.0 * error / resAsc, 1.5));
+            if(resAbs > java.lang.Double.MIN_NORMAL / (50.0 * EPSILON))
+                error = Math.max(50.0 * EPSILON * resAbs, error);
+            
+            results[position + i] = resK * half;
+            errs[position + i] = error;
+        }
+    }
+    
+    /**
+     * Integrates with the tanh-sinh rule
+     * 
+     * @param ta (double) the lower bound of t
+     * @param tb (double) the upper bound of t
+     * @return the integrals (double[])
+     * @throws FiMaLibCalcException 
+     */
+    double[] tanhSinh(double ta, double tb) throws FiMaLibCalcException {
+        int m = this.formulas.length;
+        double center = 0.5 * (ta + tb);
+        double half = 0.5 * (tb - ta);
+        double[] sums = new double[m];
+        double[] estimate = new double[m];
+        double[] previous = new double[m];
+        
+        // level 0: the center and the points k*h with h=1
+        this.value(center, sums, 0);
+        for(int i=0; i<m; i++) sums[i] *= 0.5 * Math.PI;
+        this.addPoints(ta, tb, 1.0, 1.0, sums);
+        for(int i=0; i<m; i++) estimate[i] = half * sums[i];
+        
+        // a single level has no error estimate
+        Arrays.fill(this.errors, java.lang.Double.POSITIVE_INFINITY);
+        
+        double h = 1.0;
+        for(int level=1; level<=MAXIMUM_LEVEL; level++) {
+            if(this.evaluations >= this.maximumEvaluations) {
+                this.converged = false;
+                return estimate;
+            }
+            
+            // the new points lie halfway between the points of the previous level
+            h *= 0.5;
+            this.addPoints(ta, tb, h, 2.0 * h, sums);
+            
+            System.arraycopy(estimate, 0, previous, 0, m);
+            for(int i=0; i<m; i++) {
+                estimate[i] = h * half * sums[i];
+                this.errors[i] = Math.abs(estimate[i] - previous[i]);
+            }
+            
+            if((level >= 2) && this.isAccurate(estimate, this.errors)) return estimate;
+        }
+        
+        this.converged = false;
+        return estimate;
+    }
+    
+    /**
+     * Adds the weighted values at the points +/-(first+k*step) of the
+     * tanh-sinh rule to the sums, until the points reach the bounds (or
+     * their weights vanish)
+     * 
+     * @param ta (double) the lower bound of t
+     * @param tb (double) the upper bound of t
+     * @param first (double) the first point
+     * @param step (double) the distance of the points
+     * @param sums (double[]) the sums, one per formula
+     * @throws FiMaLibCalcException 
+     */
+    void addPoints(double ta, double tb, double first, double step, double[] sums) throws FiMaLibCalcException {
+        int m = this.formulas.length;
+        double half = 0.5 * (tb - ta);
+        double[] left = this.lefts;
+        double[] right = this.rights;
+        
+        for(double t=first; t<=MAXIMUM_T; t+=step) {
+            double u = 0.5 * Math.PI * Math.sinh(t);
+            double cosh = Math.cosh(u);
+            double distance = 1.0 / (Math.exp(u) * cosh);     // 1-tanh(u), without cancellation
+            double weight = 0.5 * Math.PI * Math.cosh(t) / (cosh * cosh);
+            
+            double a = ta + half * distance;
+            double b = tb - half * distance;
+            if(((a <= ta) && (b >= tb)) || (weight == 0.0)) break;
+            
+            // a side whose points reach the bound is skipped (the other one may still have a singularity)
+            if(a > ta) {
+                this.value(a, left, 0);
+                for(int i=0; i<m; i++) sums[i] += weight * left[i];
+            }
+            if(b < tb) {
+                this.value(b, right, 0);
+                for(int i=0; i<m; i++) sums[i] += weight * right[i];
+            }
+        }
+    }
+    
+    /**
+     * Evaluates the formulas at a point t, i.e. at the mapped point x, times
+     * the derivative of the mapping
+     * 
+     * @param t (double) the point
+     * @param out (double[]) the values, one per formula starting at the position
+     * @param position (int) the position of the values
+     * @throws FiMaLibCalcException 
+     */
+    void value(double t, double[] out, int position) throws FiMaLibCalcException {
+        double x;
+        double jacobian;
+        
+        switch (this.mapping) {
+            case UPPER_INFINITE:
+                x = this.offset + t / (1.0 - t);
+                jacobian = 1.0 / ((1.0 - t) * (1.0 - t));
+                break;
+                
+            case LOWER_INFINITE:
+                x = this.offset - (1.0 - t) / t;
+                jacobian = 1.0 / (t * t);
+                break;
+                
+            case BOTH_INFINITE:
+                x = t / (1.0 - t * t);
+                jacobian = (1.0 + t * t) / ((1.0 - t * t) * (1.0 - t * t));
+                break;
+                
+            default:
+                x = t;
+                jacobian = 1.0;
+                break;
+        }
+        
+        this.vars[this.slot] = x;
+        for(int i=0; i<this.formulas.length; i++) {
+            double value = (this.compiled != null) ? this.compiled[i].apply(this.vars) : this.formulas[i].evaluate(this.context);
+            // (zero values stay zero, even if the derivative of the mapping overflows near the bounds)
+            if((jacobian != 1.0) && (value != 0.0)) value *= jacobian;
+            
+            if(java.lang.Double.isNaN(value) || java.lang.Double.isInfinite(value))
+                throw new FiMaLibUndefinedException("Integrand is not finite at " + x);
+            out[position + i] = value;
+        }
+        
+        this.evaluations++;
+    }
+    
+    /**
+     * Returns the tolerance for an integral
+     * 
+     * @param value (double) the integral
+     * @return the tolerance (double)
+     */
+    double tolerance(double value) {
+        return Math.max(this.absoluteTolerance, this.relativeTolerance * Math.abs(value));
+    }
+    
+    /**
+     * Returns whether the errors of all integrals are within the tolerance
+     * 
+     * @param values (double[]) the integrals
+     * @param errors (double[]) the error estimates
+     * @return true if all integrals are accurate enough (boolean)
+     */
+    boolean isAccurate(double[] values, double[] errors) {
+        for(int i=0; i<values.length; i++) {
+            if(errors[i] > this.tolerance(values[i])) return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the priority of an interval
+     * 
+     * @param errs (double[]) the error estimates
+     * @param position (int) the position of the interval within the error estimates
+     * @param m (int) the number of formulas
+     * @param scales (double[]) the scales of the errors
+     * @return the priority (double)
+     */
+    static double priority(double[] errs, int position, int m, double[] scales) {
+        double retVal = 0.0;
+        for(int i=0; i<m; i++) {
+            retVal = Math.max(retVal, errs[position + i] * scales[i]);
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Adds an interval to the heap of intervals (ordered by priority, the
+     * largest first)
+     * 
+     * @param heap (int[]) the heap
+     * @param size (int) the size of the heap
+     * @param priorities (double[]) the priorities of the intervals
+     * @param k (int) the interval
+     * @return the new size of the heap (int)
+     */
+    static int push(int[] heap, int size, double[] priorities, int k) {
+        int i = size;
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(priorities[heap[parent]] >= priorities[k]) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = k;
+        
+        return size + 1;
+    }
+    
+    /**
+     * Removes the interval with the largest priority from the heap
+     * 
+     * @param heap (int[]) the heap
+     * @param size (int) the size of the heap
+     * @param priorities (double[]) the priorities of the intervals
+     * @return the new size of the heap (int)
+     */
+    static int pop(int[] heap, int size, double[] priorities) {
+        int last = heap[--size];
+        int i = 0;
+        
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= size) break;
+            if((child + 1 < size) && (priorities[heap[child + 1]] > priorities[heap[child]])) child++;
+            if(priorities[heap[child]] <= priorities[last]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        if(size > 0) heap[i] = last;
+        
+        return size;
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.MemoTable;
+import org.fimalib.calc.formula.NodeType;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.functions.Prod;
+import org.fimalib.calc.formula.functions.Sum;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Variable;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class wraps a call of a pure function (a transcendental function like
+ * exp or ln, or a user defined function) whose results are memoized: when the
+ * formula is evaluated with a memo table (see EvaluationContext.setMemoTable),
+ * the result of each call is stored with its argument values, and later calls
+ * with the same arguments return the stored result instead of calculating it
+ * again. Without a memo table, the call is evaluated as usual.
+ * 
+ * Memoization is opt-in (see memoize), as it only pays off for expensive
+ * functions that are called with the same arguments repeatedly, e.g. a user
+ * defined discount function called for the same dates within a formula, or
+ * within all evaluations for one set of market data (with the memo table
+ * being kept across the evaluations).
+ * 
+ * The results of user defined functions are stored per definition, i.e. all
+ * calls of a function share their results. Only functions without free
+ * variables and without random numbers may be memoized (including the
+ * functions they call), as the stored results must depend on the argument
+ * values only (see isPure).
+ * 
+ * The wrapper is transparent: its subnodes are those of the wrapped call, and
+ * calculate, derive and toString are those of the wrapped call as well.
+ * 
+ * @author Peter Werno
+ */
+public class Memoized extends Node {
+    Node target;
+    int type;
+    Object key;             // the function within the memo table
+    
+    /**
+     * Creates a new instance of Memoized
+     * 
+     * @param target (Node) the call of a unary function (except rand) or of a user defined function
+     * @throws FormulaException if the call cannot be memoized (e.g. the function is not pure)
+     */
+    public Memoized(Node target) throws FormulaException {
+        super(0);
+        
+        this.target = target;
+        this.type = NodeType.of(target);
+        
+        if(this.type == NodeType.FUNCTION) {
+            UserDefinedFunction function = (UserDefinedFunction)target;
+            if(function.getNodeCount() > MemoTable.MAXIMUM_ARGUMENTS)
+                throw new FormulaException("Function " + function.getName() + " has too many parameters to be memoized");
+            if(!isPure(function))
+                throw new FormulaException("Function " + function.getName() + " uses free variables or random numbers and cannot be memoized");
+            this.key = function.getDefinition();
+        }
+        else if(NodeType.isUnaryFunction(this.type) && (this.type != NodeType.RAND)) {
+            this.key = target.getClass();
+        }
+        else
+            throw new FormulaException("Node " + target.getName() + " cannot be memoized");
+    }
+    
+    /**
+     * Returns a copy of a formula tree, in which the calls of transcendental
+     * functions and/or of the given user defined functions are memoized.
+     * The definitions of user defined functions are not changed, i.e. calls 
+     * within definitions are not memoized. Calls of the given functions that
+     * are not pure (see isPure) are left as they are.
+     * 
+     * @param formula (Node) the formula tree
+     * @param transcendental (boolean) whether to memoize the transcendental functions (all unary functions except abs, int, sgn and rand)
+     * @param functions (String...) the names of the user defined functions to memoize
+     * @return the memoized formula tree (Node)
+     * @throws FormulaException 
+     */
+    public static Node memoize(Node formula, boolean transcendental, String... functions) throws FormulaException {
+        return memoize(formula.copy(), transcendental, new HashSet<>(Arrays.asList(functions)));
+    }
+    
+    /**
+     * Wraps the memoized calls of a formula tree (in place)
+     * 
+     * @param node (Node) the formula tree
+     * @param transcendental (boolean) whether to memoize the transcendental functions
+     * @param functions (HashSet) the names of the user defined functions to memoize
+     * @return the formula tree (Node)
+     * @throws FormulaException 
+     */
+    static Node memoize(Node node, boolean transcendental, HashSet<String> functions) throws FormulaException {
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            node.setNode(i, memoize(node.getNode(i), transcendental, functions));
+        }
+        
+        int nodeType = NodeType.of(node);
+        if((nodeType == NodeType.FUNCTION) && functions.contains(node.getName()) && isPure((UserDefinedFunction)node))
+            return new Memoized(node);
+        if(transcendental && isTranscendental(nodeType))
+            return new Memoized(node);
+        
+        return node;
+    }
+    
+    /**
+     * Returns whether a node type is a transcendental function, i.e. a unary
+     * function except abs, int, sgn and rand
+     * 
+     * @param type (int) the node type
+     * @return true if the function is transcendental (boolean)
+     */
+    static boolean isTranscendental(int type) {
+        return NodeType.isUnaryFunction(type) && (type != NodeType.ABS) && (type != NodeType.INT) && 
+                (type != NodeType.SGN) && (type != NodeType.RAND);
+    }
+    
+    /**
+     * Returns whether the result of a user defined function depends on its
+     * argument values only, i.e. whether its definition (and the definitions
+     * of all functions called by it) neither uses variables other than its
+     * parameters and the running variables of sums and products, nor random
+     * numbers, nor nodes of unknown classes
+     * 
+     * @param function (UserDefinedFunction) the function
+     * @return true if the function is pure (boolean)
+     * @throws FormulaException 
+     */
+    public static boolean isPure(UserDefinedFunction function) throws FormulaException {
+        return isPure(function, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+    
+    /**
+     * Returns whether a user defined function is pure (see isPure), skipping
+     * the definitions that are being checked already (recursive calls)
+     * 
+     * @param function (UserDefinedFunction) the function
+     * @param checked (Set) the definitions being checked
+     * @return true if the function is pure (boolean)
+     * @throws FormulaException 
+     */
+    static boolean isPure(UserDefinedFunction function, Set<Node> checked) throws FormulaException {
+        Node definition = function.getDefinition();
+        if(!checked.add(definition)) return true;
+        
+        return isPure(definition, new HashSet<>(Arrays.asList(function.getParameterNames())), checked);
+    }
+    
+    /**
+     * Returns whether a (sub) tree of a definition is pure, i.e. only uses
+     * the given variables and pure functions
+     * 
+     * @param node (Node) the (sub) tree
+     * @param names (HashSet) the parameters and running variables in scope
+     * @param checked (Set) the definitions being checked
+     * @return true if the tree is pure (boolean)
+     * @throws FormulaException 
+     */
+    static boolean isPure(Node node, HashSet<String> names, Set<Node> checked) throws FormulaException {
+        if(node == null) return true;
+        
+        int nodeType = NodeType.of(node);
+        switch (nodeType) {
+            case NodeType.RAND:
+            case NodeType.UNKNOWN:
+                return false;
+                
+            case NodeType.VARIABLE:
+                return names.contains(((Variable)node).getName());
+                
+            case NodeType.SUM:
+            case NodeType.PROD:
+                if(!isPure(node.getNode(0), names, checked) || !isPure(node.getNode(1), names, checked)) return false;
+                
+                HashSet<String> inner = new HashSet<>(names);
+                inner.add((nodeType == NodeType.SUM) ? ((Sum)node).getParameter() : ((Prod)node).getParameter());
+                return isPure(node.getNode(2), inner, checked);
+                
+            case NodeType.FUNCTION:
+                if(!isPure((UserDefinedFunction)node, checked)) return false;
+                break;
+                
+            default:
+                break;
+        }
+        
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            if(!isPure(node.getNode(i), names, checked)) return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the wrapped call
+     * 
+     * @return the call (Node)
+     */
+    public Node getTarget() {
+        return this.target;
+    }
+
+    /**
+     * Calculates the value of the call within an evaluation context, using the
+     * memo table of the context (if any)
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        MemoTable memo = context.getMemoTable();
+        if(memo == null) return this.target.evaluate(context);
+        
+        if(this.type != NodeType.FUNCTION) {
+            double a = this.target.getNode(0).evaluate(context);
+            int entry = memo.find(this.key, a);
+            if(entry >= 0) return memo.getValue(entry);
+            
+            double retVal = DagEvaluator.function(this.type, a);
+            memo.store(this.key, a, retVal);
+            
+            return retVal;
+        }
+        
+        UserDefinedFunction function = (UserDefinedFunction)this.target;
+        int frameSize = function.getFrameSize();
+        if(frameSize < 0)
+            throw new FormulaException("Function " + function.getName() + " is not bound to slots");
+        
+        // the arguments are calculated into the new frame, which is the key of the call
+        int numArgs = function.getNodeCount();
+        int frame = context.allocate(frameSize);
+        try {
+            for(int i=0; i<numArgs; i++) {
+                context.setLocal(frame, i, function.getNode(i).evaluate(context));
+            }
+        }
+        catch (FiMaLibCalcException | RuntimeException ex) {
+            context.release(frame);
+            throw ex;
+        }
+        
+        int entry = memo.find(this.key, context, frame, numArgs);
+        if(entry >= 0) {
+            context.release(frame);
+            return memo.getValue(entry);
+        }
+        
+        int caller = context.enter(frame);
+        double retVal;
+        try {
+            retVal = function.getDefinition().evaluate(context);
+        }
+        finally {
+            context.leave(caller, frame);
+        }
+        
+        // the frame has been removed, but its arguments are still on the stack
+        memo.store(this.key, context, frame, numArgs, retVal);
+        
+        return retVal;
+    }
+
+    /**
+     * Calculates the value of the call with a given parameter set (without
+     * memoization)
+     * 
+     * @param parameters (HashMap) the parameter(s)
+     * @return the result of the calculation
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public Number calculate(HashMap<String, Number> parameters) throws FiMaLibCalcException {
+        return this.target.calculate(parameters);
+    }
+
+    /**
+     * Binds the wrapped call to the slots of a slot map (see Node.bind)
+     * 
+     * @param slots (SlotMap) the slot map
+     * @throws FormulaException 
+     */
+    @Override
+    public void bind(SlotMap slots) throws FormulaException {
+        this.target.bind(slots);
+    }
+
+    /**
+     * Returns the number of subnodes of the wrapped call
+     * 
+     * @return the number of subnodes (int)
+     */
+    @Override
+    public int getNodeCount() {
+        return this.target.getNodeCount();
+    }
+
+    /**
+     * Returns a subnode of the wrapped call
+     * 
+     * @param num (int) the node-number
+     * @return the subnode (Node)
+     * @throws FormulaException 
+     */
+    @Override
+    public Node getNode(int num) throws FormulaException {
+        return this.target.getNode(num);
+    }
+
+    /**
+     * Sets a subnode of the wrapped call
+     * 
+     * @param num (int) the node-number
+     * @param node (Node) the new subnode
+     * @throws FormulaException 
+     */
+    @Override
+    public void setNode(int num, Node node) throws FormulaException {
+        this.target.setNode(num, node);
+    }
+
+    /**
+     * Returns all subnodes of the wrapped call in an array
+     * 
+     * @return the list of subnodes (Node[])
+     * @throws FormulaException 
+     */
+    @Override
+    public Node[] getSubNodes() throws FormulaException {
+        return this.target.getSubNodes();
+    }
+
+    /**
+     * Returns whether the wrapped call is a number
+     * 
+     * @return true if the call is a number (boolean)
+     * @throws FormulaException 
+     */
+    @Override
+    public boolean isNumber() throws FormulaException {
+        return this.target.isNumber();
+    }
+
+    /**
+     * Optimizes the wrapped call
+     * 
+     * @throws FormulaException
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public void optimize() throws FormulaException, FiMaLibCalcException {
+        this.target.optimize();
+    }
+
+    /**
+     * Returns the derivative of the wrapped call (which is not memoized)
+     * 
+     * @param parameterName (String) the parameter by which to derive
+     * @return the derived function (Node)
+     * @throws FormulaException 
+     */
+    @Override
+    public Node derive(String parameterName) throws FormulaException {
+        return this.target.derive(parameterName);
+    }
+
+    /**
+     * Returns the integration function of the wrapped call (which is not
+     * memoized)
+     * 
+     * @param parameterName (String) the parameter by which to integrate
+     * @return the integrated function (Node)
+     * @throws FormulaException 
+     */
+    @Override
+    public Node integrate(String parameterName) throws FormulaException {
+        return this.target.integrate(parameterName);
+    }
+
+    /**
+     * Creates a copy of this node (the copy shares the memoized results)
+     * 
+     * @return the copy (Node)
+     */
+    @Override
+    public Node copy() {
+        try {
+            return new Memoized(this.target.copy());
+        }
+        catch (FormulaException ex) {
+            // cannot happen, as the copy is of the same type
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Returns the name of the wrapped call
+     * 
+     * @return the name (String)
+     */
+    @Override
+    public String getName() {
+        return this.target.getName();
+    }
+
+    /**
+     * Returns the level of the wrapped call
+     * 
+     * @return the level (int)
+     */
+    @Override
+    public int getLevel() {
+        return this.target.getLevel();
+    }
+
+    /**
+     * Returns the wrapped call encoded as string
+     * 
+     * @return the formula (String)
+     */
+    @Override
+    public String toString() {
+        return this.target.toString();
+    }
+}
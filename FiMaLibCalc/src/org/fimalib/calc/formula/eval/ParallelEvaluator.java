@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.RandomStream;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class evaluates a formula for many scenarios in parallel.
+ * 
+ * The scenarios are split into ranges which are evaluated by batch evaluators
+ * (see BatchEvaluator) on a fork/join pool or on an executor given by the
+ * caller. The results are written directly into the output array.
+ * 
+ * The formula tree is bound once and is only read during the evaluation, so
+ * all threads share the same tree. Each task uses a batch evaluator (and thus
+ * buffers) of its own. Unlike Node.calculate, no parameter maps are involved,
+ * hence a parallel evaluator can safely be used by several threads at the
+ * same time.
+ * 
+ * Formulas with random numbers draw from the random streams of the worker
+ * threads, unless a random stream is set (see setRandom): then each chunk of
+ * CHUNK_SIZE scenarios gets a stream of its own, split off that stream in the
+ * order of the chunks, so that the results only depend on the seed and not
+ * on the number of threads.
+ * 
+ * Example:
+ * 
+ *  ParallelEvaluator evaluator = new ParallelEvaluator(Formula.parse("3*x^2+y"), "x", "y");
+ *  double[] out = new double[x.length];
+ *  evaluator.evaluate(new double[][] { x, y }, out);
+ * 
+ * @author Peter Werno
+ */
+public class ParallelEvaluator {
+    public static final int MIN_TASK_SIZE = 4 * BatchEvaluator.CHUNK_SIZE;
+    public static final int TASKS_PER_THREAD = 4;
+    
+    BatchEvaluator prototype;
+    ForkJoinPool pool;
+    RandomStream random;
+    
+    /**
+     * Unchecked exception to pass a FiMaLibCalcException out of a fork/join
+     * task
+     */
+    static class EvaluationFailure extends RuntimeException {
+        EvaluationFailure(FiMaLibCalcException cause) {
+            super(cause);
+        }
+    }
+    
+    /**
+     * This class evaluates a range of scenarios, splitting the range in
+     * halves as long as it is larger than the task size.
+     */
+    class EvaluationTask extends RecursiveAction {
+        double[][] columns;
+        double[] out;
+        RandomStream[] streams;
+        int from;
+        int to;
+        int taskSize;
+        
+        EvaluationTask(double[][] columns, double[] out, RandomStream[] streams, int from, int to, int taskSize) {
+            this.columns = columns;
+            this.out = out;
+            this.streams = streams;
+            this.from = from;
+            this.to = to;
+            this.taskSize = taskSize;
+        }
+        
+        @Override
+        protected void compute() {
+            if(this.to - this.from <= this.taskSize) {
+                try {
+                    evaluateRange(this.columns, this.out, this.streams, this.from, this.to);
+                }
+                catch (FiMaLibCalcException ex) {
+                    throw new EvaluationFailure(ex);
+                }
+            }
+            else {
+                // split at a chunk boundary
+                int middle = this.from + ((this.to - this.from) / 2 / BatchEvaluator.CHUNK_SIZE) * BatchEvaluator.CHUNK_SIZE;
+                invokeAll(new EvaluationTask(this.columns, this.out, this.streams, this.from, middle, this.taskSize),
+                        new EvaluationTask(this.columns, this.out, this.streams, middle, this.to, this.taskSize));
+            }
+        }
+    }
+    
+    /**
+     * Creates a new instance of ParallelEvaluator that uses the common
+     * fork/join pool. The formula tree is bound to the given slot map (see
+     * Node.bind).
+     * 
+     * @param formula (Node) the formula tree
+     * @param slots (SlotMap) the slot map
+     * @throws FormulaException 
+     */
+    public ParallelEvaluator(Node formula, SlotMap slots) throws FormulaException {
+        this(formula, slots, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Creates a new instance of ParallelEvaluator with the variables being
+     * assigned to the slots in the given order
+     * 
+     * @param formula (Node) the formula tree
+     * @param variables (String...) the variable names
+     * @throws FormulaException 
+     */
+    public ParallelEvaluator(Node formula, String... variables) throws FormulaException {
+        this(formula, new SlotMap(variables));
+    }
+    
+    /**
+     * Creates a new instance of ParallelEvaluator that uses a given fork/join
+     * pool
+     * 
+     * @param formula (Node) the formula tree
+     * @param slots (SlotMap) the slot map
+     * @param pool (ForkJoinPool) the fork/join pool
+     * @throws FormulaException 
+     */
+    public ParallelEvaluator(Node formula, SlotMap slots, ForkJoinPool pool) throws FormulaException {
+        this.prototype = new BatchEvaluator(formula, slots);
+        this.pool = pool;
+    }
+    
+    /**
+     * Returns the slots of the variables
+     * 
+     * @return the slot map (SlotMap)
+     */
+    public SlotMap getSlots() {
+        return this.prototype.getSlots();
+    }
+    
+    /**
+     * Returns the fork/join pool
+     * 
+     * @return the fork/join pool (ForkJoinPool)
+     */
+    public ForkJoinPool getPool() {
+        return this.pool;
+    }
+    
+    /**
+     * Returns the random stream from which the streams of the chunks are
+     * split
+     * 
+     * @return the random stream (RandomStream), null if the streams of the
+     * worker threads are used
+     */
+    public RandomStream getRandom() {
+        return this.random;
+    }
+    
+    /**
+     * Sets the random stream from which the streams of the chunks are split
+     * (one per chunk of CHUNK_SIZE scenarios, in the order of the chunks).
+     * With a seeded stream, the results can be reproduced with any number of
+     * threads. The stream is advanced by each evaluation.
+     * 
+     * @param random (RandomStream) the random stream, null to use the streams
+     * of the worker threads
+     */
+    public void setRandom(RandomStream random) {
+        this.random = random;
+    }
+    
+    /**
+     * Returns the random streams of the chunks of an evaluation
+     * 
+     * @param scenarios (int) the number of scenarios
+     * @return the random streams (RandomStream[]), null if no random stream
+     * is set
+     */
+    RandomStream[] splitStreams(int scenarios) {
+        if(this.random == null) return null;
+        
+        return this.random.split((scenarios + BatchEvaluator.CHUNK_SIZE - 1) / BatchEvaluator.CHUNK_SIZE);
+    }
+    
+    /**
+     * Evaluates the formula for a range of scenarios with a batch evaluator of
+     * its own. With random streams, the range is evaluated chunk by chunk,
+     * each chunk with its own stream.
+     * 
+     * @param columns (double[][]) the variable values, one column per slot
+     * @param out (double[]) the results, one per scenario
+     * @param streams (RandomStream[]) the random streams of the chunks (or null)
+     * @param from (int) the first scenario (at a chunk boundary)
+     * @param to (int) the scenario after the last one
+     * @throws FiMaLibCalcException 
+     */
+    void evaluateRange(double[][] columns, double[] out, RandomStream[] streams, int from, int to) throws FiMaLibCalcException {
+        BatchEvaluator evaluator = new BatchEvaluator(this.prototype);
+        
+        if(streams == null) {
+            evaluator.evaluate(columns, out, from, to);
+            return;
+        }
+        
+        for(int start=from; start<to; start+=BatchEvaluator.CHUNK_SIZE) {
+            evaluator.setRandom(streams[start / BatchEvaluator.CHUNK_SIZE]);
+            evaluator.evaluate(columns, out, start, Math.min(start + BatchEvaluator.CHUNK_SIZE, to));
+        }
+    }
+    
+    /**
+     * Evaluates the formula for all scenarios on the fork/join pool
+     * 
+     * @param columns (double[][]) the variable values, one column per slot
+     * @param out (double[]) the results, one per scenario
+     * @throws FiMaLibCalcException 
+     */
+    public void evaluate(double[][] columns, double[] out) throws FiMaLibCalcException {
+        int taskSize = this.getTaskSize(out.length, this.pool.getParallelism());
+        RandomStream[] streams = this.splitStreams(out.length);
+        
+        try {
+            this.pool.invoke(new EvaluationTask(columns, out, streams, 0, out.length, taskSize));
+        }
+        catch (EvaluationFailure ex) {
+            throw (FiMaLibCalcException)ex.getCause();
+        }
+    }
+    
+    /**
+     * Evaluates the formula for all scenarios on the given executor. The
+     * scenarios are split into the given number of tasks.
+     * 
+     * @param columns (double[][]) the variable values, one column per slot
+     * @param out (double[]) the results, one per scenario
+     * @param executor (ExecutorService) the executor
+     * @param threads (int) the number of threads of the executor
+     * @throws FiMaLibCalcException 
+     */
+    public void evaluate(final double[][] columns, final double[] out, ExecutorService executor, int threads) throws FiMaLibCalcException {
+        int taskSize = this.getTaskSize(out.length, threads);
+        RandomStream[] streams = this.splitStreams(out.length);
+        ArrayList<Future<Void>> futures = new ArrayList<>();
+        
+        for(int start=0; start<out.length; start+=taskSize) {
+            final int from = start;
+            final int to = Math.min(start + taskSize, out.length);
+            
+            futures.add(executor.submit(() -> {
+                this.evaluateRange(columns, out, streams, from, to);
+                return null;
+            }));
+        }
+        
+        try {
+            for(Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        catch (ExecutionException ex) {
+            if(ex.getCause() instanceof FiMaLibCalcException)
+                throw (FiMaLibCalcException)ex.getCause();
+            throw new FiMaLibCalcException("Error in parallel evaluation", ex);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new FiMaLibCalcException("Parallel evaluation was interrupted", ex);
+        }
+        finally {
+            for(Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of scenarios per task: a multiple of the chunk size,
+     * so that there are about TASKS_PER_THREAD tasks per thread (to balance
+     * the load), but at least MIN_TASK_SIZE scenarios.
+     * 
+     * @param scenarios (int) the number of scenarios
+     * @param threads (int) the number of threads
+     * @return the number of scenarios per task (int)
+     */
+    int getTaskSize(int scenarios, int threads) {
+        int tasks = Math.max(1, threads) * TASKS_PER_THREAD;
+        int chunks = (scenarios / tasks + BatchEvaluator.CHUNK_SIZE - 1) / BatchEvaluator.CHUNK_SIZE;
+        
+        return Math.max(MIN_TASK_SIZE, chunks * BatchEvaluator.CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Locale;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.NodeType;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class records where the time of evaluating a formula tree is spent.
+ * 
+ * Profiling is opt-in: instrument returns a copy of the formula tree in which
+ * every node is wrapped by a node recording the number of calls, the total
+ * time (including the sub nodes) and, if enabled, the bytes allocated by the
+ * evaluating thread. The original tree is not changed, so formulas that are
+ * not profiled do not pay anything for it.
+ * 
+ * The results can be printed as the annotated formula tree (see toString),
+ * with the total and the self time (excluding the sub nodes) of each node,
+ * or in the folded stack format of flame graph tools (see toFoldedStacks).
+ * 
+ * The times include the overhead of measuring (some nanoseconds per node and
+ * call), and sums and products of profiled formulas are always calculated in
+ * a loop, i.e. without the closed forms of the plain formula. The definitions
+ * of user defined functions are not profiled (only the calls and their
+ * arguments), as they are shared by all calls of a function.
+ * 
+ * The statistics are not synchronized, i.e. a profiled formula must not be
+ * evaluated by several threads at the same time.
+ * 
+ * Example:
+ * 
+ *  Profiler profiler = new Profiler();
+ *  Node node = profiler.instrument(Formula.parse("3*x^2+sin(x)"));
+ *  node.bind(new SlotMap("x"));
+ *  for(...) node.evaluate(context);
+ *  System.out.println(profiler);
+ * 
+ * @author Peter Werno
+ */
+public class Profiler {
+    public static final int MAXIMUM_TEXT = 60;
+    
+    Profiled root;
+    boolean allocations;
+    com.sun.management.ThreadMXBean threads;
+    
+    /**
+     * This class wraps a node of a profiled formula tree. The wrapper is
+     * transparent: its subnodes are those of the wrapped node (themselves
+     * wrapped), and calculate, derive and toString are those of the wrapped
+     * node as well.
+     */
+    public static class Profiled extends Node {
+        Profiler profiler;
+        Node target;
+        long count;
+        long time;              // the total time in nanoseconds
+        long allocated;         // the total allocated bytes
+        
+        /**
+         * Creates a new instance of Profiled
+         * 
+         * @param profiler (Profiler) the profiler
+         * @param target (Node) the profiled node
+         */
+        Profiled(Profiler profiler, Node target) {
+            super(0);
+            
+            this.profiler = profiler;
+            this.target = target;
+        }
+        
+        /**
+         * Returns the profiled node
+         * 
+         * @return the node (Node)
+         */
+        public Node getTarget() {
+            return this.target;
+        }
+        
+        /**
+         * Returns the number of calls of the node
+         * 
+         * @return the number of calls (long)
+         */
+        public long getCount() {
+            return this.count;
+        }
+        
+        /**
+         * Returns the total time of the calls, including the sub nodes
+         * 
+         * @return the time in nanoseconds (long)
+         */
+        public long getTime() {
+            return this.time;
+        }
+        
+        /**
+         * Returns the time of the calls, excluding the (profiled) sub nodes
+         * 
+         * @return the time in nanoseconds (long)
+         */
+        public long getSelfTime() {
+            long retVal = this.time;
+            
+            for(Profiled child : this.getChildren()) {
+                retVal -= child.time;
+            }
+            
+            return Math.max(0L, retVal);
+        }
+        
+        /**
+         * Returns the bytes allocated during the calls (if allocations are
+         * recorded, see Profiler.setAllocationTracking)
+         * 
+         * @return the allocated bytes (long)
+         */
+        public long getAllocatedBytes() {
+            return this.allocated;
+        }
+        
+        /**
+         * Returns the profiled sub nodes
+         * 
+         * @return the sub nodes (Profiled[])
+         */
+        public Profiled[] getChildren() {
+            int numNodes = this.target.getNodeCount();
+            Profiled[] retVal = new Profiled[numNodes];
+            int n = 0;
+            
+            for(int i=0; i<numNodes; i++) {
+                try {
+                    Node node = this.target.getNode(i);
+                    if(node instanceof Profiled) retVal[n++] = (Profiled)node;
+                }
+                catch (FormulaException ex) {
+                    // cannot happen, as i is a valid node number
+                    throw new IllegalStateException(ex);
+                }
+            }
+            
+            return (n == numNodes) ? retVal : java.util.Arrays.copyOf(retVal, n);
+        }
+        
+        /**
+         * Calculates the value of the node with primitive values, recording
+         * the call
+         * 
+         * @param context (EvaluationContext) the evaluation context
+         * @return the result of the calculation (double)
+         * @throws FiMaLibCalcException 
+         */
+        @Override
+        public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+            com.sun.management.ThreadMXBean threads = this.profiler.threads;
+            long bytes = (threads == null) ? 0L : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long start = System.nanoTime();
+            
+            try {
+                return this.target.evaluate(context);
+            }
+            finally {
+                this.time += System.nanoTime() - start;
+                this.count++;
+                if(threads != null) this.allocated += threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+            }
+        }
+        
+        /**
+         * Calculates the value of the node with a given parameter set,
+         * recording the call
+         * 
+         * @param parameters (HashMap) the parameter(s)
+         * @return the result of the calculation
+         * @throws FiMaLibCalcException 
+         */
+        @Override
+        public Number calculate(HashMap<String, Number> parameters) throws FiMaLibCalcException {
+            com.sun.management.ThreadMXBean threads = this.profiler.threads;
+            long bytes = (threads == null) ? 0L : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long start = System.nanoTime();
+            
+            try {
+                return this.target.calculate(parameters);
+            }
+            finally {
+                this.time += System.nanoTime() - start;
+                this.count++;
+                if(threads != null) this.allocated += threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+            }
+        }
+        
+        /**
+         * Resets the statistics of this node and its sub nodes
+         */
+        void reset() {
+            this.count = 0;
+            this.time = 0;
+            this.allocated = 0;
+            
+            for(Profiled child : this.getChildren()) {
+                child.reset();
+            }
+        }
+
+        @Override
+        public void bind(SlotMap slots) throws FormulaException {
+            this.target.bind(slots);
+        }
+
+        @Override
+        public int getNodeCount() {
+            return this.target.getNodeCount();
+        }
+
+        @Override
+        public Node getNode(int num) throws FormulaException {
+            return this.target.getNode(num);
+        }
+
+        @Override
+        public void setNode(int num, Node node) throws FormulaException {
+            this.target.setNode(num, node);
+        }
+
+        @Override
+        public Node[] getSubNodes() throws FormulaException {
+            return this.target.getSubNodes();
+        }
+
+        @Override
+        public boolean isNumber() throws FormulaException {
+            return this.target.isNumber();
+        }
+
+        @Override
+        public void optimize() throws FormulaException, FiMaLibCalcException {
+            this.target.optimize();
+        }
+
+        @Override
+        public Node derive(String parameterName) throws FormulaException {
+            return this.target.derive(parameterName);
+        }
+
+        @Override
+        public Node integrate(String parameterName) throws FormulaException {
+            return this.target.integrate(parameterName);
+        }
+
+        /**
+         * Creates a copy of this node (the copy records its calls in the
+         * same profiler, but is not part of its report)
+         * 
+         * @return the copy (Node)
+         */
+        @Override
+        public Node copy() {
+            return new Profiled(this.profiler, this.target.copy());
+        }
+
+        @Override
+        public String getName() {
+            return this.target.getName();
+        }
+
+        @Override
+        public int getLevel() {
+            return this.target.getLevel();
+        }
+
+        @Override
+        public String toString() {
+            return this.target.toString();
+        }
+    }
+    
+    /**
+     * Creates a new instance of Profiler
+     */
+    public Profiler() {
+    }
+    
+    /**
+     * Returns a copy of a formula tree, in which every node records its calls
+     * in this profiler. The statistics of a previously instrumented tree are
+     * discarded.
+     * 
+     * @param formula (Node) the formula tree
+     * @return the profiled formula tree (Node)
+     * @throws FormulaException 
+     */
+    public Node instrument(Node formula) throws FormulaException {
+        this.root = this.wrap(formula.copy());
+        
+        return this.root;
+    }
+    
+    /**
+     * Wraps the nodes of a formula tree (in place)
+     * 
+     * @param node (Node) the formula tree
+     * @return the wrapped formula tree (Profiled)
+     * @throws FormulaException 
+     */
+    Profiled wrap(Node node) throws FormulaException {
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            Node subNode = node.getNode(i);
+            if(subNode != null) node.setNode(i, this.wrap(subNode));
+        }
+        
+        return new Profiled(this, node);
+    }
+    
+    /**
+     * Returns the root of the profiled formula tree
+     * 
+     * @return the root (Profiled), null if no formula has been instrumented
+     */
+    public Profiled getRoot() {
+        return this.root;
+    }
+    
+    /**
+     * Returns whether the bytes allocated by the evaluating thread are
+     * recorded
+     * 
+     * @return true if allocations are recorded (boolean)
+     */
+    public boolean isAllocationTracking() {
+        return this.threads != null;
+    }
+    
+    /**
+     * Sets whether the bytes allocated by the evaluating thread are recorded
+     * (default false). This is only supported by JVMs providing the
+     * allocated bytes per thread (com.sun.management.ThreadMXBean) and costs
+     * some time per call, which is included in the recorded times.
+     * 
+     * @param tracking (boolean) true to record allocations
+     * @return true if allocations are recorded (boolean)
+     */
+    public boolean setAllocationTracking(boolean tracking) {
+        this.threads = null;
+        
+        if(tracking) {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if(bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)bean;
+                if(threadBean.isThreadAllocatedMemorySupported()) {
+                    threadBean.setThreadAllocatedMemoryEnabled(true);
+                    this.threads = threadBean;
+                }
+            }
+        }
+        
+        return this.threads != null;
+    }
+    
+    /**
+     * Resets the statistics of the profiled formula tree
+     */
+    public void reset() {
+        if(this.root != null) this.root.reset();
+    }
+    
+    /**
+     * Returns the statistics in the folded stack format of flame graph tools:
+     * one line per node with the names of the nodes from the root to the node
+     * separated by semicolons, followed by the self time in nanoseconds.
+     * 
+     * @return the folded stacks (String)
+     */
+    public String toFoldedStacks() {
+        StringBuilder retVal = new StringBuilder();
+        
+        if(this.root != null) this.appendFolded(retVal, this.root, "");
+        
+        return retVal.toString();
+    }
+    
+    /**
+     * Appends the folded stacks of a node and its sub nodes
+     * 
+     * @param text (StringBuilder) the text
+     * @param node (Profiled) the node
+     * @param stack (String) the stack of the parent node
+     */
+    void appendFolded(StringBuilder text, Profiled node, String stack) {
+        String frame = label(node.target).replace(';', ',');
+        if(!stack.isEmpty()) frame = stack + ";" + frame;
+        
+        if(node.count > 0) text.append(frame).append(' ').append(node.getSelfTime()).append('\n');
+        
+        for(Profiled child : node.getChildren()) {
+            this.appendFolded(text, child, frame);
+        }
+    }
+    
+    /**
+     * Returns the label of a node: the formula of variables, constants and
+     * unary functions, the name of all other nodes
+     * 
+     * @param node (Node) the node
+     * @return the label (String)
+     */
+    static String label(Node node) {
+        int type = NodeType.of(node);
+        
+        if((type == NodeType.VARIABLE) || (type == NodeType.CONSTANT))
+            return node.toString();
+        
+        return node.getName();
+    }
+    
+    /**
+     * Returns the profiled formula tree annotated with the statistics: one
+     * line per node with the number of calls, the total and self time in
+     * milliseconds, the allocated bytes (if recorded) and the (shortened)
+     * formula of the node, indented by its depth
+     * 
+     * @return the annotated formula tree (String)
+     */
+    @Override
+    public String toString() {
+        StringBuilder retVal = new StringBuilder();
+        
+        retVal.append(String.format(Locale.US, "%12s %12s %12s %14s  %s%n", "calls", "total ms", "self ms", "bytes", "node"));
+        if(this.root != null) this.appendTree(retVal, this.root, 0);
+        
+        return retVal.toString();
+    }
+    
+    /**
+     * Appends the lines of a node and its sub nodes
+     * 
+     * @param text (StringBuilder) the text
+     * @param node (Profiled) the node
+     * @param depth (int) the depth of the node
+     */
+    void appendTree(StringBuilder text, Profiled node, int depth) {
+        String formula = node.target.toString();
+        if(formula.length() > MAXIMUM_TEXT) formula = formula.substring(0, MAXIMUM_TEXT - 3) + "...";
+        
+        StringBuilder indent = new StringBuilder();
+        for(int i=0; i<depth; i++) indent.append("  ");
+        
+        text.append(String.format(Locale.US, "%12d %12.3f %12.3f %14s  %s%s %s%n", node.count, node.time / 1E6, node.getSelfTime() / 1E6,
+                (this.threads == null) ? "-" : Long.toString(node.allocated), indent, node.target.getName(), formula));
+        
+        for(Profiled child : node.getChildren()) {
+            this.appendTree(text, child, depth + 1);
+        }
+    }
+}
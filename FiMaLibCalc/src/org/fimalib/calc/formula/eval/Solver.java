@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.NodeType;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class solves formula(x)=target for one variable x within a bracket,
+ * e.g. the yield of a bond for a given price.
+ * 
+ * The solver takes Newton steps with the derivative calculated by forward
+ * mode automatic differentiation (see ForwardEvaluator) together with the
+ * value, as long as the steps stay within the bracket and converge fast
+ * enough. Otherwise (or if the formula cannot be differentiated), it falls
+ * back to Brent's method on the current bracket, which always converges.
+ * Hence, smooth formulas are typically solved within a few evaluations.
+ * 
+ * The bracket must contain a root, i.e. formula(lower)-target and 
+ * formula(upper)-target must not have the same sign.
+ * 
+ * Many problems with the same formula (but different parameters) can be
+ * solved in parallel on a fork/join pool (see solveAll). Within each task,
+ * the root of the previous problem is used as the first guess of the next
+ * one.
+ * 
+ * A solver must not be used by several threads at the same time (except for
+ * solveAll, which uses evaluators of its own in each task).
+ * 
+ * Example:
+ * 
+ *  Solver solver = new Solver(Formula.parse("100*exp(neg(y)*5)"), "y");
+ *  solver.setTarget(80.0);
+ *  double yield = solver.solve(0.0, 1.0);
+ * 
+ * @author Peter Werno
+ */
+public class Solver {
+    public static final double DEFAULT_TOLERANCE = 1E-12;
+    public static final int MAXIMUM_ITERATIONS = 100;
+    public static final int MIN_TASK_SIZE = 64;
+    
+    static final double EPSILON = Math.ulp(1.0);
+    
+    FormulaDag dag;
+    int slot;
+    String variable;
+    boolean differentiable;
+    
+    ForwardEvaluator forward;
+    DagEvaluator plain;
+    double[] derivative = new double[1];
+    
+    double target = 0.0;
+    double tolerance = DEFAULT_TOLERANCE;
+    double[] vars;
+    int evaluations;
+    
+    /**
+     * This class solves a range of problems, splitting the range in halves
+     * as long as it is larger than the task size. It returns the number of
+     * problems without a solution.
+     */
+    class SolverTask extends RecursiveTask<Integer> {
+        double[][] columns;
+        double[] lower;
+        double[] upper;
+        double[] out;
+        int from;
+        int to;
+        int taskSize;
+        
+        SolverTask(double[][] columns, double[] lower, double[] upper, double[] out, int from, int to, int taskSize) {
+            this.columns = columns;
+            this.lower = lower;
+            this.upper = upper;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.taskSize = taskSize;
+        }
+        
+        @Override
+        protected Integer compute() {
+            if(this.to - this.from <= this.taskSize) {
+                Solver solver = new Solver(Solver.this);
+                int retVal = solver.solveRange(this.columns, this.lower, this.upper, this.out, this.from, this.to);
+                Solver.this.addEvaluations(solver.evaluations);
+                
+                return retVal;
+            }
+            
+            int middle = (this.from + this.to) >>> 1;
+            SolverTask left = new SolverTask(this.columns, this.lower, this.upper, this.out, this.from, middle, this.taskSize);
+            SolverTask right = new SolverTask(this.columns, this.lower, this.upper, this.out, middle, this.to, this.taskSize);
+            left.fork();
+            int retVal = right.compute();
+            
+            return retVal + left.join();
+        }
+    }
+    
+    /**
+     * Creates a new instance of Solver. The variable to solve for gets the
+     * first slot, the parameters the following ones.
+     * 
+     * @param formula (Node) the formula tree
+     * @param variable (String) the variable to solve for
+     * @param parameters (String...) the further variables of the formula
+     * @throws FiMaLibCalcException 
+     */
+    public Solver(Node formula, String variable, String... parameters) throws FiMaLibCalcException {
+        this(formula, Integrator.slotMap(variable, parameters), variable);
+    }
+    
+    /**
+     * Creates a new instance of Solver. The formula tree is bound to the given
+     * slot map (see Node.bind).
+     * 
+     * @param formula (Node) the formula tree
+     * @param slots (SlotMap) the slot map
+     * @param variable (String) the variable to solve for
+     * @throws FiMaLibCalcException 
+     */
+    public Solver(Node formula, SlotMap slots, String variable) throws FiMaLibCalcException {
+        this.slot = slots.getSlot(variable);
+        this.dag = new FormulaDag(formula, slots);
+        this.variable = variable;
+        
+        // nodes of unknown classes cannot be differentiated automatically
+        this.differentiable = true;
+        for(int i=0; i<this.dag.getSize(); i++) {
+            if(this.dag.types[i] == NodeType.UNKNOWN) this.differentiable = false;
+        }
+        if(this.differentiable) this.differentiable = isDifferentiable(formula);
+        
+        this.forward = this.differentiable ? new ForwardEvaluator(this.dag, variable) : null;
+        this.plain = new DagEvaluator(this.dag);
+    }
+    
+    /**
+     * Creates a new instance of Solver with the same formula and settings
+     * as another solver, but evaluators of its own
+     * 
+     * @param solver (Solver) the other solver
+     */
+    Solver(Solver solver) {
+        this.dag = solver.dag;
+        this.slot = solver.slot;
+        this.variable = solver.variable;
+        this.differentiable = solver.differentiable;
+        this.forward = this.differentiable ? new ForwardEvaluator(this.dag, this.variable) : null;
+        this.plain = new DagEvaluator(this.dag);
+        this.target = solver.target;
+        this.tolerance = solver.tolerance;
+    }
+    
+    /**
+     * Returns whether a (sub) tree can be differentiated automatically, i.e.
+     * neither contains nodes of unknown classes nor calls user defined
+     * functions whose definitions contain them
+     * 
+     * @param node (Node) the (sub) tree
+     * @return true if the tree can be differentiated (boolean)
+     * @throws FormulaException 
+     */
+    static boolean isDifferentiable(Node node) throws FormulaException {
+        int type = NodeType.of(node);
+        if(type == NodeType.UNKNOWN) return false;
+        if((type == NodeType.FUNCTION) && !isDifferentiable(((UserDefinedFunction)node).getDefinition())) return false;
+        
+        int count = node.getNodeCount();
+        for(int i=0; i<count; i++) {
+            if(!isDifferentiable(node.getNode(i))) return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the slots of the variables
+     * 
+     * @return the slot map (SlotMap)
+     */
+    public SlotMap getSlots() {
+        return this.dag.getSlots();
+    }
+    
+    /**
+     * Returns the value the formula is solved for
+     * 
+     * @return the target (double)
+     */
+    public double getTarget() {
+        return this.target;
+    }
+    
+    /**
+     * Sets the value the formula is solved for (default 0)
+     * 
+     * @param target (double) the target
+     */
+    public void setTarget(double target) {
+        this.target = target;
+    }
+    
+    /**
+     * Returns the absolute tolerance of the root
+     * 
+     * @return the tolerance (double)
+     */
+    public double getTolerance() {
+        return this.tolerance;
+    }
+    
+    /**
+     * Sets the absolute tolerance of the root (the relative tolerance is the
+     * machine precision)
+     * 
+     * @param tolerance (double) the tolerance
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+    
+    /**
+     * Returns whether the solver uses Newton steps, i.e. whether the formula
+     * can be differentiated automatically
+     * 
+     * @return true if Newton steps are used (boolean)
+     */
+    public boolean isDifferentiable() {
+        return this.differentiable;
+    }
+    
+    /**
+     * Returns the number of evaluations of the formula of the last solve
+     * (or of all problems of the last solveAll)
+     * 
+     * @return the number of evaluations (int)
+     */
+    public int getEvaluationCount() {
+        return this.evaluations;
+    }
+    
+    /**
+     * Adds the evaluations of a task of solveAll
+     * 
+     * @param count (int) the number of evaluations
+     */
+    synchronized void addEvaluations(int count) {
+        this.evaluations += count;
+    }
+    
+    /**
+     * Solves the formula within a bracket
+     * 
+     * @param lower (double) the lower end of the bracket
+     * @param upper (double) the upper end of the bracket
+     * @param values (double...) the variable values, one per slot (the value of the variable to solve for is ignored)
+     * @return the root (double)
+     * @throws FiMaLibCalcException if the bracket does not contain a root or there is no convergence
+     */
+    public double solve(double lower, double upper, double... values) throws FiMaLibCalcException {
+        this.vars = Arrays.copyOf(values, Math.max(values.length, this.dag.getSlots().size()));
+        this.evaluations = 0;
+        
+        return this.solve(lower, upper, java.lang.Double.NaN);
+    }
+    
+    /**
+     * Solves many problems in parallel on the common fork/join pool. The
+     * problems that cannot be solved (e.g. without a root in the bracket or
+     * with a formula that cannot be evaluated) get the result NaN.
+     * 
+     * @param columns (double[][]) the variable values, one column per slot (the column of the variable to solve for is ignored)
+     * @param lower (double[]) the lower ends of the brackets, one per problem
+     * @param upper (double[]) the upper ends of the brackets, one per problem
+     * @param out (double[]) the roots, one per problem
+     * @return the number of problems without a solution (int)
+     */
+    public int solveAll(double[][] columns, double[] lower, double[] upper, double[] out) {
+        return this.solveAll(columns, lower, upper, out, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Solves many problems in parallel on a fork/join pool
+     * 
+     * @param columns (double[][]) the variable values, one column per slot
+     * @param lower (double[]) the lower ends of the brackets, one per problem
+     * @param upper (double[]) the upper ends of the brackets, one per problem
+     * @param out (double[]) the roots, one per problem
+     * @param pool (ForkJoinPool) the fork/join pool
+     * @return the number of problems without a solution (int)
+     */
+    public int solveAll(double[][] columns, double[] lower, double[] upper, double[] out, ForkJoinPool pool) {
+        int taskSize = Math.max(MIN_TASK_SIZE, out.length / (4 * pool.getParallelism()) + 1);
+        this.evaluations = 0;
+        
+        return pool.invoke(new SolverTask(columns, lower, upper, out, 0, out.length, taskSize));
+    }
+    
+    /**
+     * Solves a range of problems one after the other, starting each solve with
+     * the previous root (if it is within the bracket)
+     * 
+     * @param columns (double[][]) the variable values, one column per slot
+     * @param lower (double[]) the lower ends of the brackets
+     * @param upper (double[]) the upper ends of the brackets
+     * @param out (double[]) the roots
+     * @param from (int) the first problem
+     * @param to (int) the problem after the last one
+     * @return the number of problems without a solution (int)
+     */
+    int solveRange(double[][] columns, double[] lower, double[] upper, double[] out, int from, int to) {
+        int numSlots = this.dag.getSlots().size();
+        this.vars = new double[numSlots];
+        double guess = java.lang.Double.NaN;
+        int retVal = 0;
+        
+        for(int i=from; i<to; i++) {
+            for(int s=0; s<columns.length; s++) {
+                if((s != this.slot) && (columns[s] != null)) this.vars[s] = columns[s][i];
+            }
+            
+            try {
+                out[i] = this.solve(lower[i], upper[i], guess);
+                guess = out[i];
+            }
+            catch (FiMaLibCalcException ex) {
+                out[i] = java.lang.Double.NaN;
+                retVal++;
+            }
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Solves the formula with the current variable values
+     * 
+     * @param a (double) the lower end of the bracket
+     * @param b (double) the upper end of the bracket
+     * @param guess (double) the first guess, NaN if there is none
+     * @return the root (double)
+     * @throws FiMaLibCalcException 
+     */
+    double solve(double a, double b, double guess) throws FiMaLibCalcException {
+        double fa = this.value(a);
+        if(fa == 0.0) return a;
+        double fb = this.value(b);
+        if(fb == 0.0) return b;
+        
+        if((fa > 0.0) == (fb > 0.0) || java.lang.Double.isNaN(fa) || java.lang.Double.isNaN(fb))
+            throw new FormulaException("Root of " + this.dag.getFormula() + " is not bracketed by " + a + " and " + b);
+        
+        if(!this.differentiable) return this.brent(a, fa, b, fb);
+        
+        // Newton steps, keeping the bracket up to date
+        double x = ((guess > Math.min(a, b)) && (guess < Math.max(a, b))) ? guess : a - fa * (b - a) / (fb - fa);
+        double previousStep = Math.abs(b - a);
+        
+        for(int iteration=0; iteration<MAXIMUM_ITERATIONS; iteration++) {
+            double fx = this.valueAndDerivative(x);
+            double dfx = this.derivative[0];
+            if(fx == 0.0) return x;
+            
+            if((fx > 0.0) == (fa > 0.0)) {
+                a = x;
+                fa = fx;
+            }
+            else {
+                b = x;
+                fb = fx;
+            }
+            
+            double step = fx / dfx;
+            double next = x - step;
+            
+            // the step has to stay within the bracket and shrink fast enough
+            if(java.lang.Double.isNaN(next) || java.lang.Double.isInfinite(next) || (next <= Math.min(a, b)) || 
+                    (next >= Math.max(a, b)) || (Math.abs(step) > 0.5 * previousStep))
+                return this.brent(a, fa, b, fb);
+            
+            previousStep = Math.abs(step);
+            if(Math.abs(step) <= this.tolerance + 2.0 * EPSILON * Math.abs(next)) return next;
+            x = next;
+        }
+        
+        throw new FormulaException("Solving " + this.dag.getFormula() + " did not converge");
+    }
+    
+    /**
+     * Solves the formula with Brent's method (inverse quadratic interpolation,
+     * secant and bisection steps)
+     * 
+     * @param a (double) one end of the bracket
+     * @param fa (double) the value at a
+     * @param b (double) the other end of the bracket
+     * @param fb (double) the value at b
+     * @return the root (double)
+     * @throws FiMaLibCalcException 
+     */
+    double brent(double a, double fa, double b, double fb) throws FiMaLibCalcException {
+        double c = a;
+        double fc = fa;
+        double d = b - a;
+        double e = d;
+        
+        for(int iteration=0; iteration<MAXIMUM_ITERATIONS; iteration++) {
+            if((fb > 0.0) == (fc > 0.0)) {
+                c = a;
+                fc = fa;
+                d = b - a;
+                e = d;
+            }
+            if(Math.abs(fc) < Math.abs(fb)) {
+                a = b;
+                b = c;
+                c = a;
+                fa = fb;
+                fb = fc;
+                fc = fa;
+            }
+            
+            double tol = 2.0 * EPSILON * Math.abs(b) + 0.5 * this.tolerance;
+            double m = 0.5 * (c - b);
+            if((Math.abs(m) <= tol) || (fb == 0.0)) return b;
+            
+            if((Math.abs(e) >= tol) && (Math.abs(fa) > Math.abs(fb))) {
+                double s = fb / fa;
+                double p;
+                double q;
+                if(a == c) {
+                    // secant step
+                    p = 2.0 * m * s;
+                    q = 1.0 - s;
+                }
+                else {
+                    // inverse quadratic interpolation
+                    double r = fb / fc;
+                    q = fa / fc;
+                    p = s * (2.0 * m * q * (q - r) - (b - a) * (r - 1.0));
+                    q = (q - 1.0) * (r - 1.0) * (s - 1.0);
+                }
+                if(p > 0.0) q = -q;
+                else p = -p;
+                
+                if((2.0 * p < Math.min(3.0 * m * q - Math.abs(tol * q), Math.abs(e * q)))) {
+                    e = d;
+                    d = p / q;
+                }
+                else {
+                    // bisection
+                    d = m;
+                    e = m;
+                }
+            }
+            else {
+                d = m;
+                e = m;
+            }
+            
+            a = b;
+            fa = fb;
+            b += (Math.abs(d) > tol) ? d : ((m > 0.0) ? tol : -tol);
+            fb = this.value(b);
+        }
+        
+        throw new FormulaException("Solving " + this.dag.getFormula() + " did not converge");
+    }
+    
+    /**
+     * Returns formula(x)-target
+     * 
+     * @param x (double) the value of the variable
+     * @return the difference (double)
+     * @throws FiMaLibCalcException 
+     */
+    double value(double x) throws FiMaLibCalcException {
+        this.vars[this.slot] = x;
+        this.evaluations++;
+        
+        return this.plain.evaluate(this.vars) - this.target;
+    }
+    
+    /**
+     * Returns formula(x)-target and stores the derivative by x
+     * 
+     * @param x (double) the value of the variable
+     * @return the difference (double)
+     * @throws FiMaLibCalcException 
+     */
+    double valueAndDerivative(double x) throws FiMaLibCalcException {
+        this.vars[this.slot] = x;
+        this.evaluations++;
+        
+        return this.forward.evaluate(this.vars, this.derivative) - this.target;
+    }
+}
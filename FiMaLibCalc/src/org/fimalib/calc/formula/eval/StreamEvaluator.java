@@ -0,0 +1,737 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class evaluates a formula for all records of a file, e.g. for millions
+ * of trades or scenarios, and writes the results to another file.
+ * 
+ * The input file is memory mapped (in windows of MAPPING_SIZE bytes) and is
+ * either
+ *  - a CSV file with a header line naming the columns, or
+ *  - a binary file of fixed size records (see Layout).
+ * 
+ * The values of the variables are parsed from the mapped bytes directly into
+ * the columns of a BatchEvaluator, without creating any strings or number
+ * objects, and the formula is evaluated for CHUNK_SIZE records at a time. The
+ * results are written through a buffer to the output channel, as text (one
+ * line per record, after a header line) for CSV files and as 8 byte values in
+ * the byte order of the layout for binary files.
+ * 
+ * Empty CSV fields are read as NaN. A stream evaluator must not be used by
+ * several threads at the same time.
+ * 
+ * Example:
+ * 
+ *  StreamEvaluator evaluator = new StreamEvaluator(Formula.parse("n*exp(neg(r)*t)"), "n", "r", "t");
+ *  long count = evaluator.evaluateCsv(Paths.get("trades.csv"), Paths.get("prices.csv"));
+ * 
+ * @author Peter Werno
+ */
+public class StreamEvaluator {
+    public static final int CHUNK_SIZE = 16 * BatchEvaluator.CHUNK_SIZE;
+    public static final int MAPPING_SIZE = 1 << 28;
+    public static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    
+    static final long[] POWERS_OF_TEN = new long[19];
+    static final double[] EXACT_POWERS_OF_TEN = new double[23];
+    
+    static {
+        POWERS_OF_TEN[0] = 1L;
+        for(int i=1; i<POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = 10L * POWERS_OF_TEN[i - 1];
+        EXACT_POWERS_OF_TEN[0] = 1.0;
+        for(int i=1; i<EXACT_POWERS_OF_TEN.length; i++) EXACT_POWERS_OF_TEN[i] = 10.0 * EXACT_POWERS_OF_TEN[i - 1];
+    }
+    
+    BatchEvaluator evaluator;
+    String[] variables;
+    double[][] columns;
+    double[] results;
+    int count;                  // the number of records in the current chunk
+    int lines;                  // the number of records read by the last call of readCsv
+    
+    byte delimiter = ',';
+    String resultName = "result";
+    int mappingSize = MAPPING_SIZE;
+    
+    ByteBuffer output;
+    boolean binary;             // write the results as 8 byte values instead of text
+    WritableByteChannel channel;
+    StringBuilder text = new StringBuilder();
+    
+    /**
+     * This class describes the fixed size records of a binary file: the size
+     * of a record, the byte order and the offset and type of the field of
+     * each variable within the record.
+     * 
+     * Example (a record of a double and an int, the rest is ignored):
+     * 
+     *  Layout layout = new Layout(16, ByteOrder.LITTLE_ENDIAN);
+     *  layout.add("r", 0, Layout.DOUBLE);
+     *  layout.add("t", 8, Layout.INT);
+     */
+    public static class Layout {
+        public static final int DOUBLE = 0;
+        public static final int FLOAT = 1;
+        public static final int LONG = 2;
+        public static final int INT = 3;
+        
+        static final int[] SIZES = { 8, 4, 8, 4 };
+        
+        int recordSize;
+        ByteOrder order;
+        HashMap<String, int[]> fields = new HashMap<>();
+        
+        /**
+         * Creates a new instance of Layout
+         * 
+         * @param recordSize (int) the size of a record in bytes
+         * @param order (ByteOrder) the byte order of the values
+         */
+        public Layout(int recordSize, ByteOrder order) {
+            if(recordSize <= 0)
+                throw new IllegalArgumentException("Record size must be positive");
+            
+            this.recordSize = recordSize;
+            this.order = order;
+        }
+        
+        /**
+         * Adds the field of a variable
+         * 
+         * @param variable (String) the variable name
+         * @param offset (int) the offset of the field within the record
+         * @param type (int) the type of the field (DOUBLE, FLOAT, LONG or INT)
+         */
+        public void add(String variable, int offset, int type) {
+            if((type < DOUBLE) || (type > INT))
+                throw new IllegalArgumentException("Unknown field type " + type);
+            if((offset < 0) || (offset + SIZES[type] > this.recordSize))
+                throw new IllegalArgumentException("Field " + variable + " exceeds the record");
+            
+            this.fields.put(variable, new int[] { offset, type });
+        }
+        
+        /**
+         * Returns the size of a record
+         * 
+         * @return the record size in bytes (int)
+         */
+        public int getRecordSize() {
+            return this.recordSize;
+        }
+        
+        /**
+         * Returns the byte order of the values
+         * 
+         * @return the byte order (ByteOrder)
+         */
+        public ByteOrder getOrder() {
+            return this.order;
+        }
+    }
+    
+    /**
+     * Creates a new instance of StreamEvaluator. The variables are read from
+     * the columns (or fields) of the same name.
+     * 
+     * @param formula (Node) the formula tree
+     * @param variables (String...) the variables of the formula
+     * @throws FormulaException 
+     */
+    public StreamEvaluator(Node formula, String... variables) throws FormulaException {
+        this.evaluator = new BatchEvaluator(formula, variables);
+        this.variables = variables.clone();
+        this.columns = new double[variables.length][CHUNK_SIZE];
+        this.results = new double[CHUNK_SIZE];
+    }
+    
+    /**
+     * Returns the delimiter of the CSV fields
+     * 
+     * @return the delimiter (char)
+     */
+    public char getDelimiter() {
+        return (char)this.delimiter;
+    }
+    
+    /**
+     * Sets the delimiter of the CSV fields (default ',')
+     * 
+     * @param delimiter (char) the delimiter, an ASCII character
+     */
+    public void setDelimiter(char delimiter) {
+        if(delimiter > 127)
+            throw new IllegalArgumentException("Delimiter must be an ASCII character");
+        
+        this.delimiter = (byte)delimiter;
+    }
+    
+    /**
+     * Returns the header of the result column of CSV output
+     * 
+     * @return the name of the result column (String)
+     */
+    public String getResultName() {
+        return this.resultName;
+    }
+    
+    /**
+     * Sets the header of the result column of CSV output (default "result")
+     * 
+     * @param resultName (String) the name of the result column
+     */
+    public void setResultName(String resultName) {
+        this.resultName = resultName;
+    }
+    
+    /**
+     * Evaluates the formula for all records of a CSV file
+     * 
+     * @param input (Path) the CSV file
+     * @param output (Path) the result file, replaced if it exists
+     * @return the number of records (long)
+     * @throws IOException
+     * @throws FiMaLibCalcException 
+     */
+    public long evaluateCsv(Path input, Path output) throws IOException, FiMaLibCalcException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return this.evaluateCsv(in, out);
+        }
+    }
+    
+    /**
+     * Evaluates the formula for all records of a CSV file
+     * 
+     * @param in (FileChannel) the CSV file
+     * @param out (WritableByteChannel) the channel the results are written to
+     * @return the number of records (long)
+     * @throws IOException
+     * @throws FiMaLibCalcException 
+     */
+    public long evaluateCsv(FileChannel in, WritableByteChannel out) throws IOException, FiMaLibCalcException {
+        long size = in.size();
+        long position = 0;
+        long retVal = 0;
+        int[] slots = null;
+        
+        this.open(out, null);
+        this.writeText(this.resultName);
+        
+        while(position < size) {
+            int length = (int)Math.min(this.mappingSize, size - position);
+            boolean last = (position + length == size);
+            ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+            
+            int start = 0;
+            if(slots == null) {
+                start = nextLine(buffer, 0);
+                if((start < 0) && !last)
+                    throw new FormulaException("Header line is longer than " + this.mappingSize + " bytes");
+                slots = this.readHeader(buffer, (start < 0) ? length : start);
+                if(start < 0) break;
+            }
+            
+            int end = this.readCsv(buffer, start, slots, retVal, last);
+            if(end == 0)
+                throw new FormulaException("Line " + (retVal + 2) + " is longer than " + this.mappingSize + " bytes");
+            
+            retVal += this.lines;
+            position += end;
+        }
+        
+        this.flushChunk();
+        this.close();
+        
+        return retVal;
+    }
+    
+    /**
+     * Evaluates the formula for all records of CSV data
+     * 
+     * @param buffer (ByteBuffer) the CSV data, from position 0 to the limit
+     * @param out (WritableByteChannel) the channel the results are written to
+     * @return the number of records (long)
+     * @throws IOException
+     * @throws FiMaLibCalcException 
+     */
+    public long evaluateCsv(ByteBuffer buffer, WritableByteChannel out) throws IOException, FiMaLibCalcException {
+        this.open(out, null);
+        this.writeText(this.resultName);
+        
+        int start = nextLine(buffer, 0);
+        int[] slots = this.readHeader(buffer, (start < 0) ? buffer.limit() : start);
+        if(start >= 0) this.readCsv(buffer, start, slots, 0, true);
+        
+        this.flushChunk();
+        this.close();
+        
+        return (start < 0) ? 0 : this.lines;
+    }
+    
+    /**
+     * Evaluates the formula for all records of a binary file
+     * 
+     * @param input (Path) the binary file
+     * @param layout (Layout) the layout of the records
+     * @param output (Path) the result file, replaced if it exists
+     * @return the number of records (long)
+     * @throws IOException
+     * @throws FiMaLibCalcException 
+     */
+    public long evaluateBinary(Path input, Layout layout, Path output) throws IOException, FiMaLibCalcException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return this.evaluateBinary(in, layout, out);
+        }
+    }
+    
+    /**
+     * Evaluates the formula for all records of a binary file. Trailing bytes
+     * that do not make up a whole record are ignored.
+     * 
+     * @param in (FileChannel) the binary file
+     * @param layout (Layout) the layout of the records
+     * @param out (WritableByteChannel) the channel the results are written to
+     * @return the number of records (long)
+     * @throws IOException
+     * @throws FiMaLibCalcException 
+     */
+    public long evaluateBinary(FileChannel in, Layout layout, WritableByteChannel out) throws IOException, FiMaLibCalcException {
+        int[][] fields = this.fields(layout);
+        long numRecords = in.size() / layout.recordSize;
+        long recordsPerWindow = Math.max(1, this.mappingSize / layout.recordSize);
+        
+        this.open(out, layout.order);
+        
+        for(long record=0; record<numRecords; record+=recordsPerWindow) {
+            int n = (int)Math.min(recordsPerWindow, numRecords - record);
+            ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, record * layout.recordSize, (long)n * layout.recordSize);
+            this.readBinary(buffer, layout, fields, n);
+        }
+        
+        this.flushChunk();
+        this.close();
+        
+        return numRecords;
+    }
+    
+    /**
+     * Evaluates the formula for all records of binary data
+     * 
+     * @param buffer (ByteBuffer) the records, from position 0 to the limit
+     * @param layout (Layout) the layout of the records
+     * @param out (WritableByteChannel) the channel the results are written to
+     * @return the number of records (long)
+     * @throws IOException
+     * @throws FiMaLibCalcException 
+     */
+    public long evaluateBinary(ByteBuffer buffer, Layout layout, WritableByteChannel out) throws IOException, FiMaLibCalcException {
+        int[][] fields = this.fields(layout);
+        int numRecords = buffer.limit() / layout.recordSize;
+        
+        this.open(out, layout.order);
+        this.readBinary(buffer, layout, fields, numRecords);
+        this.flushChunk();
+        this.close();
+        
+        return numRecords;
+    }
+    
+    /**
+     * Returns the fields of the variables
+     * 
+     * @param layout (Layout) the layout of the records
+     * @return the offset and type of the field of each variable (int[][])
+     * @throws FormulaException if a variable has no field
+     */
+    int[][] fields(Layout layout) throws FormulaException {
+        int[][] retVal = new int[this.variables.length][];
+        
+        for(int s=0; s<this.variables.length; s++) {
+            retVal[s] = layout.fields.get(this.variables[s]);
+            if(retVal[s] == null)
+                throw new FormulaException("No field for variable " + this.variables[s]);
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Reads the values of the variables from binary records, evaluating the
+     * formula whenever a chunk is complete
+     * 
+     * @param buffer (ByteBuffer) the records
+     * @param layout (Layout) the layout of the records
+     * @param fields (int[][]) the offset and type of the field of each variable
+     * @param numRecords (int) the number of records
+     * @throws IOException
+     * @throws FiMaLibCalcException 
+     */
+    void readBinary(ByteBuffer buffer, Layout layout, int[][] fields, int numRecords) throws IOException, FiMaLibCalcException {
+        buffer.order(layout.order);
+        
+        for(int first=0; first<numRecords; ) {
+            int n = Math.min(CHUNK_SIZE - this.count, numRecords - first);
+            
+            for(int s=0; s<fields.length; s++) {
+                double[] column = this.columns[s];
+                int position = first * layout.recordSize + fields[s][0];
+                
+                switch (fields[s][1]) {
+                    case Layout.DOUBLE:
+                        for(int i=0; i<n; i++, position+=layout.recordSize) column[this.count + i] = buffer.getDouble(position);
+                        break;
+                    case Layout.FLOAT:
+                        for(int i=0; i<n; i++, position+=layout.recordSize) column[this.count + i] = buffer.getFloat(position);
+                        break;
+                    case Layout.LONG:
+                        for(int i=0; i<n; i++, position+=layout.recordSize) column[this.count + i] = buffer.getLong(position);
+                        break;
+                    default:
+                        for(int i=0; i<n; i++, position+=layout.recordSize) column[this.count + i] = buffer.getInt(position);
+                        break;
+                }
+            }
+            
+            this.count += n;
+            first += n;
+            if(this.count == CHUNK_SIZE) this.flushChunk();
+        }
+    }
+    
+    /**
+     * Reads the header line of a CSV file
+     * 
+     * @param buffer (ByteBuffer) the CSV data
+     * @param end (int) the end of the header line
+     * @return the slot of each column, -1 for columns that are not used (int[])
+     * @throws FormulaException if a variable has no column
+     */
+    int[] readHeader(ByteBuffer buffer, int end) throws FormulaException {
+        byte[] bytes = new byte[end];
+        for(int i=0; i<end; i++) bytes[i] = buffer.get(i);
+        String header = new String(bytes, StandardCharsets.UTF_8).trim();
+        
+        String[] names = header.isEmpty() ? new String[0] : header.split(Pattern.quote(String.valueOf((char)this.delimiter)), -1);
+        int[] retVal = new int[names.length];
+        boolean[] found = new boolean[this.variables.length];
+        
+        for(int c=0; c<names.length; c++) {
+            String name = names[c].trim();
+            if((name.length() >= 2) && name.startsWith("\"") && name.endsWith("\"")) name = name.substring(1, name.length() - 1);
+            
+            retVal[c] = -1;
+            for(int s=0; s<this.variables.length; s++) {
+                if(!found[s] && this.variables[s].equals(name)) {
+                    retVal[c] = s;
+                    found[s] = true;
+                    break;
+                }
+            }
+        }
+        
+        for(int s=0; s<this.variables.length; s++) {
+            if(!found[s])
+                throw new FormulaException("No column for variable " + this.variables[s]);
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Reads the values of the variables from the complete lines of CSV data,
+     * evaluating the formula whenever a chunk is complete. The number of
+     * records read is stored in lines.
+     * 
+     * @param buffer (ByteBuffer) the CSV data
+     * @param start (int) the start of the first line
+     * @param slots (int[]) the slot of each column
+     * @param firstRecord (long) the number of records before the first line (for error messages)
+     * @param last (boolean) true if the data ends with the buffer, i.e. the last line need not end with a line break
+     * @return the end of the last complete line (int)
+     * @throws IOException
+     * @throws FiMaLibCalcException 
+     */
+    int readCsv(ByteBuffer buffer, int start, int[] slots, long firstRecord, boolean last) throws IOException, FiMaLibCalcException {
+        int limit = buffer.limit();
+        this.lines = 0;
+        
+        while(start < limit) {
+            int end = nextLine(buffer, start);
+            if(end < 0) {
+                if(!last) return start;
+                end = limit;
+            }
+            
+            // the line without the line break
+            int lineEnd = end;
+            while((lineEnd > start) && ((buffer.get(lineEnd - 1) == '\n') || (buffer.get(lineEnd - 1) == '\r'))) lineEnd--;
+            
+            if(lineEnd > start) {
+                int field = start;
+                int column = 0;
+                
+                for(;;) {
+                    int fieldEnd = field;
+                    while((fieldEnd < lineEnd) && (buffer.get(fieldEnd) != this.delimiter)) fieldEnd++;
+                    
+                    if((column < slots.length) && (slots[column] >= 0)) {
+                        try {
+                            this.columns[slots[column]][this.count] = parseNumber(buffer, field, fieldEnd);
+                        }
+                        catch (NumberFormatException ex) {
+                            throw new FormulaException("Invalid number in line " + (firstRecord + this.lines + 2) + ", column " + (column + 1), ex);
+                        }
+                    }
+                    
+                    column++;
+                    if(fieldEnd >= lineEnd) break;
+                    field = fieldEnd + 1;
+                }
+                
+                if(column < slots.length)
+                    throw new FormulaException("Line " + (firstRecord + this.lines + 2) + " has only " + column + " columns");
+                
+                this.lines++;
+                if(++this.count == CHUNK_SIZE) this.flushChunk();
+            }
+            
+            start = end;
+        }
+        
+        return start;
+    }
+    
+    /**
+     * Returns the start of the line after the given position
+     * 
+     * @param buffer (ByteBuffer) the CSV data
+     * @param position (int) the position within the line
+     * @return the start of the next line (int), -1 if there is no line break
+     */
+    static int nextLine(ByteBuffer buffer, int position) {
+        int limit = buffer.limit();
+        
+        for(int i=position; i<limit; i++) {
+            if(buffer.get(i) == '\n') return i + 1;
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Parses a number from ASCII bytes. Decimal numbers with up to 18 digits
+     * and an exponent of up to 22 are converted exactly without creating any
+     * objects, all others (and NaN or Infinity) by Double.parseDouble.
+     * Surrounding blanks and quotes are ignored, an empty field is NaN.
+     * 
+     * @param buffer (ByteBuffer) the data
+     * @param start (int) the start of the number
+     * @param end (int) the end of the number
+     * @return the number (double)
+     * @throws NumberFormatException if the field is not a number
+     */
+    static double parseNumber(ByteBuffer buffer, int start, int end) {
+        while((start < end) && ((buffer.get(start) == ' ') || (buffer.get(start) == '"'))) start++;
+        while((end > start) && ((buffer.get(end - 1) == ' ') || (buffer.get(end - 1) == '"'))) end--;
+        if(start == end) return java.lang.Double.NaN;
+        
+        int i = start;
+        boolean negative = false;
+        byte b = buffer.get(i);
+        if((b == '-') || (b == '+')) {
+            negative = (b == '-');
+            i++;
+        }
+        
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        boolean any = false;
+        
+        for(; i<end; i++) {
+            b = buffer.get(i);
+            if((b >= '0') && (b <= '9')) {
+                any = true;
+                if((mantissa == 0) && (b == '0')) {
+                    if(point) scale--;
+                    continue;
+                }
+                if(digits == 18) return parseSlow(buffer, start, end);
+                mantissa = 10 * mantissa + (b - '0');
+                digits++;
+                if(point) scale--;
+            }
+            else if((b == '.') && !point) {
+                point = true;
+            }
+            else
+                break;
+        }
+        
+        if(i < end) {
+            if(!any || ((b != 'e') && (b != 'E'))) return parseSlow(buffer, start, end);
+            
+            int exponent = 0;
+            boolean negativeExponent = false;
+            i++;
+            if((i < end) && ((buffer.get(i) == '-') || (buffer.get(i) == '+'))) {
+                negativeExponent = (buffer.get(i) == '-');
+                i++;
+            }
+            if(i == end) return parseSlow(buffer, start, end);
+            
+            for(; i<end; i++) {
+                b = buffer.get(i);
+                if((b < '0') || (b > '9') || (exponent > 1000)) return parseSlow(buffer, start, end);
+                exponent = 10 * exponent + (b - '0');
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        else if(!any)
+            return parseSlow(buffer, start, end);
+        
+        double retVal;
+        if(mantissa == 0)
+            retVal = 0.0;
+        else if((scale >= 0) && (scale < EXACT_POWERS_OF_TEN.length) && (mantissa < (1L << 53)))
+            retVal = (double)mantissa * EXACT_POWERS_OF_TEN[scale];
+        else if((scale < 0) && (-scale < EXACT_POWERS_OF_TEN.length) && (mantissa < (1L << 53)))
+            retVal = (double)mantissa / EXACT_POWERS_OF_TEN[-scale];
+        else
+            return parseSlow(buffer, start, end);
+        
+        return negative ? -retVal : retVal;
+    }
+    
+    /**
+     * Parses a number from ASCII bytes with Double.parseDouble
+     * 
+     * @param buffer (ByteBuffer) the data
+     * @param start (int) the start of the number
+     * @param end (int) the end of the number
+     * @return the number (double)
+     * @throws NumberFormatException if the field is not a number
+     */
+    static double parseSlow(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for(int i=0; i<bytes.length; i++) bytes[i] = buffer.get(start + i);
+        
+        return java.lang.Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+    }
+    
+    /**
+     * Prepares the output buffer for writing to a channel
+     * 
+     * @param out (WritableByteChannel) the channel
+     * @param order (ByteOrder) the byte order of binary results, null for text
+     */
+    void open(WritableByteChannel out, ByteOrder order) {
+        if(this.output == null) this.output = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+        this.output.clear();
+        this.binary = (order != null);
+        if(this.binary) this.output.order(order);
+        this.channel = out;
+        this.count = 0;
+        this.lines = 0;
+    }
+    
+    /**
+     * Writes the remaining contents of the output buffer to the channel
+     * 
+     * @throws IOException 
+     */
+    void close() throws IOException {
+        this.flushOutput();
+        this.channel = null;
+    }
+    
+    /**
+     * Evaluates the formula for the records of the current chunk and writes
+     * the results to the output buffer
+     * 
+     * @throws IOException
+     * @throws FiMaLibCalcException 
+     */
+    void flushChunk() throws IOException, FiMaLibCalcException {
+        if(this.count == 0) return;
+        
+        this.evaluator.evaluate(this.columns, this.results, 0, this.count);
+        
+        for(int i=0; i<this.count; i++) {
+            if(this.binary) {
+                if(this.output.remaining() < 8) this.flushOutput();
+                this.output.putDouble(this.results[i]);
+            }
+            else {
+                // StringBuilder.append(double) does not create a string
+                this.text.setLength(0);
+                this.text.append(this.results[i]);
+                this.writeText(this.text);
+            }
+        }
+        this.count = 0;
+    }
+    
+    /**
+     * Writes the contents of the output buffer to the channel
+     * 
+     * @throws IOException 
+     */
+    void flushOutput() throws IOException {
+        this.output.flip();
+        while(this.output.hasRemaining()) {
+            this.channel.write(this.output);
+        }
+        this.output.clear();
+    }
+    
+    /**
+     * Writes a line of text to the output buffer
+     * 
+     * @param line (CharSequence) the line (ASCII characters)
+     * @throws IOException 
+     */
+    void writeText(CharSequence line) throws IOException {
+        int length = line.length();
+        if(this.output.remaining() < length + 1) this.flushOutput();
+        
+        for(int i=0; i<length; i++) {
+            this.output.put((byte)line.charAt(i));
+        }
+        this.output.put((byte)'\n');
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.functions;
+
+import java.util.HashMap;
+import org.fimalib.calc.Complex;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.nodes.Constant;
+import org.fimalib.calc.formula.nodes.Div;
+import org.fimalib.calc.formula.nodes.Exp;
+import org.fimalib.calc.formula.nodes.Mul;
+import org.fimalib.calc.formula.nodes.Neg;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * The Cnd class implements the cumulative distribution function of the
+ * standard normal distribution, e.g. "cnd(d1)" within the Black-Scholes
+ * formula. It takes exactly one parameter.
+ * 
+ * The function is calculated with the algorithm of Hart (1968) as given by
+ * G. West, "Better approximations to cumulative normal functions" (2005),
+ * which is accurate to double precision.
+ * 
+ * @author Peter Werno
+ */
+public class Cnd extends Function {
+    // 1/sqrt(2*pi)
+    static final double NORMAL_FACTOR = 0.3989422804014327;
+    
+    /**
+     * Creates a new instance of Cnd
+     */
+    public Cnd() {
+        super(1);
+    }
+    
+    /**
+     * Creates a new instance of Cnd with a given parameter node
+     * 
+     * @param parameter (Node) the parameter node
+     */
+    public Cnd(Node parameter) {
+        super(1);
+        
+        this.parameterNodes[0] = parameter;
+    }
+    
+    /**
+     * Returns the cumulative standard normal distribution of a value
+     * 
+     * @param x (double) the value
+     * @return the probability of a standard normal variable being less than x (double)
+     */
+    public static double cnd(double x) {
+        double xAbs = Math.abs(x);
+        double retVal;
+        
+        if(xAbs > 37.0) {
+            retVal = 0.0;
+        }
+        else {
+            double exponential = Math.exp(-xAbs * xAbs / 2.0);
+            double build;
+            
+            if(xAbs < 7.07106781186547) {
+                build = 3.52624965998911E-02 * xAbs + 0.700383064443688;
+                build = build * xAbs + 6.37396220353165;
+                build = build * xAbs + 33.912866078383;
+                build = build * xAbs + 112.079291497871;
+                build = build * xAbs + 221.213596169931;
+                build = build * xAbs + 220.206867912376;
+                retVal = exponential * build;
+                
+                build = 8.83883476483184E-02 * xAbs + 1.75566716318264;
+                build = build * xAbs + 16.064177579207;
+                build = build * xAbs + 86.7807322029461;
+                build = build * xAbs + 296.564248779674;
+                build = build * xAbs + 637.333633378831;
+                build = build * xAbs + 793.826512519948;
+                build = build * xAbs + 440.413735824752;
+                retVal = retVal / build;
+            }
+            else {
+                build = xAbs + 0.65;
+                build = xAbs + 4.0 / build;
+                build = xAbs + 3.0 / build;
+                build = xAbs + 2.0 / build;
+                build = xAbs + 1.0 / build;
+                retVal = exponential / build / 2.506628274631;
+            }
+        }
+        
+        return (x > 0.0) ? 1.0 - retVal : retVal;
+    }
+    
+    /**
+     * Returns the density of the standard normal distribution at a value,
+     * i.e. the derivative of cnd
+     * 
+     * @param x (double) the value
+     * @return the density (double)
+     */
+    public static double density(double x) {
+        return NORMAL_FACTOR * Math.exp(-x * x / 2.0);
+    }
+    
+    /**
+     * Calculates the value of the formula node with a given parameter set
+     * 
+     * @param parameters (HashMap) the parameter(s)
+     * @return the result of the calculation
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public Number calculate(HashMap<String, Number> parameters) throws FiMaLibCalcException {
+        Number value = this.parameterNodes[0].calculate(parameters);
+        
+        if(value instanceof Complex)
+            throw new FiMaLibCalcException("Function cnd is not defined for complex numbers");
+        
+        return new Double(cnd(value.getValue()), value.getNumberFormat());
+    }
+
+    /**
+     * Calculates the value of the function with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        return cnd(this.parameterNodes[0].evaluate(context));
+    }
+
+    /**
+     * Returns the derivative of the function, i.e. the density of the
+     * standard normal distribution times the inner derivative
+     * 
+     * @param parameterName (String) the parameter by which to derive
+     * @return the derived function (Node)
+     * @throws FormulaException 
+     */
+    @Override
+    public Node derive(String parameterName) throws FormulaException {
+        Node subDer = this.parameterNodes[0].derive(parameterName);
+        Node square = new Mul(this.parameterNodes[0].copy(), this.parameterNodes[0].copy());
+        Node density = new Mul(new Constant(new Double(NORMAL_FACTOR)), 
+                new Exp(new Neg(new Div(square, new Constant(new Double(2.0))))));
+        
+        return new Mul(subDer, density);
+    }
+
+    /**
+     * Returns the integration function of the function (not supported, as
+     * there is no closed form for arbitrary parameters)
+     * 
+     * @param parameterName (String) the parameter by which to integrate
+     * @return the integrated function (Node)
+     * @throws FormulaException 
+     */
+    @Override
+    public Node integrate(String parameterName) throws FormulaException {
+        throw new FormulaException("Function " + this.getName() + " cannot be integrated");
+    }
+
+    /**
+     * Creates a copy of this node
+     * 
+     * @return the copy (Node)
+     */
+    @Override
+    public Node copy() {
+        return new Cnd(this.parameterNodes[0].copy());
+    }
+
+    /**
+     * Returns the function name
+     * 
+     * @return the name (String)
+     */
+    @Override
+    public String getName() {
+        return "cnd";
+    }
+
+    /**
+     * Returns the formula encoded as string
+     * 
+     * @return the formula (String)
+     */
+    @Override
+    public String toString() {
+        return "cnd(" + this.parameterNodes[0].toString() + ")";
+    }
+
+    /**
+     * Returns the minimum number of parameters
+     * 
+     * @return the minimum number of parameters (int)
+     */
+    @Override
+    public int getMinimumParameters() {
+        return 1;
+    }
+
+    /**
+     * Returns the maximum number of parameters
+     * 
+     * @return the maximum number of parameters (int)
+     */
+    @Override
+    public int getMaximumParameters() {
+        return 1;
+    }
+
+    /**
+     * Returns the level of the node
+     * 
+     * @return the level (int)
+     */
+    @Override
+    public int getLevel() {
+        return Node.LEVEL_FUNCTION_CONST;
+    }
+}
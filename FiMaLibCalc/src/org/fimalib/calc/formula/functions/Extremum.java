@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.functions;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * The Extremum class is the base class of the max and min functions, which
+ * select one of their parameters, e.g. "max(x,0)". They take one or more
+ * parameters. If several parameters are equal to the result, the first one
+ * of them is selected (which matters for the derivative only).
+ * 
+ * @author Peter Werno
+ */
+public abstract class Extremum extends Function {
+    /**
+     * Creates a new instance of Extremum
+     */
+    protected Extremum() {
+        super();
+    }
+    
+    /**
+     * Creates a new instance of Extremum with given parameter nodes
+     * 
+     * @param parameterNodes (Node[]) the parameter nodes
+     */
+    protected Extremum(Node[] parameterNodes) {
+        super();
+        
+        this.parameterNodes = parameterNodes;
+    }
+    
+    /**
+     * Returns the extremum of two values
+     * 
+     * @param a (double) the first value
+     * @param b (double) the second value
+     * @return the extremum (double)
+     */
+    public abstract double select(double a, double b);
+    
+    /**
+     * Returns whether a value replaces the extremum found so far, given the
+     * result of their comparison
+     * 
+     * @param comparison (int) the result of value.compareTo(extremum)
+     * @return true if the value is the new extremum (boolean)
+     */
+    protected abstract boolean replaces(int comparison);
+    
+    /**
+     * Returns the condition under which the first of two formulas is selected
+     * 
+     * @param a (Node) the first formula
+     * @param b (Node) the second formula
+     * @return the condition (Node)
+     */
+    protected abstract Node selects(Node a, Node b);
+    
+    /**
+     * Creates a new instance of the function with given parameter nodes
+     * 
+     * @param parameterNodes (Node[]) the parameter nodes
+     * @return the function (Extremum)
+     */
+    protected abstract Extremum create(Node[] parameterNodes);
+    
+    /**
+     * Sets a parameter node, adding parameters as needed
+     * 
+     * @param num (int) the parameter number
+     * @param node (Node) the parameter node
+     */
+    @Override
+    public void setParameterNode(int num, Node node) {
+        if(num >= this.getNodeCount()) {
+            this.parameterNodes = (this.parameterNodes == null) ? new Node[num+1] : Arrays.copyOf(this.parameterNodes, num+1);
+        }
+        
+        this.parameterNodes[num] = node;
+    }
+
+    /**
+     * Calculates the value of the formula node with a given parameter set
+     * 
+     * @param parameters (HashMap) the parameter(s)
+     * @return the result of the calculation
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public Number calculate(HashMap<String, Number> parameters) throws FiMaLibCalcException {
+        Number retVal = this.parameterNodes[0].calculate(parameters);
+        
+        for(int i=1; i<this.parameterNodes.length; i++) {
+            Number value = this.parameterNodes[i].calculate(parameters);
+            if(this.replaces(value.compareTo(retVal))) retVal = value;
+        }
+        
+        return retVal;
+    }
+
+    /**
+     * Calculates the value of the function with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        double retVal = this.parameterNodes[0].evaluate(context);
+        
+        for(int i=1; i<this.parameterNodes.length; i++) {
+            retVal = this.select(retVal, this.parameterNodes[i].evaluate(context));
+        }
+        
+        return retVal;
+    }
+
+    /**
+     * Returns the derivative of the function, i.e. the derivative of the
+     * selected parameter, e.g. "if(x>=max(y,z),x',max(y,z)')" for max(x,y,z)
+     * 
+     * @param parameterName (String) the parameter by which to derive
+     * @return the derived function (Node)
+     * @throws FormulaException 
+     */
+    @Override
+    public Node derive(String parameterName) throws FormulaException {
+        int numNodes = this.getNodeCount();
+        Node retVal = this.parameterNodes[numNodes-1].derive(parameterName);
+        
+        for(int i=numNodes-2; i>=0; i--) {
+            Node[] rest = new Node[numNodes-i-1];
+            for(int j=0; j<rest.length; j++) {
+                rest[j] = this.parameterNodes[i+j+1].copy();
+            }
+            
+            Node condition = this.selects(this.parameterNodes[i].copy(), (rest.length == 1) ? rest[0] : this.create(rest));
+            retVal = new If(condition, this.parameterNodes[i].derive(parameterName), retVal);
+        }
+        
+        return retVal;
+    }
+
+    /**
+     * Returns the integration function of the function (not supported, as
+     * the integral depends on the intersections of the parameters)
+     * 
+     * @param parameterName (String) the parameter by which to integrate
+     * @return the integrated function (Node)
+     * @throws FormulaException 
+     */
+    @Override
+    public Node integrate(String parameterName) throws FormulaException {
+        throw new FormulaException("Function " + this.getName() + " cannot be integrated");
+    }
+
+    /**
+     * Creates a copy of this node
+     * 
+     * @return the copy (Node)
+     */
+    @Override
+    public Node copy() {
+        int numNodes = this.getNodeCount();
+        Node[] nodes = new Node[numNodes];
+        for(int i=0; i<numNodes; i++) {
+            if(this.parameterNodes[i] != null) nodes[i] = this.parameterNodes[i].copy();
+        }
+        
+        return this.create(nodes);
+    }
+
+    /**
+     * Returns the formula encoded as string
+     * 
+     * @return the formula (String)
+     */
+    @Override
+    public String toString() {
+        StringBuilder retVal = new StringBuilder(this.getName()).append("(");
+        for(int i=0; i<this.getNodeCount(); i++) {
+            if(i > 0) retVal.append(",");
+            retVal.append(this.parameterNodes[i].toString());
+        }
+        retVal.append(")");
+        
+        return retVal.toString();
+    }
+
+    /**
+     * Returns the minimum number of parameters
+     * 
+     * @return the minimum number of parameters (int)
+     */
+    @Override
+    public int getMinimumParameters() {
+        return 1;
+    }
+
+    /**
+     * Returns the maximum number of parameters
+     * 
+     * @return the maximum number of parameters (int)
+     */
+    @Override
+    public int getMaximumParameters() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the level of the node
+     * 
+     * @return the level (int)
+     */
+    @Override
+    public int getLevel() {
+        return Node.LEVEL_FUNCTION_CONST;
+    }
+}
@@ -63,6 +63,63 @@ public abstract class Function extends Node {
         this.parameterNodes = parameterNodes;
     }
     
+    /**
+     * Returns the number of parameter nodes of the function
+     * 
+     * @return the number of parameter nodes (int)
+     */
+    @Override
+    public int getNodeCount() {
+        return (this.parameterNodes == null) ? 0 : this.parameterNodes.length;
+    }
+    
+    /**
+     * Returns the required parameter node
+     * 
+     * @param num (int) the node-number
+     * @return the parameter node (Node)
+     * @throws FormulaException 
+     */
+    @Override
+    public Node getNode(int num) throws FormulaException {
+        if((num < 0) || (num >= this.getNodeCount()))
+            throw new FormulaException("Function " + this.getName() + " has only " + this.getNodeCount() + " parameters");
+        
+        return this.getParameterNode(num);
+    }
+    
+    /**
+     * Sets the parameter node
+     * 
+     * @param num (int) the node-number
+     * @param node (Node) the new parameter node
+     * @throws FormulaException 
+     */
+    @Override
+    public void setNode(int num, Node node) throws FormulaException {
+        if((num < 0) || (num >= this.getNodeCount()))
+            throw new FormulaException("Function " + this.getName() + " has only " + this.getNodeCount() + " parameters");
+        
+        this.setParameterNode(num, node);
+    }
+    
+    /**
+     * Returns all parameter nodes in an array
+     * 
+     * @return the list of parameter nodes (Node[])
+     * @throws FormulaException 
+     */
+    @Override
+    public Node[] getSubNodes() throws FormulaException {
+        int numNodes = this.getNodeCount();
+        Node[] retVal = new Node[numNodes];
+        for(int i=0; i<numNodes; i++) {
+            retVal[i] = this.getNode(i);
+        }
+        
+        return retVal;
+    }
+    
     @Override
     public void optimize() {
         // Do nothing here
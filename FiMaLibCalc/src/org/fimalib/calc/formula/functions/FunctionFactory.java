@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.functions;
+
+import org.fimalib.calc.formula.FormulaException;
+
+/**
+ * This interface creates the nodes of a function registered in a function
+ * registry. The parser calls create for each call of the function within a
+ * formula and sets the parameter nodes of the new function afterwards.
+ * 
+ * Example:
+ * 
+ *  registry.register("max", Max::new);
+ * 
+ * @author Peter Werno
+ */
+public interface FunctionFactory {
+    /**
+     * Creates a new (empty) instance of the function
+     * 
+     * @return the function (Function)
+     * @throws FormulaException 
+     */
+    public Function create() throws FormulaException;
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.functions;
+
+/**
+ * This interface is the service provider interface for functions implemented
+ * in Java. The default function registry (see FunctionRegistry.getDefault)
+ * loads all providers listed in the files
+ * 
+ *  META-INF/services/org.fimalib.calc.formula.functions.FunctionProvider
+ * 
+ * on the class path (see java.util.ServiceLoader), so that functions can be
+ * added to the formula parser without changing the library.
+ * 
+ * Example:
+ * 
+ *  public class FinanceFunctions implements FunctionProvider {
+ *      public void registerFunctions(FunctionRegistry registry) {
+ *          registry.register("fin.annuity", Annuity::new);
+ *      }
+ *  }
+ * 
+ * @author Peter Werno
+ */
+public interface FunctionProvider {
+    /**
+     * Registers the functions of the provider
+     * 
+     * @param registry (FunctionRegistry) the registry
+     */
+    public void registerFunctions(FunctionRegistry registry);
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.functions;
+
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.fimalib.calc.formula.FormulaException;
+
+/**
+ * This class maps function names to the functions that can be called within
+ * formulas (except for if, sum, prod and the built-in functions taking one
+ * parameter, e.g. sin, which are part of the formula syntax and cannot be
+ * replaced).
+ * 
+ * Functions are looked up by their name in a hash map, so the time to parse
+ * a function call does not depend on the number of registered functions.
+ * A registry is thread-safe, functions can be registered while formulas are
+ * parsed by other threads.
+ * 
+ * Registries can be nested in two ways:
+ * 
+ *  - scopes: a registry created with a parent registry knows all functions
+ *    of the parent, but functions registered in the scope are only known
+ *    within the scope (and may hide functions of the parent with the same
+ *    name). This allows e.g. functions per user or per calculation.
+ *  - namespaces: functions may be registered with a qualified name (e.g.
+ *    "fin.annuity"), they are held in the registry of the namespace (see
+ *    getNamespace) and called with their qualified name within formulas,
+ *    e.g. "fin.annuity(r,n)".
+ * 
+ * The default registry (see getDefault) holds the functions added by
+ * Formula.addUserDefinedFunction and the functions of all function providers
+ * on the class path (see FunctionProvider), including the standard functions
+ * max, min and cnd.
+ * 
+ * Example:
+ * 
+ *  FunctionRegistry scope = new FunctionRegistry(FunctionRegistry.getDefault());
+ *  scope.register(new UserDefinedFunction("fin.df(r,t)=exp(neg(r)*t)", format, scope));
+ *  Node node = Formula.parse("100*fin.df(r,5)", format, scope);
+ * 
+ * @author Peter Werno
+ */
+public class FunctionRegistry {
+    public static final char NAMESPACE_SEPARATOR = '.';
+    
+    FunctionRegistry parent;        // the enclosing scope (or null)
+    FunctionRegistry owner;         // the registry holding the namespace (or null)
+    ConcurrentHashMap<String, FunctionFactory> functions;
+    ConcurrentHashMap<String, FunctionRegistry> namespaces;
+    AtomicInteger generation;
+    
+    /**
+     * This class holds the default registry, which is created (and the
+     * function providers are loaded) when it is used for the first time
+     */
+    static class DefaultRegistry {
+        static final FunctionRegistry INSTANCE = new FunctionRegistry();
+        
+        static {
+            INSTANCE.loadProviders(Thread.currentThread().getContextClassLoader());
+        }
+    }
+    
+    /**
+     * Creates a new (empty) instance of FunctionRegistry
+     */
+    public FunctionRegistry() {
+        this(null);
+    }
+    
+    /**
+     * Creates a new instance of FunctionRegistry as scope within a parent
+     * registry
+     * 
+     * @param parent (FunctionRegistry) the parent registry
+     */
+    public FunctionRegistry(FunctionRegistry parent) {
+        this.parent = parent;
+        this.functions = new ConcurrentHashMap<>();
+        this.namespaces = new ConcurrentHashMap<>();
+        this.generation = new AtomicInteger();
+    }
+    
+    /**
+     * Returns the default registry, which is used by the formula parser if
+     * no other registry is given
+     * 
+     * @return the default registry (FunctionRegistry)
+     */
+    public static FunctionRegistry getDefault() {
+        return DefaultRegistry.INSTANCE;
+    }
+    
+    /**
+     * Registers the functions of all function providers found by the given
+     * class loader (see FunctionProvider)
+     * 
+     * @param loader (ClassLoader) the class loader (null for the system class loader)
+     */
+    public final void loadProviders(ClassLoader loader) {
+        for(FunctionProvider provider : ServiceLoader.load(FunctionProvider.class, loader)) {
+            provider.registerFunctions(this);
+        }
+    }
+    
+    /**
+     * Returns the parent registry
+     * 
+     * @return the parent registry (FunctionRegistry), null if the registry is no scope
+     */
+    public FunctionRegistry getParent() {
+        return this.parent;
+    }
+    
+    /**
+     * Returns the registry of a namespace, which is created if it does not
+     * exist yet. Nested namespaces are separated by dots (e.g. "fin.rates").
+     * 
+     * @param namespace (String) the namespace
+     * @return the registry of the namespace (FunctionRegistry)
+     * @throws FormulaException 
+     */
+    public FunctionRegistry getNamespace(String namespace) throws FormulaException {
+        int pos = namespace.indexOf(NAMESPACE_SEPARATOR);
+        String name = (pos < 0) ? namespace : namespace.substring(0, pos);
+        checkName(name);
+        
+        FunctionRegistry retVal = this.namespaces.computeIfAbsent(name, key -> {
+            FunctionRegistry registry = new FunctionRegistry();
+            registry.owner = this;
+            return registry;
+        });
+        
+        return (pos < 0) ? retVal : retVal.getNamespace(namespace.substring(pos + 1));
+    }
+    
+    /**
+     * Registers a function. A function of the same name in this registry is
+     * replaced.
+     * 
+     * @param name (String) the (qualified) function name
+     * @param factory (FunctionFactory) the factory of the function nodes
+     * @throws FormulaException 
+     */
+    public void register(String name, FunctionFactory factory) throws FormulaException {
+        int pos = name.lastIndexOf(NAMESPACE_SEPARATOR);
+        if(pos >= 0) {
+            this.getNamespace(name.substring(0, pos)).register(name.substring(pos + 1), factory);
+            return;
+        }
+        
+        checkName(name);
+        this.functions.put(name, factory);
+        this.changed();
+    }
+    
+    /**
+     * Registers a user defined function under its name. Each call within a
+     * formula creates a copy of the function.
+     * 
+     * @param function (UserDefinedFunction) the function
+     * @throws FormulaException 
+     */
+    public void register(UserDefinedFunction function) throws FormulaException {
+        this.register(function.getName(), function::copy);
+    }
+    
+    /**
+     * Removes a function from this registry (functions of the parent registry
+     * are not removed)
+     * 
+     * @param name (String) the (qualified) function name
+     * @return true if the function has been removed (boolean)
+     */
+    public boolean unregister(String name) {
+        int pos = name.lastIndexOf(NAMESPACE_SEPARATOR);
+        if(pos >= 0) {
+            FunctionRegistry namespace = this.findNamespace(name.substring(0, pos));
+            return (namespace != null) && namespace.unregister(name.substring(pos + 1));
+        }
+        
+        if(this.functions.remove(name) == null) return false;
+        
+        this.changed();
+        return true;
+    }
+    
+    /**
+     * Returns the factory of a function, searching the namespaces of this
+     * registry and the parent registries
+     * 
+     * @param name (String) the (qualified) function name
+     * @return the factory (FunctionFactory), null if the function is unknown
+     */
+    public FunctionFactory lookup(String name) {
+        FunctionFactory retVal;
+        
+        int pos = name.indexOf(NAMESPACE_SEPARATOR);
+        if(pos < 0) {
+            retVal = this.functions.get(name);
+        }
+        else {
+            FunctionRegistry namespace = this.namespaces.get(name.substring(0, pos));
+            retVal = (namespace == null) ? null : namespace.lookup(name.substring(pos + 1));
+        }
+        
+        if((retVal == null) && (this.parent != null)) return this.parent.lookup(name);
+        
+        return retVal;
+    }
+    
+    /**
+     * Creates a new (empty) instance of a function
+     * 
+     * @param name (String) the (qualified) function name
+     * @return the function (Function), null if the function is unknown
+     * @throws FormulaException 
+     */
+    public Function create(String name) throws FormulaException {
+        FunctionFactory factory = this.lookup(name);
+        
+        return (factory == null) ? null : factory.create();
+    }
+    
+    /**
+     * Returns whether a function is known to the registry (or its parents)
+     * 
+     * @param name (String) the (qualified) function name
+     * @return true if the function is known (boolean)
+     */
+    public boolean isRegistered(String name) {
+        return this.lookup(name) != null;
+    }
+    
+    /**
+     * Returns the names of the functions and namespaces of this registry (not
+     * including the parent registries) in alphabetical order
+     * 
+     * @return the names (Set)
+     */
+    public Set<String> getNames() {
+        TreeSet<String> retVal = new TreeSet<>(this.functions.keySet());
+        for(String namespace : this.namespaces.keySet()) {
+            for(String name : this.namespaces.get(namespace).getNames()) {
+                retVal.add(namespace + NAMESPACE_SEPARATOR + name);
+            }
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Returns the generation of the registry. The generation changes whenever
+     * a function is registered or removed (in this registry, its namespaces
+     * or its parents), so that parsed formulas can be recognized as outdated.
+     * 
+     * @return the generation (int)
+     */
+    public int getGeneration() {
+        int retVal = this.generation.get();
+        
+        return (this.parent == null) ? retVal : retVal + this.parent.getGeneration();
+    }
+    
+    /**
+     * Returns the registry of an existing namespace
+     * 
+     * @param namespace (String) the namespace
+     * @return the registry of the namespace (FunctionRegistry), null if it does not exist
+     */
+    FunctionRegistry findNamespace(String namespace) {
+        FunctionRegistry retVal = this;
+        int start = 0;
+        
+        while(retVal != null) {
+            int pos = namespace.indexOf(NAMESPACE_SEPARATOR, start);
+            if(pos < 0) return retVal.namespaces.get(namespace.substring(start));
+            
+            retVal = retVal.namespaces.get(namespace.substring(start, pos));
+            start = pos + 1;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Increases the generation of the registry and of the registries holding
+     * its namespace
+     */
+    void changed() {
+        this.generation.incrementAndGet();
+        if(this.owner != null) this.owner.changed();
+    }
+    
+    /**
+     * Checks whether a name can be used as function name or namespace, i.e.
+     * starts with a letter or underscore followed by letters, digits or
+     * underscores
+     * 
+     * @param name (String) the name
+     * @throws FormulaException 
+     */
+    static void checkName(String name) throws FormulaException {
+        boolean valid = !name.isEmpty() && (Character.isLetter(name.charAt(0)) || (name.charAt(0) == '_'));
+        
+        for(int i=1; valid && (i<name.length()); i++) {
+            char c = name.charAt(i);
+            valid = Character.isLetterOrDigit(c) || (c == '_');
+        }
+        
+        if(!valid)
+            throw new FormulaException("Invalid function name: " + name);
+    }
+}
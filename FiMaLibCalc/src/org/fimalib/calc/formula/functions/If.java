@@ -23,6 +23,7 @@ import org.fimalib.calc.FiMaLibCalcException;
 import org.fimalib.calc.Boolean;
 import org.fimalib.calc.Double;
 import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
 import org.fimalib.calc.formula.nodes.Node;
 
@@ -85,6 +86,38 @@ public class If extends Function {
             throw new FiMaLibCalcException("Error in If funtion, condition is not boolean");
     }
 
+    /**
+     * Calculates the value of the function with primitive values.
+     * Any non-zero condition is treated as "true".
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        if(parameterNodes[0].evaluate(context) != Boolean.BOOLEAN_FALSE)
+            return parameterNodes[1].evaluate(context);
+        
+        if((parameterNodes.length == 3) && (parameterNodes[2] != null))
+            return parameterNodes[2].evaluate(context);
+        
+        return 0.0;
+    }
+    
+    /**
+     * Returns the number of parameter nodes (2 if there is no false part)
+     * 
+     * @return the number of parameter nodes (int)
+     */
+    @Override
+    public int getNodeCount() {
+        if((this.parameterNodes.length == 3) && (this.parameterNodes[2] == null))
+            return 2;
+        
+        return this.parameterNodes.length;
+    }
+
     /**
      * Returns the derivative of the function
      * 
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.functions;
+
+import org.fimalib.calc.formula.nodes.GreaterEquals;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * The Max class implements the max function, which returns the largest
+ * of its parameters, e.g. "max(x,0)". It takes one or more parameters.
+ * 
+ * @author Peter Werno
+ */
+public class Max extends Extremum {
+    /**
+     * Creates a new instance of Max
+     */
+    public Max() {
+        super();
+    }
+    
+    /**
+     * Creates a new instance of Max with given parameter nodes
+     * 
+     * @param parameterNodes (Node[]) the parameter nodes
+     */
+    protected Max(Node[] parameterNodes) {
+        super(parameterNodes);
+    }
+    
+    /**
+     * Returns the largest of two values
+     * 
+     * @param a (double) the first value
+     * @param b (double) the second value
+     * @return the largest value (double)
+     */
+    @Override
+    public double select(double a, double b) {
+        return Math.max(a, b);
+    }
+    
+    /**
+     * Returns whether a value replaces the largest value found so far
+     * 
+     * @param comparison (int) the result of value.compareTo(extremum)
+     * @return true if the value is larger (boolean)
+     */
+    @Override
+    protected boolean replaces(int comparison) {
+        return comparison > 0;
+    }
+    
+    /**
+     * Returns the condition under which the first of two formulas is selected
+     * 
+     * @param a (Node) the first formula
+     * @param b (Node) the second formula
+     * @return the condition a>=b (Node)
+     */
+    @Override
+    protected Node selects(Node a, Node b) {
+        return new GreaterEquals(a, b);
+    }
+    
+    /**
+     * Creates a new instance of Max with given parameter nodes
+     * 
+     * @param parameterNodes (Node[]) the parameter nodes
+     * @return the function (Extremum)
+     */
+    @Override
+    protected Extremum create(Node[] parameterNodes) {
+        return new Max(parameterNodes);
+    }
+
+    /**
+     * Returns the function name
+     * 
+     * @return the name (String)
+     */
+    @Override
+    public String getName() {
+        return "max";
+    }
+}
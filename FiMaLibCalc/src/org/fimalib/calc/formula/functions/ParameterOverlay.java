@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.functions;
+
+import java.util.HashMap;
+import org.fimalib.calc.Number;
+
+/**
+ * This class holds the running variable of a sum or product while its formula
+ * is calculated (see Sum.calculate and Prod.calculate). The running variable
+ * is stored in the overlay itself, which is consulted before the caller's
+ * parameters. The caller's parameters are never changed, so they may be
+ * shared by several threads.
+ *
+ * Only lookups (get, containsKey and getOrDefault) see the caller's
+ * parameters, which is all the formula nodes use.
+ *
+ * @author Peter Werno
+ */
+class ParameterOverlay extends HashMap<String, Number> {
+    HashMap<String, Number> parameters;
+
+    /**
+     * Creates a new overlay of the given parameters
+     *
+     * @param parameters (HashMap) the caller's parameters, or null
+     */
+    ParameterOverlay(HashMap<String, Number> parameters) {
+        super(2);
+
+        this.parameters = parameters;
+    }
+
+    /**
+     * Returns the value of the given variable, either the running variable or
+     * the caller's parameter
+     *
+     * @param key (Object) the name of the variable
+     * @return the value (Number), or null if the variable is not defined
+     */
+    @Override
+    public Number get(Object key) {
+        if(super.containsKey(key) || (this.parameters == null)) return super.get(key);
+
+        return this.parameters.get(key);
+    }
+
+    /**
+     * Returns whether the given variable is defined, either as the running
+     * variable or as a parameter of the caller
+     *
+     * @param key (Object) the name of the variable
+     * @return true if the variable is defined (boolean)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return super.containsKey(key) || ((this.parameters != null) && this.parameters.containsKey(key));
+    }
+
+    /**
+     * Returns the value of the given variable, or the default value if the
+     * variable is not defined
+     *
+     * @param key (Object) the name of the variable
+     * @param defaultValue (Number) the default value
+     * @return the value (Number)
+     */
+    @Override
+    public Number getOrDefault(Object key, Number defaultValue) {
+        return this.containsKey(key) ? this.get(key) : defaultValue;
+    }
+}
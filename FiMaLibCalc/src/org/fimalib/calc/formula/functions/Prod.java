@@ -22,7 +22,11 @@ import java.util.HashMap;
 import org.fimalib.calc.FiMaLibCalcException;
 import org.fimalib.calc.Double;
 import org.fimalib.calc.Number;
+import org.fimalib.calc.Complex;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.nodes.Constant;
 import org.fimalib.calc.formula.nodes.Node;
 import org.fimalib.calc.formula.nodes.Variable;
 
@@ -44,6 +48,8 @@ public class Prod extends Function {
     Node startValue;
     Node endValue;
     Node formula;
+    int slot = -1;
+    Series plan;        // the evaluation plan of the formula (see optimize)
     
     /**
      * Creates a new instance of Prod
@@ -101,6 +107,8 @@ public class Prod extends Function {
      */
     @Override
     public void setParameterNode(int nodeNum, Node node) {
+        this.plan = null;
+        
         switch (nodeNum) {
             case 0: // run variable/parameter name
                 if(node instanceof Variable) {
@@ -159,13 +167,18 @@ public class Prod extends Function {
     public Number calculate(HashMap<String, Number> parameters) throws FiMaLibCalcException {
         Number startVal = this.startValue.calculate(parameters);
         Number endVal = this.endValue.calculate(parameters);
-        boolean containsParameter = false;
-        Number oldParameter = null;
         
-        // If same parameter/variabel already in use, back up
-        if(parameters.containsKey(this.parameter)) {
-            containsParameter = true;
-            oldParameter = parameters.get(this.parameter);
+        // closed forms are calculated with primitive values (see optimize)
+        if((this.plan != null) && this.plan.isClosed() && !(startVal instanceof Complex) && !(endVal instanceof Complex)) {
+            long count = Series.count(startVal.getValue(), endVal.getValue());
+            
+            try {
+                if(count == 0L) return new Double(1.0, startVal.getNumberFormat());
+                if(count > 0L) return new Double(this.plan.product(null, parameters, -1, startVal.getValue(), count), startVal.getNumberFormat());
+            }
+            catch (Series.ComplexValueException ex) {
+                // the plan does not support complex values, so the loop is used
+            }
         }
         
         Number value = startVal.copy();
@@ -174,18 +187,173 @@ public class Prod extends Function {
         
         if(value.compareTo(endVal) > 0) return retVal;
         
+        // the running variable is held in an overlay of the caller's
+        // parameters (which are never changed, see ParameterOverlay)
+        HashMap<String, Number> localParameters = new ParameterOverlay(parameters);
+        
         while(value.compareTo(endVal) <= 0) {
-            parameters.put(this.parameter, value);
-            retVal = retVal.mul(this.formula.calculate(parameters));
+            localParameters.put(this.parameter, value);
+            retVal = retVal.mul(this.formula.calculate(localParameters));
             value = value.add(one, false);
         }
         
-        // restore old parameter
-        if(containsParameter) {
-            parameters.put(this.parameter, oldParameter);
+        return retVal;
+    }
+
+    /**
+     * Binds the start value, the end value and the formula to the given slots.
+     * The running variable gets a slot of its own (or shares the slot of an
+     * outer variable with the same name, which is restored after the loop).
+     * 
+     * @param slots (SlotMap) the slot map
+     * @throws FormulaException 
+     */
+    @Override
+    public void bind(SlotMap slots) throws FormulaException {
+        this.startValue.bind(slots);
+        this.endValue.bind(slots);
+        this.slot = slots.getSlot(this.parameter);
+        this.formula.bind(slots);
+    }
+
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        if(this.slot < 0)
+            throw new FormulaException("Function " + this.getName() + " is not bound to slots");
+        
+        double startVal = this.startValue.evaluate(context);
+        double endVal = this.endValue.evaluate(context);
+        double oldParameter = context.get(this.slot);
+        
+        // evaluation plan (see optimize)
+        long count = (this.plan == null) ? -1L : Series.count(startVal, endVal);
+        if(count == 0L) return 1.0;
+        
+        try {
+            if(count > 0L) return this.plan.product(context, null, this.slot, startVal, count);
+            
+            double retVal = 1.0;
+            
+            for(double value = startVal; value <= endVal; value += 1.0) {
+                context.set(this.slot, value);
+                retVal *= this.formula.evaluate(context);
+            }
+            
+            return retVal;
+        }
+        finally {
+            // restore old parameter (even if the formula throws an exception)
+            context.set(this.slot, oldParameter);
         }
+    }
+
+    /**
+     * Optimizes the start value, the end value and the formula (see
+     * Node.optimize) and creates the evaluation plan of the formula: parts
+     * with a closed form (e.g. arithmetic and geometric series) are calculated
+     * without iterating, factors that do not depend on the running variable
+     * are calculated only once and only the remaining parts are multiplied in a
+     * loop (see Series).
+     */
+    @Override
+    public void optimize() {
+        try {
+            for(int i=0; i<3; i++) {
+                Node subNode = this.getNode(i);
+                if(subNode.isNumber())
+                    this.setNode(i, new Constant(subNode.calculate(null)));
+                else
+                    subNode.optimize();
+            }
+            
+            this.plan = Series.plan(this.formula, this.parameter, false);
+        }
+        catch (FiMaLibCalcException ex) {
+            // constant parts that cannot be calculated are left to the evaluation
+            this.plan = null;
+        }
+    }
+    
+    /**
+     * Returns the number of sub nodes (start value, end value and formula)
+     * 
+     * @return 3 (int)
+     */
+    @Override
+    public int getNodeCount() {
+        return 3;
+    }
+
+    /**
+     * Returns the required sub node (0: start value, 1: end value, 2: formula)
+     * 
+     * @param num (int) the node-number
+     * @return the sub node (Node)
+     * @throws FormulaException 
+     */
+    @Override
+    public Node getNode(int num) throws FormulaException {
+        switch (num) {
+            case 0:
+                return this.startValue;
+            case 1:
+                return this.endValue;
+            case 2:
+                return this.formula;
+            default:
+                throw new FormulaException("Function " + this.getName() + " has only 3 sub nodes");
+        }
+    }
+
+    /**
+     * Sets the required sub node (0: start value, 1: end value, 2: formula)
+     * 
+     * @param num (int) the node-number
+     * @param node (Node) the new sub node
+     * @throws FormulaException 
+     */
+    @Override
+    public void setNode(int num, Node node) throws FormulaException {
+        if((num < 0) || (num > 2))
+            throw new FormulaException("Function " + this.getName() + " has only 3 sub nodes");
         
-        return retVal;
+        this.setParameterNode(num+1, node);
+    }
+
+    /**
+     * Returns the slot of the running variable (or -1 if unbound)
+     * 
+     * @return the slot (int)
+     */
+    public int getSlot() {
+        return this.slot;
+    }
+
+    /**
+     * Returns the name of the running variable
+     * 
+     * @return the running variable (String)
+     */
+    public String getParameter() {
+        return this.parameter;
+    }
+
+    /**
+     * Returns that the function is NOT a constant number, as the formula
+     * depends on the running variable
+     * 
+     * @return false (boolean)
+     */
+    @Override
+    public boolean isNumber() {
+        return false;
     }
 
     /**
@@ -219,7 +387,21 @@ public class Prod extends Function {
      */
     @Override
     public Node copy() {
-        return new Prod(this.parameter, this.startValue.copy(), this.endValue.copy(), this.formula.copy());
+        Prod retVal = new Prod(this.parameter, this.startValue.copy(), this.endValue.copy(), this.formula.copy());
+        retVal.slot = this.slot;
+        
+        // the plan refers to the nodes of the formula, so it is created again
+        // for the copied formula
+        if(this.plan != null) {
+            try {
+                retVal.plan = Series.plan(retVal.formula, this.parameter, false);
+            }
+            catch (FiMaLibCalcException ex) {
+                retVal.plan = null;
+            }
+        }
+        
+        return retVal;
     }
 
     /**
@@ -0,0 +1,565 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.functions;
+
+import java.util.HashMap;
+import org.fimalib.calc.Complex;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.NodeType;
+import org.fimalib.calc.formula.nodes.Node;
+import org.fimalib.calc.formula.nodes.Variable;
+
+/**
+ * This class holds the evaluation plan of the formula of a sum or product,
+ * as created by Sum.optimize and Prod.optimize.
+ * 
+ * The formula is split into parts (along additions, subtractions and
+ * negations for sums, along multiplications for products, and along factors
+ * and divisors that do not depend on the running variable for both). Each
+ * part is evaluated
+ * 
+ *  - in closed form, if it does not depend on the running variable
+ *    (INVARIANT), is a power of the running variable up to the third
+ *    (POWER, sums only) or a geometric series c^i or exp(c*i) (GEOMETRIC),
+ *  - only once for all iterations, if it is a factor or divisor that does not
+ *    depend on the running variable (SCALE, DIVIDE), i.e. loop-invariant
+ *    subexpressions are hoisted out of the loop,
+ *  - in a counted loop otherwise (LOOP), with pairwise summation for sums of
+ *    more than BLOCK_SIZE terms.
+ * 
+ * Parts containing rand (or user defined functions using rand) are always
+ * evaluated in the loop. Closed forms are only used for integer start values
+ * (for which the running variable takes exactly the values start, start+1,
+ * ...), otherwise the sum or product is calculated as before.
+ * 
+ * The results may differ from the plain loop in the last digits.
+ * 
+ * @author Peter Werno
+ */
+class Series {
+    static final int INVARIANT = 0;
+    static final int POWER = 1;
+    static final int GEOMETRIC = 2;
+    static final int SCALE = 3;
+    static final int DIVIDE = 4;
+    static final int ADD = 5;
+    static final int SUB = 6;
+    static final int NEG = 7;
+    static final int MUL = 8;
+    static final int LOOP = 9;
+    
+    static final int BLOCK_SIZE = 128;
+    static final int MAXIMUM_POWER = 3;
+    
+    // the largest start value, up to which start+k is exact
+    static final double MAXIMUM_START = 4503599627370496.0;
+    
+    int kind;
+    Node node;          // INVARIANT, SCALE, DIVIDE: the invariant node, GEOMETRIC: the base or exponent factor, LOOP: the formula
+    boolean exp;        // GEOMETRIC: exp(node*i) instead of node^i
+    int power;          // POWER: the exponent
+    Series left;
+    Series right;
+    
+    /**
+     * Creates a new instance of Series
+     * 
+     * @param kind (int) the kind of the part
+     * @param node (Node) the node of the part
+     * @param left (Series) the (left) sub part
+     * @param right (Series) the right sub part
+     */
+    Series(int kind, Node node, Series left, Series right) {
+        this.kind = kind;
+        this.node = node;
+        this.left = left;
+        this.right = right;
+    }
+    
+    /**
+     * Creates the plan for the formula of a sum or product
+     * 
+     * @param formula (Node) the formula
+     * @param parameter (String) the name of the running variable
+     * @param sum (boolean) true for a sum, false for a product
+     * @return the plan (Series)
+     * @throws FiMaLibCalcException 
+     */
+    static Series plan(Node formula, String parameter, boolean sum) throws FiMaLibCalcException {
+        if(isInvariant(formula, parameter)) return new Series(INVARIANT, formula, null, null);
+        
+        Series retVal;
+        int type = NodeType.of(formula);
+        
+        if(sum) {
+            int power = power(formula, parameter);
+            if((power >= 0) && (power <= MAXIMUM_POWER)) {
+                retVal = new Series(POWER, formula, null, null);
+                retVal.power = power;
+                return retVal;
+            }
+        }
+        
+        retVal = geometric(formula, parameter);
+        if(retVal != null) return retVal;
+        
+        switch (type) {
+            case NodeType.ADD:
+            case NodeType.SUB:
+                if(sum) return combine(type == NodeType.ADD ? ADD : SUB, formula, plan(formula.getNode(0), parameter, true), plan(formula.getNode(1), parameter, true));
+                break;
+                
+            case NodeType.NEG:
+                return new Series(NEG, formula, plan(formula.getNode(0), parameter, sum), null);
+                
+            case NodeType.MUL:
+                Node left = formula.getNode(0);
+                Node right = formula.getNode(1);
+                if(isInvariant(left, parameter)) return new Series(SCALE, left, plan(right, parameter, sum), null);
+                if(isInvariant(right, parameter)) return new Series(SCALE, right, plan(left, parameter, sum), null);
+                if(!sum) return combine(MUL, formula, plan(left, parameter, false), plan(right, parameter, false));
+                break;
+                
+            case NodeType.DIV:
+                if(isInvariant(formula.getNode(1), parameter)) return new Series(DIVIDE, formula.getNode(1), plan(formula.getNode(0), parameter, sum), null);
+                break;
+        }
+        
+        return new Series(LOOP, formula, null, null);
+    }
+    
+    /**
+     * Combines two parts, evaluating both in the same loop if neither has a
+     * closed form
+     * 
+     * @param kind (int) the kind of the combination (ADD, SUB or MUL)
+     * @param formula (Node) the combined formula
+     * @param left (Series) the left part
+     * @param right (Series) the right part
+     * @return the combined part (Series)
+     */
+    static Series combine(int kind, Node formula, Series left, Series right) {
+        if((left.kind == LOOP) && (right.kind == LOOP)) return new Series(LOOP, formula, null, null);
+        
+        return new Series(kind, formula, left, right);
+    }
+    
+    /**
+     * Returns the geometric series part of a formula c^i or exp(c*i)
+     * 
+     * @param formula (Node) the formula
+     * @param parameter (String) the name of the running variable
+     * @return the part (Series), null if the formula is no geometric series
+     * @throws FiMaLibCalcException 
+     */
+    static Series geometric(Node formula, String parameter) throws FiMaLibCalcException {
+        int type = NodeType.of(formula);
+        
+        if(type == NodeType.POW) {
+            if(isParameter(formula.getNode(1), parameter) && isInvariant(formula.getNode(0), parameter))
+                return new Series(GEOMETRIC, formula.getNode(0), null, null);
+        }
+        else if(type == NodeType.EXP) {
+            Node exponent = formula.getNode(0);
+            Node factor = null;
+            
+            if(isParameter(exponent, parameter)) {
+                factor = null;
+            }
+            else if((NodeType.of(exponent) == NodeType.MUL) && isParameter(exponent.getNode(1), parameter) && isInvariant(exponent.getNode(0), parameter)) {
+                factor = exponent.getNode(0);
+            }
+            else if((NodeType.of(exponent) == NodeType.MUL) && isParameter(exponent.getNode(0), parameter) && isInvariant(exponent.getNode(1), parameter)) {
+                factor = exponent.getNode(1);
+            }
+            else
+                return null;
+            
+            Series retVal = new Series(GEOMETRIC, factor, null, null);
+            retVal.exp = true;
+            return retVal;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns the power of the running variable of a formula i, i^p or a
+     * product of those
+     * 
+     * @param formula (Node) the formula
+     * @param parameter (String) the name of the running variable
+     * @return the power (int), -1 if the formula is no power of the running variable
+     * @throws FiMaLibCalcException 
+     */
+    static int power(Node formula, String parameter) throws FiMaLibCalcException {
+        switch (NodeType.of(formula)) {
+            case NodeType.VARIABLE:
+                return isParameter(formula, parameter) ? 1 : -1;
+                
+            case NodeType.MUL:
+                int left = power(formula.getNode(0), parameter);
+                int right = power(formula.getNode(1), parameter);
+                return ((left < 0) || (right < 0)) ? -1 : left + right;
+                
+            case NodeType.POW:
+                Node exponent = formula.getNode(1);
+                if(NodeType.of(exponent) != NodeType.CONSTANT) return -1;
+                Number value = exponent.calculate(null);
+                if(value instanceof Complex) return -1;
+                double p = value.getValue();
+                if((p < 0.0) || (p > MAXIMUM_POWER) || (p != Math.rint(p))) return -1;
+                int base = power(formula.getNode(0), parameter);
+                return (base < 0) ? -1 : base * (int)p;
+                
+            default:
+                return -1;
+        }
+    }
+    
+    /**
+     * Returns whether a node is the running variable
+     * 
+     * @param node (Node) the node
+     * @param parameter (String) the name of the running variable
+     * @return true if the node is the running variable (boolean)
+     */
+    static boolean isParameter(Node node, String parameter) {
+        return (node instanceof Variable) && parameter.equals(((Variable)node).getName());
+    }
+    
+    /**
+     * Returns whether a formula has the same value in all iterations, i.e. it
+     * neither depends on the running variable nor uses rand
+     * 
+     * @param formula (Node) the formula
+     * @param parameter (String) the name of the running variable
+     * @return true if the formula is loop-invariant (boolean)
+     * @throws FiMaLibCalcException 
+     */
+    static boolean isInvariant(Node formula, String parameter) throws FiMaLibCalcException {
+        switch (NodeType.of(formula)) {
+            case NodeType.CONSTANT:
+                return !(formula.calculate(null) instanceof Complex);
+                
+            case NodeType.VARIABLE:
+                return !isParameter(formula, parameter);
+                
+            case NodeType.RAND:
+            case NodeType.UNKNOWN:
+                return false;
+                
+            case NodeType.SUM:
+            case NodeType.PROD:
+                // a running variable of the same name hides the parameter within the formula
+                String inner = (formula instanceof Sum) ? ((Sum)formula).getParameter() : ((Prod)formula).getParameter();
+                if(parameter.equals(inner))
+                    return isInvariant(formula.getNode(0), parameter) && isInvariant(formula.getNode(1), parameter) && !isVolatile(formula.getNode(2));
+                break;
+                
+            case NodeType.FUNCTION:
+                if(isVolatile(((UserDefinedFunction)formula).getDefinition())) return false;
+                break;
+        }
+        
+        int numNodes = formula.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            if(!isInvariant(formula.getNode(i), parameter)) return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns whether a formula might return different values for the same
+     * variable values (i.e. uses rand or unknown nodes)
+     * 
+     * @param formula (Node) the formula
+     * @return true if the formula is volatile (boolean)
+     * @throws FiMaLibCalcException 
+     */
+    static boolean isVolatile(Node formula) throws FiMaLibCalcException {
+        switch (NodeType.of(formula)) {
+            case NodeType.RAND:
+            case NodeType.UNKNOWN:
+                return true;
+                
+            case NodeType.FUNCTION:
+                if(isVolatile(((UserDefinedFunction)formula).getDefinition())) return true;
+                break;
+        }
+        
+        int numNodes = formula.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            if(isVolatile(formula.getNode(i))) return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Returns the number of iterations of a sum or product with the given
+     * start and end value, if the plan can be used
+     * 
+     * @param start (double) the start value
+     * @param end (double) the end value
+     * @return the number of iterations (long), -1 if the plan cannot be used
+     */
+    static long count(double start, double end) {
+        if((start != Math.rint(start)) || (Math.abs(start) > MAXIMUM_START)) return -1L;
+        if(!(end >= start)) return 0L;
+        if(end > MAXIMUM_START) return -1L;
+        
+        return (long)(Math.floor(end) - start) + 1L;
+    }
+    
+    /**
+     * Returns whether the plan can be calculated without evaluating the
+     * formula per iteration
+     * 
+     * @return true if the plan has no loop (boolean)
+     */
+    boolean isClosed() {
+        if(this.kind == LOOP) return false;
+        if((this.left != null) && !this.left.isClosed()) return false;
+        
+        return (this.right == null) || this.right.isClosed();
+    }
+    
+    /**
+     * Returns the value of a loop-invariant node, either with primitive values
+     * (if a context is given) or with the given parameter set
+     * 
+     * @param node (Node) the node
+     * @param context (EvaluationContext) the evaluation context, or null
+     * @param parameters (HashMap) the parameter(s)
+     * @return the value (double)
+     * @throws FiMaLibCalcException 
+     */
+    static double invariant(Node node, EvaluationContext context, HashMap<String, Number> parameters) throws FiMaLibCalcException {
+        if(context != null) return node.evaluate(context);
+        
+        Number retVal = node.calculate(parameters);
+        if(retVal instanceof Complex)
+            throw new ComplexValueException();
+        
+        return retVal.getValue();
+    }
+    
+    /**
+     * Calculates the sum of the part over count iterations. The context may
+     * only be null if the plan is closed (see isClosed).
+     * 
+     * @param context (EvaluationContext) the evaluation context, or null
+     * @param parameters (HashMap) the parameter(s), if no context is given
+     * @param slot (int) the slot of the running variable
+     * @param start (double) the start value
+     * @param count (long) the number of iterations (at least one)
+     * @return the sum (double)
+     * @throws FiMaLibCalcException 
+     */
+    double sum(EvaluationContext context, HashMap<String, Number> parameters, int slot, double start, long count) throws FiMaLibCalcException {
+        double n = (double)count;
+        
+        switch (this.kind) {
+            case INVARIANT:
+                return n * invariant(this.node, context, parameters);
+                
+            case POWER:
+                return powerSum(this.power, start, n);
+                
+            case GEOMETRIC:
+                if(this.exp)
+                    return exponentialSum((this.node == null) ? 1.0 : invariant(this.node, context, parameters), start, n);
+                return geometricSum(invariant(this.node, context, parameters), start, n);
+                
+            case SCALE:
+                double factor = invariant(this.node, context, parameters);
+                return factor * this.left.sum(context, parameters, slot, start, count);
+                
+            case DIVIDE:
+                double divisor = invariant(this.node, context, parameters);
+                if(divisor == 0.0)
+                    throw new FiMaLibDivisionByZeroException("Division by zero");
+                return this.left.sum(context, parameters, slot, start, count) / divisor;
+                
+            case ADD:
+                return this.left.sum(context, parameters, slot, start, count) + this.right.sum(context, parameters, slot, start, count);
+                
+            case SUB:
+                return this.left.sum(context, parameters, slot, start, count) - this.right.sum(context, parameters, slot, start, count);
+                
+            case NEG:
+                return -this.left.sum(context, parameters, slot, start, count);
+                
+            default:
+                return this.pairwise(context, slot, start, count);
+        }
+    }
+    
+    /**
+     * Calculates the product of the part over count iterations. The context
+     * may only be null if the plan is closed (see isClosed).
+     * 
+     * @param context (EvaluationContext) the evaluation context, or null
+     * @param parameters (HashMap) the parameter(s), if no context is given
+     * @param slot (int) the slot of the running variable
+     * @param start (double) the start value
+     * @param count (long) the number of iterations (at least one)
+     * @return the product (double)
+     * @throws FiMaLibCalcException 
+     */
+    double product(EvaluationContext context, HashMap<String, Number> parameters, int slot, double start, long count) throws FiMaLibCalcException {
+        double n = (double)count;
+        
+        switch (this.kind) {
+            case INVARIANT:
+                return Math.pow(invariant(this.node, context, parameters), n);
+                
+            case GEOMETRIC:
+                // the exponents are summed up
+                double exponent = powerSum(1, start, n);
+                if(this.exp)
+                    return Math.exp((this.node == null) ? exponent : invariant(this.node, context, parameters) * exponent);
+                return Math.pow(invariant(this.node, context, parameters), exponent);
+                
+            case SCALE:
+                double factor = invariant(this.node, context, parameters);
+                return Math.pow(factor, n) * this.left.product(context, parameters, slot, start, count);
+                
+            case DIVIDE:
+                double divisor = invariant(this.node, context, parameters);
+                if(divisor == 0.0)
+                    throw new FiMaLibDivisionByZeroException("Division by zero");
+                return this.left.product(context, parameters, slot, start, count) / Math.pow(divisor, n);
+                
+            case MUL:
+                return this.left.product(context, parameters, slot, start, count) * this.right.product(context, parameters, slot, start, count);
+                
+            case NEG:
+                double retVal = this.left.product(context, parameters, slot, start, count);
+                return ((count & 1L) == 0L) ? retVal : -retVal;
+                
+            default:
+                retVal = 1.0;
+                for(long k=0; k<count; k++) {
+                    context.set(slot, start + k);
+                    retVal *= this.node.evaluate(context);
+                }
+                return retVal;
+        }
+    }
+    
+    /**
+     * Sums up the formula in a counted loop, using pairwise summation (i.e.
+     * splitting the range in halves recursively) for more than BLOCK_SIZE
+     * terms, so that the rounding error grows with log(count) only
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @param slot (int) the slot of the running variable
+     * @param start (double) the start value
+     * @param count (long) the number of iterations
+     * @return the sum (double)
+     * @throws FiMaLibCalcException 
+     */
+    double pairwise(EvaluationContext context, int slot, double start, long count) throws FiMaLibCalcException {
+        if(count > BLOCK_SIZE) {
+            long half = count >>> 1;
+            return this.pairwise(context, slot, start, half) + this.pairwise(context, slot, start + half, count - half);
+        }
+        
+        double retVal = 0.0;
+        for(long k=0; k<count; k++) {
+            context.set(slot, start + k);
+            retVal += this.node.evaluate(context);
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Returns the sum of (a+k)^p for k = 0 ... n-1, expanding the binomial
+     * and using the closed forms of the sums of k^j (Faulhaber's formula)
+     * 
+     * @param p (int) the power (0 to 3)
+     * @param a (double) the start value
+     * @param n (double) the number of terms
+     * @return the sum (double)
+     */
+    static double powerSum(int p, double a, double n) {
+        double s1 = n * (n - 1.0) / 2.0;
+        
+        switch (p) {
+            case 0:
+                return n;
+            case 1:
+                return n * a + s1;
+            case 2:
+                double s2 = s1 * (2.0 * n - 1.0) / 3.0;
+                return n * a * a + 2.0 * a * s1 + s2;
+            default:
+                s2 = s1 * (2.0 * n - 1.0) / 3.0;
+                return n * a * a * a + 3.0 * a * a * s1 + 3.0 * a * s2 + s1 * s1;
+        }
+    }
+    
+    /**
+     * Returns the sum of c^(a+k) for k = 0 ... n-1
+     * 
+     * @param c (double) the base
+     * @param a (double) the start value
+     * @param n (double) the number of terms
+     * @return the sum (double)
+     */
+    static double geometricSum(double c, double a, double n) {
+        if(c == 1.0) return n;
+        
+        if(c > 0.0) return exponentialSum(Math.log(c), a, n);
+        
+        return Math.pow(c, a) * (Math.pow(c, n) - 1.0) / (c - 1.0);
+    }
+    
+    /**
+     * Returns the sum of exp(f*(a+k)) for k = 0 ... n-1, calculating
+     * (exp(f*n) - 1) / (exp(f) - 1) without cancellation for f close to zero
+     * 
+     * @param f (double) the factor
+     * @param a (double) the start value
+     * @param n (double) the number of terms
+     * @return the sum (double)
+     */
+    static double exponentialSum(double f, double a, double n) {
+        if(f == 0.0) return n;
+        
+        return Math.exp(f * a) * Math.expm1(f * n) / Math.expm1(f);
+    }
+    
+    /**
+     * This exception signals that a loop-invariant part has a complex value,
+     * so the plan cannot be used with the given parameters
+     */
+    static class ComplexValueException extends FiMaLibCalcException {
+        ComplexValueException() {
+            super("Complex values are not supported by the evaluation plan");
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.functions;
+
+import org.fimalib.calc.formula.FormulaException;
+
+/**
+ * This class provides the standard functions implemented in Java (max, min
+ * and cnd) to the default function registry (see FunctionProvider).
+ * 
+ * @author Peter Werno
+ */
+public class StandardFunctions implements FunctionProvider {
+    /**
+     * Registers the standard functions
+     * 
+     * @param registry (FunctionRegistry) the registry
+     */
+    @Override
+    public void registerFunctions(FunctionRegistry registry) {
+        try {
+            registry.register("max", Max::new);
+            registry.register("min", Min::new);
+            registry.register("cnd", Cnd::new);
+        }
+        catch (FormulaException ex) {
+            throw new IllegalStateException("Standard functions cannot be registered", ex);
+        }
+    }
+}
@@ -21,12 +21,15 @@ package org.fimalib.calc.formula.functions;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import org.fimalib.calc.FiMaLibCalcException;
 import org.fimalib.calc.Number;
 import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.SlotMap;
 import org.fimalib.calc.formula.nodes.Node;
 
 /**
@@ -42,6 +45,7 @@ public class UserDefinedFunction extends Function {
     String functionName;
     
     Node definition;
+    int frameSize = -1;
     
     /**
      * Creates a new instance of UserDefinedFunction with a string-encoded
@@ -57,6 +61,20 @@ public class UserDefinedFunction extends Function {
      * @throws org.fimalib.calc.formula.FormulaException
      */
     public UserDefinedFunction(String function, NumberFormat format) throws FormulaException {
+        this(function, format, FunctionRegistry.getDefault());
+    }
+    
+    /**
+     * Creates a new instance of UserDefinedFunction with a string-encoded
+     * function definition and a number format. The functions called within
+     * the definition are resolved with the given function registry.
+     * 
+     * @param function (String) the function
+     * @param format (NumberFormat) the format
+     * @param registry (FunctionRegistry) the function registry
+     * @throws org.fimalib.calc.formula.FormulaException
+     */
+    public UserDefinedFunction(String function, NumberFormat format, FunctionRegistry registry) throws FormulaException {
         int pos = function.indexOf("=");    // separator of function declaration and definition
         
         if(pos < 0) throw new FormulaException("Incorrect syntax for user defined function: " + function);
@@ -86,11 +104,23 @@ public class UserDefinedFunction extends Function {
             this.parameterNames[i] = paramList.get(i);
         }
         
-        definition = Formula.parse(def, format);
+        definition = Formula.parse(def, format, registry);
         
         this.format = format;
     }
     
+    /**
+     * Creates a new instance of UserDefinedFunction with an already parsed
+     * definition (e.g. read from a FormulaArchive).
+     *
+     * @param functionName (String) the function name
+     * @param parameterNames (String[]) the parameter names
+     * @param definition (Node) the function definition
+     */
+    public UserDefinedFunction(String functionName, String[] parameterNames, Node definition) {
+        this(functionName, parameterNames.clone(), definition, NumberFormat.getInstance());
+    }
+
     /**
      * Creates a new instance of UserDefinedFunction when creating a copy
      * of the original function.
@@ -111,10 +141,21 @@ public class UserDefinedFunction extends Function {
     /**
      * Creates a copy of the user defined function.
      * 
+     * The parameter nodes (if any) are copied as well, the definition is
+     * shared with the original function.
+     * 
      * @return a copy of the original function (UserDefinedFunction)
      */
     public UserDefinedFunction copy() {
-        return new UserDefinedFunction(this.functionName, this.parameterNames, this.definition, this.format);
+        UserDefinedFunction retVal = new UserDefinedFunction(this.functionName, this.parameterNames, this.definition, this.format);
+        
+        for(int i=0; i<this.parameterNodes.length; i++) {
+            if(this.parameterNodes[i] != null)
+                retVal.parameterNodes[i] = this.parameterNodes[i].copy();
+        }
+        retVal.frameSize = this.frameSize;
+        
+        return retVal;
     }
     
     /**
@@ -158,6 +199,119 @@ public class UserDefinedFunction extends Function {
         return this.definition.calculate(newParameters);
     }
 
+    /**
+     * Binds the parameters of the function to the given slots. The definition
+     * of the function is bound to slots of its own (one per parameter name and
+     * one per running variable of the sums and products of the definition).
+     * Other variables are not allowed within the definition.
+     * 
+     * @param slots (SlotMap) the slot map
+     * @throws FormulaException 
+     */
+    @Override
+    public void bind(SlotMap slots) throws FormulaException {
+        for(int i=0; i<this.parameterNodes.length; i++) {
+            this.parameterNodes[i].bind(slots);
+        }
+        
+        SlotMap definitionSlots = new SlotMap(this.parameterNames);
+        this.definition.bind(definitionSlots);
+        
+        // the frame also holds the running variables of sums/products within the definition
+        HashSet<String> runningVariables = new HashSet<>();
+        collectRunningVariables(this.definition, runningVariables);
+        for(int slot=this.parameterNames.length; slot<definitionSlots.size(); slot++) {
+            if(!runningVariables.contains(definitionSlots.getName(slot)))
+                throw new FormulaException("Function " + this.functionName + " uses undefined variable " + definitionSlots.getName(slot));
+        }
+        
+        this.frameSize = definitionSlots.size();
+    }
+    
+    /**
+     * Collects the running variables of the sums and products of a formula
+     * tree (including the parameters of called functions, but not their
+     * definitions, which are bound to frames of their own)
+     * 
+     * @param node (Node) the formula tree
+     * @param runningVariables (HashSet) the running variables found so far
+     * @throws FormulaException 
+     */
+    static void collectRunningVariables(Node node, HashSet<String> runningVariables) throws FormulaException {
+        if(node instanceof Sum) runningVariables.add(((Sum)node).getParameter());
+        else if(node instanceof Prod) runningVariables.add(((Prod)node).getParameter());
+        
+        int numNodes = node.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            Node subNode = node.getNode(i);
+            if(subNode != null) collectRunningVariables(subNode, runningVariables);
+        }
+    }
+
+    /**
+     * Calculates the value of the user defined function with primitive values.
+     * The definition is evaluated in a new frame of the evaluation context.
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        if(this.frameSize < 0)
+            throw new FormulaException("Function " + this.functionName + " is not bound to slots");
+        
+        // the parameters are calculated in the caller's frame
+        int frame = context.allocate(this.frameSize);
+        try {
+            for(int i=0; i<this.parameterNames.length; i++) {
+                context.setLocal(frame, i, this.parameterNodes[i].evaluate(context));
+            }
+        }
+        catch (FiMaLibCalcException | RuntimeException ex) {
+            context.release(frame);
+            throw ex;
+        }
+        
+        // the caller's frame is restored even if the definition fails
+        int caller = context.enter(frame);
+        try {
+            return this.definition.evaluate(context);
+        }
+        finally {
+            context.leave(caller, frame);
+        }
+    }
+
+    /**
+     * Returns the definition of the function
+     * 
+     * @return the definition (Node)
+     */
+    public Node getDefinition() {
+        return this.definition;
+    }
+
+    /**
+     * Returns the parameter names of the function, i.e. the variables of the
+     * definition
+     * 
+     * @return the parameter names (String[])
+     */
+    public String[] getParameterNames() {
+        return this.parameterNames.clone();
+    }
+
+    /**
+     * Returns the number of slots used by the definition of the function (or
+     * -1 if the function has not been bound yet)
+     * 
+     * @return the number of slots (int)
+     */
+    public int getFrameSize() {
+        return this.frameSize;
+    }
+
     /**
      * Returns the derivative of the function
      * 
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.montecarlo;
+
+/**
+ * This class implements the geometric Brownian motion
+ * 
+ *  dS = mu * S * dt + sigma * S * dW
+ * 
+ * e.g. for stock prices in the Black-Scholes model. The process is simulated
+ * exactly, i.e. without a discretization error:
+ * 
+ *  S(t+dt) = S(t) * exp((mu - sigma^2/2) * dt + sigma * sqrt(dt) * Z)
+ * 
+ * @author Peter Werno
+ */
+public class GeometricBrownianMotion extends StochasticProcess {
+    double drift;
+    double volatility;
+    
+    /**
+     * Creates a new instance of GeometricBrownianMotion
+     * 
+     * @param name (String) the name of the process
+     * @param initialValue (double) the value at time 0
+     * @param drift (double) the drift mu (e.g. the risk-free rate)
+     * @param volatility (double) the volatility sigma
+     */
+    public GeometricBrownianMotion(String name, double initialValue, double drift, double volatility) {
+        super(name, initialValue);
+        
+        this.drift = drift;
+        this.volatility = volatility;
+    }
+    
+    /**
+     * Returns the drift of the process
+     * 
+     * @return the drift (double)
+     */
+    public double getDrift() {
+        return this.drift;
+    }
+    
+    /**
+     * Returns the volatility of the process
+     * 
+     * @return the volatility (double)
+     */
+    public double getVolatility() {
+        return this.volatility;
+    }
+    
+    /**
+     * Advances the values of the paths by one time step
+     * 
+     * @param values (double[]) the values of the paths, replaced by the new
+     * values
+     * @param normals (double[]) the standard normal random numbers, one per
+     * path
+     * @param n (int) the number of paths
+     * @param dt (double) the length of the time step
+     */
+    @Override
+    public void step(double[] values, double[] normals, int n, double dt) {
+        double mean = (this.drift - 0.5 * this.volatility * this.volatility) * dt;
+        double deviation = this.volatility * Math.sqrt(dt);
+        
+        for(int i=0; i<n; i++) {
+            values[i] *= Math.exp(mean + deviation * normals[i]);
+        }
+    }
+}
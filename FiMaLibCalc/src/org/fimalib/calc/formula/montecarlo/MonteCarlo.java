@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.montecarlo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.RandomStream;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.eval.BatchEvaluator;
+import org.fimalib.calc.formula.nodes.Node;
+
+/**
+ * This class estimates the expectation of a payoff formula by Monte Carlo
+ * simulation.
+ * 
+ * The payoff is a formula of the values of stochastic processes at maturity
+ * (see StochasticProcess), each available under the name of its process.
+ * Additionally, the average, maximum or minimum of a process over the time
+ * steps (see addAverage, addMaximum, addMinimum) and constant parameters (see
+ * setParameter) can be used. Discounting is part of the payoff formula, e.g.
+ * "exp(-0.05*2)*max(s-100,0)". The processes are driven by independent
+ * Brownian motions.
+ * 
+ * The paths are simulated in blocks of BLOCK_SIZE: the values of all paths of
+ * a block are advanced step by step in primitive arrays, and the payoff is
+ * evaluated for the whole block by a batch evaluator (see BatchEvaluator).
+ * The blocks are simulated in parallel on a fork/join pool, in rounds of a
+ * fixed number of blocks. Each block draws its random numbers from a random
+ * stream of its own, which is split off the seeded stream of the simulation
+ * in the order of the blocks (see RandomStream.split), and the statistics of
+ * the blocks are merged in the same order. Hence, the results only depend on
+ * the seed, not on the number of threads.
+ * 
+ * The variance of the estimate can be reduced with antithetic variates (each
+ * pair of paths uses the random numbers Z and -Z) and with a control
+ * variate, i.e. a second formula of the same variables with a known
+ * expectation (e.g. the discounted value of the process at maturity), which
+ * is applied with the estimated optimal coefficient.
+ * 
+ * The simulation stops as soon as the standard error of the estimate is
+ * below the tolerance (checked after each round) or the maximum number of
+ * paths has been simulated.
+ * 
+ * Example:
+ * 
+ *  MonteCarlo mc = new MonteCarlo(Formula.parse("exp(-0.05)*max(s-100,0)"), 1.0, 1,
+ *          new GeometricBrownianMotion("s", 100.0, 0.05, 0.2));
+ *  mc.setAntithetic(true);
+ *  mc.setSeed(42L);
+ *  mc.setTolerance(0.01);
+ *  MonteCarloResult result = mc.run();
+ * 
+ * @author Peter Werno
+ */
+public class MonteCarlo {
+    public static final int BLOCK_SIZE = 4 * BatchEvaluator.CHUNK_SIZE;
+    public static final int DEFAULT_ROUND_SIZE = 64;
+    public static final long DEFAULT_MAXIMUM_PATHS = 1L << 20;
+    
+    static final int AVERAGE = 0;       // kinds of observations over the time steps
+    static final int MAXIMUM = 1;
+    static final int MINIMUM = 2;
+    
+    Node payoff;
+    double maturity;
+    int steps;
+    StochasticProcess[] processes;
+    
+    ArrayList<String> observationNames = new ArrayList<>();
+    ArrayList<int[]> observations = new ArrayList<>();         // { process, kind }
+    ArrayList<String> parameterNames = new ArrayList<>();
+    ArrayList<java.lang.Double> parameterValues = new ArrayList<>();
+    
+    Node control;
+    double controlExpectation;
+    boolean antithetic;
+    long seed;
+    double tolerance;
+    long maximumPaths = DEFAULT_MAXIMUM_PATHS;
+    int roundSize = DEFAULT_ROUND_SIZE;
+    
+    /**
+     * Unchecked exception to pass a FiMaLibCalcException out of a fork/join
+     * task
+     */
+    static class SimulationFailure extends RuntimeException {
+        SimulationFailure(FiMaLibCalcException cause) {
+            super(cause);
+        }
+    }
+    
+    /**
+     * This class holds the buffers and batch evaluators used to simulate
+     * blocks of paths. The values of the variables of the payoff are stored
+     * column-wise in the order of the slots.
+     */
+    class Simulation {
+        BatchEvaluator payoffEvaluator;
+        BatchEvaluator controlEvaluator;
+        double[][] columns;
+        double[] normals;
+        double[] out;
+        double[] controlOut;
+        
+        Simulation(BatchEvaluator payoffEvaluator, BatchEvaluator controlEvaluator, double[] parameters) {
+            int firstParameter = processes.length + observations.size();
+            
+            this.payoffEvaluator = new BatchEvaluator(payoffEvaluator);
+            this.controlEvaluator = (controlEvaluator == null) ? null : new BatchEvaluator(controlEvaluator);
+            this.columns = new double[firstParameter + parameters.length][BLOCK_SIZE];
+            this.normals = new double[BLOCK_SIZE];
+            this.out = new double[BLOCK_SIZE];
+            this.controlOut = new double[BLOCK_SIZE];
+            
+            // the parameter columns are the same for all blocks
+            for(int i=0; i<parameters.length; i++) {
+                Arrays.fill(this.columns[firstParameter + i], parameters[i]);
+            }
+        }
+        
+        /**
+         * Simulates a block of paths
+         * 
+         * @param random (RandomStream) the random stream of the block
+         * @return the statistics of the samples (Statistics)
+         * @throws FiMaLibCalcException 
+         */
+        Statistics simulate(RandomStream random) throws FiMaLibCalcException {
+            int n = BLOCK_SIZE;
+            int half = antithetic ? n / 2 : n;
+            int numProcesses = processes.length;
+            int numObservations = observations.size();
+            double dt = maturity / steps;
+            double[][] cols = this.columns;
+            double[] z = this.normals;
+            
+            for(int p=0; p<numProcesses; p++) {
+                Arrays.fill(cols[p], processes[p].getInitialValue());
+            }
+            for(int o=0; o<numObservations; o++) {
+                int kind = observations.get(o)[1];
+                Arrays.fill(cols[numProcesses + o], (kind == AVERAGE) ? 0.0 : 
+                        ((kind == MAXIMUM) ? java.lang.Double.NEGATIVE_INFINITY : java.lang.Double.POSITIVE_INFINITY));
+            }
+            
+            for(int s=0; s<steps; s++) {
+                for(int p=0; p<numProcesses; p++) {
+                    random.nextGaussians(z, 0, half);
+                    if(antithetic) {
+                        for(int i=0; i<half; i++) z[half + i] = -z[i];
+                    }
+                    processes[p].step(cols[p], z, n, dt);
+                }
+                
+                for(int o=0; o<numObservations; o++) {
+                    int[] observation = observations.get(o);
+                    double[] values = cols[observation[0]];
+                    double[] col = cols[numProcesses + o];
+                    switch (observation[1]) {
+                        case AVERAGE: for(int i=0; i<n; i++) col[i] += values[i]; break;
+                        case MAXIMUM: for(int i=0; i<n; i++) col[i] = Math.max(col[i], values[i]); break;
+                        default:      for(int i=0; i<n; i++) col[i] = Math.min(col[i], values[i]); break;
+                    }
+                }
+            }
+            
+            for(int o=0; o<numObservations; o++) {
+                if(observations.get(o)[1] == AVERAGE) {
+                    double[] col = cols[numProcesses + o];
+                    for(int i=0; i<n; i++) col[i] /= steps;
+                }
+            }
+            
+            // random numbers within the formulas are drawn from the stream of the block as well
+            this.payoffEvaluator.setRandom(random);
+            this.payoffEvaluator.evaluate(cols, this.out);
+            if(this.controlEvaluator != null) {
+                this.controlEvaluator.setRandom(random);
+                this.controlEvaluator.evaluate(cols, this.controlOut);
+            }
+            
+            Statistics retVal = new Statistics();
+            double[] y = this.out;
+            double[] c = this.controlOut;
+            if(antithetic) {
+                for(int i=0; i<half; i++) retVal.add(0.5 * (y[i] + y[half + i]), 0.5 * (c[i] + c[half + i]));
+            }
+            else {
+                for(int i=0; i<n; i++) retVal.add(y[i], c[i]);
+            }
+            
+            return retVal;
+        }
+    }
+    
+    /**
+     * This class simulates a range of blocks, splitting the range in halves
+     * as long as it contains more than one block.
+     */
+    class SimulationTask extends RecursiveAction {
+        BatchEvaluator payoffEvaluator;
+        BatchEvaluator controlEvaluator;
+        double[] parameters;
+        RandomStream[] streams;
+        Statistics[] results;
+        int from;
+        int to;
+        
+        SimulationTask(BatchEvaluator payoffEvaluator, BatchEvaluator controlEvaluator, double[] parameters, 
+                RandomStream[] streams, Statistics[] results, int from, int to) {
+            this.payoffEvaluator = payoffEvaluator;
+            this.controlEvaluator = controlEvaluator;
+            this.parameters = parameters;
+            this.streams = streams;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if(this.to - this.from <= 1) {
+                if(this.from >= this.to) return;
+                try {
+                    Simulation simulation = new Simulation(this.payoffEvaluator, this.controlEvaluator, this.parameters);
+                    this.results[this.from] = simulation.simulate(this.streams[this.from]);
+                }
+                catch (FiMaLibCalcException ex) {
+                    throw new SimulationFailure(ex);
+                }
+            }
+            else {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new SimulationTask(this.payoffEvaluator, this.controlEvaluator, this.parameters, this.streams, this.results, this.from, middle),
+                        new SimulationTask(this.payoffEvaluator, this.controlEvaluator, this.parameters, this.streams, this.results, middle, this.to));
+            }
+        }
+    }
+    
+    /**
+     * Creates a new instance of MonteCarlo. The seed of the random numbers is
+     * chosen randomly (see setSeed).
+     * 
+     * @param payoff (Node) the payoff formula
+     * @param maturity (double) the time of the payoff
+     * @param steps (int) the number of time steps up to maturity
+     * @param processes (StochasticProcess...) the processes
+     */
+    public MonteCarlo(Node payoff, double maturity, int steps, StochasticProcess... processes) {
+        if(steps < 1)
+            throw new IllegalArgumentException("There must be at least one time step");
+        if(maturity <= 0.0)
+            throw new IllegalArgumentException("The maturity must be positive");
+        
+        this.payoff = payoff;
+        this.maturity = maturity;
+        this.steps = steps;
+        this.processes = processes.clone();
+        this.seed = new RandomStream().nextLong();
+    }
+    
+    /**
+     * Adds a variable holding the arithmetic average of a process over the
+     * time steps (excluding the initial value)
+     * 
+     * @param variable (String) the variable of the payoff formula
+     * @param process (String) the name of the process
+     * @throws FormulaException 
+     */
+    public void addAverage(String variable, String process) throws FormulaException {
+        this.addObservation(variable, process, AVERAGE);
+    }
+    
+    /**
+     * Adds a variable holding the maximum of a process over the time steps
+     * (excluding the initial value)
+     * 
+     * @param variable (String) the variable of the payoff formula
+     * @param process (String) the name of the process
+     * @throws FormulaException 
+     */
+    public void addMaximum(String variable, String process) throws FormulaException {
+        this.addObservation(variable, process, MAXIMUM);
+    }
+    
+    /**
+     * Adds a variable holding the minimum of a process over the time steps
+     * (excluding the initial value)
+     * 
+     * @param variable (String) the variable of the payoff formula
+     * @param process (String) the name of the process
+     * @throws FormulaException 
+     */
+    public void addMinimum(String variable, String process) throws FormulaException {
+        this.addObservation(variable, process, MINIMUM);
+    }
+    
+    /**
+     * Adds a variable holding an observation of a process over the time steps
+     * 
+     * @param variable (String) the variable of the payoff formula
+     * @param process (String) the name of the process
+     * @param kind (int) the kind of observation
+     * @throws FormulaException 
+     */
+    void addObservation(String variable, String process, int kind) throws FormulaException {
+        for(int p=0; p<this.processes.length; p++) {
+            if(this.processes[p].getName().equals(process)) {
+                this.observationNames.add(variable);
+                this.observations.add(new int[] { p, kind });
+                return;
+            }
+        }
+        
+        throw new FormulaException("Unknown process " + process);
+    }
+    
+    /**
+     * Sets a constant parameter of the payoff formula
+     * 
+     * @param name (String) the variable of the payoff formula
+     * @param value (double) the value
+     */
+    public void setParameter(String name, double value) {
+        int index = this.parameterNames.indexOf(name);
+        
+        if(index < 0) {
+            this.parameterNames.add(name);
+            this.parameterValues.add(value);
+        }
+        else
+            this.parameterValues.set(index, value);
+    }
+    
+    /**
+     * Sets the control variate, i.e. a formula of the same variables as the
+     * payoff with a known expectation
+     * 
+     * @param control (Node) the control variate, null to use none
+     * @param expectation (double) the expectation of the control variate
+     */
+    public void setControlVariate(Node control, double expectation) {
+        this.control = control;
+        this.controlExpectation = expectation;
+    }
+    
+    /**
+     * Returns whether antithetic variates are used
+     * 
+     * @return true if antithetic variates are used (boolean)
+     */
+    public boolean isAntithetic() {
+        return this.antithetic;
+    }
+    
+    /**
+     * Sets whether antithetic variates are used (default false)
+     * 
+     * @param antithetic (boolean) true to use antithetic variates
+     */
+    public void setAntithetic(boolean antithetic) {
+        this.antithetic = antithetic;
+    }
+    
+    /**
+     * Returns the seed of the random numbers
+     * 
+     * @return the seed (long)
+     */
+    public long getSeed() {
+        return this.seed;
+    }
+    
+    /**
+     * Sets the seed of the random numbers. Simulations with the same seed
+     * (and settings) return the same results.
+     * 
+     * @param seed (long) the seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+    
+    /**
+     * Returns the standard error at which the simulation stops
+     * 
+     * @return the tolerance (double)
+     */
+    public double getTolerance() {
+        return this.tolerance;
+    }
+    
+    /**
+     * Sets the standard error at which the simulation stops (default 0, i.e.
+     * the maximum number of paths is always simulated)
+     * 
+     * @param tolerance (double) the tolerance
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+    
+    /**
+     * Returns the maximum number of paths
+     * 
+     * @return the maximum number of paths (long)
+     */
+    public long getMaximumPaths() {
+        return this.maximumPaths;
+    }
+    
+    /**
+     * Sets the maximum number of paths (rounded up to full blocks)
+     * 
+     * @param maximumPaths (long) the maximum number of paths
+     */
+    public void setMaximumPaths(long maximumPaths) {
+        this.maximumPaths = maximumPaths;
+    }
+    
+    /**
+     * Sets the number of blocks simulated (in parallel) between two checks of
+     * the standard error. The results depend on the round size if a tolerance
+     * is set, but not on the number of threads.
+     * 
+     * @param roundSize (int) the number of blocks per round
+     */
+    public void setRoundSize(int roundSize) {
+        if(roundSize < 1)
+            throw new IllegalArgumentException("There must be at least one block per round");
+        
+        this.roundSize = roundSize;
+    }
+    
+    /**
+     * Runs the simulation on the common fork/join pool
+     * 
+     * @return the result (MonteCarloResult)
+     * @throws FiMaLibCalcException 
+     */
+    public MonteCarloResult run() throws FiMaLibCalcException {
+        return this.run(ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Runs the simulation on the given fork/join pool
+     * 
+     * @param pool (ForkJoinPool) the fork/join pool
+     * @return the result (MonteCarloResult)
+     * @throws FiMaLibCalcException 
+     */
+    public MonteCarloResult run(ForkJoinPool pool) throws FiMaLibCalcException {
+        // the columns: processes, observations, parameters
+        ArrayList<String> names = new ArrayList<>();
+        for(StochasticProcess process : this.processes) {
+            names.add(process.getName());
+        }
+        names.addAll(this.observationNames);
+        names.addAll(this.parameterNames);
+        
+        HashSet<String> unique = new HashSet<>();
+        for(String name : names) {
+            if(!unique.add(name))
+                throw new FormulaException("Variable " + name + " is defined more than once");
+        }
+        
+        SlotMap slots = new SlotMap(names.toArray(new String[names.size()]));
+        BatchEvaluator payoffEvaluator = new BatchEvaluator(this.payoff.copy(), slots);
+        BatchEvaluator controlEvaluator = (this.control == null) ? null : new BatchEvaluator(this.control.copy(), slots);
+        double[] parameters = new double[this.parameterValues.size()];
+        for(int i=0; i<parameters.length; i++) {
+            parameters[i] = this.parameterValues.get(i);
+        }
+        
+        RandomStream root = new RandomStream(this.seed);
+        Statistics total = new Statistics();
+        long maximumBlocks = Math.max(1L, (this.maximumPaths + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        long blocks = 0;
+        boolean converged = false;
+        
+        while(!converged && (blocks < maximumBlocks)) {
+            int count = (int)Math.min(this.roundSize, maximumBlocks - blocks);
+            RandomStream[] streams = root.split(count);
+            Statistics[] results = new Statistics[count];
+            
+            try {
+                pool.invoke(new SimulationTask(payoffEvaluator, controlEvaluator, parameters, streams, results, 0, count));
+            }
+            catch (SimulationFailure ex) {
+                throw (FiMaLibCalcException)ex.getCause();
+            }
+            
+            for(Statistics result : results) {
+                total.merge(result);
+            }
+            blocks += count;
+            
+            converged = (this.tolerance > 0.0) && (total.count > 1) && (total.standardError(this.control != null) <= this.tolerance);
+        }
+        
+        boolean hasControl = this.control != null;
+        double beta = hasControl ? total.beta() : 0.0;
+        double mean = hasControl ? total.mean - beta * (total.controlMean - this.controlExpectation) : total.mean;
+        
+        return new MonteCarloResult(mean, total.standardError(hasControl), total.variance(hasControl), total.count,
+                blocks * BLOCK_SIZE, beta, converged);
+    }
+}
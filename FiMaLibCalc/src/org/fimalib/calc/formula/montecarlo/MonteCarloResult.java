@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.montecarlo;
+
+import java.util.Locale;
+
+/**
+ * This class holds the result of a Monte Carlo simulation (see MonteCarlo):
+ * the estimated expectation of the payoff and its standard error.
+ * 
+ * With antithetic variates, a sample is the average payoff of a pair of
+ * antithetic paths, i.e. there are twice as many paths as samples. With a
+ * control variate, the mean and the standard error are those of the payoff
+ * adjusted by the control variate.
+ * 
+ * @author Peter Werno
+ */
+public class MonteCarloResult {
+    double mean;
+    double standardError;
+    double variance;
+    long samples;
+    long paths;
+    double beta;
+    boolean converged;
+    
+    /**
+     * Creates a new instance of MonteCarloResult
+     * 
+     * @param mean (double) the estimated expectation
+     * @param standardError (double) the standard error of the estimate
+     * @param variance (double) the variance of the samples
+     * @param samples (long) the number of samples
+     * @param paths (long) the number of simulated paths
+     * @param beta (double) the coefficient of the control variate
+     * @param converged (boolean) true if the requested standard error has
+     * been reached
+     */
+    MonteCarloResult(double mean, double standardError, double variance, long samples, long paths, double beta, boolean converged) {
+        this.mean = mean;
+        this.standardError = standardError;
+        this.variance = variance;
+        this.samples = samples;
+        this.paths = paths;
+        this.beta = beta;
+        this.converged = converged;
+    }
+    
+    /**
+     * Returns the estimated expectation of the payoff
+     * 
+     * @return the mean (double)
+     */
+    public double getMean() {
+        return this.mean;
+    }
+    
+    /**
+     * Returns the standard error of the estimated expectation
+     * 
+     * @return the standard error (double)
+     */
+    public double getStandardError() {
+        return this.standardError;
+    }
+    
+    /**
+     * Returns the variance of the samples
+     * 
+     * @return the variance (double)
+     */
+    public double getVariance() {
+        return this.variance;
+    }
+    
+    /**
+     * Returns the number of samples
+     * 
+     * @return the number of samples (long)
+     */
+    public long getSamples() {
+        return this.samples;
+    }
+    
+    /**
+     * Returns the number of simulated paths
+     * 
+     * @return the number of paths (long)
+     */
+    public long getPaths() {
+        return this.paths;
+    }
+    
+    /**
+     * Returns the coefficient by which the control variate has been applied
+     * 
+     * @return the coefficient (double), 0 without control variate
+     */
+    public double getBeta() {
+        return this.beta;
+    }
+    
+    /**
+     * Returns whether the requested standard error has been reached (see
+     * MonteCarlo.setTolerance)
+     * 
+     * @return true if the simulation converged (boolean)
+     */
+    public boolean isConverged() {
+        return this.converged;
+    }
+    
+    /**
+     * Returns the result encoded as a string
+     * 
+     * @return the encoded result (String)
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%.8g +/- %.3g (%d paths)", this.mean, this.standardError, this.paths);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.montecarlo;
+
+/**
+ * This class implements the Ornstein-Uhlenbeck process
+ * 
+ *  dX = theta * (mu - X) * dt + sigma * dW
+ * 
+ * e.g. for short rates in the Vasicek model. The process is simulated exactly,
+ * i.e. without a discretization error:
+ * 
+ *  X(t+dt) = X(t) * exp(-theta*dt) + mu * (1 - exp(-theta*dt))
+ *              + sigma * sqrt((1 - exp(-2*theta*dt)) / (2*theta)) * Z
+ * 
+ * With a mean reversion of 0, the process is a Brownian motion.
+ * 
+ * @author Peter Werno
+ */
+public class OrnsteinUhlenbeck extends StochasticProcess {
+    double reversion;
+    double mean;
+    double volatility;
+    
+    /**
+     * Creates a new instance of OrnsteinUhlenbeck
+     * 
+     * @param name (String) the name of the process
+     * @param initialValue (double) the value at time 0
+     * @param reversion (double) the speed of the mean reversion theta
+     * @param mean (double) the long-term mean mu
+     * @param volatility (double) the volatility sigma
+     */
+    public OrnsteinUhlenbeck(String name, double initialValue, double reversion, double mean, double volatility) {
+        super(name, initialValue);
+        
+        if(reversion < 0.0)
+            throw new IllegalArgumentException("The mean reversion must not be negative");
+        
+        this.reversion = reversion;
+        this.mean = mean;
+        this.volatility = volatility;
+    }
+    
+    /**
+     * Returns the speed of the mean reversion
+     * 
+     * @return the mean reversion (double)
+     */
+    public double getReversion() {
+        return this.reversion;
+    }
+    
+    /**
+     * Returns the long-term mean of the process
+     * 
+     * @return the mean (double)
+     */
+    public double getMean() {
+        return this.mean;
+    }
+    
+    /**
+     * Returns the volatility of the process
+     * 
+     * @return the volatility (double)
+     */
+    public double getVolatility() {
+        return this.volatility;
+    }
+    
+    /**
+     * Advances the values of the paths by one time step
+     * 
+     * @param values (double[]) the values of the paths, replaced by the new
+     * values
+     * @param normals (double[]) the standard normal random numbers, one per
+     * path
+     * @param n (int) the number of paths
+     * @param dt (double) the length of the time step
+     */
+    @Override
+    public void step(double[] values, double[] normals, int n, double dt) {
+        double decay, deviation;
+        
+        if(this.reversion == 0.0) {
+            decay = 1.0;
+            deviation = this.volatility * Math.sqrt(dt);
+        }
+        else {
+            decay = Math.exp(-this.reversion * dt);
+            deviation = this.volatility * Math.sqrt(-Math.expm1(-2.0 * this.reversion * dt) / (2.0 * this.reversion));
+        }
+        double shift = this.mean * (1.0 - decay);
+        
+        for(int i=0; i<n; i++) {
+            values[i] = values[i] * decay + shift + deviation * normals[i];
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.montecarlo;
+
+/**
+ * This class accumulates the samples of a Monte Carlo simulation, i.e. the
+ * payoffs and (optionally) the values of the control variate, as means and
+ * (co)variance sums. The statistics of several blocks of samples can be
+ * merged without loss of precision (with the formulas of Chan et al.).
+ * 
+ * @author Peter Werno
+ */
+class Statistics {
+    long count;
+    double mean;            // the mean of the payoffs
+    double controlMean;     // the mean of the control variates
+    double m2;              // the sum of the squared deviations of the payoffs
+    double controlM2;       // the sum of the squared deviations of the control variates
+    double comoment;        // the sum of the products of the deviations
+    
+    /**
+     * Adds a sample
+     * 
+     * @param value (double) the payoff
+     * @param control (double) the value of the control variate
+     */
+    void add(double value, double control) {
+        this.count++;
+        double delta = value - this.mean;
+        double controlDelta = control - this.controlMean;
+        this.mean += delta / this.count;
+        this.controlMean += controlDelta / this.count;
+        this.m2 += delta * (value - this.mean);
+        this.controlM2 += controlDelta * (control - this.controlMean);
+        this.comoment += delta * (control - this.controlMean);
+    }
+    
+    /**
+     * Merges the samples of other statistics into these statistics
+     * 
+     * @param other (Statistics) the other statistics
+     */
+    void merge(Statistics other) {
+        if(other.count == 0) return;
+        
+        long total = this.count + other.count;
+        double delta = other.mean - this.mean;
+        double controlDelta = other.controlMean - this.controlMean;
+        double weight = (double)this.count * other.count / total;
+        
+        this.mean += delta * other.count / total;
+        this.controlMean += controlDelta * other.count / total;
+        this.m2 += other.m2 + delta * delta * weight;
+        this.controlM2 += other.controlM2 + controlDelta * controlDelta * weight;
+        this.comoment += other.comoment + delta * controlDelta * weight;
+        this.count = total;
+    }
+    
+    /**
+     * Returns the optimal coefficient of the control variate, i.e. the
+     * covariance of payoffs and control variates divided by the variance of
+     * the control variates
+     * 
+     * @return the coefficient (double), 0 if the control variates do not vary
+     */
+    double beta() {
+        return (this.controlM2 > 0.0) ? this.comoment / this.controlM2 : 0.0;
+    }
+    
+    /**
+     * Returns the variance of the samples, adjusted by the control variate
+     * (if any)
+     * 
+     * @param control (boolean) true if there is a control variate
+     * @return the variance (double)
+     */
+    double variance(boolean control) {
+        if(this.count < 2) return java.lang.Double.NaN;
+        
+        double sum = control ? this.m2 - this.beta() * this.comoment : this.m2;
+        
+        return Math.max(0.0, sum) / (this.count - 1);
+    }
+    
+    /**
+     * Returns the standard error of the mean
+     * 
+     * @param control (boolean) true if there is a control variate
+     * @return the standard error (double)
+     */
+    double standardError(boolean control) {
+        return Math.sqrt(this.variance(control) / this.count);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.montecarlo;
+
+/**
+ * This class is the base class of the stochastic processes driving a Monte
+ * Carlo simulation (see MonteCarlo).
+ * 
+ * A process advances the values of many paths at once by one time step,
+ * given one standard normal random number per path. The values are
+ * available to the payoff formula under the name of the process.
+ * 
+ * @author Peter Werno
+ */
+public abstract class StochasticProcess {
+    String name;
+    double initialValue;
+    
+    /**
+     * Creates a new instance of StochasticProcess
+     * 
+     * @param name (String) the name of the process, i.e. the variable of the
+     * payoff formula
+     * @param initialValue (double) the value at time 0
+     */
+    public StochasticProcess(String name, double initialValue) {
+        this.name = name;
+        this.initialValue = initialValue;
+    }
+    
+    /**
+     * Returns the name of the process, i.e. the variable of the payoff
+     * formula
+     * 
+     * @return the name (String)
+     */
+    public String getName() {
+        return this.name;
+    }
+    
+    /**
+     * Returns the value of the process at time 0
+     * 
+     * @return the initial value (double)
+     */
+    public double getInitialValue() {
+        return this.initialValue;
+    }
+    
+    /**
+     * Advances the values of the paths by one time step
+     * 
+     * @param values (double[]) the values of the paths, replaced by the new
+     * values
+     * @param normals (double[]) the standard normal random numbers, one per
+     * path
+     * @param n (int) the number of paths
+     * @param dt (double) the length of the time step
+     */
+    public abstract void step(double[] values, double[] normals, int n, double dt);
+}
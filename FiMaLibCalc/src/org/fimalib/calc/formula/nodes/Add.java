@@ -21,6 +21,7 @@ package org.fimalib.calc.formula.nodes;
 import java.util.HashMap;
 import org.fimalib.calc.FiMaLibCalcException;
 import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
 
 /**
@@ -65,6 +66,18 @@ public class Add extends Node {
         return lVal.add(rVal);
     }
 
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        return this.subNodes[0].evaluate(context) + this.subNodes[1].evaluate(context);
+    }
+
     /**
      * Returns the derivative of the node
      * 
@@ -20,7 +20,9 @@ package org.fimalib.calc.formula.nodes;
 
 import java.util.HashMap;
 import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Double;
 import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
 
 /**
@@ -59,6 +61,18 @@ public class Arccoth extends Node {
         return this.subNodes[0].calculate(parameters).arccoth();
     }
 
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        return Double.arccoth(this.subNodes[0].evaluate(context));
+    }
+
     @Override
     public Node derive(String parameterName) throws FormulaException {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
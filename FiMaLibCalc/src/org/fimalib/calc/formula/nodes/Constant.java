@@ -23,6 +23,7 @@ import org.fimalib.calc.FiMaLibCalcException;
 import org.fimalib.calc.Complex;
 import org.fimalib.calc.Double;
 import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
 
 /**
@@ -65,6 +66,21 @@ public class Constant extends Node {
         return this.constant;
     }
 
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        if((this.constant instanceof Complex) && (((Complex)this.constant).getImg() != 0.0))
+            throw new FormulaException("Complex constant " + this.constant.toString() + " cannot be evaluated with primitive values");
+        
+        return this.constant.getValue();
+    }
+
     /**
      * Returns the derivative of the node
      * 
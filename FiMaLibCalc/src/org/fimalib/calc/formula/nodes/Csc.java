@@ -22,6 +22,7 @@ import java.util.HashMap;
 import org.fimalib.calc.Double;
 import org.fimalib.calc.FiMaLibCalcException;
 import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
 
 /**
@@ -60,6 +61,18 @@ public class Csc extends Node {
         return this.subNodes[0].calculate(parameters).csc();
     }
 
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        return Double.csc(this.subNodes[0].evaluate(context));
+    }
+
     /**
      * Returns the derivative of the node
      * 
@@ -21,6 +21,8 @@ package org.fimalib.calc.formula.nodes;
 import java.util.HashMap;
 import org.fimalib.calc.Double;
 import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
 
 /**
@@ -65,6 +67,24 @@ public class Div extends Node {
         return lVal.div(rVal);
     }
 
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        double lVal = this.subNodes[0].evaluate(context);
+        double rVal = this.subNodes[1].evaluate(context);
+        
+        if(rVal == 0.0)
+            throw new FiMaLibDivisionByZeroException("Division by zero");
+        
+        return lVal / rVal;
+    }
+
     /**
      * Returns the derivative of the node
      * 
@@ -118,9 +138,11 @@ public class Div extends Node {
         retVal.append(this.subNodes[0].toString());
         if(level0<this.getLevel()) retVal.append(")");
         retVal.append("/");
-        if(level1<this.getLevel()) retVal.append("(");
+        // the right operand is bracketed on the same level as well, as the
+        // operation is not associative (e.g. a-(b-c), a/(b*c))
+        if(level1<=this.getLevel()) retVal.append("(");
         retVal.append(this.subNodes[1].toString());
-        if(level1<this.getLevel()) retVal.append(")");
+        if(level1<=this.getLevel()) retVal.append(")");
         
         return retVal.toString();
     }
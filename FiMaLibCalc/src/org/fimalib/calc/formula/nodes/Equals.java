@@ -23,6 +23,7 @@ import org.fimalib.calc.Boolean;
 import org.fimalib.calc.Complex;
 import org.fimalib.calc.FiMaLibCalcException;
 import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
 
 /**
@@ -86,6 +87,21 @@ public class Equals extends Node {
         }
     }
 
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        double lVal = this.subNodes[0].evaluate(context);
+        double rVal = this.subNodes[1].evaluate(context);
+        
+        return (lVal == rVal) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+    }
+
     @Override
     public Node derive(String parameterName) throws FormulaException {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
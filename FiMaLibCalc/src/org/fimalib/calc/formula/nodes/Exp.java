@@ -20,7 +20,9 @@ package org.fimalib.calc.formula.nodes;
 
 import java.util.HashMap;
 import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Double;
 import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
 
 /**
@@ -59,9 +61,44 @@ public class Exp extends Node {
         return this.subNodes[0].calculate(parameters).exp();
     }
 
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        return Math.exp(this.subNodes[0].evaluate(context));
+    }
+
+    /**
+     * Returns the derivative of the node
+     * 
+     * @param parameterName (String) the variable by with to derive
+     * @return the derivative (Node)
+     * @throws FormulaException 
+     */
     @Override
     public Node derive(String parameterName) throws FormulaException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        Node subDer = this.subNodes[0].derive(parameterName);
+        
+        if(subDer.isNumber()) {
+            try {
+                Number result = subDer.calculate(null);
+                Double one = new Double(1.0, result.getNumberFormat());
+                
+                if(result.equals(one)) {
+                    return new Exp(this.subNodes[0].copy());
+                }
+            }
+            catch (FiMaLibCalcException ex) {
+                throw new FormulaException("Error deriving exp function", ex);
+            }
+        }
+        
+        return new Mul(subDer, new Exp(this.subNodes[0].copy()));
     }
 
     @Override
@@ -19,6 +19,7 @@
 package org.fimalib.calc.formula.nodes;
 
 import java.util.HashMap;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
 import org.fimalib.calc.FiMaLibCalcException;
 import org.fimalib.calc.Boolean;
@@ -74,6 +75,18 @@ public class Neg extends Node {
         return retVal.mul(multiplier);
     }
 
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        return -this.subNodes[0].evaluate(context);
+    }
+
     /**
      * Returns the derivative of the node
      * 
@@ -18,7 +18,9 @@
  */
 package org.fimalib.calc.formula.nodes;
 
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.SlotMap;
 import org.fimalib.calc.Number;
 import org.fimalib.calc.FiMaLibCalcException;
 import java.util.HashMap;
@@ -42,6 +44,14 @@ public abstract class Node {
     public static final int LEVEL_EXPONENTIAL       = 4;
     public static final int LEVEL_FUNCTION_CONST    = 5;
     
+    // the evaluation contexts of evaluate(double[]), one per thread
+    static final ThreadLocal<EvaluationContext> CONTEXTS = new ThreadLocal<EvaluationContext>() {
+        @Override
+        protected EvaluationContext initialValue() {
+            return new EvaluationContext((double[])null);
+        }
+    };
+    
     int nodeCount;
     Node[] subNodes;
     
@@ -144,8 +154,73 @@ public abstract class Node {
         }
     }
     
+    /**
+     * Binds all variables of the formula tree to slots, i.e. to positions
+     * within the array of values passed to evaluate.
+     * Variables that are not yet known to the slot map are added to it.
+     * 
+     * @param slots (SlotMap) the slot map
+     * @throws FormulaException 
+     */
+    public void bind(SlotMap slots) throws FormulaException {
+        int numNodes = this.getNodeCount();
+        for(int i=0; i<numNodes; i++) {
+            this.getNode(i).bind(slots);
+        }
+    }
+    
     public abstract Number calculate(HashMap<String, Number> parameters) throws FiMaLibCalcException;
     
+    /**
+     * Calculates the value of a real valued formula node with the variable
+     * values given as primitive array, where each variable's value is stored
+     * at the position of its slot. The formula tree has to be bound to the
+     * slots before (see bind).
+     * 
+     * This is a shortcut for evaluate(EvaluationContext), using an evaluation
+     * context that is reused by all calls of the current thread (a nested
+     * call, e.g. from a node evaluated this way, gets a new context).
+     * 
+     * @param slots (double[]) the variable values
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    public double evaluate(double[] slots) throws FiMaLibCalcException {
+        EvaluationContext context = CONTEXTS.get();
+        
+        // the context is in use by an outer call
+        if(context.getSlots() != null) return this.evaluate(new EvaluationContext(slots));
+        
+        context.setSlots(slots);
+        try {
+            return this.evaluate(context);
+        }
+        finally {
+            context.setSlots(null);
+        }
+    }
+    
+    /**
+     * Calculates the value of a real valued formula node within an evaluation
+     * context, which holds the variable values (at the positions of their
+     * slots) and the frames of user defined function calls. The formula tree
+     * has to be bound to the slots before (see bind).
+     * 
+     * Unlike calculate, this method does not create any objects for the
+     * (intermediate) results and does not change the formula tree, so a
+     * formula tree can be evaluated by several threads at the same time (each
+     * with an evaluation context of its own). Boolean results are returned as 
+     * Boolean.BOOLEAN_TRUE or Boolean.BOOLEAN_FALSE, complex numbers are not
+     * supported.
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        throw new FormulaException("Node " + this.getName() + " does not support the evaluation with primitive values");
+    }
+    
     public abstract Node derive(String parameterName) throws FormulaException;
     
     public abstract Node integrate(String parameterName) throws FormulaException;
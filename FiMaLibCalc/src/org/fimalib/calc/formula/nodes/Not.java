@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.nodes;
+
+import java.util.HashMap;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.Boolean;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.FormulaException;
+
+/**
+ * This class implements the logical NOT operator.
+ * 
+ * It returns true if the subnode is false and false if the subnode is true
+ * 
+ * @author Peter Werno
+ */
+public class Not extends Node {
+    /**
+     * Creates a new instance of Not
+     */
+    public Not() {
+        super(1);
+    }
+    
+    /**
+     * Creates a new instance of Not with the subnode given.
+     * 
+     * @param subNode (Node) the subnode
+     */
+    public Not(Node subNode) {
+        super(1);
+        
+        this.subNodes[0] = subNode;
+    }
+
+    /**
+     * Calculates the value of the formula node with a given parameter set
+     * 
+     * @param parameters (HashMap) the parameter(s)
+     * @return the result of the calculation
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public Number calculate(HashMap<String, Number> parameters) throws FiMaLibCalcException {
+        Number value = this.subNodes[0].calculate(parameters);
+        
+        if(value instanceof Boolean) {
+            Boolean bValue = (Boolean)value;
+            
+            return bValue.not();
+        }
+        
+        throw new FiMaLibCalcException("NOT-operator (!) can only be applied to nested boolean values");
+    }
+
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        return (this.subNodes[0].evaluate(context) == Boolean.BOOLEAN_FALSE) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+    }
+
+    /**
+     * Creates a copy of this node
+     * 
+     * @return the copy (Node)
+     */
+    @Override
+    public Node copy() {
+        return new Not(this.subNodes[0].copy());
+    }
+
+    /**
+     * Logical nodes are not continuous and can therefore not be derived
+     * 
+     * @param parameterName (String) the parameter by which to derive
+     * @return nothing, as an exception is thrown
+     * @throws FormulaException 
+     */
+    @Override
+    public Node derive(String parameterName) throws FormulaException {
+        throw new FormulaException("Logical node " + this.getName() + " cannot be derived");
+    }
+
+    /**
+     * Logical nodes are not continuous and can therefore not be integrated
+     * 
+     * @param parameterName (String) the parameter by which to integrate
+     * @return nothing, as an exception is thrown
+     * @throws FormulaException 
+     */
+    @Override
+    public Node integrate(String parameterName) throws FormulaException {
+        throw new FormulaException("Logical node " + this.getName() + " cannot be integrated");
+    }
+
+    @Override
+    public String getName() {
+        return "Not";
+    }
+
+    /**
+     * Returns the formula node encoded as a string
+     * 
+     * @return the encoded node (String)
+     */
+    @Override
+    public String toString() {
+        StringBuilder retVal = new StringBuilder("!");
+        
+        if(this.subNodes[0].getLevel() < this.getLevel()) retVal.append("(");
+        retVal.append(this.subNodes[0].toString());
+        if(this.subNodes[0].getLevel() < this.getLevel()) retVal.append(")");
+        
+        return retVal.toString();
+    }
+
+    /**
+     * Returns the level of the node
+     * 
+     * @return the level (int)
+     */
+    @Override
+    public int getLevel() {
+        return Node.LEVEL_FUNCTION_CONST;
+    }
+    
+}
@@ -22,6 +22,7 @@ import java.util.HashMap;
 import org.fimalib.calc.FiMaLibCalcException;
 import org.fimalib.calc.Boolean;
 import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
 
 /**
@@ -30,6 +31,10 @@ import org.fimalib.calc.formula.FormulaException;
  * It returns true if at least one of the two subnodes are true, otherwise 
  * it returns false
  * 
+ * The right subnode is only evaluated if the left subnode is false
+ * (short-circuit evaluation), so the left subnode can guard the right one,
+ * e.g. x==0||1/x>2.
+ * 
  * @author Peter Werno
  */
 public class Or extends Node {
@@ -63,6 +68,11 @@ public class Or extends Node {
     @Override
     public Number calculate(HashMap<String, Number> parameters) throws FiMaLibCalcException {
         Number lVal = this.subNodes[0].calculate(parameters);
+        
+        // short-circuit: the right subnode does not change the result
+        if((lVal instanceof Boolean) && (((Boolean)lVal).getBooleanValue()))
+            return new Boolean(true, lVal.getNumberFormat());
+        
         Number rVal = this.subNodes[1].calculate(parameters);
         
         if((lVal instanceof Boolean) && (rVal instanceof Boolean)) {
@@ -75,6 +85,20 @@ public class Or extends Node {
         throw new FiMaLibCalcException("OR-comparison (||) can only be applied to nested boolean values");
     }
 
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        if(this.subNodes[0].evaluate(context) != Boolean.BOOLEAN_FALSE) return Boolean.BOOLEAN_TRUE;
+        
+        return (this.subNodes[1].evaluate(context) != Boolean.BOOLEAN_FALSE) ? Boolean.BOOLEAN_TRUE : Boolean.BOOLEAN_FALSE;
+    }
+
     @Override
     public Node derive(String parameterName) throws FormulaException {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
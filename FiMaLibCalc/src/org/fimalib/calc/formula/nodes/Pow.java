@@ -22,6 +22,7 @@ import java.util.HashMap;
 import org.fimalib.calc.Number;
 import org.fimalib.calc.Double;
 import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
 
 /**
@@ -67,6 +68,18 @@ public class Pow extends Node {
         return lVal.pow(rVal);
     }
 
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        return Math.pow(this.subNodes[0].evaluate(context), this.subNodes[1].evaluate(context));
+    }
+
     /**
      * Returns the derivative of the node
      * 
@@ -125,9 +138,11 @@ public class Pow extends Node {
         retVal.append(this.subNodes[0].toString());
         if(level0<this.getLevel()) retVal.append(")");
         retVal.append("^");
-        if(level1<this.getLevel()) retVal.append("(");
+        // the right operand is bracketed on the same level as well, as the
+        // parser reads a^b^c as (a^b)^c
+        if(level1<=this.getLevel()) retVal.append("(");
         retVal.append(this.subNodes[1].toString());
-        if(level1<this.getLevel()) retVal.append(")");
+        if(level1<=this.getLevel()) retVal.append(")");
         
         return retVal.toString();
     }
@@ -22,7 +22,9 @@ import java.util.HashMap;
 import org.fimalib.calc.FiMaLibCalcException;
 import org.fimalib.calc.Double;
 import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.RandomStream;
 
 /**
  * This method implements a random number generator for formulas.
@@ -31,6 +33,11 @@ import org.fimalib.calc.formula.FormulaException;
  * random generator number (e.g. rand(10) will return a random number between
  * 0 and 10)
  * 
+ * The random numbers are drawn from the random stream of the evaluation
+ * context (see EvaluationContext.setRandom) or, when calculating without an
+ * evaluation context, from the random stream of the current thread (see
+ * RandomStream.current).
+ * 
  * @author Peter Werno
  */
 public class Rand extends Node {
@@ -63,7 +70,19 @@ public class Rand extends Node {
     public Number calculate(HashMap<String, Number> parameters) throws FiMaLibCalcException {
         Number lVal = this.subNodes[0].calculate(parameters);
         
-        return new Double(Math.random() * lVal.getValue());
+        return new Double(RandomStream.current().nextDouble() * lVal.getValue());
+    }
+
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        return context.getRandom().nextDouble() * this.subNodes[0].evaluate(context);
     }
 
     @Override
@@ -76,6 +95,17 @@ public class Rand extends Node {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
+    /**
+     * Returns that this node is NOT a constant number, as each calculation
+     * returns a new random number
+     *
+     * @return false (boolean)
+     */
+    @Override
+    public boolean isNumber() {
+        return false;
+    }
+
     /**
      * Creates a copy of this node
      * 
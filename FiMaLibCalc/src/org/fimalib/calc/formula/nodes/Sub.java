@@ -20,6 +20,7 @@ package org.fimalib.calc.formula.nodes;
 
 import java.util.HashMap;
 import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
 
 /**
@@ -64,6 +65,18 @@ public class Sub extends Node {
         return lVal.sub(rVal);
     }
 
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        return this.subNodes[0].evaluate(context) - this.subNodes[1].evaluate(context);
+    }
+
     /**
      * Returns the derivative of the node
      * 
@@ -113,9 +126,11 @@ public class Sub extends Node {
         retVal.append(this.subNodes[0].toString());
         if(level0<this.getLevel()) retVal.append(")");
         retVal.append("-");
-        if(level1<this.getLevel()) retVal.append("(");
+        // the right operand is bracketed on the same level as well, as the
+        // operation is not associative (e.g. a-(b-c), a/(b*c))
+        if(level1<=this.getLevel()) retVal.append("(");
         retVal.append(this.subNodes[1].toString());
-        if(level1<this.getLevel()) retVal.append(")");
+        if(level1<=this.getLevel()) retVal.append(")");
         
         return retVal.toString();
     }
@@ -22,7 +22,9 @@ import java.util.HashMap;
 import org.fimalib.calc.FiMaLibCalcException;
 import org.fimalib.calc.Double;
 import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
 import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.SlotMap;
 
 /**
  * This class implements a variable within a formula
@@ -31,6 +33,7 @@ import org.fimalib.calc.formula.FormulaException;
  */
 public class Variable extends Node {
     String name;
+    int slot = -1;
     
     /**
      * Creates a new instance of Variable
@@ -61,6 +64,40 @@ public class Variable extends Node {
         return parameters.get(this.name);
     }
 
+    /**
+     * Binds the variable to its slot in the given slot map
+     * 
+     * @param slots (SlotMap) the slot map
+     */
+    @Override
+    public void bind(SlotMap slots) {
+        this.slot = slots.getSlot(this.name);
+    }
+
+    /**
+     * Calculates the value of the formula node with primitive values
+     * 
+     * @param context (EvaluationContext) the evaluation context
+     * @return the result of the calculation (double)
+     * @throws FiMaLibCalcException 
+     */
+    @Override
+    public double evaluate(EvaluationContext context) throws FiMaLibCalcException {
+        if(this.slot < 0)
+            throw new FormulaException("Variable " + this.name + " is not bound to a slot");
+        
+        return context.get(this.slot);
+    }
+    
+    /**
+     * Returns the slot the variable is bound to (or -1 if unbound)
+     * 
+     * @return the slot (int)
+     */
+    public int getSlot() {
+        return this.slot;
+    }
+
     /**
      * Returns the derivative of the node
      * 
@@ -88,7 +125,10 @@ public class Variable extends Node {
      */
     @Override
     public Node copy() {
-        return new Variable(this.name);
+        Variable retVal = new Variable(this.name);
+        retVal.slot = this.slot;
+        
+        return retVal;
     }
 
     @Override
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the evaluation of formulas within evaluation contexts
+ * 
+ * @author Peter Werno
+ */
+public class EvaluationContextTest {
+    
+    public EvaluationContextTest() {
+    }
+    
+    @Test
+    public void testNestedFunctions() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("ctxg(a)=a*sum(k,1,3,k)", nf));
+        Formula.addUserDefinedFunction(new UserDefinedFunction("ctxf(a,b)=ctxg(a)+b", nf));
+        
+        Node node = Formula.parse("ctxf(ctxf(x,1),ctxg(y))+x", nf);
+        SlotMap slots = new SlotMap("x", "y");
+        node.bind(slots);
+        
+        EvaluationContext context = new EvaluationContext(slots);
+        context.set(0, 2.0);
+        context.set(1, 3.0);
+        
+        // ctxf(x,1) = 6x+1 = 13, ctxg(y) = 18, ctxf(13,18) = 78+18 = 96
+        assertEquals(96.0 + 2.0, node.evaluate(context), 0.0);
+        assertEquals(0, context.getStackSize());
+        assertArrayEquals(new double[] { 2.0, 3.0 }, context.getSlots(), 0.0);
+    }
+    
+    @Test
+    public void testStackGrowth() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("ctxh(a,b,c,d,k,f,g,h,i,j)=a+b+c+d+k+f+g+h+i+j", nf));
+        
+        // nested calls need more than the initial stack size
+        StringBuilder formula = new StringBuilder("x");
+        for(int i=0; i<20; i++) {
+            formula.insert(0, "ctxh(1,2,3,4,5,6,7,8,9,");
+            formula.append(")");
+        }
+        
+        Node node = Formula.parse(formula.toString(), nf);
+        node.bind(new SlotMap("x"));
+        assertEquals(20 * 45.0 + 2.0, node.evaluate(new double[] { 2.0 }), 0.0);
+    }
+    
+    @Test
+    public void testReuse() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("ctxdiv(a)=1/a", nf));
+        
+        Node node = Formula.parse("ctxdiv(x)", nf);
+        node.bind(new SlotMap("x"));
+        EvaluationContext context = new EvaluationContext(new double[] { 0.0 });
+        
+        try {
+            node.evaluate(context);
+            fail("Division by zero should throw an exception");
+        }
+        catch (FiMaLibDivisionByZeroException ex) {
+            System.out.println(ex.getMessage());
+        }
+        
+        // the context can be used again after an exception
+        context.setSlots(new double[] { 4.0 });
+        assertEquals(0.25, node.evaluate(context), 0.0);
+        assertEquals(0, context.getStackSize());
+    }
+    
+    @Test
+    public void testNestedException() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("ctxinner(a)=1/a", nf));
+        Formula.addUserDefinedFunction(new UserDefinedFunction("ctxouter(b)=ctxinner(b-1)+b", nf));
+        
+        Node node = Formula.parse("ctxouter(x)*y", nf);
+        node.bind(new SlotMap("x", "y"));
+        EvaluationContext context = new EvaluationContext(new double[] { 1.0, 2.0 });
+        
+        try {
+            node.evaluate(context);
+            fail("Division by zero should throw an exception");
+        }
+        catch (FiMaLibDivisionByZeroException ex) {
+            System.out.println(ex.getMessage());
+        }
+        
+        // the failed calls have left their frames, so the slots are the caller's again
+        assertEquals(0, context.getStackSize());
+        assertEquals(1.0, context.get(0), 0.0);
+        context.set(0, 3.0);
+        assertEquals((0.5 + 3.0) * 2.0, node.evaluate(context), 0.0);
+        assertEquals(0, context.getStackSize());
+        assertArrayEquals(new double[] { 3.0, 2.0 }, context.getSlots(), 0.0);
+    }
+    
+    @Test
+    public void testConcurrentEvaluation() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("ctxp(a,b)=prod(k,1,b,a+k)", nf));
+        
+        final Node node = Formula.parse("sum(i,1,5,ctxp(x,i)*i)+sum(x,1,3,x)", nf);
+        final SlotMap slots = new SlotMap("x");
+        node.bind(slots);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ArrayList<Future<double[]>> futures = new ArrayList<>();
+        
+        for(int t=0; t<8; t++) {
+            futures.add(executor.submit(new Callable<double[]>() {
+                @Override
+                public double[] call() throws Exception {
+                    EvaluationContext context = new EvaluationContext(slots);
+                    double[] results = new double[10000];
+                    for(int i=0; i<results.length; i++) {
+                        context.set(0, i * 0.001);
+                        results[i] = node.evaluate(context);
+                    }
+                    return results;
+                }
+            }));
+        }
+        
+        double[] expected = futures.get(0).get();
+        for(Future<double[]> future : futures) {
+            assertArrayEquals(expected, future.get(), 0.0);
+        }
+        executor.shutdown();
+        
+        assertEquals(node.evaluate(new double[] { 1.0, 0.0 }), expected[1000], 0.0);
+    }
+    
+    @Test
+    public void testCalculateKeepsParameters() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        HashMap<String, Number> parameters = new HashMap<>();
+        parameters.put("x", new Double(2.0, nf));
+        
+        Node node = Formula.parse("sum(i,1,3,i*x)+prod(x,1,3,x)", nf);
+        assertEquals(12.0 + 6.0, node.calculate(parameters).getValue(), 0.0);
+        
+        // neither the running variable i nor x have been changed
+        assertEquals(1, parameters.size());
+        assertEquals(2.0, parameters.get("x").getValue(), 0.0);
+    }
+}
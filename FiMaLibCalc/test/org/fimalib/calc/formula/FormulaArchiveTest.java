@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.NumberFormat;
+import java.util.Locale;
+import org.fimalib.calc.formula.functions.FunctionRegistry;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the binary archive of formulas
+ * 
+ * @author Peter Werno
+ */
+public class FormulaArchiveTest {
+    
+    public FormulaArchiveTest() {
+    }
+    
+    String[] formulas = {
+        "3*x^2+2*x+1",
+        "if(x<y,sin(x),cos(y)/2)",
+        "if(x>=1,1)",
+        "sum(k,1,n,x^k/k)+prod(i,1,3,y+i)",
+        "max(x,y,1.5)+min(x,2)",
+        "neg(x)&&y||!(x==y)",
+        "sqrt(abs(x))-ln(1+y^2)*arctan(x)",
+        "disc(y,n)*x",
+    };
+    
+    @Test
+    public void testRoundTrip() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        // the function is only known to a scope, its definition is stored in the archive
+        FunctionRegistry scope = new FunctionRegistry(FunctionRegistry.getDefault());
+        scope.register(new UserDefinedFunction("disc(r,t)=exp(neg(r)*t)", nf));
+        
+        FormulaArchiveWriter writer = new FormulaArchiveWriter();
+        Node[] nodes = new Node[formulas.length];
+        for(int i=0; i<formulas.length; i++) {
+            nodes[i] = Formula.parse(formulas[i], nf, scope);
+            writer.add(formulas[i], nodes[i]);
+        }
+        assertEquals(formulas.length, writer.size());
+        
+        Path file = Files.createTempFile("formulas", ".bin");
+        try {
+            writer.write(file);
+            FormulaArchive archive = FormulaArchive.open(file);
+            assertEquals(formulas.length, archive.size());
+            assertTrue(archive.getFunctionNames().contains("disc"));
+            
+            SlotMap slots = new SlotMap("x", "y", "n");
+            double[] values = { 0.7, 1.3, 4.0 };
+            for(int i=0; i<formulas.length; i++) {
+                Node node = archive.get(formulas[i]);
+                assertEquals(nodes[i].toString(), node.toString());
+                
+                nodes[i].bind(slots);
+                node.bind(slots);
+                double[] vars = slots.createSlots();
+                System.arraycopy(values, 0, vars, 0, values.length);
+                assertEquals(formulas[i], nodes[i].evaluate(new EvaluationContext(vars)), node.evaluate(new EvaluationContext(vars)), 0.0);
+            }
+            
+            assertArrayEquals(new String[] { "n", "x", "y" }, archive.getVariables(formulas[3]));
+            assertArrayEquals(new String[] { "y", "n", "x" }, archive.getVariables(formulas[7]));
+            assertNull(archive.get("x+1"));
+            
+            // every call returns a new tree
+            assertNotSame(archive.get(formulas[0]), archive.get(formulas[0]));
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+    
+    @Test
+    public void testFunctions() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        FormulaArchiveWriter writer = new FormulaArchiveWriter();
+        writer.addFunction(new UserDefinedFunction("f(a,b)=a*sum(k,1,b,k)", nf));
+        
+        FormulaArchive archive = new FormulaArchive(ByteBuffer.wrap(writer.toByteArray()));
+        assertEquals(0, archive.size());
+        
+        FunctionRegistry registry = new FunctionRegistry();
+        archive.registerFunctions(registry);
+        UserDefinedFunction function = (UserDefinedFunction)registry.create("f");
+        assertArrayEquals(new String[] { "a", "b" }, function.getParameterNames());
+        assertEquals("a*sum(k,1,b,k)", function.getDefinition().toString());
+        
+        Node node = Formula.parse("f(2,x)", nf, registry);
+        node.bind(new SlotMap("x"));
+        assertEquals(20.0, node.evaluate(new EvaluationContext(new double[] { 4.0 })), 0.0);
+        
+        try {
+            writer.addFunction(new UserDefinedFunction("f(x)=x", nf));
+            fail("Duplicate function not detected");
+        }
+        catch (FormulaException ex) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testCorrupt() throws Exception {
+        FormulaArchiveWriter writer = new FormulaArchiveWriter();
+        writer.add("x", Formula.parse("x+1"));
+        byte[] bytes = writer.toByteArray();
+        
+        try {
+            new FormulaArchive(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+            fail("Wrong magic number not detected");
+        }
+        catch (FormulaException ex) {
+            // expected
+        }
+        
+        bytes[5] = 99;
+        try {
+            new FormulaArchive(ByteBuffer.wrap(bytes));
+            fail("Wrong version not detected");
+        }
+        catch (FormulaException ex) {
+            // expected
+        }
+        
+        bytes[5] = FormulaArchive.VERSION;
+        try {
+            new FormulaArchive(ByteBuffer.wrap(bytes, 0, bytes.length - 2));
+            fail("Truncated archive not detected");
+        }
+        catch (FormulaException ex) {
+            // expected
+        }
+    }
+}
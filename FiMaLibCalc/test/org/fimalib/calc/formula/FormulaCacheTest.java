@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.compiler.CompiledFormula;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the formula cache
+ * 
+ * @author Peter Werno
+ */
+public class FormulaCacheTest {
+    
+    public FormulaCacheTest() {
+    }
+    
+    @Test
+    public void testParse() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        FormulaCache cache = new FormulaCache(10);
+        
+        Node node = cache.parse("3*x + 1", nf);
+        assertEquals("3*x+1", cache.parse("3*x + 1", nf).toString());
+        cache.parse("  3*x \t+\n1 ", nf);
+        cache.parse("3*x + 1", NumberFormat.getInstance(Locale.US));
+        assertEquals(3, cache.getHitCount());
+        cache.parse("3*x+1", nf);
+        
+        // each caller gets a tree of its own
+        assertNotSame(node, cache.parse("3*x + 1", nf));
+        node.bind(new SlotMap("y", "x"));
+        node.setNode(1, Formula.parse("2", nf));
+        Node other = cache.parse("3*x + 1", nf);
+        assertEquals("3*x+1", other.toString());
+        other.bind(new SlotMap("x"));
+        assertEquals(7.0, other.evaluate(new double[] { 2.0 }), 0.0);
+        
+        assertEquals(5, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+        System.out.println(cache);
+    }
+    
+    @Test
+    public void testNumberFormat() throws Exception {
+        FormulaCache cache = new FormulaCache(10);
+        HashMap<String, Number> parameters = new HashMap<>();
+        
+        // "1.5" is 1.5 with US and 15 with German number format
+        NumberFormat german = NumberFormat.getInstance(Locale.GERMANY);
+        NumberFormat us = NumberFormat.getInstance(Locale.US);
+        assertEquals(1.5, cache.parse("1.5", us).calculate(parameters).getValue(), 0.0);
+        assertEquals(15.0, cache.parse("1.5", german).calculate(parameters).getValue(), 0.0);
+        assertEquals(0, cache.getHitCount());
+        
+        // changing the caller's format afterwards does not affect the cache
+        us.setGroupingUsed(false);
+        cache.parse("1.5", NumberFormat.getInstance(Locale.US));
+        assertEquals(1, cache.getHitCount());
+    }
+    
+    @Test
+    public void testEviction() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        FormulaCache cache = new FormulaCache(3);
+        
+        Node one = cache.parse("x+1", nf);
+        cache.parse("x+2", nf);
+        cache.parse("x+3", nf);
+        cache.parse("x+1", nf);     // x+2 is least recently used now
+        cache.parse("x+4", nf);
+        
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(one.toString(), cache.parse("x+1", nf).toString());
+        assertEquals(2, cache.getHitCount());
+        
+        cache.parse("x+2", nf);
+        assertEquals(5, cache.getMissCount());
+        assertEquals(2, cache.getEvictionCount());
+    }
+    
+    @Test
+    public void testGeneration() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        FormulaCache cache = new FormulaCache(10);
+        
+        Node node = cache.parse("x+1", nf);
+        try {
+            cache.parse("cachef(2)", nf);
+            fail("Unknown function should not be parsed");
+        }
+        catch (FormulaException ex) {
+            System.out.println(ex.getMessage());
+        }
+        
+        Formula.addUserDefinedFunction(new UserDefinedFunction("cachef(x)=x*x", nf));
+        assertEquals(4.0, cache.parse("cachef(2)", nf).calculate(new HashMap<String, Number>()).getValue(), 0.0);
+        
+        // formulas of older generations are parsed again
+        long misses = cache.getMissCount();
+        assertEquals(node.toString(), cache.parse("x+1", nf).toString());
+        assertEquals(misses + 1, cache.getMissCount());
+    }
+    
+    @Test
+    public void testCompile() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        FormulaCache cache = new FormulaCache(10);
+        
+        CompiledFormula compiled = cache.compile("x^2+y", nf, "x", "y");
+        assertSame(compiled, cache.compile("x^2+y", nf, "x", "y"));
+        assertNotSame(compiled, cache.compile("x^2+y", nf, "y", "x"));
+        
+        assertEquals(7.0, compiled.apply(new double[] { 2.0, 3.0 }), 0.0);
+        assertEquals(11.0, cache.compile("x^2+y", nf, "y", "x").apply(new double[] { 2.0, 3.0 }), 0.0);
+    }
+}
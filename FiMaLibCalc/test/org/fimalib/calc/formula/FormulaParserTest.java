@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the formula lexer and parser
+ * 
+ * @author Peter Werno
+ */
+public class FormulaParserTest {
+    
+    public FormulaParserTest() {
+    }
+    
+    // formulas and their string representation after parsing
+    String[] formulas = {
+        "-x*3+2",
+        "2*-3",
+        "2^-1*4",
+        "!(x==2)",
+        "2 ^ 3 ^ 2",
+        "[x+1]*{x-1}",
+        "if(x==2 , 1 , 0)",
+        "x--x",
+        "\tsin(x)\n+cos(x)",
+        "2^(3^2)",
+        "x^(x^(-1))",
+    };
+    
+    String[] parsed = {
+        "(-(x*3))+2",
+        "2*(-3)",
+        "2^(-1)*4",
+        "!(x==2)",
+        "2^3^2",
+        "(x+1)*(x-1)",
+        "if(x==2,1,0)",
+        "x-(-x)",
+        "sin(x)+cos(x)",
+        "2^(3^2)",
+        "x^(x^(-1))",
+    };
+    
+    String[] results = {
+        "-4",
+        "-6",
+        "2",
+        "false",
+        "64",
+        "3",
+        "1",
+        "4",
+        "0.493",
+        "512",
+        "1.414",
+    };
+    
+    @Test
+    public void testParser() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        nf.setGroupingUsed(false);
+        HashMap<String, Number> parameters = new HashMap<>();
+        parameters.put("x", new Double(2.0, nf));
+        
+        for(int i=0; i<formulas.length; i++) {
+            Node node = Formula.parse(formulas[i], nf);
+            
+            assertEquals("Parsed formula does not match", parsed[i], node.toString());
+            assertEquals("Result of formula does not match", results[i], node.calculate(parameters).toString());
+            
+            // the string representation is parsed to the same formula again
+            Node reparsed = Formula.parse(node.toString(), nf);
+            assertEquals("Reparsed formula does not match", parsed[i], reparsed.toString());
+            assertEquals("Result of reparsed formula does not match", results[i], reparsed.calculate(parameters).toString());
+        }
+    }
+    
+    String[] errors = {
+        "",
+        "3+",
+        "(x]",
+        "(x",
+        "x)",
+        "a=b",
+        "x&y",
+        "sin(1,2)",
+        "unknown(1)",
+        "3 4",
+        "()",
+        "sum(x,1,10)",
+    };
+    
+    @Test
+    public void testSyntaxErrors() {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        for(String formula : errors) {
+            try {
+                Formula.parse(formula, nf);
+                fail("Formula >" + formula + "< should not be parsed");
+            }
+            catch (FormulaException ex) {
+                System.out.println(formula + ": " + ex.getMessage());
+            }
+        }
+    }
+    
+    @Test
+    public void testDecimalComma() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.GERMANY);
+        HashMap<String, Number> parameters = new HashMap<>();
+        
+        assertEquals(1.5, Formula.parse("1,5", nf).calculate(parameters).getValue(), 1e-12);
+        assertEquals(3.0, Formula.parse("2*(1,5)", nf).calculate(parameters).getValue(), 1e-12);
+        assertEquals(2.0, Formula.parse("if(true,2,5)", nf).calculate(parameters).getValue(), 1e-12);
+        assertEquals(13.5, Formula.parse("sum(i,1,2,i*(4,5))", nf).calculate(parameters).getValue(), 1e-12);
+    }
+    
+    @Test
+    public void testLongFormula() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        nf.setGroupingUsed(false);
+        StringBuilder formula = new StringBuilder("0");
+        for(int i=1; i<=20000; i++) {
+            formula.append("+x*").append(i);
+        }
+        
+        Node node = Formula.parse(formula.toString(), nf);
+        assertEquals("Add", node.getName());
+        assertEquals("x*20000", node.getNode(1).toString());
+    }
+    
+    @Test
+    public void testDeepNesting() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        StringBuilder formula = new StringBuilder();
+        for(int i=0; i<100000; i++) formula.append('(');
+        formula.append("x");
+        for(int i=0; i<100000; i++) formula.append(')');
+        
+        Node node = Formula.parse(formula.toString(), nf);
+        assertEquals("x", node.toString());
+    }
+}
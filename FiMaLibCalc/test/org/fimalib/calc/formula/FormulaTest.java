@@ -363,4 +363,19 @@ public class FormulaTest {
             }
         }
     }
+    
+    @Test
+    public void testNotIntegrable() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        for(String source : new String[] { "max(x,0)", "min(x,1,y)", "cnd(x)" }) {
+            try {
+                Formula.parse(source, nf).integrate("x");
+                fail("Integration of " + source + " should throw an exception");
+            }
+            catch (FormulaException ex) {
+                System.out.println(ex.getMessage());
+            }
+        }
+    }
 }
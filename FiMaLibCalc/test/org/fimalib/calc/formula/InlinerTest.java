@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the inlining of user defined functions
+ * 
+ * @author Peter Werno
+ */
+public class InlinerTest {
+    
+    public InlinerTest() {
+    }
+    
+    static boolean defined = false;
+    
+    static synchronized void define() throws Exception {
+        if(defined) return;
+        
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("inldf(r,t)=exp(neg(r)*t)", nf));
+        Formula.addUserDefinedFunction(new UserDefinedFunction("inlsq(a)=a*a", nf));
+        Formula.addUserDefinedFunction(new UserDefinedFunction("inlpv(r,n)=sum(k,1,n,inldf(r,k))", nf));
+        Formula.addUserDefinedFunction(new UserDefinedFunction("inlsum(a)=sum(k,1,3,a*k)+sum(a,1,2,a)", nf));
+        Formula.addUserDefinedFunction(new UserDefinedFunction("inlfree(a)=a+y", nf));
+        defined = true;
+    }
+    
+    // formulas of x and y, with the number of inlined calls
+    String[] formulas = {
+        "100*inldf(x,1)+100*inldf(x,2)",
+        "inlsq(inlsq(x+1))",
+        "inlpv(x/10,y)",
+        "inlsum(k+x)+sum(k,1,y,inlsum(k))",
+        "inlfree(x)",
+        "inlsq(rand(1)*0+x)",
+    };
+    
+    int[] counts = { 2, 2, 2, 2, 0, 0 };
+    
+    @Test
+    public void testInline() throws Exception {
+        define();
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        for(int i=0; i<formulas.length; i++) {
+            Node node = Formula.parse(formulas[i], nf);
+            Inliner inliner = new Inliner();
+            Node inlined = inliner.inline(node);
+            System.out.println(formulas[i] + " -> " + inlined);
+            assertEquals("Number of inlined calls of " + formulas[i] + " incorrect", counts[i], inliner.getInlineCount());
+            
+            // the inlined formula can be parsed again
+            Node parsed = Formula.parse(inlined.toString(), nf);
+            
+            SlotMap slots = new SlotMap("x", "y");
+            if(formulas[i].startsWith("inlfree")) {
+                // functions with free variables are not inlined and cannot be bound
+                try {
+                    node.bind(slots);
+                    fail("Free variable of " + formulas[i] + " was accepted");
+                }
+                catch (FormulaException ex) {
+                    continue;
+                }
+            }
+            node.bind(slots);
+            inlined.bind(slots);
+            parsed.bind(slots);
+            double[] values = slots.createSlots();
+            for(double x=-1.0; x<=1.0; x+=0.5) {
+                for(double y=0.0; y<=4.0; y+=1.0) {
+                    values[0] = x;
+                    values[1] = y;
+                    double expected = node.evaluate(values);
+                    assertEquals("Result of " + inlined + " incorrect", expected, inlined.evaluate(values), 1e-12 * Math.max(1.0, Math.abs(expected)));
+                    assertEquals("Result of " + parsed + " incorrect", expected, parsed.evaluate(values), 1e-12 * Math.max(1.0, Math.abs(expected)));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testThreshold() throws Exception {
+        define();
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Node node = Formula.parse("inldf(x,1)+inlsq(x)", nf);
+        
+        // exp(neg(x)*1) has 5 nodes, x*x has 3 nodes
+        Inliner inliner = new Inliner(4);
+        assertEquals("inldf(x,1)+x*x", inliner.inline(node).toString());
+        assertEquals(1, inliner.getInlineCount());
+        
+        // the original formula is not changed
+        assertEquals("inldf(x,1)+inlsq(x)", node.toString());
+    }
+    
+    @Test
+    public void testSimplify() throws Exception {
+        define();
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        // constant folding across the former function boundary
+        Node node = new Simplifier().simplify(new Inliner().inline(Formula.parse("inlsq(3)*x+inldf(0,x)", nf)));
+        assertEquals("9*x+1", node.toString());
+    }
+}
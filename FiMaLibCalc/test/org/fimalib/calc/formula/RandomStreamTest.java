@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import org.fimalib.calc.formula.eval.BatchEvaluator;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the random streams of formulas
+ * 
+ * @author Peter Werno
+ */
+public class RandomStreamTest {
+    
+    public RandomStreamTest() {
+    }
+    
+    @Test
+    public void testSeed() {
+        RandomStream stream1 = new RandomStream(42L);
+        RandomStream stream2 = new RandomStream(42L);
+        
+        for(int i=0; i<100; i++) {
+            double value = stream1.nextDouble();
+            assertEquals(value, stream2.nextDouble(), 0.0);
+            assertTrue((value >= 0.0) && (value < 1.0));
+        }
+        
+        // splitting is reproducible as well
+        RandomStream[] split1 = stream1.split(4);
+        RandomStream[] split2 = stream2.split(4);
+        for(int s=0; s<4; s++) {
+            for(int i=0; i<10; i++) {
+                assertEquals(split1[s].nextGaussian(), split2[s].nextGaussian(), 0.0);
+            }
+        }
+        assertNotEquals(split1[0].nextDouble(), split1[1].nextDouble(), 0.0);
+    }
+    
+    @Test
+    public void testBulk() {
+        RandomStream stream1 = new RandomStream(7L);
+        RandomStream stream2 = new RandomStream(7L);
+        double[] values = new double[101];
+        
+        // bulk normals are the same as single ones, including the spare of odd lengths
+        stream1.nextGaussians(values, 0, 101);
+        for(int i=0; i<101; i++) {
+            assertEquals(stream2.nextGaussian(), values[i], 0.0);
+        }
+        stream1.nextGaussians(values, 0, 3);
+        for(int i=0; i<3; i++) {
+            assertEquals(stream2.nextGaussian(), values[i], 0.0);
+        }
+        
+        stream1.nextDoubles(values, 10, 20);
+        for(int i=10; i<20; i++) {
+            assertEquals(stream2.nextDouble(), values[i], 0.0);
+        }
+        
+        // moments of the normals
+        int n = 200000;
+        double[] normals = new double[n];
+        new RandomStream(1L).nextGaussians(normals, 0, n);
+        double sum = 0.0, sumSq = 0.0;
+        for(double value : normals) {
+            sum += value;
+            sumSq += value * value;
+        }
+        assertEquals(0.0, sum / n, 0.01);
+        assertEquals(1.0, sumSq / n, 0.01);
+    }
+    
+    @Test
+    public void testRand() throws Exception {
+        Node node = Formula.parse("rand(x)+1", NumberFormat.getInstance(Locale.US));
+        SlotMap slots = new SlotMap("x");
+        node.bind(slots);
+        
+        int n = 3000;
+        double[] x = new double[n];
+        double[] expected = new double[n];
+        EvaluationContext context = new EvaluationContext(slots);
+        context.setRandom(new RandomStream(99L));
+        for(int i=0; i<n; i++) {
+            x[i] = i;
+            context.set(0, x[i]);
+            expected[i] = node.evaluate(context);
+        }
+        
+        // the batch evaluator draws the same numbers, chunk by chunk
+        BatchEvaluator evaluator = new BatchEvaluator(node, slots);
+        evaluator.setRandom(new RandomStream(99L));
+        double[] out = new double[n];
+        evaluator.evaluate(new double[][] { x }, out);
+        assertArrayEquals(expected, out, 0.0);
+    }
+}
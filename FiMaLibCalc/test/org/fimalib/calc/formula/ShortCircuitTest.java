@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.compiler.CompiledFormula;
+import org.fimalib.calc.formula.compiler.FormulaCompiler;
+import org.fimalib.calc.formula.eval.BatchEvaluator;
+import org.fimalib.calc.formula.eval.DagEvaluator;
+import org.fimalib.calc.formula.eval.ForwardEvaluator;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the short-circuit evaluation of && and || with all
+ * evaluators
+ * 
+ * @author Peter Werno
+ */
+public class ShortCircuitTest {
+    
+    public ShortCircuitTest() {
+    }
+    
+    // the right operands fail if they are evaluated when the left operand decides the result
+    String[] formulas = {
+        "(x!=0)&&(1/x>2)",
+        "(x==0)||(1/x>2)",
+        "((x>0)&&(ln(x)<1))||(y>0)",
+        "if((y!=0)&&(x/y>1),1,2)+x",
+        "sum(k,0,3,(x>k)&&(sqrt(x-k)<1))",
+        "(x!=1)&&(y>=0)",
+    };
+    
+    @Test
+    public void testShortCircuit() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        double[] xs = { -2.0, 0.0, 0.25, 1.0, 3.0 };
+        double[] ys = { -1.0, 0.0, 2.0, 0.0, 1.0 };
+        
+        for(String formula : formulas) {
+            Node node = Formula.parse(formula, nf);
+            SlotMap slots = new SlotMap("x", "y");
+            node.bind(slots);
+            
+            DagEvaluator dag = new DagEvaluator(node, "x", "y");
+            ForwardEvaluator forward = new ForwardEvaluator(node, slots, "x");
+            CompiledFormula compiled = FormulaCompiler.compile(node, slots);
+            BatchEvaluator batch = new BatchEvaluator(node, slots);
+            
+            double[] xColumn = new double[xs.length * ys.length];
+            double[] yColumn = new double[xs.length * ys.length];
+            double[] expected = new double[xs.length * ys.length];
+            
+            for(int i=0; i<xs.length; i++) {
+                for(int j=0; j<ys.length; j++) {
+                    int k = i * ys.length + j;
+                    double[] values = slots.createSlots();
+                    values[0] = xColumn[k] = xs[i];
+                    values[1] = yColumn[k] = ys[j];
+                    
+                    expected[k] = node.evaluate(values);
+                    
+                    HashMap<String, Number> parameters = new HashMap<>();
+                    parameters.put("x", new Double(xs[i]));
+                    parameters.put("y", new Double(ys[j]));
+                    assertEquals("Calculation of " + formula + " incorrect", expected[k], node.calculate(parameters).getValue(), 0.0);
+                    
+                    assertEquals("DAG evaluation of " + formula + " incorrect", expected[k], dag.evaluate(values), 0.0);
+                    assertEquals("Forward evaluation of " + formula + " incorrect", expected[k], forward.evaluate(values, new double[1]), 0.0);
+                    assertEquals("Compiled evaluation of " + formula + " incorrect", expected[k], compiled.apply(values), 0.0);
+                }
+            }
+            
+            double[] out = new double[expected.length];
+            batch.evaluate(new double[][] { xColumn, yColumn }, out);
+            assertArrayEquals("Batch evaluation of " + formula + " incorrect", expected, out, 0.0);
+        }
+    }
+    
+    @Test
+    public void testCostModel() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        assertTrue(CostModel.cost(Formula.parse("exp(x)", nf)) > CostModel.cost(Formula.parse("x*y+1", nf)));
+        assertTrue(CostModel.cost(Formula.parse("sum(k,1,100,k*x)", nf)) > CostModel.cost(Formula.parse("sum(k,1,10,k*x)", nf)));
+        assertFalse(CostModel.mayFail(Formula.parse("(x>1)&&(exp(y)<2)", nf)));
+        assertTrue(CostModel.mayFail(Formula.parse("(x>1)&&(1/y<2)", nf)));
+        assertTrue(CostModel.mayFail(Formula.parse("rand(x)>1", nf)));
+        
+        // logical operators fail for operands that are not boolean values
+        assertTrue(CostModel.mayFail(Formula.parse("!x", nf)));
+        assertTrue(CostModel.mayFail(Formula.parse("(x>1)&&!y", nf)));
+        assertFalse(CostModel.mayFail(Formula.parse("!(x>1)||(y<2)", nf)));
+    }
+}
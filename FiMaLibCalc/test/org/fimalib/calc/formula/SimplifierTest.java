@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the algebraic simplification of formula trees
+ * 
+ * @author Peter Werno
+ */
+public class SimplifierTest {
+    
+    public SimplifierTest() {
+    }
+    
+    String[] sources = {
+        "if(1>2,x,y)",
+        "if(3>2,x)",
+        "if(1>2,x)",
+        "(x+2)-3",
+        "(x-2)+2",
+        "2*(3*x)",
+        "x*2*y*3",
+        "x/4",
+        "x/3",
+        "(6*x)/3",
+        "neg(neg(x))",
+        "0-x",
+        "x+neg(y)",
+        "neg(y)+x",
+        "x-neg(y)",
+        "x*0+y",
+        "x^0+1^y+x^1",
+        "x^2",
+        "exp(x)*exp(y)",
+        "2*exp(x)*exp(y)",
+        "exp(x)/exp(y)",
+        "(x>1)&&(1>2)",
+        "(x>1)||(2>1)",
+        "sum(k,1,3,k*1)+0",
+        "1/0*x",
+        "(exp(x)>1)&&(y>0)",
+        "(sin(x)>0)||(y<1)||(x==y)",
+        "(x!=0)&&(1/x>2)",
+        "(y>0)&&(x>1)",
+        "1/x^2",
+        "x-(y-x^2)",
+    };
+    
+    String[] results = {
+        "y",
+        "x",
+        "0",
+        "x-1",
+        "x",
+        "6*x",
+        "6*x*y",
+        "0.25*x",
+        "x/3",
+        "2*x",
+        "x",
+        "(-x)",
+        "x-y",
+        "x-y",
+        "x+y",
+        "y",
+        "x+2",
+        "x*x",
+        "exp(x+y)",
+        "2*exp(x+y)",
+        "exp(x-y)",
+        "false",
+        "true",
+        "sum(k,1,3,k)",
+        "1/0*x",
+        "(y>0)&&(exp(x)>1)",
+        "(x==y)||((y<1)||(sin(x)>0))",
+        "(x!=0)&&(1/x>2)",
+        "(y>0)&&(x>1)",
+        "1/(x*x)",
+        "x-(y-x*x)",
+    };
+    
+    @Test
+    public void testSimplify() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        nf.setGroupingUsed(false);
+        Simplifier simplifier = new Simplifier();
+        
+        for(int i=0; i<sources.length; i++) {
+            Node node = Formula.parse(sources[i], nf);
+            String source = node.toString();
+            Node simplified = simplifier.simplify(node);
+            System.out.println(sources[i] + " -> " + simplified + " (" + simplifier.getRewriteCount() + " rewrites)");
+            
+            assertEquals("Simplification of " + sources[i] + " incorrect", results[i], simplified.toString());
+            assertEquals("Formula " + sources[i] + " must not be changed", source, node.toString());
+            
+            // the printed formula is parsed to the same formula again
+            Node parsed = Formula.parse(simplified.toString(), nf);
+            SlotMap slots = new SlotMap("x", "y");
+            simplified.bind(slots);
+            parsed.bind(slots);
+            double[] values = slots.createSlots();
+            values[0] = 1.5;
+            values[1] = 0.7;
+            double expected;
+            try {
+                expected = simplified.evaluate(values);
+            }
+            catch (FiMaLibCalcException ex) {
+                continue;
+            }
+            assertEquals("Printed formula " + simplified + " is parsed differently", expected, parsed.evaluate(values), 1e-12);
+        }
+    }
+    
+    String[] deriveSources = {
+        "x^3+x^2",
+        "sin(x^2)",
+        "cos(x^3)",
+        "tan(2*x)",
+        "sec(x^2)",
+        "exp(2*x)*x^2",
+        "(5+y)*exp(neg(x)*3)*exp(neg(y)*3)",
+    };
+    
+    String[] deriveResults = {
+        "3*x*x+2*x",
+        "2*x*cos(x*x)",
+        "(-3)*x*x*sin(x^3)",
+        "2*sec(2*x)^2",
+        "2*x*sec(x*x)*tan(x*x)",
+        "2*exp(2*x)*x*x+2*exp(2*x)*x",
+        "(-3)*(y+5)*exp((-3)*x+(-3)*y)",
+    };
+    
+    @Test
+    public void testDerivative() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        nf.setGroupingUsed(false);
+        Simplifier simplifier = new Simplifier();
+        
+        for(int i=0; i<deriveSources.length; i++) {
+            Node derivative = Formula.parse(deriveSources[i], nf).derive("x");
+            Node simplified = simplifier.simplify(derivative);
+            System.out.println(derivative + " -> " + simplified);
+            assertEquals("Simplification of " + derivative + " incorrect", deriveResults[i], simplified.toString());
+            
+            SlotMap slots = new SlotMap("x", "y");
+            derivative.bind(slots);
+            simplified.bind(slots);
+            for(double x=-2.0; x<=2.0; x+=0.25) {
+                double[] values = { x, 0.5 };
+                double expected = derivative.evaluate(values);
+                assertEquals("Value of " + simplified + " incorrect for x=" + x, expected, simplified.evaluate(values), 1e-12 * Math.max(1.0, Math.abs(expected)));
+            }
+        }
+    }
+    
+    @Test
+    public void testBudget() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Node node = Formula.parse("x*1*1*1*1", nf);
+        
+        Simplifier simplifier = new Simplifier(2);
+        assertEquals("x*1*1", simplifier.simplify(node).toString());
+        assertEquals(2, simplifier.getRewriteCount());
+        assertTrue(simplifier.isExhausted());
+        
+        simplifier = new Simplifier();
+        assertEquals("x", simplifier.simplify(node).toString());
+        assertEquals(4, simplifier.getRewriteCount());
+        assertFalse(simplifier.isExhausted());
+    }
+}
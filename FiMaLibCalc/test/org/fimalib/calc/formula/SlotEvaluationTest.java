@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula;
+
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the evaluation of formula trees with slot-bound
+ * variables and primitive values
+ * 
+ * @author Peter Werno
+ */
+public class SlotEvaluationTest {
+    
+    public SlotEvaluationTest() {
+    }
+    
+    @Test
+    public void testEvaluate() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        nf.setGroupingUsed(false);
+        HashMap<String, Number> parameters = new HashMap<>();
+        parameters.put("x", new Double(2.0, nf));
+        
+        // the primitive evaluation has to match the calculation for all real formulas
+        for(String formula : new FormulaTest().formulas) {
+            if(formula.contains("rand")) continue;
+            
+            Node node = Formula.parse(formula, nf);
+            SlotMap slots = new SlotMap("x");
+            node.bind(slots);
+            double[] values = slots.createSlots(parameters);
+            
+            double expected = node.calculate(parameters).getValue();
+            double result = node.evaluate(values);
+            
+            assertEquals("Result of formula " + formula + " does not match", expected, result, Math.abs(expected) * 1e-12);
+            assertEquals("Variable x was changed by " + formula, 2.0, values[0], 0.0);
+        }
+    }
+    
+    @Test
+    public void testSlots() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Node node = Formula.parse("3*y^2+x-sum(i,1,y,i*x)", nf);
+        SlotMap slots = new SlotMap("x");
+        node.bind(slots);
+        
+        assertEquals(3, slots.size());
+        assertEquals(0, slots.indexOf("x"));
+        assertEquals(1, slots.indexOf("y"));
+        assertEquals(2, slots.indexOf("i"));
+        assertEquals(-1, slots.indexOf("z"));
+        
+        double[] values = slots.createSlots();
+        values[0] = 2.0;
+        values[1] = 3.0;
+        assertEquals(27.0+2.0-12.0, node.evaluate(values), 1e-12);
+        
+        // copies keep the binding
+        assertEquals(17.0, node.copy().evaluate(values), 1e-12);
+        
+        try {
+            Formula.parse("x+1", nf).evaluate(values);
+            fail("Unbound variables should not be evaluated");
+        }
+        catch (FormulaException ex) {
+            System.out.println(ex.getMessage());
+        }
+        
+        try {
+            Node div = Formula.parse("1/(x-2)", nf);
+            div.bind(slots);
+            div.evaluate(values);
+            fail("Division by zero should throw an exception");
+        }
+        catch (FiMaLibDivisionByZeroException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+    
+    @Test
+    public void testUserDefinedFunction() throws FiMaLibCalcException {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("slotf(x,y)=x^2+y", nf));
+        
+        Node node = Formula.parse("slotf(2*x,x)+x", nf);
+        SlotMap slots = new SlotMap("x");
+        node.bind(slots);
+        
+        assertEquals(1, slots.size());
+        assertEquals(16.0+2.0+2.0, node.evaluate(new double[] { 2.0 }), 1e-12);
+    }
+    
+    @Test
+    public void testUndefinedVariable() throws FiMaLibCalcException {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("slotdf(t)=exp(neg(r)*t)", nf));
+        Formula.addUserDefinedFunction(new UserDefinedFunction("slotsum(n)=sum(i,1,n,i*prod(j,1,i,j))", nf));
+        
+        // the running variables of sums and products are allowed
+        Node node = Formula.parse("slotsum(x)", nf);
+        node.bind(new SlotMap("x"));
+        assertEquals(1.0+2.0*2.0+3.0*6.0, node.evaluate(new double[] { 3.0 }), 1e-12);
+        
+        // the free variable r would read 0
+        node = Formula.parse("slotdf(x)", nf);
+        try {
+            node.bind(new SlotMap("x", "r"));
+            fail("Free variable r of the function definition was accepted");
+        }
+        catch (FormulaException ex) {
+            assertTrue(ex.getMessage().contains("undefined variable r"));
+        }
+    }
+    
+    @Test
+    public void testRunningVariable() throws FiMaLibCalcException {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Node node = Formula.parse("sum(i,1,3,i*x)+prod(x,1,3,x)+i", nf);
+        
+        // the running variables are never written to the caller's parameters
+        HashMap<String, Number> parameters = new HashMap<>();
+        parameters.put("x", new Double(2.0));
+        parameters.put("i", new Double(10.0));
+        assertEquals(12.0+6.0+10.0, node.calculate(parameters).getValue(), 1e-12);
+        assertEquals(2, parameters.size());
+        assertEquals(2.0, parameters.get("x").getValue(), 0.0);
+        assertEquals(10.0, parameters.get("i").getValue(), 0.0);
+        
+        parameters.remove("i");
+        node = Formula.parse("sum(i,1,3,1/(i-2))", nf);
+        try {
+            node.calculate(parameters);
+            fail("Division by zero was not detected");
+        }
+        catch (FiMaLibDivisionByZeroException ex) {
+            assertFalse(parameters.containsKey("i"));
+        }
+        
+        // nested evaluations with primitive values on the same thread
+        node = Formula.parse("x+1", nf);
+        node.bind(new SlotMap("x"));
+        assertEquals(3.0, node.evaluate(new double[] { 2.0 }), 0.0);
+        assertEquals(4.0, node.evaluate(new double[] { 3.0 }), 0.0);
+    }
+    
+    @Test
+    public void testSharedParameters() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        final Node[] nodes = {
+            Formula.parse("sum(i,1,50,i*x)+i", nf),
+            Formula.parse("prod(i,1,5,i)+x*i", nf),
+        };
+        final double[] expected = { 1275.0*2.0+10.0, 120.0+2.0*10.0 };
+        
+        // both threads calculate with the same parameters
+        final HashMap<String, Number> parameters = new HashMap<>();
+        parameters.put("x", new Double(2.0));
+        parameters.put("i", new Double(10.0));
+        
+        final Throwable[] errors = new Throwable[nodes.length];
+        Thread[] threads = new Thread[nodes.length];
+        for(int t=0; t<threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for(int n=0; n<2000; n++) {
+                        assertEquals(expected[index], nodes[index].calculate(parameters).getValue(), 1e-9);
+                    }
+                }
+                catch (Throwable ex) {
+                    errors[index] = ex;
+                }
+            });
+            threads[t].start();
+        }
+        
+        for(int t=0; t<threads.length; t++) {
+            threads[t].join();
+            if(errors[t] != null) throw new AssertionError("Thread " + t + " failed", errors[t]);
+        }
+        
+        assertEquals(2, parameters.size());
+        assertEquals(2.0, parameters.get("x").getValue(), 0.0);
+        assertEquals(10.0, parameters.get("i").getValue(), 0.0);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.compiler;
+
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.FiMaLibUndefinedException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.eval.Memoized;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the formula compiler
+ * 
+ * @author Peter Werno
+ */
+public class FormulaCompilerTest {
+    
+    public FormulaCompilerTest() {
+    }
+    
+    // formulas covering all nodes, compared to the interpreter for several x
+    String[] formulas = {
+        "(15-2+4^2*3+8+x^2+sin(1)^tan(x))/(-5)",
+        "if(x<5,if(x>2,1,2),3)",
+        "if(x>=3,x)",
+        "prod(i,1,10,i)*x",
+        "sum(i,1,x+5,sin(i*x))",
+        "sum(x,1,3,sum(x,1,x,x))+x",
+        "abs(x)+exp(x/4)+cos(x)+cosh(x/3)+sinh(x/3)+tanh(x)+neg(x)",
+        "arccos(x/10)+arcsin(x/10)+arctan(x)",
+        "arccosh(x+1.5)+arccot(x)+arccoth(x+1.5)+arccsc(x+1.5)+arccsch(x)",
+        "arcsec(x+1.5)+arcsech(0.7)+arcsinh(x)+arctanh(x/10)",
+        "cot(x)+coth(x)+csc(x)+csch(x)+sec(x)+sech(x)",
+        "ln(x+4)+log(x+4)+sqrt(x+4)+sgn(x)+int(x*1.5)",
+        "(x==2)+(x!=2)+(x<2)+(x<=2)+(x>2)+(x>=2)",
+        "((x>1)&&(x<3))+((x<0)||(x<3))*2+((x==2)##(x==5))*4+!(x>0)*8",
+        "28/3/x",
+        "2^3^2-x",
+        "cnd(x)+max(x,0,x/2)+min(x,2)+min(x)",
+    };
+    
+    double[] values = { -1.5, 0.5, 2.0, 3.0, 4.25 };
+    
+    @Test
+    public void testCompile() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        for(String formula : formulas) {
+            Node node = Formula.parse(formula, nf);
+            CompiledFormula compiled = FormulaCompiler.compile(node, "x");
+            
+            assertTrue(formula + " should be compiled", compiled.isCompiled());
+            assertEquals(formula + " should not be interpreted", 0, compiled.getInterpretedNodeCount());
+            
+            for(double value : values) {
+                double[] vars = compiled.getSlots().createSlots();
+                vars[0] = value;
+                
+                double expected;
+                try {
+                    expected = node.evaluate(vars);
+                }
+                catch (FiMaLibUndefinedException ex) {
+                    continue;
+                }
+                
+                assertEquals("Result of " + formula + " does not match for x=" + value, expected, compiled.apply(vars), 0.0);
+                assertEquals("Variable x was changed by " + formula, value, vars[0], 0.0);
+            }
+        }
+    }
+    
+    @Test
+    public void testParameters() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        HashMap<String, Number> parameters = new HashMap<>();
+        parameters.put("x", new Double(2.0, nf));
+        parameters.put("y", new Double(3.0, nf));
+        
+        CompiledFormula compiled = FormulaCompiler.compile(Formula.parse("3*y^2+x", nf), new SlotMap("x", "y"));
+        assertEquals(29.0, compiled.apply(parameters), 0.0);
+        assertEquals(29.0, compiled.apply(new double[] { 2.0, 3.0 }), 0.0);
+        assertEquals("3*y^2+x", compiled.toString());
+    }
+    
+    @Test
+    public void testExceptions() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        CompiledFormula compiled = FormulaCompiler.compile(Formula.parse("1/(x-2)", nf), "x");
+        
+        try {
+            compiled.apply(new double[] { 2.0 });
+            fail("Division by zero should throw an exception");
+        }
+        catch (FiMaLibDivisionByZeroException ex) {
+            System.out.println(ex.getMessage());
+        }
+        
+        compiled = FormulaCompiler.compile(Formula.parse("sqrt(x)", nf), "x");
+        try {
+            compiled.apply(new double[] { -2.0 });
+            fail("Square root of negative value should throw an exception");
+        }
+        catch (FiMaLibUndefinedException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+    
+    @Test
+    public void testUserDefinedFunction() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("compf(x,y)=x^2+sum(i,1,y,i)", nf));
+        
+        CompiledFormula compiled = FormulaCompiler.compile(Formula.parse("compf(2*x,x)+x", nf), "x");
+        assertTrue(compiled.isCompiled());
+        assertEquals(16.0+3.0+2.0, compiled.apply(new double[] { 2.0 }), 0.0);
+    }
+    
+    @Test
+    public void testInterpretedNodes() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        // complex constants cannot be compiled and are left to the interpreter
+        CompiledFormula compiled = FormulaCompiler.compile(Formula.parse("x+(2+3i)", nf), "x");
+        assertTrue(compiled.isCompiled());
+        assertEquals(1, compiled.getInterpretedNodeCount());
+    }
+    
+    @Test
+    public void testLargeFormula() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        nf.setGroupingUsed(false);
+        StringBuilder formula = new StringBuilder("0");
+        for(int i=1; i<=3000; i++) {
+            formula.append("+sin(x*").append(i).append(")");
+        }
+        
+        Node node = Formula.parse(formula.toString(), nf);
+        CompiledFormula compiled = FormulaCompiler.compile(node, "x");
+        assertTrue(compiled.isCompiled());
+        
+        double[] vars = { 0.3 };
+        assertEquals(node.evaluate(vars), compiled.apply(vars), 0.0);
+    }
+    
+    @Test
+    public void testReadOnlyVariables() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        nf.setGroupingUsed(false);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("compg(a)=sum(k,1,a,2*k)", nf));
+        Formula.addUserDefinedFunction(new UserDefinedFunction("comph(a,b)=compg(a)*b+prod(k,1,2,a+k)", nf));
+        
+        // the running variables and the frames are never written to the variable values
+        double[] vars = { 2.0, 10.0 };
+        CompiledFormula compiled = FormulaCompiler.compile(Formula.parse("sum(i,1,3,i*x)+comph(x,i)+i", nf), "x", "i");
+        assertTrue(compiled.isCompiled());
+        assertEquals(12.0 + 6.0*10.0 + 12.0 + 10.0, compiled.apply(vars), 0.0);
+        assertArrayEquals(new double[] { 2.0, 10.0 }, vars, 0.0);
+        
+        compiled = FormulaCompiler.compile(Formula.parse("sum(i,1,3,1/(i-2))+i", nf), "x", "i");
+        try {
+            compiled.apply(vars);
+            fail("Division by zero should throw an exception");
+        }
+        catch (FiMaLibDivisionByZeroException ex) {
+            assertArrayEquals(new double[] { 2.0, 10.0 }, vars, 0.0);
+        }
+        
+        // interpreted nodes, loop bodies and function definitions moved to methods of their own
+        StringBuilder terms = new StringBuilder("0");
+        for(int j=1; j<=200; j++) {
+            terms.append("+sin(a*").append(j).append(")");
+        }
+        Formula.addUserDefinedFunction(new UserDefinedFunction("compbig(a)=" + terms, nf));
+        String[] large = {
+            "sum(i,1,2,cos(x*i))+i",
+            "sum(i,1,2," + terms.toString().replace("a", "(x*i)") + ")+i",
+            "compbig(x)+compbig(i)",
+        };
+        for(String formula : large) {
+            Node node = Formula.parse(formula, nf);
+            boolean memoized = formula.startsWith("sum(i,1,2,cos");
+            if(memoized) node = Memoized.memoize(node, true);
+            compiled = FormulaCompiler.compile(node, "x", "i");
+            assertTrue(compiled.isCompiled());
+            assertEquals(memoized, compiled.getInterpretedNodeCount() > 0);
+            assertEquals(node.evaluate(vars), compiled.apply(vars), 1e-12);
+            assertArrayEquals(new double[] { 2.0, 10.0 }, vars, 0.0);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the reverse-mode automatic differentiation
+ * 
+ * @author Peter Werno
+ */
+public class AdjointEvaluatorTest {
+    
+    public AdjointEvaluatorTest() {
+    }
+    
+    // formulas of x and y, evaluated at x=0.4, y=1.7
+    String[] formulas = {
+        "abs(x-1)+arccos(x)+arccosh(y)+arccot(x)+arccoth(y)+arccsc(y)+arccsch(x)",
+        "arcsec(y)+arcsech(x)+arcsin(x)+arcsinh(x)+arctan(y)+arctanh(x)",
+        "cos(x*y)+cosh(x)+cot(y)+coth(x)+csc(y)+csch(x)+exp(x*y)",
+        "ln(x+y)+log(x*y)+sec(x)+sech(y)+sin(x/y)+sinh(x)+sqrt(x+y)+tan(x)+tanh(y)",
+        "x^y+y^3+2^x+neg(x)*y-y/x",
+        "if(x<y,x*y^2,x)+if(x>y,y)+int(x*10+0.5)*x+sgn(x)*y",
+        "sum(i,1,5,x^i/i)+prod(i,1,3,x+i*y)",
+        "sum(i,1,3,sum(j,1,i,x*i+y*j))",
+        "((x<1)&&(y>1))*x+!(x>1)*y",
+        "adjf(x,y)*adjf(y,x)+adjf(adjf(x,1),y)",
+        "cnd(x*y)+max(x,y,0.5)*y+min(x*y,y-x)-max(x)",
+        "3+4*2",
+    };
+    
+    @Test
+    public void testGradient() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("adjf(a,b)=a*exp(b)+sum(k,1,2,a^k*b)", nf));
+        
+        for(String formula : formulas) {
+            ForwardEvaluator forward = new ForwardEvaluator(Formula.parse(formula, nf), "x", "y");
+            AdjointEvaluator adjoint = new AdjointEvaluator(Formula.parse(formula, nf), "x", "y");
+            double[] slots = adjoint.getDag().getSlots().createSlots();
+            slots[0] = 0.4;
+            slots[1] = 1.7;
+            double[] expected = new double[2];
+            double[] gradient = new double[2];
+            
+            double value = forward.evaluate(slots, expected);
+            
+            // evaluate twice to make sure the tape is reused correctly; only
+            // the variables are given, not the slots of the running variables
+            double[] variables = { 0.4, 1.7 };
+            adjoint.evaluate(variables, gradient);
+            assertEquals("Value of " + formula + " incorrect", value, adjoint.evaluate(variables, gradient), 1e-12);
+            for(int v=0; v<2; v++) {
+                assertEquals("Gradient of " + formula + " incorrect", expected[v], gradient[v], 1e-10 * Math.max(1.0, Math.abs(expected[v])));
+            }
+            
+            // all slots may be given as well
+            assertEquals("Value of " + formula + " incorrect", value, adjoint.evaluate(slots, gradient), 1e-12);
+            for(int v=0; v<2; v++) {
+                assertEquals("Gradient of " + formula + " incorrect", expected[v], gradient[v], 1e-10 * Math.max(1.0, Math.abs(expected[v])));
+            }
+        }
+    }
+    
+    @Test
+    public void testManyVariables() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        int n = 200;
+        String[] variables = new String[n];
+        StringBuilder formula = new StringBuilder();
+        for(int i=0; i<n; i++) {
+            variables[i] = "r" + (char)('a' + i / 26) + (char)('a' + i % 26);
+            if(i > 0) formula.append("+");
+            formula.append("exp(neg(").append(variables[i]).append(")*").append(i + 1).append(")");
+        }
+        
+        AdjointEvaluator evaluator = new AdjointEvaluator(Formula.parse(formula.toString(), nf), variables);
+        double[] slots = new double[n];
+        double[] gradient = new double[n];
+        for(int i=0; i<n; i++) {
+            slots[i] = 0.01 + 0.0001 * i;
+        }
+        
+        evaluator.evaluate(slots, gradient);
+        for(int i=0; i<n; i++) {
+            assertEquals(-(i + 1) * Math.exp(-slots[i] * (i + 1)), gradient[i], 1e-12);
+        }
+        
+        // the tape holds the variables plus three entries per term (neg, mul, exp) and n-1 additions
+        assertEquals(n + 3 * n + n - 1, evaluator.getTapeSize());
+    }
+    
+    @Test
+    public void testExceptions() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        try {
+            new AdjointEvaluator(Formula.parse("x+y", nf), "x", "y").evaluate(new double[] { 1.0, 2.0 }, new double[1]);
+            fail("Too small gradient arrays should throw an exception");
+        }
+        catch (FormulaException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the batch evaluation of formulas
+ * 
+ * @author Peter Werno
+ */
+public class BatchEvaluatorTest {
+    
+    public BatchEvaluatorTest() {
+    }
+    
+    String[] formulas = {
+        "(15-2+4^2*3+8+x^2+sin(1)^tan(x))/(-5)",
+        "if(x<5,if(x>2,1,2),3)",
+        "if(x>0,ln(x),y)",
+        "if(x>=3,x)",
+        "prod(i,1,10,i)*x",
+        "sum(i,1,y,sin(i*x))",
+        "sum(i,y,2*y,if(i>3,sqrt(i-3),prod(j,1,i,j)))",
+        "sum(x,1,3,sum(x,1,x,x))+x",
+        "abs(x)+exp(x/4)+cos(x)+cosh(x/3)+sinh(x/3)+tanh(x)+neg(x)",
+        "arccos(x/10)+arcsin(x/10)+arctan(x)+arcsinh(x)+arctanh(x/10)",
+        "cot(x)+coth(x)+csc(x)+csch(x)+sec(x)+sech(x)+arccot(x)+arccsch(x)",
+        "log(y+4)+sqrt(y+4)+sgn(x)+int(x*1.5)",
+        "(x==y)+(x!=y)+(x<y)+(x<=y)+(x>y)+(x>=y)",
+        "((x>1)&&(y<3))+((x<0)||(y<3))*2+((x>0)##(y>2))*4+!(x>0)*8",
+        "x+(2+0i)",
+        "batchf(x,y)*2",
+        "cnd(x)+max(x,y,0)+min(x,2*y)+max(x)",
+    };
+    
+    @Test
+    public void testEvaluate() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("batchf(a,b)=a*b+sum(k,1,3,a^k)", nf));
+        
+        int n = 2*BatchEvaluator.CHUNK_SIZE + 77;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for(int i=0; i<n; i++) {
+            x[i] = -3.0 + 7.0 * i / n;
+            y[i] = i % 7;
+        }
+        
+        for(String formula : formulas) {
+            Node node = Formula.parse(formula, nf);
+            BatchEvaluator evaluator = new BatchEvaluator(node, "x", "y");
+            double[] out = new double[n];
+            
+            // evaluate twice to make sure the buffers are reused correctly
+            evaluator.evaluate(new double[][] { x, y }, out);
+            evaluator.evaluate(new double[][] { x, y }, out);
+            
+            double[] vars = evaluator.getSlots().createSlots();
+            for(int i=0; i<n; i++) {
+                vars[0] = x[i];
+                vars[1] = y[i];
+                assertEquals("Result of " + formula + " does not match for scenario " + i, node.evaluate(vars), out[i], 0.0);
+            }
+        }
+    }
+    
+    @Test
+    public void testRange() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        BatchEvaluator evaluator = new BatchEvaluator(Formula.parse("2*x", nf), "x");
+        double[] x = { 1.0, 2.0, 3.0, 4.0 };
+        double[] out = new double[4];
+        
+        evaluator.evaluate(new double[][] { x }, out, 1, 3);
+        assertArrayEquals(new double[] { 0.0, 4.0, 6.0, 0.0 }, out, 0.0);
+    }
+    
+    @Test
+    public void testExceptions() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        try {
+            new BatchEvaluator(Formula.parse("1/x", nf), "x").evaluate(new double[][] { { 1.0, 0.0 } }, new double[2]);
+            fail("Division by zero should throw an exception");
+        }
+        catch (FiMaLibDivisionByZeroException ex) {
+            System.out.println(ex.getMessage());
+        }
+        
+        try {
+            new BatchEvaluator(Formula.parse("x+y", nf), "x").evaluate(new double[][] { { 1.0 } }, new double[1]);
+            fail("Missing variable values should throw an exception");
+        }
+        catch (FormulaException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+}
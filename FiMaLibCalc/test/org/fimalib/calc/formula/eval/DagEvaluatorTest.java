@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import org.fimalib.calc.FiMaLibUndefinedException;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the formula DAG and its evaluation
+ * 
+ * @author Peter Werno
+ */
+public class DagEvaluatorTest {
+    
+    public DagEvaluatorTest() {
+    }
+    
+    String[] formulas = {
+        "(15-2+4^2*3+8+x^2+sin(1)^tan(x))/(-5)",
+        "if(x<5,if(x>2,1,2),3)",
+        "if(x>0,ln(x),y)",
+        "if(x>=3,x)",
+        "prod(i,1,10,i)*x",
+        "sum(i,1,y,sin(i*x)+x^2)+x^2",
+        "sum(i,y,2*y,if(i>3,sqrt(i-3),prod(j,1,i,j)))",
+        "sum(x,1,3,sum(x,1,x,x))+x",
+        "sum(i,1,3,sum(j,1,i,i*j+x*y)+x*y)+sum(j,1,3,i*j)",
+        "abs(x)+exp(x/4)+cos(x)+cosh(x/3)+sinh(x/3)+tanh(x)+neg(x)",
+        "cot(x)+coth(x)+csc(x)+csch(x)+sec(x)+sech(x)+arccot(x)+arccsch(x)",
+        "log(y+4)+sqrt(y+4)+sgn(x)+int(x*1.5)",
+        "(x==y)+(x!=y)+(x<y)+(x<=y)+(x>y)+(x>=y)",
+        "((x>1)&&(y<3))+((x<0)||(y<3))*2+((x>0)##(y>2))*4+!(x>0)*8",
+        "x*y+y*x-x/(y+1)*(x*y)",
+        "dagf(x,y)*2+dagf(x,y)",
+        "cnd(x)+max(x,y,0)+min(x,2*y)+max(x)+max(x,y,0)*2",
+    };
+    
+    @Test
+    public void testEvaluate() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("dagf(a,b)=a*b+sum(k,1,3,a^k)", nf));
+        
+        for(String formula : formulas) {
+            Node node = Formula.parse(formula, nf);
+            DagEvaluator evaluator = new DagEvaluator(Formula.parse(formula, nf), "x", "y");
+            node.bind(evaluator.getDag().getSlots());
+            double[] vars = evaluator.getDag().getSlots().createSlots();
+            
+            for(int i=0; i<50; i++) {
+                vars[0] = -3.0 + i / 7.0;
+                vars[1] = i % 7;
+                assertEquals("Result of " + formula + " does not match for x=" + vars[0], node.evaluate(vars), evaluator.evaluate(vars), 0.0);
+            }
+        }
+    }
+    
+    @Test
+    public void testSharing() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        // the discounted cash flows (with a spread s) and the derivative by the rate
+        StringBuilder formula = new StringBuilder();
+        for(int t=1; t<=200; t++) {
+            if(t > 1) formula.append('+');
+            formula.append("(5+s)*exp(-r*").append(t).append(")*exp(-s*").append(t).append(')');
+        }
+        Node gradient = Formula.parse(formula.toString(), nf).derive("r");
+        
+        FormulaDag dag = new FormulaDag(gradient, "r", "s");
+        System.out.println("Tree size: " + dag.getTreeSize() + ", DAG size: " + dag.getSize());
+        assertTrue(2 * dag.getSize() < dag.getTreeSize());
+        
+        double expected = 0.0;
+        for(int t=1; t<=200; t++) {
+            expected -= 5.01 * t * Math.exp(-0.03 * t) * Math.exp(-0.01 * t);
+        }
+        
+        double[] slots = { 0.03, 0.01 };
+        DagEvaluator evaluator = new DagEvaluator(dag);
+        assertEquals(expected, evaluator.evaluate(slots), 1e-9);
+        assertEquals(gradient.evaluate(slots), evaluator.evaluate(slots), 1e-9);
+        
+        // equal subtrees are shared, also with swapped operands of + and *
+        assertEquals(5, new FormulaDag(Formula.parse("x*y+y*x+x*y", nf), "x", "y").getSize());
+        
+        // but not the rand function (only its parameter)
+        assertEquals(4, new FormulaDag(Formula.parse("rand(1)+rand(1)", nf)).getSize());
+    }
+    
+    @Test
+    public void testScopes() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        // the same subtree within and outside of the sum refers to different variables
+        DagEvaluator evaluator = new DagEvaluator(Formula.parse("x*2+sum(x,1,3,x*2)+x*2", nf), "x");
+        assertEquals(5.0 + 12.0 + 5.0, evaluator.evaluate(new double[] { 2.5 }), 0.0);
+        
+        // the formula of the inner sum depends on both running variables
+        evaluator = new DagEvaluator(Formula.parse("sum(i,1,3,sum(j,1,i,i*j))", nf));
+        assertEquals(25.0, evaluator.evaluate(evaluator.getDag().getSlots().createSlots()), 0.0);
+        
+        // rand within a sum is calculated in every iteration
+        evaluator = new DagEvaluator(Formula.parse("sum(i,1,100,rand(1))-100*rand(1)", nf));
+        assertNotEquals(0.0, evaluator.evaluate(evaluator.getDag().getSlots().createSlots()), 0.0);
+    }
+    
+    @Test
+    public void testIf() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        // the shared square root is only calculated for positive values
+        DagEvaluator evaluator = new DagEvaluator(Formula.parse("if(x>0,sqrt(x)*sqrt(x),x)", nf), "x");
+        assertEquals(-4.0, evaluator.evaluate(new double[] { -4.0 }), 0.0);
+        assertEquals(4.0, evaluator.evaluate(new double[] { 4.0 }), 1e-15);
+        
+        try {
+            new DagEvaluator(Formula.parse("sqrt(x)+x", nf), "x").evaluate(new double[] { -4.0 });
+            fail("Square root of negative value should throw an exception");
+        }
+        catch (FiMaLibUndefinedException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+    
+    @Test
+    public void testReuse() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("dagroot(a)=sqrt(a)+a", nf));
+        
+        // the evaluator's context can be used again after an exception
+        DagEvaluator evaluator = new DagEvaluator(Formula.parse("dagroot(x)*y", nf), "x", "y");
+        try {
+            evaluator.evaluate(new double[] { -4.0, 2.0 });
+            fail("Square root of negative value should throw an exception");
+        }
+        catch (FiMaLibUndefinedException ex) {
+            System.out.println(ex.getMessage());
+        }
+        
+        assertEquals((2.0 + 4.0) * 2.0, evaluator.evaluate(new double[] { 4.0, 2.0 }), 0.0);
+        assertEquals((3.0 + 9.0) * 0.5, evaluator.evaluate(new double[] { 9.0, 0.5 }), 0.0);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.formula.FormulaException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the incremental recalculation of formula graphs
+ * 
+ * @author Peter Werno
+ */
+public class FormulaGraphTest {
+    
+    public FormulaGraphTest() {
+    }
+    
+    @Test
+    public void testRecalculate() throws Exception {
+        FormulaGraph graph = new FormulaGraph();
+        graph.setFormula("df", "exp(neg(r)*t)");
+        graph.setFormula("pv", "n*df");
+        graph.setFormula("fv", "pv/df");
+        graph.setFormula("annuity", "sum(k,1,t,exp(neg(r)*k))");
+        graph.setFormula("positive", "pv>0");
+        graph.setFormula("flag", "if(positive,1,2)*fee");
+        graph.setInput("r", 0.05);
+        graph.setInput("t", 2.0);
+        graph.setInput("n", 100.0);
+        graph.setInput("fee", 3.0);
+        
+        assertEquals(6, graph.recalculate());
+        assertEquals(100.0 * Math.exp(-0.1), graph.getValue("pv"), 1E-12);
+        assertEquals(100.0, graph.getValue("fv"), 1E-12);
+        assertEquals(Math.exp(-0.05) + Math.exp(-0.1), graph.getValue("annuity"), 1E-12);
+        assertEquals(3.0, graph.getValue("flag"), 0.0);
+        assertEquals(0, graph.getLevel("n"));
+        assertEquals(1, graph.getLevel("df"));
+        assertEquals(3, graph.getLevel("fv"));
+        assertEquals(4, graph.getLevel("flag"));
+        
+        // nothing changed
+        assertEquals(0, graph.recalculate());
+        graph.setInput("r", 0.05);
+        assertEquals(0, graph.recalculate());
+        
+        // only the formulas depending on the input are evaluated
+        graph.setInput("fee", 4.0);
+        assertEquals(1, graph.recalculate());
+        assertEquals(4.0, graph.getValue("flag"), 0.0);
+        
+        // the result of positive does not change, so flag is not evaluated
+        graph.setInput("n", 200.0);
+        assertEquals(3, graph.recalculate());
+        assertEquals(200.0 * Math.exp(-0.1), graph.getValue("pv"), 1E-12);
+        assertEquals(200.0, graph.getValue("fv"), 1E-12);
+        
+        graph.setInput("n", -200.0);
+        assertEquals(4, graph.recalculate());
+        assertEquals(8.0, graph.getValue("flag"), 0.0);
+        
+        // replacing a formula re-evaluates all formulas
+        graph.setFormula("fee", "2*n");
+        assertEquals(7, graph.recalculate());
+        assertEquals(-800.0, graph.getValue("flag"), 0.0);
+        try {
+            graph.setInput("fee", 1.0);
+            fail("Input of formula not detected");
+        }
+        catch (FormulaException ex) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testErrors() throws Exception {
+        FormulaGraph graph = new FormulaGraph();
+        graph.setFormula("a", "1/x");
+        graph.setFormula("b", "a+1");
+        graph.setInput("x", 0.0);
+        graph.recalculate();
+        
+        assertTrue(Double.isNaN(graph.getValue("a")));
+        assertTrue(Double.isNaN(graph.getValue("b")));
+        assertTrue(graph.getError("a") instanceof FiMaLibDivisionByZeroException);
+        assertNull(graph.getError("b"));
+        
+        graph.setInput("x", 2.0);
+        assertEquals(2, graph.recalculate());
+        assertNull(graph.getError("a"));
+        assertEquals(1.5, graph.getValue("b"), 0.0);
+        
+        // circular references
+        graph.setFormula("c", "b+d");
+        graph.setFormula("d", "c*2");
+        try {
+            graph.recalculate();
+            fail("Circular reference not detected");
+        }
+        catch (FormulaException ex) {
+            assertEquals("Circular reference between formulas c, d", ex.getMessage());
+        }
+        
+        try {
+            graph.getValue("unknown");
+            fail("Unknown name not detected");
+        }
+        catch (FormulaException ex) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testParallel() throws Exception {
+        int size = 1000;
+        FormulaGraph graph = new FormulaGraph();
+        for(int i=0; i<size; i++) {
+            graph.setFormula("a" + i, "sqrt(x" + (i % 10) + "+" + i + ")");
+            graph.setFormula("b" + i, "a" + i + "*a" + ((i + 1) % size));
+        }
+        graph.setFormula("total", "b0+b999");
+        for(int j=0; j<10; j++) {
+            graph.setInput("x" + j, j);
+        }
+        
+        assertEquals(2 * size + 1, graph.recalculate());
+        for(int i=0; i<size; i++) {
+            int k = (i + 1) % size;
+            assertEquals(Math.sqrt(i % 10 + i) * Math.sqrt(k % 10 + k), graph.getValue("b" + i), 1E-12);
+        }
+        
+        // x3 is used by 100 a's, which are used by 200 b's
+        graph.setInput("x3", 3.5);
+        assertEquals(100 + 200, graph.recalculate());
+        assertEquals(Math.sqrt(3.5 + 3) * Math.sqrt(4 + 4), graph.getValue("b3"), 1E-12);
+        assertEquals(Math.sqrt(2 + 2) * Math.sqrt(3.5 + 3), graph.getValue("b2"), 1E-12);
+    }
+}
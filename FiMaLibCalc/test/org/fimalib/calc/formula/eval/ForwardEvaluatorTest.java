@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the forward-mode automatic differentiation
+ * 
+ * @author Peter Werno
+ */
+public class ForwardEvaluatorTest {
+    
+    public ForwardEvaluatorTest() {
+    }
+    
+    // formulas of x and y, evaluated at x=0.4, y=1.7
+    String[] formulas = {
+        "abs(x-1)+arccos(x)+arccosh(y)+arccot(x)+arccoth(y)+arccsc(y)+arccsch(x)",
+        "arcsec(y)+arcsech(x)+arcsin(x)+arcsinh(x)+arctan(y)+arctanh(x)",
+        "cos(x*y)+cosh(x)+cot(y)+coth(x)+csc(y)+csch(x)+exp(x*y)",
+        "ln(x+y)+log(x*y)+sec(x)+sech(y)+sin(x/y)+sinh(x)+sqrt(x+y)+tan(x)+tanh(y)",
+        "x^y+y^3+2^x+neg(x)*y-y/x",
+        "if(x<y,x*y^2,x)+if(x>y,y)+int(x*10+0.5)*x+sgn(x)*y",
+        "sum(i,1,5,x^i/i)+prod(i,1,3,x+i*y)",
+        "sum(i,1,3,sum(j,1,i,x*i+y*j))",
+        "((x<1)&&(y>1))*x+!(x>1)*y",
+        "fwdf(x,y)*fwdf(y,x)+fwdf(fwdf(x,1),y)",
+        "cnd(x*y)+max(x,y,0.5)*y+min(x*y,y-x)-max(x)",
+    };
+    
+    @Test
+    public void testDerivatives() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("fwdf(a,b)=a*exp(b)+sum(k,1,2,a^k*b)", nf));
+        double h = 1e-6;
+        
+        for(String formula : formulas) {
+            Node node = Formula.parse(formula, nf);
+            ForwardEvaluator evaluator = new ForwardEvaluator(Formula.parse(formula, nf), "x", "y");
+            node.bind(evaluator.getDag().getSlots());
+            
+            double[] slots = evaluator.getDag().getSlots().createSlots();
+            slots[0] = 0.4;
+            slots[1] = 1.7;
+            double[] derivatives = new double[2];
+            
+            // evaluate twice to make sure the buffers are reused correctly
+            evaluator.evaluate(slots, derivatives);
+            double value = evaluator.evaluate(slots, derivatives);
+            assertEquals("Value of " + formula + " incorrect", node.evaluate(slots), value, 1e-12);
+            
+            for(int v=0; v<2; v++) {
+                double old = slots[v];
+                slots[v] = old + h;
+                double up = node.evaluate(slots);
+                slots[v] = old - h;
+                double down = node.evaluate(slots);
+                slots[v] = old;
+                
+                double expected = (up - down) / (2.0 * h);
+                System.out.println(formula + ": d/d" + (v == 0 ? "x" : "y") + " = " + derivatives[v] + " (" + expected + ")");
+                assertEquals("Derivative of " + formula + " incorrect", expected, derivatives[v], 1e-6 * Math.max(1.0, Math.abs(expected)));
+            }
+        }
+    }
+    
+    @Test
+    public void testSymbolic() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        String[] sources = { "x^3+x^2", "sin(x^2)", "cos(x^3)", "tan(2*x)", "sec(x^2)", "exp(neg(x)*3)*x",
+            "cnd(x^2)", "max(x^2,x,0.1)", "min(x,neg(x)*2)" };
+        
+        for(String source : sources) {
+            Node derivative = Formula.parse(source, nf).derive("x");
+            derivative.bind(new SlotMap("x"));
+            ForwardEvaluator evaluator = new ForwardEvaluator(Formula.parse(source, nf), "x");
+            double[] derivatives = new double[1];
+            
+            for(double x=-1.0; x<=1.0; x+=0.125) {
+                evaluator.evaluate(new double[] { x }, derivatives);
+                assertEquals("Derivative of " + source + " incorrect", derivative.evaluate(new double[] { x }), derivatives[0], 1e-12);
+            }
+        }
+    }
+    
+    @Test
+    public void testDirections() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Node node = Formula.parse("100*exp(neg(r1)*1)+100*exp(neg(r2)*2)+x", nf);
+        SlotMap slots = new SlotMap("r1", "r2", "x");
+        
+        // derivative for a parallel shift of both rates and by each rate
+        ForwardEvaluator evaluator = new ForwardEvaluator(node, slots, "r1", "r2", "unused");
+        evaluator.setSeed(0, 1.0, 1.0, 0.0);
+        evaluator.setSeed(1, 1.0, 0.0, 1.0);
+        assertEquals(3, evaluator.getDirections());
+        
+        double[] derivatives = new double[3];
+        double value = evaluator.evaluate(new double[] { 0.01, 0.02, 5.0 }, derivatives);
+        double d1 = -100.0 * Math.exp(-0.01);
+        double d2 = -200.0 * Math.exp(-0.04);
+        
+        assertEquals(100.0 * Math.exp(-0.01) + 100.0 * Math.exp(-0.04) + 5.0, value, 1e-12);
+        assertArrayEquals(new double[] { d1 + d2, d1, d2 }, derivatives, 1e-12);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import org.fimalib.calc.FiMaLibCalcException;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the numerical integration of formulas
+ * 
+ * @author Peter Werno
+ */
+public class IntegratorTest {
+    
+    public IntegratorTest() {
+    }
+    
+    static final double INF = Double.POSITIVE_INFINITY;
+    
+    // formulas of x and y (y=2), bounds and integrals
+    String[] formulas = {
+        "3*x^2+2*x+1",
+        "sin(x)",
+        "exp(neg(x^2)/2)",
+        "exp(neg(x^2)/2)",
+        "exp(neg(x^2)/2)",
+        "exp(neg(y)*x)",
+        "1/(1+x^2)",
+        "abs(x-0.3)",
+        "if(x<1/3,1,2)",
+        "x^2",
+        "sum(k,1,3,x^k)",
+    };
+    
+    double[][] bounds = {
+        { 0.0, 2.0 },
+        { 0.0, Math.PI },
+        { -INF, INF },
+        { 0.0, INF },
+        { -INF, 0.0 },
+        { 0.0, INF },
+        { -INF, INF },
+        { 0.0, 1.0 },
+        { 0.0, 1.0 },
+        { 1.0, 0.0 },
+        { 0.0, 1.0 },
+    };
+    
+    double[] integrals = {
+        14.0,
+        2.0,
+        Math.sqrt(2.0 * Math.PI),
+        Math.sqrt(0.5 * Math.PI),
+        Math.sqrt(0.5 * Math.PI),
+        0.5,
+        Math.PI,
+        0.29,
+        5.0 / 3.0,
+        -1.0 / 3.0,
+        1.0 / 2.0 + 1.0 / 3.0 + 1.0 / 4.0,
+    };
+    
+    @Test
+    public void testIntegrate() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        for(int method=Integrator.GAUSS_KRONROD; method<=Integrator.TANH_SINH; method++) {
+            for(int i=0; i<formulas.length; i++) {
+                // tanh-sinh is not suitable for discontinuous integrands
+                if((method == Integrator.TANH_SINH) && (i >= 7) && (i <= 8)) continue;
+                
+                Integrator integrator = new Integrator(Formula.parse(formulas[i], nf), "x", "y");
+                integrator.setMethod(method);
+                double result = integrator.integrate(bounds[i][0], bounds[i][1], 0.0, 2.0);
+                System.out.println("Integral of " + formulas[i] + " (method " + method + "): " + result + " (" + 
+                        integrator.getEvaluationCount() + " evaluations, error " + integrator.getErrorEstimate() + ")");
+                
+                assertTrue("Integral of " + formulas[i] + " did not converge", integrator.isConverged());
+                assertEquals("Integral of " + formulas[i] + " incorrect", integrals[i], result, 1E-9 * Math.max(1.0, Math.abs(integrals[i])));
+            }
+        }
+    }
+    
+    @Test
+    public void testSingularities() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        Integrator integrator = new Integrator(Formula.parse("1/sqrt(x)", nf), "x");
+        integrator.setMethod(Integrator.TANH_SINH);
+        assertEquals(2.0, integrator.integrate(0.0, 1.0), 1E-10);
+        assertTrue(integrator.isConverged());
+        assertTrue(integrator.getEvaluationCount() < 200);
+        
+        integrator = new Integrator(Formula.parse("ln(x)", nf), "x");
+        integrator.setMethod(Integrator.TANH_SINH);
+        assertEquals(-1.0, integrator.integrate(0.0, 1.0), 1E-10);
+        
+        // the Gauss-Kronrod rule needs many more evaluations
+        integrator.setMethod(Integrator.GAUSS_KRONROD);
+        integrator.setMaximumEvaluations(100);
+        integrator.integrate(0.0, 1.0);
+        assertFalse(integrator.isConverged());
+        
+        assertEquals(0.0, integrator.integrate(1.0, 1.0), 0.0);
+        
+        try {
+            integrator.integrate(-1.0, 1.0);
+            fail("Logarithm of negative value not detected");
+        }
+        catch (FiMaLibCalcException ex) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testBatch() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        int m = 8;
+        Node[] nodes = new Node[m];
+        for(int k=0; k<m; k++) {
+            nodes[k] = Formula.parse("x^" + k + "*cos(y*x)", nf);
+        }
+        
+        for(boolean compile : new boolean[] { true, false }) {
+            Integrator integrator = new Integrator(nodes, new SlotMap("x", "y"), "x", compile);
+            double[] results = integrator.integrateAll(0.0, 1.0, 0.0, 0.0);
+            
+            for(int k=0; k<m; k++) {
+                assertEquals("Integral of " + nodes[k] + " incorrect", 1.0 / (k + 1), results[k], 1E-12);
+            }
+            assertEquals(8, integrator.getErrorEstimates().length);
+            
+            // the integrands share the points
+            Integrator single = new Integrator(nodes[m - 1], "x", "y");
+            single.integrate(0.0, 1.0, 0.0, 0.0);
+            assertEquals(single.getEvaluationCount(), integrator.getEvaluationCount());
+        }
+    }
+}
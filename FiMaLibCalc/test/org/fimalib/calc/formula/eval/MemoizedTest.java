@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import org.fimalib.calc.FiMaLibUndefinedException;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.MemoTable;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the memoization of function calls
+ * 
+ * @author Peter Werno
+ */
+public class MemoizedTest {
+    
+    public MemoizedTest() {
+    }
+    
+    static boolean defined = false;
+    
+    static synchronized void define() throws Exception {
+        if(defined) return;
+        
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("memdf(r,t)=exp(neg(r)*t)", nf));
+        Formula.addUserDefinedFunction(new UserDefinedFunction("mempv(r,n)=sum(k,1,n,memdf(r,k))", nf));
+        Formula.addUserDefinedFunction(new UserDefinedFunction("memnoise(s)=s*rand(1)", nf));
+        Formula.addUserDefinedFunction(new UserDefinedFunction("memfree(s)=s*sum(k,1,3,k*z)", nf));
+        Formula.addUserDefinedFunction(new UserDefinedFunction("memouter(s)=sum(k,1,2,memnoise(s*k))", nf));
+        defined = true;
+    }
+    
+    // formulas of x and y
+    String[] formulas = {
+        "memdf(x,1)+memdf(x,2)+memdf(x,1)",
+        "sum(i,1,20,memdf(x,int(i/4)))",
+        "mempv(x,y)*memdf(x,y)+mempv(x,y)",
+        "sin(x)^2+cos(x)^2+ln(y)+sin(x)",
+        "if(x>0.5,memdf(x,sqrt(y)),-memdf(y,x))",
+    };
+    
+    @Test
+    public void testMemoize() throws Exception {
+        define();
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        for(String formula : formulas) {
+            Node node = Formula.parse(formula, nf);
+            Node memoized = Memoized.memoize(node, true, "memdf", "mempv");
+            assertEquals("Memoized formula " + formula + " has changed", node.toString(), memoized.toString());
+            
+            SlotMap slots = new SlotMap("x", "y");
+            node.bind(slots);
+            memoized.bind(slots);
+            
+            // the memo table is shared by all evaluations
+            MemoTable memo = new MemoTable(256);
+            for(int i=0; i<50; i++) {
+                double[] values = slots.createSlots();
+                values[0] = (i % 10) / 10.0;
+                values[1] = 1 + (i % 5);
+                
+                double expected = node.evaluate(values);
+                EvaluationContext context = new EvaluationContext(values);
+                context.setMemoTable(memo);
+                assertEquals("Memoized result of " + formula + " incorrect", expected, memoized.evaluate(context), 0.0);
+                assertEquals("Stack of " + formula + " not cleared", 0, context.getStackSize());
+                
+                // without a memo table, the call is evaluated as usual
+                assertEquals("Result of " + formula + " incorrect", expected, memoized.evaluate(values), 0.0);
+            }
+            System.out.println(formula + ": " + memo);
+            assertTrue("No hits for " + formula, memo.getHits() > 0);
+        }
+    }
+    
+    @Test
+    public void testMemoTable() throws Exception {
+        define();
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        Node node = Memoized.memoize(Formula.parse("memdf(x,1)+memdf(x,1)+memdf(x,2)", nf), false, "memdf");
+        SlotMap slots = new SlotMap("x");
+        node.bind(slots);
+        
+        MemoTable memo = new MemoTable(100);
+        assertEquals(128, memo.getCapacity());
+        
+        EvaluationContext context = new EvaluationContext(new double[] { 0.05 });
+        context.setMemoTable(memo);
+        double result = node.evaluate(context);
+        assertEquals(2 * Math.exp(-0.05) + Math.exp(-0.1), result, 1E-15);
+        assertEquals(1, memo.getHits());
+        assertEquals(2, memo.getMisses());
+        assertEquals(2, memo.getSize());
+        
+        // the second evaluation with the same values only hits
+        assertEquals(result, node.evaluate(context), 0.0);
+        assertEquals(4, memo.getHits());
+        assertEquals(4.0 / 6.0, memo.getHitRate(), 1E-15);
+        
+        // a new snapshot of values
+        memo.clear();
+        assertEquals(0, memo.getSize());
+        context.getSlots()[0] = 0.0;
+        assertEquals(3.0, node.evaluate(context), 0.0);
+        assertEquals(5, memo.getHits());
+        
+        // the table is bounded
+        MemoTable small = new MemoTable(2);
+        Node exp = Memoized.memoize(Formula.parse("exp(x)", nf), true);
+        exp.bind(slots);
+        context.setMemoTable(small);
+        for(int i=0; i<100; i++) {
+            context.getSlots()[0] = i;
+            assertEquals(Math.exp(i), exp.evaluate(context), 0.0);
+        }
+        assertEquals(2, small.getSize());
+        assertEquals(98, small.getEvictions());
+        
+        // the exceptions of the functions are kept
+        Node ln = Memoized.memoize(Formula.parse("ln(x)", nf), true);
+        ln.bind(slots);
+        context.getSlots()[0] = -1.0;
+        try {
+            ln.evaluate(context);
+            fail("Logarithm of negative value not detected");
+        }
+        catch (FiMaLibUndefinedException ex) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testImpure() throws Exception {
+        define();
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        // random numbers, free variables and impure functions called by the definition
+        for(String formula : new String[] { "memnoise(x)", "memfree(x)", "memouter(x)" }) {
+            try {
+                new Memoized(Formula.parse(formula, nf));
+                fail(formula + " should not be memoized");
+            }
+            catch (FormulaException ex) {
+                System.out.println(ex.getMessage());
+            }
+        }
+        
+        // calls of impure functions are skipped
+        Node node = Memoized.memoize(Formula.parse("memouter(x)+memdf(x,1)+memfree(x)", nf), false, "memouter", "memdf", "memfree");
+        assertFalse(node.getNode(0).getNode(0) instanceof Memoized);
+        assertTrue(node.getNode(0).getNode(1) instanceof Memoized);
+        assertFalse(node.getNode(1) instanceof Memoized);
+        assertTrue(Memoized.isPure((UserDefinedFunction)Formula.parse("mempv(x,3)", nf)));
+    }
+}
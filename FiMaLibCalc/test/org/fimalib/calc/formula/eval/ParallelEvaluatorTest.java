@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import org.fimalib.calc.FiMaLibUndefinedException;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.RandomStream;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the parallel evaluation of formulas
+ * 
+ * @author Peter Werno
+ */
+public class ParallelEvaluatorTest {
+    
+    public ParallelEvaluatorTest() {
+    }
+    
+    @Test
+    public void testEvaluate() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Node node = Formula.parse("3*x^2+exp(-x/2)*y-sum(i,1,y,i*x)+if(x>1,x,2*x)", nf);
+        
+        int n = 100000 + 17;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for(int i=0; i<n; i++) {
+            x[i] = i * 1e-5;
+            y[i] = i % 5;
+        }
+        double[][] columns = { x, y };
+        
+        double[] expected = new double[n];
+        new BatchEvaluator(node, "x", "y").evaluate(columns, expected);
+        
+        ForkJoinPool pool = new ForkJoinPool(4);
+        double[] out = new double[n];
+        new ParallelEvaluator(node, new SlotMap("x", "y"), pool).evaluate(columns, out);
+        assertArrayEquals(expected, out, 0.0);
+        pool.shutdown();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        out = new double[n];
+        new ParallelEvaluator(node, "x", "y").evaluate(columns, out, executor, 3);
+        assertArrayEquals(expected, out, 0.0);
+        executor.shutdown();
+    }
+    
+    @Test
+    public void testRandom() throws Exception {
+        Node node = Formula.parse("x+rand(1)", NumberFormat.getInstance(Locale.US));
+        
+        int n = 50000 + 3;
+        double[] x = new double[n];
+        for(int i=0; i<n; i++) {
+            x[i] = i;
+        }
+        double[][] columns = { x };
+        
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool several = new ForkJoinPool(4);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            // the same seed gives the same random numbers with any number of threads
+            double[] expected = new double[n];
+            ParallelEvaluator evaluator = new ParallelEvaluator(node, new SlotMap("x"), single);
+            evaluator.setRandom(new RandomStream(42L));
+            evaluator.evaluate(columns, expected);
+            
+            double[] out = new double[n];
+            evaluator = new ParallelEvaluator(node, new SlotMap("x"), several);
+            evaluator.setRandom(new RandomStream(42L));
+            evaluator.evaluate(columns, out);
+            assertArrayEquals(expected, out, 0.0);
+            
+            out = new double[n];
+            evaluator.setRandom(new RandomStream(42L));
+            evaluator.evaluate(columns, out, executor, 3);
+            assertArrayEquals(expected, out, 0.0);
+            
+            // the stream is advanced by each evaluation
+            evaluator.evaluate(columns, out, executor, 3);
+            assertNotEquals(expected[0], out[0], 0.0);
+            for(int i=0; i<n; i++) {
+                assertTrue((out[i] >= x[i]) && (out[i] < x[i] + 1.0));
+            }
+        }
+        finally {
+            single.shutdown();
+            several.shutdown();
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testExceptions() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        ParallelEvaluator evaluator = new ParallelEvaluator(Formula.parse("sqrt(x)", nf), "x");
+        
+        double[] x = new double[50000];
+        x[40000] = -1.0;
+        
+        try {
+            evaluator.evaluate(new double[][] { x }, new double[x.length]);
+            fail("Square root of negative value should throw an exception");
+        }
+        catch (FiMaLibUndefinedException ex) {
+            System.out.println(ex.getMessage());
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            evaluator.evaluate(new double[][] { x }, new double[x.length], executor, 2);
+            fail("Square root of negative value should throw an exception");
+        }
+        catch (FiMaLibUndefinedException ex) {
+            System.out.println(ex.getMessage());
+        }
+        executor.shutdown();
+    }
+}
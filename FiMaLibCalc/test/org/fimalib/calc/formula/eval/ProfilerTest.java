@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the profiling of formula trees
+ * 
+ * @author Peter Werno
+ */
+public class ProfilerTest {
+    
+    public ProfilerTest() {
+    }
+    
+    @Test
+    public void testInstrument() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Node node = Formula.parse("3*x^2+sin(x)*sum(i,1,10,i*y)", nf);
+        String text = node.toString();
+        
+        Profiler profiler = new Profiler();
+        Node profiled = profiler.instrument(node);
+        assertEquals("Profiled formula has changed", text, profiled.toString());
+        
+        SlotMap slots = new SlotMap("x", "y");
+        node.bind(slots);
+        profiled.bind(slots);
+        
+        double[] values = slots.createSlots();
+        EvaluationContext context = new EvaluationContext(values);
+        for(int i=0; i<100; i++) {
+            values[0] = i / 10.0;
+            values[1] = 1.0 - i / 50.0;
+            context.setSlots(values);
+            assertEquals(node.evaluate(context), profiled.evaluate(context), 1E-12);
+        }
+        
+        Profiler.Profiled root = profiler.getRoot();
+        assertEquals(100, root.getCount());
+        assertTrue(root.getTime() > 0);
+        
+        // each call of the loop formula is recorded
+        Profiler.Profiled sum = root.getChildren()[1].getChildren()[1];
+        assertEquals("sum", sum.getName());
+        assertEquals(100, sum.getCount());
+        assertEquals(1000, sum.getChildren()[2].getCount());
+        
+        // the self times add up to the total time
+        long selfTime = 0;
+        for(String line : profiler.toFoldedStacks().split("\n")) {
+            selfTime += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        }
+        assertTrue(selfTime <= root.getTime());
+        assertTrue(profiler.toFoldedStacks().startsWith("Add "));
+        assertTrue(profiler.toFoldedStacks().contains("Add;Mul;sum;Mul;y "));
+        
+        HashMap<String, Number> parameters = new HashMap<>();
+        parameters.put("x", new Double(0.5));
+        parameters.put("y", new Double(2.0));
+        assertEquals(node.calculate(parameters).getValue(), profiled.calculate(parameters).getValue(), 1E-12);
+        assertEquals(101, root.getCount());
+        
+        profiler.reset();
+        assertEquals(0, root.getCount());
+        assertEquals(0, sum.getChildren()[2].getCount());
+    }
+    
+    @Test
+    public void testAllocations() throws Exception {
+        Profiler profiler = new Profiler();
+        Node profiled = profiler.instrument(Formula.parse("x+1", NumberFormat.getInstance(Locale.US)));
+        
+        if(!profiler.setAllocationTracking(true)) return;
+        
+        HashMap<String, Number> parameters = new HashMap<>();
+        parameters.put("x", new Double(0.5));
+        for(int i=0; i<10; i++) {
+            profiled.calculate(parameters);
+        }
+        assertTrue(profiler.getRoot().getAllocatedBytes() > 0);
+        assertTrue(profiler.toString().contains("Add x+1"));
+    }
+}
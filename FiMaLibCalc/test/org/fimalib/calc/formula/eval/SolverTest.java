@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.functions.FunctionRegistry;
+import org.fimalib.calc.formula.functions.Max;
+import org.fimalib.calc.formula.functions.UserDefinedFunction;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the root finding of formulas
+ * 
+ * @author Peter Werno
+ */
+public class SolverTest {
+    
+    public SolverTest() {
+    }
+    
+    @Test
+    public void testNewton() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        Solver solver = new Solver(Formula.parse("x^2-y", nf), "x", "y");
+        assertTrue(solver.isDifferentiable());
+        assertEquals(Math.sqrt(2.0), solver.solve(0.0, 2.0, 0.0, 2.0), 1E-14);
+        System.out.println("Root of x^2-2: " + solver.getEvaluationCount() + " evaluations");
+        assertTrue(solver.getEvaluationCount() <= 10);
+        
+        // the yield of a zero bond
+        solver = new Solver(Formula.parse("100*exp(neg(y)*t)", nf), "y", "t");
+        solver.setTarget(80.0);
+        assertEquals(Math.log(1.25) / 5.0, solver.solve(0.0, 1.0, 0.0, 5.0), 1E-14);
+        
+        // roots at the bounds
+        assertEquals(0.0, new Solver(Formula.parse("sin(x)", nf), "x").solve(0.0, 1.0), 0.0);
+        
+        // the 97.5% quantile of the normal distribution, within a user defined function
+        Formula.addUserDefinedFunction(new UserDefinedFunction("solvphi(z)=cnd(z)", nf));
+        solver = new Solver(Formula.parse("solvphi(x)-0.975", nf), "x");
+        assertTrue(solver.isDifferentiable());
+        assertEquals(1.959963984540054, solver.solve(0.0, 5.0), 1E-12);
+    }
+    
+    @Test
+    public void testBrent() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        // Newton overshoots far from the root
+        Solver solver = new Solver(Formula.parse("arctan(x-1)", nf), "x");
+        assertEquals(1.0, solver.solve(-20.0, 50.0), 1E-12);
+        
+        // a kink, the Newton steps are rejected
+        solver = new Solver(Formula.parse("if(x<0.3,x-0.3,1000*(x-0.3))", nf), "x");
+        assertEquals(0.3, solver.solve(0.0, 1.0), 1E-12);
+        
+        // no derivative at all
+        solver = new Solver(Formula.parse("sgn(x-0.25)", nf), "x");
+        solver.setTolerance(1E-9);
+        assertEquals(0.25, solver.solve(0.0, 1.0), 1E-9);
+        
+        try {
+            solver.solve(0.5, 1.0);
+            fail("Missing root not detected");
+        }
+        catch (FormulaException ex) {
+            // expected
+        }
+        
+        // a node of an unknown class within a user defined function
+        FunctionRegistry registry = new FunctionRegistry();
+        registry.register("floored", () -> new Max() { });
+        registry.register(new UserDefinedFunction("capped(z)=floored(z,0.1)-0.5", nf, registry));
+        solver = new Solver(Formula.parse("capped(x)", nf, registry), "x");
+        assertFalse(solver.isDifferentiable());
+        assertEquals(0.5, solver.solve(0.0, 1.0), 1E-12);
+    }
+    
+    @Test
+    public void testSolveAll() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        int n = 5000;
+        
+        double[] a = new double[n];
+        double[] lower = new double[n];
+        double[] upper = new double[n];
+        double[] roots = new double[n];
+        for(int i=0; i<n; i++) {
+            a[i] = 1.0 + i;
+            lower[i] = 0.0;
+            upper[i] = 20.0;
+        }
+        a[17] = -1.0;
+        
+        Solver solver = new Solver(Formula.parse("x^3-a", nf), "x", "a");
+        assertEquals(1, solver.solveAll(new double[][] { null, a }, lower, upper, roots));
+        
+        // the evaluations of all tasks are counted (at least both ends of each bracket)
+        System.out.println("Roots of x^3-a: " + solver.getEvaluationCount() + " evaluations");
+        assertTrue(solver.getEvaluationCount() >= 2 * n);
+        
+        for(int i=0; i<n; i++) {
+            if(i == 17) assertTrue(Double.isNaN(roots[i]));
+            else assertEquals(Math.cbrt(a[i]), roots[i], 1E-12 * roots[i]);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.eval;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.NumberFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.fimalib.calc.formula.EvaluationContext;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the evaluation of formulas for the records of files
+ * 
+ * @author Peter Werno
+ */
+public class StreamEvaluatorTest {
+    
+    public StreamEvaluatorTest() {
+    }
+    
+    @Test
+    public void testParseNumber() throws Exception {
+        String[] numbers = { "0", "-0", "1", "+1.5", "0.1", "-0.05", "123456789012345678", "1234567890123456789",
+            "1e5", "1.5E-7", "2.5e+300", "4.9e-324", ".5", "5.", "007", "NaN", "-Infinity", " 42 ", "\"3.25\"" };
+        
+        for(String number : numbers) {
+            ByteBuffer buffer = ByteBuffer.wrap(number.getBytes(StandardCharsets.US_ASCII));
+            double expected = Double.parseDouble(number.replace("\"", "").trim());
+            assertEquals(number, Double.doubleToLongBits(expected), Double.doubleToLongBits(StreamEvaluator.parseNumber(buffer, 0, buffer.limit())));
+        }
+        
+        Random random = new Random(42);
+        for(int i=0; i<100000; i++) {
+            String number = Double.toString((random.nextDouble() - 0.5) * Math.pow(10.0, random.nextInt(40) - 20));
+            ByteBuffer buffer = ByteBuffer.wrap(number.getBytes(StandardCharsets.US_ASCII));
+            assertEquals(number, Double.parseDouble(number), StreamEvaluator.parseNumber(buffer, 0, buffer.limit()), 0.0);
+        }
+        
+        assertTrue(Double.isNaN(StreamEvaluator.parseNumber(ByteBuffer.wrap(new byte[] { ' ' }), 0, 1)));
+        try {
+            StreamEvaluator.parseNumber(ByteBuffer.wrap("1.2.3".getBytes(StandardCharsets.US_ASCII)), 0, 5);
+            fail("Invalid number not detected");
+        }
+        catch (NumberFormatException ex) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testCsv() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Node node = Formula.parse("n*exp(neg(r)*t)", nf);
+        Node reference = Formula.parse("n*exp(neg(r)*t)", nf);
+        reference.bind(new SlotMap("n", "r", "t"));
+        
+        // more records than fit into a chunk
+        Random random = new Random(7);
+        int numRecords = StreamEvaluator.CHUNK_SIZE + 1000;
+        double[][] values = new double[numRecords][3];
+        StringBuilder csv = new StringBuilder("id;t;\"n\";r\r\n");
+        for(int i=0; i<numRecords; i++) {
+            values[i][0] = Math.round(random.nextDouble() * 1E6) / 100.0;
+            values[i][1] = random.nextDouble() / 10.0;
+            values[i][2] = random.nextInt(30);
+            csv.append(i).append(';').append((int)values[i][2]).append(';').append(values[i][0]).append("; ").append(values[i][1]).append("\r\n");
+            if(i % 1000 == 0) csv.append("\r\n");
+        }
+        
+        Path input = Files.createTempFile("records", ".csv");
+        Path output = Files.createTempFile("results", ".csv");
+        try {
+            Files.write(input, csv.toString().getBytes(StandardCharsets.US_ASCII));
+            
+            // small windows to test lines crossing the window boundaries
+            for(int mappingSize : new int[] { StreamEvaluator.MAPPING_SIZE, 100 }) {
+                StreamEvaluator evaluator = new StreamEvaluator(node, "n", "r", "t");
+                evaluator.setDelimiter(';');
+                evaluator.setResultName("pv");
+                evaluator.mappingSize = mappingSize;
+                assertEquals(numRecords, evaluator.evaluateCsv(input, output));
+                
+                List<String> lines = Files.readAllLines(output);
+                assertEquals(numRecords + 1, lines.size());
+                assertEquals("pv", lines.get(0));
+                for(int i=0; i<numRecords; i++) {
+                    double expected = reference.evaluate(new EvaluationContext(values[i].clone()));
+                    assertEquals(expected, Double.parseDouble(lines.get(i + 1)), 0.0);
+                }
+            }
+        }
+        finally {
+            Files.delete(input);
+            Files.delete(output);
+        }
+    }
+    
+    @Test
+    public void testCsvErrors() throws Exception {
+        StreamEvaluator evaluator = new StreamEvaluator(Formula.parse("x+y"), "x", "y");
+        
+        String[] inputs = { "x,z\n1,2\n", "x,y\n1,2\n3\n", "x,y\n1,a\n" };
+        for(String input : inputs) {
+            try {
+                evaluator.evaluateCsv(ByteBuffer.wrap(input.getBytes(StandardCharsets.US_ASCII)), new ChannelBuffer());
+                fail("Invalid input not detected: " + input);
+            }
+            catch (FormulaException ex) {
+                // expected
+            }
+        }
+        
+        // empty fields are NaN, the last line need not end with a line break
+        ChannelBuffer out = new ChannelBuffer();
+        assertEquals(2, evaluator.evaluateCsv(ByteBuffer.wrap("y,x\n1,2\n,3".getBytes(StandardCharsets.US_ASCII)), out));
+        assertEquals("result\n3.0\nNaN\n", out.toString());
+    }
+    
+    @Test
+    public void testBinary() throws Exception {
+        Node node = Formula.parse("if(t>10,n*r,n)");
+        StreamEvaluator.Layout layout = new StreamEvaluator.Layout(24, ByteOrder.LITTLE_ENDIAN);
+        layout.add("n", 0, StreamEvaluator.Layout.DOUBLE);
+        layout.add("r", 8, StreamEvaluator.Layout.FLOAT);
+        layout.add("t", 12, StreamEvaluator.Layout.INT);
+        
+        int numRecords = StreamEvaluator.CHUNK_SIZE * 2 + 17;
+        ByteBuffer records = ByteBuffer.allocate(numRecords * 24 + 5).order(ByteOrder.LITTLE_ENDIAN);
+        for(int i=0; i<numRecords; i++) {
+            records.putDouble(i * 24, i);
+            records.putFloat(i * 24 + 8, 0.5f);
+            records.putInt(i * 24 + 12, i % 20);
+        }
+        
+        Path input = Files.createTempFile("records", ".bin");
+        Path output = Files.createTempFile("results", ".bin");
+        try {
+            Files.write(input, records.array());
+            
+            for(int mappingSize : new int[] { StreamEvaluator.MAPPING_SIZE, 1000 }) {
+                StreamEvaluator evaluator = new StreamEvaluator(node, "n", "r", "t");
+                evaluator.mappingSize = mappingSize;
+                assertEquals(numRecords, evaluator.evaluateBinary(input, layout, output));
+                
+                ByteBuffer results = ByteBuffer.wrap(Files.readAllBytes(output)).order(ByteOrder.LITTLE_ENDIAN);
+                assertEquals(8 * numRecords, results.limit());
+                for(int i=0; i<numRecords; i++) {
+                    assertEquals((i % 20 > 10) ? 0.5 * i : i, results.getDouble(8 * i), 0.0);
+                }
+            }
+        }
+        finally {
+            Files.delete(input);
+            Files.delete(output);
+        }
+        
+        try {
+            layout.add("x", 20, StreamEvaluator.Layout.DOUBLE);
+            fail("Field exceeding the record not detected");
+        }
+        catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+    
+    /**
+     * Channel collecting the written bytes in memory
+     */
+    static class ChannelBuffer implements java.nio.channels.WritableByteChannel {
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        
+        @Override
+        public int write(ByteBuffer src) {
+            int retVal = src.remaining();
+            while(src.hasRemaining()) bytes.write(src.get());
+            return retVal;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+        }
+        
+        @Override
+        public String toString() {
+            return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+        }
+    }
+}
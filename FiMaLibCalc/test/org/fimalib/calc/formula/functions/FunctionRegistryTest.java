@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.functions;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.FormulaException;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the function registry
+ * 
+ * @author Peter Werno
+ */
+public class FunctionRegistryTest {
+    
+    public FunctionRegistryTest() {
+    }
+    
+    /**
+     * Parses and evaluates a formula of x
+     */
+    double evaluate(String formula, FunctionRegistry registry, double x) throws Exception {
+        Node node = Formula.parse(formula, NumberFormat.getInstance(Locale.US), registry);
+        node.bind(new SlotMap("x"));
+        
+        return node.evaluate(new double[] { x });
+    }
+    
+    @Test
+    public void testStandardFunctions() throws Exception {
+        FunctionRegistry registry = FunctionRegistry.getDefault();
+        assertTrue(registry.isRegistered("max"));
+        
+        assertEquals(3.0, evaluate("max(x,3,neg(x))", registry, 2.0), 0.0);
+        assertEquals(-2.0, evaluate("min(x,3,neg(x))", registry, 2.0), 0.0);
+        assertEquals(0.5, evaluate("cnd(x)", registry, 0.0), 1e-15);
+        assertEquals(0.9750021048517795, evaluate("cnd(x)", registry, 1.96), 1e-15);
+        assertEquals(0.15865525393145707, evaluate("cnd(x)", registry, -1.0), 1e-15);
+        assertEquals(7.61985302416047e-24, evaluate("cnd(x)", registry, -10.0), 1e-30);
+        
+        Node node = Formula.parse("max(x,2)+cnd(x*2)", NumberFormat.getInstance(Locale.US));
+        assertEquals("max(x,2)+cnd(x*2)", node.toString());
+        assertEquals("max(x,2)+cnd(x*2)", node.copy().toString());
+        
+        // derivative of cnd is the density of the normal distribution
+        node = Formula.parse("cnd(x)", NumberFormat.getInstance(Locale.US)).derive("x");
+        node.bind(new SlotMap("x"));
+        assertEquals(Math.exp(-0.5) / Math.sqrt(2.0 * Math.PI), node.evaluate(new double[] { 1.0 }), 1e-15);
+    }
+    
+    @Test
+    public void testScopes() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        FunctionRegistry scope = new FunctionRegistry(FunctionRegistry.getDefault());
+        int generation = scope.getGeneration();
+        
+        scope.register(new UserDefinedFunction("scopef(a)=2*a", nf, scope));
+        scope.register(new UserDefinedFunction("max(a,b)=a+b", nf, scope));
+        assertTrue(scope.getGeneration() != generation);
+        
+        // scoped functions hide the functions of the parent and are not known to the parent
+        assertEquals(7.0, evaluate("max(x,3)+scopef(1)", scope, 2.0), 0.0);
+        assertEquals(3.0, evaluate("max(x,3)", FunctionRegistry.getDefault(), 2.0), 0.0);
+        assertFalse(FunctionRegistry.getDefault().isRegistered("scopef"));
+        
+        assertTrue(scope.unregister("max"));
+        assertFalse(scope.unregister("max"));
+        assertEquals(3.0, evaluate("max(x,3)", scope, 2.0), 0.0);
+        
+        try {
+            Formula.parse("scopef(x)", nf);
+            fail("Unknown functions should throw an exception");
+        }
+        catch (FormulaException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+    
+    @Test
+    public void testNamespaces() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        FunctionRegistry registry = new FunctionRegistry();
+        int generation = registry.getGeneration();
+        
+        registry.register(new UserDefinedFunction("fin.df(r,t)=exp(neg(r)*t)", nf, registry));
+        registry.register(new UserDefinedFunction("fin.pv(r)=sum(t,1,3,10*fin.df(r,t))", nf, registry));
+        registry.register("fin.rates.floor", Max::new);
+        assertTrue(registry.getGeneration() != generation);
+        assertEquals("[fin.df, fin.pv, fin.rates.floor]", registry.getNames().toString());
+        
+        double expected = 10.0 * (Math.exp(-0.05) + Math.exp(-0.1) + Math.exp(-0.15));
+        assertEquals(expected, evaluate("fin.pv(fin.rates.floor(x,0.05))", registry, 0.01), 1e-12);
+        assertEquals(1.0, evaluate("fin.df(0,x)", registry, 2.0), 0.0);
+        
+        // functions of a namespace are not known without the namespace
+        assertFalse(registry.isRegistered("df"));
+        assertFalse(registry.isRegistered("max"));
+        assertTrue(registry.unregister("fin.rates.floor"));
+        assertFalse(registry.isRegistered("fin.rates.floor"));
+        
+        try {
+            registry.register("fin.1x", Max::new);
+            fail("Invalid names should throw an exception");
+        }
+        catch (FormulaException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+}
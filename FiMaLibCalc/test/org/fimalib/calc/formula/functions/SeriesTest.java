@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.functions;
+
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import org.fimalib.calc.Double;
+import org.fimalib.calc.FiMaLibDivisionByZeroException;
+import org.fimalib.calc.Number;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.SlotMap;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the evaluation plans of sums and products
+ * 
+ * @author Peter Werno
+ */
+public class SeriesTest {
+    
+    public SeriesTest() {
+    }
+    
+    // formulas of x and y
+    String[] formulas = {
+        "sum(i,1,y,i)+sum(i,neg(y),y,i^2)+sum(i,y,3*y,i*i*i)+sum(i,2,y,i^0)",
+        "sum(i,1,y,3*x+2*i-i^2/4)",
+        "sum(i,0,y,x^i)+sum(i,1,y,exp(neg(x)*i))+sum(i,1,y,exp(i*x/10))+sum(i,1,y,2^i)",
+        "sum(i,1,y,x*sin(i*x)+1/x)",
+        "sum(i,1,y,neg(x*i)/(x+1)-(i+x))",
+        "prod(i,1,y,x)*prod(i,1,y,2*x^i)*prod(i,1,y,exp(x*i))",
+        "prod(i,1,y,i*x/(x+2))*prod(i,1,y,neg(1+x/i))",
+        "prod(i,1,y,i+x)",
+        "sum(i,1,y,if(i>2,i,x))+sum(i,1.5,y,i)+sum(i,3,1,i)+prod(i,3,1,i)",
+        "sum(i,1,y,sum(i,1,i,i*x))+sum(j,1,y,prod(i,1,j,x))",
+        "sum(i,1,y,sum(j,1,i,x^j)*i)",
+        "serf(x,y)+sum(i,1,y,serf(x,i))",
+    };
+    
+    @Test
+    public void testEvaluate() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Formula.addUserDefinedFunction(new UserDefinedFunction("serf(a,b)=a*b+sum(k,1,b,a^k)", nf));
+        
+        for(String formula : formulas) {
+            Node node = Formula.parse(formula, nf);
+            Node optimized = Formula.parse(formula, nf);
+            optimized.optimize();
+            
+            SlotMap slots = new SlotMap("x", "y");
+            node.bind(slots);
+            optimized.bind(slots);
+            double[] values = slots.createSlots();
+            
+            for(double x=-0.7; x<=1.0; x+=0.25) {
+                for(double y=0.0; y<=6.0; y+=1.0) {
+                    values[0] = x;
+                    values[1] = y;
+                    double expected = node.evaluate(values);
+                    double actual = optimized.evaluate(values);
+                    assertEquals("Result of " + formula + " does not match for x=" + x + ", y=" + y, expected, actual, 1e-12 * Math.max(1.0, Math.abs(expected)));
+                    
+                    HashMap<String, Number> parameters = new HashMap<>();
+                    parameters.put("x", new Double(x, nf));
+                    parameters.put("y", new Double(y, nf));
+                    assertEquals("Calculation of " + formula + " does not match for x=" + x + ", y=" + y, expected, optimized.calculate(parameters).getValue(), 1e-12 * Math.max(1.0, Math.abs(expected)));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testPlan() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        
+        Sum sum = (Sum)Formula.parse("sum(i,1,n,3*x+2*i-i^2/4+exp(neg(x)*i))", nf);
+        sum.optimize();
+        assertTrue(sum.plan.isClosed());
+        
+        sum = (Sum)Formula.parse("sum(i,1,n,x*sin(i*x)+1/x)", nf);
+        sum.optimize();
+        assertEquals(Series.ADD, sum.plan.kind);
+        assertEquals(Series.SCALE, sum.plan.left.kind);
+        assertEquals(Series.LOOP, sum.plan.left.left.kind);
+        assertEquals(Series.INVARIANT, sum.plan.right.kind);
+        
+        // rand has to be calculated in each iteration
+        sum = (Sum)Formula.parse("sum(i,1,n,rand(1))", nf);
+        sum.optimize();
+        assertEquals(Series.LOOP, sum.plan.kind);
+        
+        Prod prod = (Prod)Formula.parse("prod(i,1,n,2*x^i)", nf);
+        prod.optimize();
+        assertEquals(Series.SCALE, prod.plan.kind);
+        assertEquals(Series.GEOMETRIC, prod.plan.left.kind);
+    }
+    
+    @Test
+    public void testLargeRange() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        SlotMap slots = new SlotMap("n");
+        
+        Node node = Formula.parse("sum(i,1,n,i^2)", nf);
+        node.optimize();
+        node.bind(slots);
+        assertEquals(333333833333500000.0, node.evaluate(new double[] { 1000000.0, 0.0 }), 1e3);
+        
+        HashMap<String, Number> parameters = new HashMap<>();
+        parameters.put("n", new Double(1000000.0, nf));
+        assertEquals(333333833333500000.0, node.calculate(parameters).getValue(), 1e3);
+        
+        // pairwise summation of 0.1 a million times
+        node = Formula.parse("sum(i,1,n,0.1*sin(i)^0)", nf);
+        node.optimize();
+        node.bind(slots);
+        assertEquals(100000.0, node.evaluate(new double[] { 1000000.0, 0.0 }), 1e-9);
+    }
+    
+    @Test
+    public void testExceptions() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        Node node = Formula.parse("sum(i,1,n,i/x)", nf);
+        node.optimize();
+        node.bind(new SlotMap("n", "x"));
+        
+        // an empty range does not calculate the formula at all
+        assertEquals(0.0, node.evaluate(new double[] { 0.0, 0.0, 0.0 }), 0.0);
+        
+        // the running variable is restored, even if the formula throws
+        double[] values = new double[] { 3.0, 0.0, 7.0 };
+        try {
+            node.evaluate(values);
+            fail("Division by zero should throw an exception");
+        }
+        catch (FiMaLibDivisionByZeroException ex) {
+            System.out.println(ex.getMessage());
+        }
+        assertEquals(7.0, values[2], 0.0);
+        
+        node = Formula.parse("prod(i,1,n,x/(i-2))", nf);
+        node.optimize();
+        node.bind(new SlotMap("n", "x"));
+        try {
+            node.evaluate(values);
+            fail("Division by zero should throw an exception");
+        }
+        catch (FiMaLibDivisionByZeroException ex) {
+            System.out.println(ex.getMessage());
+        }
+        assertEquals(7.0, values[2], 0.0);
+    }
+    
+    @Test
+    public void testCopy() throws Exception {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        SlotMap slots = new SlotMap("n", "x");
+        
+        Sum sum = (Sum)Formula.parse("sum(i,1,n,3*x+2*i-i^2/4)", nf);
+        sum.optimize();
+        sum.bind(slots);
+        Sum sumCopy = (Sum)sum.copy();
+        assertNotNull(sumCopy.plan);
+        assertTrue(sumCopy.plan.isClosed());
+        assertNotSame(sum.plan, sumCopy.plan);
+        assertEquals(sum.evaluate(new double[] { 10.0, 0.5, 0.0 }), sumCopy.evaluate(new double[] { 10.0, 0.5, 0.0 }), 0.0);
+        
+        Prod prod = (Prod)Formula.parse("prod(i,1,n,2*x^i)", nf);
+        prod.optimize();
+        prod.bind(slots);
+        Prod prodCopy = (Prod)prod.copy();
+        assertNotNull(prodCopy.plan);
+        assertEquals(Series.SCALE, prodCopy.plan.kind);
+        assertEquals(prod.evaluate(new double[] { 10.0, 0.5, 0.0 }), prodCopy.evaluate(new double[] { 10.0, 0.5, 0.0 }), 0.0);
+        
+        // copies of formulas that have not been optimized do not get a plan
+        sum = (Sum)Formula.parse("sum(i,1,n,i)", nf);
+        assertNull(((Sum)sum.copy()).plan);
+    }
+}
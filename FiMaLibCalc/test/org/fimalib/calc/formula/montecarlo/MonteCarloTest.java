@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2024 peter.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package org.fimalib.calc.formula.montecarlo;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import org.fimalib.calc.formula.Formula;
+import org.fimalib.calc.formula.nodes.Node;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * This test class tests the Monte Carlo simulation of payoff formulas
+ * 
+ * @author Peter Werno
+ */
+public class MonteCarloTest {
+    static final double CALL_PRICE = 10.450583572185565;    // Black-Scholes: S=K=100, r=5%, sigma=20%, T=1
+    
+    public MonteCarloTest() {
+    }
+    
+    static Node parse(String formula) throws Exception {
+        return Formula.parse(formula, NumberFormat.getInstance(Locale.US));
+    }
+    
+    static MonteCarlo call() throws Exception {
+        MonteCarlo retVal = new MonteCarlo(parse("exp(-r)*max(s-k,0)"), 1.0, 1,
+                new GeometricBrownianMotion("s", 100.0, 0.05, 0.2));
+        retVal.setParameter("r", 0.05);
+        retVal.setParameter("k", 100.0);
+        retVal.setSeed(42L);
+        retVal.setMaximumPaths(1L << 18);
+        
+        return retVal;
+    }
+    
+    @Test
+    public void testCall() throws Exception {
+        MonteCarlo mc = call();
+        MonteCarloResult plain = mc.run();
+        assertEquals(1L << 18, plain.getPaths());
+        assertEquals(CALL_PRICE, plain.getMean(), 4.0 * plain.getStandardError());
+        
+        mc.setAntithetic(true);
+        MonteCarloResult antithetic = mc.run();
+        assertEquals(plain.getPaths() / 2, antithetic.getSamples());
+        assertEquals(CALL_PRICE, antithetic.getMean(), 4.0 * antithetic.getStandardError());
+        
+        // the discounted stock price is a martingale
+        mc.setControlVariate(parse("exp(-r)*s"), 100.0);
+        MonteCarloResult controlled = mc.run();
+        assertEquals(CALL_PRICE, controlled.getMean(), 4.0 * controlled.getStandardError());
+        assertTrue(controlled.getBeta() > 0.0);
+        assertTrue(controlled.getStandardError() < 0.5 * plain.getStandardError());
+    }
+    
+    @Test
+    public void testReproducible() throws Exception {
+        MonteCarlo mc = call();
+        mc.setAntithetic(true);
+        
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool several = new ForkJoinPool(4);
+        try {
+            MonteCarloResult result1 = mc.run(single);
+            MonteCarloResult result2 = mc.run(several);
+            assertEquals(result1.getMean(), result2.getMean(), 0.0);
+            assertEquals(result1.getStandardError(), result2.getStandardError(), 0.0);
+            
+            mc.setSeed(43L);
+            assertNotEquals(result1.getMean(), mc.run(several).getMean(), 0.0);
+        }
+        finally {
+            single.shutdown();
+            several.shutdown();
+        }
+    }
+    
+    @Test
+    public void testEarlyStopping() throws Exception {
+        MonteCarlo mc = call();
+        mc.setMaximumPaths(1L << 22);
+        mc.setRoundSize(4);
+        mc.setTolerance(0.05);
+        
+        MonteCarloResult result = mc.run();
+        assertTrue(result.isConverged());
+        assertTrue(result.getStandardError() <= 0.05);
+        assertTrue(result.getPaths() < (1L << 22));
+        assertEquals(CALL_PRICE, result.getMean(), 4.0 * result.getStandardError());
+    }
+    
+    @Test
+    public void testPathDependent() throws Exception {
+        // Ornstein-Uhlenbeck: E[X(T)] = x0*exp(-theta*T) + mu*(1-exp(-theta*T))
+        MonteCarlo mc = new MonteCarlo(parse("x"), 2.0, 20, new OrnsteinUhlenbeck("x", 0.01, 0.5, 0.04, 0.01));
+        mc.setSeed(7L);
+        mc.setMaximumPaths(1L << 16);
+        MonteCarloResult result = mc.run();
+        double expected = 0.01 * Math.exp(-1.0) + 0.04 * (1.0 - Math.exp(-1.0));
+        assertEquals(expected, result.getMean(), 4.0 * result.getStandardError());
+        
+        // the average of a GBM with zero drift has the expectation of its initial value
+        mc = new MonteCarlo(parse("a-m+n"), 1.0, 12, new GeometricBrownianMotion("s", 50.0, 0.0, 0.3));
+        mc.addAverage("a", "s");
+        mc.addMaximum("m", "s");
+        mc.addMinimum("n", "s");
+        mc.setSeed(7L);
+        mc.setMaximumPaths(1L << 16);
+        result = mc.run();
+        assertTrue(result.getMean() < 50.0);
+        
+        mc = new MonteCarlo(parse("a"), 1.0, 12, new GeometricBrownianMotion("s", 50.0, 0.0, 0.3));
+        mc.addAverage("a", "s");
+        mc.setSeed(7L);
+        mc.setMaximumPaths(1L << 16);
+        result = mc.run();
+        assertEquals(50.0, result.getMean(), 4.0 * result.getStandardError());
+    }
+}